@@ -0,0 +1,44 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Opaque continuation token handed out to clients, pointing at the id of the last event of a page.
+ */
+public final class EventCursor {
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+  public static String encode(int id) {
+    return ENCODING.encode(Integer.toString(id).getBytes(UTF_8));
+  }
+
+  public static int decode(String cursor) throws MalformedQueryException {
+    try {
+      int id = Integer.parseInt(new String(ENCODING.decode(cursor), UTF_8));
+      if (id < 0) {
+        throw new MalformedQueryException();
+      }
+      return id;
+    } catch (IllegalArgumentException e) {
+      throw new MalformedQueryException(e);
+    }
+  }
+
+  private EventCursor() {}
+}
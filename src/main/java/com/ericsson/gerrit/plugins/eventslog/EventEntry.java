@@ -0,0 +1,176 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.server.data.ChangeAttribute;
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.events.SupplierSerializer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.sql.Timestamp;
+
+/** An event as kept by the stores, along with the fields queries filter on. */
+public class EventEntry implements Comparable<EventEntry> {
+  private static final int SEED = 31;
+  private static final String TYPE_FIELD = "type";
+  private static final String CHANGE_FIELD = "change";
+  private static final String NUMBER_FIELD = "number";
+  private static final Gson GSON =
+      new GsonBuilder().registerTypeAdapter(Supplier.class, new SupplierSerializer()).create();
+
+  private String name;
+  private Timestamp timestamp;
+  private String event;
+  private int id;
+  private String type;
+  private Integer changeNumber;
+
+  /**
+   * Serializes the event, for it to be stored.
+   *
+   * @param event the event, which must belong to a project
+   * @return the entry of the event, with no id yet
+   */
+  public static EventEntry of(ProjectEvent event) {
+    return new EventEntry(
+        event.getProjectNameKey().get(),
+        new Timestamp(SECONDS.toMillis(event.eventCreatedOn)),
+        GSON.toJson(event),
+        0,
+        event.getType(),
+        changeNumber(event));
+  }
+
+  private static Integer changeNumber(ProjectEvent event) {
+    if (event instanceof ChangeEvent) {
+      Supplier<ChangeAttribute> change = ((ChangeEvent) event).change;
+      ChangeAttribute attribute = change != null ? change.get() : null;
+      if (attribute != null) {
+        return attribute.number;
+      }
+    }
+    return null;
+  }
+
+  public EventEntry(String name, Timestamp timestamp, String event, int id) {
+    this(name, timestamp, event, id, null, null);
+  }
+
+  public EventEntry(
+      String name, Timestamp timestamp, String event, int id, String type, Integer changeNumber) {
+    this.name = name;
+    this.timestamp = timestamp;
+    this.event = event;
+    this.id = id;
+    this.type = type;
+    this.changeNumber = changeNumber;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Timestamp getTimestamp() {
+    return timestamp;
+  }
+
+  public String getEvent() {
+    return event;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public Integer getChangeNumber() {
+    return changeNumber;
+  }
+
+  /**
+   * @param id the id the event was given when stored
+   * @return a copy of the entry with the given id
+   */
+  public EventEntry withId(int id) {
+    return new EventEntry(name, timestamp, event, id, type, changeNumber);
+  }
+
+  /**
+   * Reads the fields queries filter on from the serialized event, for events stored before these
+   * fields were kept along with them.
+   *
+   * @return a copy of the entry with the type and change read from the event, or the entry itself
+   *     if it already has a type or if the event cannot be read
+   */
+  public EventEntry withFilterFields() {
+    if (type != null) {
+      return this;
+    }
+    JsonObject json;
+    try {
+      json = new JsonParser().parse(event).getAsJsonObject();
+    } catch (JsonParseException | IllegalStateException e) {
+      return this;
+    }
+    JsonElement eventType = json.get(TYPE_FIELD);
+    if (eventType == null || !eventType.isJsonPrimitive()) {
+      return this;
+    }
+    JsonElement change = json.get(CHANGE_FIELD);
+    JsonElement number =
+        change != null && change.isJsonObject() ? change.getAsJsonObject().get(NUMBER_FIELD) : null;
+    Integer changeNumber = null;
+    if (number != null && number.isJsonPrimitive()) {
+      try {
+        changeNumber = number.getAsInt();
+      } catch (NumberFormatException e) {
+        // not the number of a change, the event is only filtered by type
+      }
+    }
+    return new EventEntry(name, timestamp, event, id, eventType.getAsString(), changeNumber);
+  }
+
+  @Override
+  public int compareTo(EventEntry o) {
+    return Integer.compare(this.id, o.id);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == null) {
+      return false;
+    }
+    if (this.getClass() != o.getClass()) {
+      return false;
+    }
+    return this.id == ((EventEntry) o).id;
+  }
+
+  @Override
+  public int hashCode() {
+    return SEED + id;
+  }
+}
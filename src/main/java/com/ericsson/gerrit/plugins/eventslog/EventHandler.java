@@ -18,41 +18,20 @@ import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.EventListener;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.inject.Inject;
-import java.util.concurrent.ScheduledExecutorService;
 
-/** Listen to Events and store them into the EventStore */
+/** Listen to Events and queue them for storage into the EventStore */
 class EventHandler implements EventListener {
-  private final EventStore store;
-  private final ScheduledExecutorService pool;
+  private final EventQueue queue;
 
   @Inject
-  EventHandler(EventStore store, @EventPool ScheduledExecutorService pool) {
-    this.store = store;
-    this.pool = pool;
+  EventHandler(EventQueue queue) {
+    this.queue = queue;
   }
 
   @Override
   public void onEvent(Event event) {
     if (event instanceof ProjectEvent) {
-      pool.execute(new StoreEventTask((ProjectEvent) event));
-    }
-  }
-
-  class StoreEventTask implements Runnable {
-    private ProjectEvent event;
-
-    StoreEventTask(ProjectEvent event) {
-      this.event = event;
-    }
-
-    @Override
-    public void run() {
-      store.storeEvent(event);
-    }
-
-    @Override
-    public String toString() {
-      return "(Events-log) Insert Event";
+      queue.offer((ProjectEvent) event);
     }
   }
 }
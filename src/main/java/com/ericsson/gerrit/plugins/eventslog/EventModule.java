@@ -14,9 +14,9 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
-import com.ericsson.gerrit.plugins.eventslog.sql.EventsLogCleaner;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.GroupIndexedListener;
 import com.google.gerrit.extensions.events.LifecycleListener;
-import com.google.gerrit.extensions.events.ProjectDeletedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.server.events.EventListener;
 import com.google.inject.AbstractModule;
@@ -36,8 +36,10 @@ public class EventModule extends AbstractModule {
     bind(LifecycleListener.class)
         .annotatedWith(UniqueAnnotations.create())
         .to(EventCleanerQueue.class);
+    bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(QueryExecutor.class);
     DynamicSet.bind(binder(), EventListener.class).to(EventHandler.class);
-    DynamicSet.bind(binder(), ProjectDeletedListener.class).to(EventsLogCleaner.class);
+    DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(ProjectVisibilityCache.class);
+    DynamicSet.bind(binder(), GroupIndexedListener.class).to(ProjectVisibilityCache.class);
   }
 
   @Provides
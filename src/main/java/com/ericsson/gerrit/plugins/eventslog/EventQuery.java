@@ -0,0 +1,234 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.MoreObjects;
+import java.sql.Timestamp;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A query on the stored events, formed by {@link EventQueryMaker}: the first events after a cursor
+ * or created within a time window, or else the most recent events, possibly filtered by project,
+ * type and change, up to a limit.
+ */
+public class EventQuery {
+  private final int limit;
+  private int afterId = -1;
+  private int beforeId = -1;
+  private Timestamp from;
+  private Timestamp to;
+  private Set<String> projects;
+  private Set<String> types;
+  private Set<Integer> changes;
+
+  /** @param limit the maximum number of events returned */
+  public EventQuery(int limit) {
+    this.limit = limit;
+  }
+
+  protected EventQuery(EventQuery query) {
+    this(query, query.limit);
+  }
+
+  private EventQuery(EventQuery query, int limit) {
+    this.limit = limit;
+    this.afterId = query.afterId;
+    this.beforeId = query.beforeId;
+    this.from = query.from;
+    this.to = query.to;
+    this.projects = query.projects;
+    this.types = query.types;
+    this.changes = query.changes;
+  }
+
+  void setAfterId(int afterId) {
+    this.afterId = afterId;
+  }
+
+  void setWindow(Timestamp from, Timestamp to) {
+    this.from = from;
+    this.to = to;
+  }
+
+  void setProjects(Set<String> projects) {
+    this.projects = projects;
+  }
+
+  void setTypes(Set<String> types) {
+    this.types = types;
+  }
+
+  void setChanges(Set<Integer> changes) {
+    this.changes = changes;
+  }
+
+  /** @return the maximum number of events returned */
+  public int getLimit() {
+    return limit;
+  }
+
+  /** @return true if the query returns the events after a cursor */
+  public boolean hasCursor() {
+    return afterId >= 0;
+  }
+
+  /** @return the id after which events are returned, 0 if there is no cursor */
+  public int getAfterId() {
+    return Math.max(afterId, 0);
+  }
+
+  /** @return true if the query only returns the events before a given id */
+  public boolean hasUpperBound() {
+    return beforeId >= 0;
+  }
+
+  /** @return the id before which events are returned, or -1 if there is no upper bound */
+  public int getBeforeId() {
+    return beforeId;
+  }
+
+  /** @return true if the query returns the events created within a time window */
+  public boolean hasWindow() {
+    return from != null;
+  }
+
+  /** @return the beginning of the time window, or null if there is no window */
+  public Timestamp getFrom() {
+    return from;
+  }
+
+  /** @return the end of the time window, or null if there is no window */
+  public Timestamp getTo() {
+    return to;
+  }
+
+  /**
+   * @param id the id of the last event already read
+   * @param remaining the number of events still wanted
+   * @return the query returning the events following those already read
+   */
+  public EventQuery continuing(int id, int remaining) {
+    EventQuery next = new EventQuery(this, remaining);
+    next.afterId = Math.max(id, afterId);
+    return next;
+  }
+
+  /**
+   * @param id the id of the oldest event already read
+   * @param remaining the number of events still wanted
+   * @return the query returning the events preceding those already read
+   */
+  public EventQuery preceding(int id, int remaining) {
+    EventQuery previous = new EventQuery(this, remaining);
+    previous.beforeId = hasUpperBound() ? Math.min(id, beforeId) : id;
+    return previous;
+  }
+
+  /** @return true if the query returns the most recent events, having no cursor nor window */
+  public boolean isLatest() {
+    return !hasCursor() && !hasWindow();
+  }
+
+  /** @return true if the query is filtered by project, type or change */
+  public boolean hasFilters() {
+    return projects != null || types != null || changes != null;
+  }
+
+  /** @return the projects the events are filtered by, or null if not filtered by project */
+  public Set<String> getProjects() {
+    return projects;
+  }
+
+  /** @return the types the events are filtered by, or null if not filtered by type */
+  public Set<String> getTypes() {
+    return types;
+  }
+
+  /** @return the changes the events are filtered by, or null if not filtered by change */
+  public Set<Integer> getChanges() {
+    return changes;
+  }
+
+  /**
+   * @param project the name of a project
+   * @return true if events of the project may match the query
+   */
+  public boolean matchesProject(String project) {
+    return projects == null || projects.contains(project);
+  }
+
+  /**
+   * @param project the project of an event
+   * @param type the type of the event
+   * @param changeNumber the change of the event, or null if it is not about a change
+   * @return true if the event matches the filters of the query
+   */
+  public boolean matchesFilters(String project, String type, Integer changeNumber) {
+    return (changes == null || changes.contains(changeNumber))
+        && (types == null || types.contains(type))
+        && matchesProject(project);
+  }
+
+  /**
+   * @param entry a stored event
+   * @return true if the event matches the cursor, the window and the filters of the query
+   */
+  public boolean matches(EventEntry entry) {
+    return entry.getId() > getAfterId()
+        && (beforeId < 0 || entry.getId() < beforeId)
+        && (from == null || (!entry.getTimestamp().before(from) && !entry.getTimestamp().after(to)))
+        && matchesFilters(entry.getName(), entry.getType(), entry.getChangeNumber());
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof EventQuery)) {
+      return false;
+    }
+    EventQuery other = (EventQuery) obj;
+    return limit == other.limit
+        && afterId == other.afterId
+        && beforeId == other.beforeId
+        && Objects.equals(from, other.from)
+        && Objects.equals(to, other.to)
+        && Objects.equals(projects, other.projects)
+        && Objects.equals(types, other.types)
+        && Objects.equals(changes, other.changes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(limit, afterId, beforeId, from, to, projects, types, changes);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .omitNullValues()
+        .add("limit", limit)
+        .add("afterId", hasCursor() ? afterId : null)
+        .add("beforeId", hasUpperBound() ? beforeId : null)
+        .add("from", from)
+        .add("to", to)
+        .add("projects", projects)
+        .add("types", types)
+        .add("changes", changes)
+        .toString();
+  }
+}
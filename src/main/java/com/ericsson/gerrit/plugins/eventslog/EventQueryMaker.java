@@ -0,0 +1,151 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.Splitter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Forms the queries on the stored events from the parameters of the REST API. */
+@Singleton
+public class EventQueryMaker implements QueryMaker {
+  public static final String TIME_ONE = "t1";
+  public static final String TIME_TWO = "t2";
+  public static final String CURSOR = "cursor";
+  public static final String PROJECT = "project";
+  public static final String TYPE = "type";
+  public static final String CHANGE = "change";
+  private static final DateTimeFormatter DATE_TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final DateTimeFormatter DATE_ONLY_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+  private final int returnLimit;
+
+  @Inject
+  public EventQueryMaker(EventsLogConfig config) {
+    this.returnLimit = config.getReturnLimit();
+  }
+
+  @Override
+  public EventQuery formQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    if (params == null) {
+      return getDefaultQuery();
+    }
+    EventQuery query = new EventQuery(returnLimit);
+    boolean hasConditions = false;
+    String cursor = params.get(CURSOR);
+    if (cursor != null) {
+      query.setAfterId(EventCursor.decode(cursor));
+      hasConditions = true;
+    }
+    if (params.containsKey(TIME_ONE) || params.containsKey(TIME_TWO)) {
+      setWindow(query, params.get(TIME_ONE), params.get(TIME_TWO));
+      hasConditions = true;
+    }
+    String projects = params.get(PROJECT);
+    if (projects != null) {
+      query.setProjects(values(projects));
+      hasConditions = true;
+    }
+    String types = params.get(TYPE);
+    if (types != null) {
+      query.setTypes(values(types));
+      hasConditions = true;
+    }
+    String changes = params.get(CHANGE);
+    if (changes != null) {
+      query.setChanges(changeNumbers(changes));
+      hasConditions = true;
+    }
+    if (!hasConditions) {
+      throw new MalformedQueryException();
+    }
+    return make(query);
+  }
+
+  @Override
+  public EventQuery getDefaultQuery() {
+    return make(new EventQuery(returnLimit));
+  }
+
+  /**
+   * Completes a query formed from the parameters, for stores needing more than what it holds.
+   *
+   * @param query the query formed from the parameters
+   * @return the query handed to the store
+   */
+  protected EventQuery make(EventQuery query) {
+    return query;
+  }
+
+  private static void setWindow(EventQuery query, String dateOne, String dateTwo)
+      throws MalformedQueryException {
+    LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+    try {
+      LocalDateTime one = dateOne == null ? now : parseDate(dateOne);
+      LocalDateTime two = dateTwo == null ? now : parseDate(dateTwo);
+      if (one.isAfter(two)) {
+        LocalDateTime swap = one;
+        one = two;
+        two = swap;
+      }
+      query.setWindow(Timestamp.valueOf(one), Timestamp.valueOf(two));
+    } catch (DateTimeParseException e) {
+      throw new MalformedQueryException(e);
+    }
+  }
+
+  private static LocalDateTime parseDate(String date) throws DateTimeParseException {
+    try {
+      return LocalDateTime.parse(date, DATE_TIME_FORMAT);
+    } catch (DateTimeParseException e) {
+      return LocalDate.parse(date, DATE_ONLY_FORMAT).atStartOfDay();
+    }
+  }
+
+  private static Set<String> values(String values) throws MalformedQueryException {
+    Set<String> split = new HashSet<>();
+    for (String value : Splitter.on(',').trimResults().omitEmptyStrings().split(values)) {
+      split.add(value);
+    }
+    if (split.isEmpty()) {
+      throw new MalformedQueryException();
+    }
+    return split;
+  }
+
+  private static Set<Integer> changeNumbers(String values) throws MalformedQueryException {
+    Set<Integer> numbers = new HashSet<>();
+    try {
+      for (String value : values(values)) {
+        numbers.add(Integer.parseInt(value));
+      }
+    } catch (NumberFormatException e) {
+      throw new MalformedQueryException(e);
+    }
+    return numbers;
+  }
+}
@@ -15,34 +15,371 @@
 package com.ericsson.gerrit.plugins.eventslog;
 
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-/** A queue for events to store. */
+/**
+ * A bounded queue for events to store. Events are spread over a number of writer lanes, each made
+ * of a ring buffer of pre-allocated slots drained in batches by a dedicated writer thread. Events
+ * are routed to a lane by project, so that events of a project are stored in the order they were
+ * received while events of different projects are stored in parallel.
+ */
+@Singleton
 public class EventQueue implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(EventQueue.class);
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long OVERFLOW_LOG_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+  private static final long STOP_TIMEOUT_SECONDS = 10;
+
+  /** What to do with an event that arrives while the queue is full. */
+  public enum OverflowPolicy {
+    /** Wait for room in the queue, for a bounded time, then drop the event. */
+    BLOCK,
+    /** Drop the oldest queued events to make room for the new one. */
+    DROP_OLDEST,
+    /** Bypass the queue and store the event in the local store. */
+    SPILL
+  }
+
   private final WorkQueue workQueue;
-  private ScheduledExecutorService pool;
+  private final Provider<EventStore> store;
+  private final QueueMetrics metrics;
+  private final Lane[] lanes;
+  private final OverflowPolicy overflowPolicy;
+  private final long overflowTimeoutNanos;
+  private final int batchSize;
+  private final long batchLingerNanos;
+  private final AtomicLong lastOverflowLog =
+      new AtomicLong(System.nanoTime() - OVERFLOW_LOG_INTERVAL);
+  private volatile ScheduledExecutorService pool;
+  private volatile ScheduledExecutorService writers;
 
   @Inject
-  EventQueue(WorkQueue workQueue) {
+  EventQueue(
+      WorkQueue workQueue, Provider<EventStore> store, EventsLogConfig cfg, QueueMetrics metrics) {
     this.workQueue = workQueue;
+    this.store = store;
+    this.metrics = metrics;
+    this.lanes = new Lane[cfg.getWriterLanes()];
+    int laneCapacity = (cfg.getQueueCapacity() + lanes.length - 1) / lanes.length;
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new Lane(laneCapacity);
+    }
+    this.overflowPolicy = cfg.getOverflowPolicy();
+    this.overflowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(cfg.getOverflowTimeout());
+    this.batchSize = cfg.getBatchSize();
+    this.batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(cfg.getBatchLinger());
+    metrics.registerDepth(this::size);
   }
 
-  /** {@inheritDoc} Create a new executor queue in WorkQueue for storing events. */
+  /**
+   * {@inheritDoc} Create a new executor queue in WorkQueue for scheduling store related tasks and
+   * start one writer thread per lane.
+   */
   @Override
   public void start() {
     pool = workQueue.createQueue(1, "Store events");
+    writers = workQueue.createQueue(lanes.length, "[events-log] Write events");
+    for (Lane lane : lanes) {
+      writers.execute(lane.writer);
+    }
   }
 
+  /**
+   * {@inheritDoc} Stop the writer threads, once they have stored the batch they are writing, then
+   * store the batches waiting to be retried and the events still queued from the stopping thread.
+   * Events the store fails to take are spilled to the local store.
+   */
   @Override
   public void stop() {
+    for (Lane lane : lanes) {
+      lane.writer.stop();
+    }
+    if (writers != null && !awaitWriters()) {
+      // the lanes cannot be drained while their writers are still running
+      log.warn("Writers did not stop, {} queued events were not stored", size());
+    } else {
+      storeQueuedEvents();
+    }
+    writers = null;
     if (pool != null) {
       pool = null;
     }
   }
 
+  private boolean awaitWriters() {
+    writers.shutdown();
+    try {
+      if (writers.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writers.shutdownNow();
+    return false;
+  }
+
+  private void storeQueuedEvents() {
+    int stored = 0;
+    for (Lane lane : lanes) {
+      List<ProjectEvent> batch = lane.writer.takeParked();
+      if (batch != null) {
+        // the batch waiting to be retried comes before the events queued after it
+        storeOrSpill(batch);
+        stored += batch.size();
+      }
+      batch = new ArrayList<>(batchSize);
+      while (lane.events.drainTo(batch, batchSize) > 0) {
+        storeOrSpill(batch);
+        stored += batch.size();
+        batch = new ArrayList<>(batchSize);
+      }
+    }
+    if (stored > 0) {
+      log.info("Stored {} queued events on stop", stored);
+    }
+  }
+
+  private void storeOrSpill(List<ProjectEvent> batch) {
+    try {
+      store.get().storeEvents(batch);
+    } catch (RuntimeException e) {
+      log.warn("Cannot store {} queued events, spilling them", batch.size(), e);
+      for (ProjectEvent event : batch) {
+        try {
+          store.get().spillEvent(event);
+        } catch (RuntimeException spillError) {
+          log.error("Cannot spill queued event", spillError);
+        }
+      }
+    }
+  }
+
   ScheduledExecutorService getPool() {
     return this.pool;
   }
+
+  /**
+   * Queues the given event for storage. When the queue is full, the configured overflow policy
+   * decides what happens to the event.
+   *
+   * @param event the event to store
+   */
+  public void offer(ProjectEvent event) {
+    Lane lane = laneOf(event);
+    if (lane.events.offer(event)) {
+      lane.writer.wakeUp();
+      return;
+    }
+    logOverflow(lane);
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        dropOldestAndOffer(lane, event);
+        break;
+      case SPILL:
+        metrics.spilled();
+        store.get().spillEvent(event);
+        break;
+      case BLOCK:
+      default:
+        blockAndOffer(lane, event);
+    }
+  }
+
+  int size() {
+    int size = 0;
+    for (Lane lane : lanes) {
+      size += lane.events.size();
+    }
+    return size;
+  }
+
+  private Lane laneOf(ProjectEvent event) {
+    Project.NameKey project = event.getProjectNameKey();
+    if (project == null || lanes.length == 1) {
+      return lanes[0];
+    }
+    return lanes[Math.floorMod(project.get().hashCode(), lanes.length)];
+  }
+
+  private void dropOldestAndOffer(Lane lane, ProjectEvent event) {
+    do {
+      if (lane.events.poll() != null) {
+        metrics.dropped();
+      }
+    } while (!lane.events.offer(event));
+    lane.writer.wakeUp();
+  }
+
+  private void blockAndOffer(Lane lane, ProjectEvent event) {
+    metrics.blocked();
+    long deadline = System.nanoTime() + overflowTimeoutNanos;
+    do {
+      lane.writer.wakeUp();
+      LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+      if (lane.events.offer(event)) {
+        lane.writer.wakeUp();
+        return;
+      }
+    } while (System.nanoTime() - deadline < 0);
+    metrics.dropped();
+  }
+
+  private void logOverflow(Lane lane) {
+    long last = lastOverflowLog.get();
+    long now = System.nanoTime();
+    if (now - last >= OVERFLOW_LOG_INTERVAL && lastOverflowLog.compareAndSet(last, now)) {
+      log.warn(
+          "Queue of events to store is full ({} events per lane), applying overflow policy {}",
+          lane.events.capacity(),
+          overflowPolicy);
+    }
+  }
+
+  private class Lane {
+    private final RingBuffer<ProjectEvent> events;
+    private final StoreEventsTask writer;
+
+    Lane(int capacity) {
+      events = new RingBuffer<>(capacity);
+      writer = new StoreEventsTask(events);
+    }
+  }
+
+  /**
+   * Drains a lane in batches. A batch the store asks to retry is parked and retried from the pool
+   * after the back-off, while the writer thread is released; the lane is only drained again once
+   * the batch is stored, so that the events of its projects stay in order.
+   */
+  class StoreEventsTask implements Runnable {
+    private final RingBuffer<ProjectEvent> events;
+    private volatile boolean running = true;
+    private volatile boolean waiting;
+    private volatile Thread thread;
+    private List<ProjectEvent> parked;
+    private int failedAttempts;
+
+    StoreEventsTask(RingBuffer<ProjectEvent> events) {
+      this.events = events;
+    }
+
+    @Override
+    public void run() {
+      thread = Thread.currentThread();
+      List<ProjectEvent> batch = new ArrayList<>(batchSize);
+      while (running && !thread.isInterrupted()) {
+        if (events.drainTo(batch, batchSize) == 0) {
+          await(IDLE_PARK_NANOS);
+          continue;
+        }
+        linger(batch);
+        if (!tryStore(batch, 0)) {
+          // the writer thread is released until the parked batch is stored
+          return;
+        }
+        batch = new ArrayList<>(batchSize);
+      }
+    }
+
+    /** @return true if the batch is done with, false if it was parked to be retried */
+    private synchronized boolean tryStore(List<ProjectEvent> batch, int failures) {
+      long retryDelay;
+      try {
+        retryDelay = store.get().tryStoreEvents(batch, failures);
+      } catch (RuntimeException e) {
+        log.error("Cannot store {} events", batch.size(), e);
+        retryDelay = 0;
+      }
+      if (retryDelay <= 0) {
+        parked = null;
+        return true;
+      }
+      parked = batch;
+      failedAttempts = failures + 1;
+      ScheduledExecutorService retryPool = pool;
+      if (retryPool == null) {
+        // stopping, the parked batch is stored along with the queued events
+        return false;
+      }
+      retryPool.schedule(this::retryParked, retryDelay, TimeUnit.MILLISECONDS);
+      return false;
+    }
+
+    private void retryParked() {
+      synchronized (this) {
+        if (!running || parked == null || !tryStore(parked, failedAttempts)) {
+          return;
+        }
+      }
+      ScheduledExecutorService writerPool = writers;
+      try {
+        if (writerPool != null) {
+          writerPool.execute(this);
+        }
+      } catch (RejectedExecutionException e) {
+        // stopping, the queued events are stored by the stopping thread
+      }
+    }
+
+    /** @return the batch waiting to be retried, if any, which is no longer retried */
+    synchronized List<ProjectEvent> takeParked() {
+      List<ProjectEvent> batch = parked;
+      parked = null;
+      return batch;
+    }
+
+    private void linger(List<ProjectEvent> batch) {
+      long start = System.nanoTime();
+      long remaining = batchLingerNanos;
+      while (batch.size() < batchSize && remaining > 0 && running) {
+        if (events.drainTo(batch, batchSize - batch.size()) == 0) {
+          await(remaining);
+        }
+        remaining = batchLingerNanos - (System.nanoTime() - start);
+      }
+      metrics.recordLinger(System.nanoTime() - start);
+    }
+
+    private void await(long nanos) {
+      waiting = true;
+      if (running && events.isEmpty()) {
+        LockSupport.parkNanos(this, nanos);
+      }
+      waiting = false;
+    }
+
+    void wakeUp() {
+      if (waiting) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    void stop() {
+      running = false;
+      Thread t = thread;
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "(Events-log) Store events";
+    }
+  }
 }
@@ -15,6 +15,8 @@
 package com.ericsson.gerrit.plugins.eventslog;
 
 import com.google.gerrit.server.events.ProjectEvent;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /** A store for change events to query. */
@@ -27,6 +29,35 @@ public interface EventStore {
    */
   void storeEvent(ProjectEvent event);
 
+  /**
+   * Stores the given events, in order.
+   *
+   * @param events the events to store
+   */
+  void storeEvents(List<ProjectEvent> events);
+
+  /**
+   * Tries once to store the given events, in order, leaving it to the caller to try again later if
+   * the store asks for it, so that the calling thread is never held up by the back-off.
+   *
+   * @param events the events to store
+   * @param failedAttempts the number of times storing these events already failed
+   * @return the delay, in milliseconds, after which storing the events should be tried again, or 0
+   *     if they were stored or need not be tried again
+   */
+  default long tryStoreEvents(List<ProjectEvent> events, int failedAttempts) {
+    storeEvents(events);
+    return 0;
+  }
+
+  /**
+   * Stores the given event in secondary storage because it could not be queued for regular storage.
+   * Spilled events are expected to be moved to regular storage later on.
+   *
+   * @param event the event to spill
+   */
+  void spillEvent(ProjectEvent event);
+
   /**
    * Returns events from the store based on the given query.
    *
@@ -34,5 +65,38 @@ public interface EventStore {
    * @return a list of events in String format.
    * @throws EventsLogException if the given query can't be processed
    */
-  List<String> queryChangeEvents(String query) throws EventsLogException;
+  default List<String> queryChangeEvents(EventQuery query) throws EventsLogException {
+    List<String> events = new ArrayList<>();
+    try {
+      queryChangeEvents(query, events::add);
+    } catch (IOException e) {
+      throw new EventsLogException("Cannot collect events", e);
+    }
+    return events;
+  }
+
+  /**
+   * Passes the events matching the given query to the visitor, in order, as they are read from the
+   * store, without holding the whole result in memory.
+   *
+   * @param query the query used to get events
+   * @param visitor the visitor receiving the events in String format
+   * @throws EventsLogException if the given query can't be processed
+   * @throws IOException if the visitor fails to handle an event
+   */
+  void queryChangeEvents(EventQuery query, EventVisitor visitor)
+      throws EventsLogException, IOException;
+
+  /**
+   * Subscribes to the events visible to the current user which are stored from now on after the
+   * given cursor.
+   *
+   * @param cursor the cursor after which events are wanted, or null for all the events stored from
+   *     now on
+   * @param onReady called, from the thread storing the events, once the subscription becomes ready
+   *     to be drained; it must return quickly
+   * @return the subscription, which must be closed once done
+   * @throws MalformedQueryException if the cursor is not valid
+   */
+  EventSubscription subscribe(String cursor, Runnable onReady) throws MalformedQueryException;
 }
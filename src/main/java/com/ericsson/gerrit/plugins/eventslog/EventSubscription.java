@@ -0,0 +1,54 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import java.io.IOException;
+
+/**
+ * Receives the events visible to a user as they are stored, keeping them in a bounded buffer until
+ * they are drained. Events are missed if the buffer fills up before it is drained, in which case
+ * they must be queried from the store.
+ */
+public interface EventSubscription extends AutoCloseable {
+
+  /**
+   * Returns whether events were received, or missed, since the subscription was made.
+   *
+   * @return true if the subscription is ready to be drained
+   */
+  boolean isReady();
+
+  /**
+   * Passes the events received so far to the visitor and forgets them. Nothing is passed if events
+   * were missed.
+   *
+   * @param visitor the visitor receiving the events in String format
+   * @return true if the events were passed, false if events were missed
+   * @throws IOException if the visitor fails to handle an event
+   */
+  boolean drain(EventVisitor visitor) throws IOException;
+
+  /**
+   * Returns the cursor from which missed events can be queried.
+   *
+   * @return the cursor, or null if the subscription was made from the most recent event and its
+   *     position is unknown
+   */
+  String getCursor();
+
+  /** Stops receiving events. */
+  @Override
+  void close();
+}
@@ -0,0 +1,39 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import java.io.IOException;
+
+/** Receives the events returned by a query, one at a time, as they are read from the store. */
+@FunctionalInterface
+public interface EventVisitor {
+
+  /**
+   * Visits an event returned by a query.
+   *
+   * @param event the event in String format
+   * @throws IOException if the event can't be written out, which aborts the query
+   */
+  void visit(String event) throws IOException;
+
+  /**
+   * Receives the cursor from which a following query can resume, right before the events are
+   * visited. It is not called if the query returns no events.
+   *
+   * @param cursor an opaque token pointing after the last event returned by the query
+   * @throws IOException if the cursor can't be written out, which aborts the query
+   */
+  default void nextCursor(String cursor) throws IOException {}
+}
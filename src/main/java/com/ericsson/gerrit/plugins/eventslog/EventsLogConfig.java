@@ -14,6 +14,8 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import com.ericsson.gerrit.plugins.eventslog.EventQueue.OverflowPolicy;
+import com.ericsson.gerrit.plugins.eventslog.StoreModule.StoreType;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
@@ -22,14 +24,23 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /** Holder of all things related to events-log plugin configuration. */
 @Singleton
 public class EventsLogConfig {
+  private static final Logger log = LoggerFactory.getLogger(EventsLogConfig.class);
+
   public static final String H2_DB_PREFIX = "jdbc:h2:";
 
   static final String CONFIG_COPY_LOCAL = "copyLocal";
+  static final String CONFIG_PARTITIONED = "partitioned";
   static final String CONFIG_MAX_AGE = "maxAge";
+  static final String CONFIG_RETENTION = "retention";
   static final String CONFIG_MAX_TRIES = "maxTries";
   static final String CONFIG_RETURN_LIMIT = "returnLimit";
   static final String CONFIG_URL = "storeUrl";
@@ -40,17 +51,77 @@ public class EventsLogConfig {
   static final String CONFIG_WAIT_TIME = "retryTimeout";
   static final String CONFIG_CONN_TIME = "connectTimeout";
   static final String CONFIG_MAX_CONNECTIONS = "maxConnections";
+  static final String CONFIG_INGEST_CONNECTIONS = "ingestConnections";
+  static final String CONFIG_STATEMENT_CACHE_SIZE = "statementCacheSize";
+  static final String CONFIG_BATCH_SIZE = "batchSize";
+  static final String CONFIG_BATCH_LINGER = "batchLinger";
+  static final String CONFIG_VISIBILITY_CACHE_SIZE = "visibilityCacheSize";
+  static final String CONFIG_VISIBILITY_CACHE_TTL = "visibilityCacheTtl";
+  static final String CONFIG_QUERY_CACHE_SIZE = "queryCacheSize";
+  static final String CONFIG_TAIL_BUFFER_SIZE = "tailBufferSize";
+  static final String CONFIG_RESTORE_RATE = "restoreRate";
+  static final String CONFIG_POLL_BUFFER_SIZE = "pollBufferSize";
+  static final String CONFIG_POLL_TIMEOUT = "pollTimeout";
+  static final String CONFIG_QUERY_THREADS = "queryThreads";
+  static final String CONFIG_QUERY_QUEUE_CAPACITY = "queryQueueCapacity";
+  static final String CONFIG_QUERY_TIMEOUT = "queryTimeout";
+  static final String CONFIG_QUERY_RATE = "queryRate";
+  static final String CONFIG_QUERY_BURST = "queryBurst";
+  static final String CONFIG_COMPRESSION_MIN_SIZE = "compressionMinSize";
+  static final String CONFIG_CLEANUP_HOUR = "cleanupHour";
+  static final String CONFIG_CLEANUP_WINDOW = "cleanupWindow";
+  static final String CONFIG_CLEANUP_BATCH_SIZE = "cleanupBatchSize";
+  static final String CONFIG_CLEANUP_PAUSE = "cleanupPause";
+  static final String CONFIG_CLEANUP_MAX_LATENCY = "cleanupMaxLatency";
+  static final String CONFIG_ARCHIVE_AGE = "archiveAge";
+  static final String CONFIG_ARCHIVE_PATH = "archivePath";
+  static final String CONFIG_WRITER_LANES = "writerLanes";
+  static final String CONFIG_QUEUE_CAPACITY = "queueCapacity";
+  static final String CONFIG_OVERFLOW_POLICY = "overflowPolicy";
+  static final String CONFIG_OVERFLOW_TIMEOUT = "overflowTimeout";
+  static final String CONFIG_STORE_TYPE = "storeType";
+  static final String CONFIG_LOG_PATH = "logPath";
+  static final String CONFIG_LOG_SEGMENT_SIZE = "logSegmentSize";
 
   static final boolean DEFAULT_COPY_LOCAL = false;
+  static final boolean DEFAULT_PARTITIONED = false;
   static final int DEFAULT_MAX_AGE = 30;
   static final int DEFAULT_MAX_TRIES = 3;
   static final int DEFAULT_RETURN_LIMIT = 5000;
   static final int DEFAULT_WAIT_TIME = 1000;
   static final int DEFAULT_CONN_TIME = 1000;
   static final int DEFAULT_MAX_CONNECTIONS = 8;
+  static final int DEFAULT_STATEMENT_CACHE_SIZE = 250;
+  static final int DEFAULT_VISIBILITY_CACHE_SIZE = 10000;
+  static final int DEFAULT_VISIBILITY_CACHE_TTL = 60;
+  static final int DEFAULT_QUERY_CACHE_SIZE = 10000;
+  static final int DEFAULT_RESTORE_RATE = 5000;
+  static final int DEFAULT_POLL_BUFFER_SIZE = 1000;
+  static final int DEFAULT_POLL_TIMEOUT = 30;
+  static final int DEFAULT_QUERY_QUEUE_CAPACITY = 100;
+  static final int DEFAULT_QUERY_TIMEOUT = 30;
+  static final int DEFAULT_QUERY_RATE = 0;
+  static final int DEFAULT_QUERY_BURST = 10;
+  static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+  static final int DEFAULT_CLEANUP_HOUR = 23;
+  static final int DEFAULT_CLEANUP_WINDOW = 240;
+  static final int DEFAULT_CLEANUP_BATCH_SIZE = 10000;
+  static final int DEFAULT_CLEANUP_PAUSE = 500;
+  static final int DEFAULT_CLEANUP_MAX_LATENCY = 200;
+  static final int DEFAULT_ARCHIVE_AGE = 0;
+  static final int DEFAULT_BATCH_SIZE = 1;
+  static final int DEFAULT_BATCH_LINGER = 0;
+  static final int DEFAULT_QUEUE_CAPACITY = 16384;
+  static final int MAX_QUEUE_CAPACITY = 1 << 24;
+  static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+  static final int DEFAULT_OVERFLOW_TIMEOUT = 1000;
+  static final StoreType DEFAULT_STORE_TYPE = StoreType.SQL;
+  static final int DEFAULT_LOG_SEGMENT_SIZE = 100000;
 
   private boolean copyLocal;
+  private boolean partitioned;
   private int maxAge;
+  private List<RetentionRule> retentionRules;
   private int maxTries;
   private int returnLimit;
   private int waitTime;
@@ -61,12 +132,52 @@ public class EventsLogConfig {
   private String storeUsername;
   private String storePassword;
   private int maxConnections;
+  private int ingestConnections;
+  private int statementCacheSize;
+  private int batchSize;
+  private int batchLinger;
+  private int visibilityCacheSize;
+  private int visibilityCacheTtl;
+  private int queryCacheSize;
+  private int tailBufferSize;
+  private int restoreRate;
+  private int pollBufferSize;
+  private int pollTimeout;
+  private int queryThreads;
+  private int queryQueueCapacity;
+  private int queryTimeout;
+  private int queryRate;
+  private int queryBurst;
+  private int compressionMinSize;
+  private int cleanupHour;
+  private int cleanupWindow;
+  private int cleanupBatchSize;
+  private int cleanupPause;
+  private int cleanupMaxLatency;
+  private int archiveAge;
+  private Path archivePath;
+  private int writerLanes;
+  private int queueCapacity;
+  private OverflowPolicy overflowPolicy;
+  private int overflowTimeout;
+  private StoreType storeType;
+  private Path logPath;
+  private int logSegmentSize;
 
   @Inject
   EventsLogConfig(PluginConfigFactory cfgFactory, SitePaths site, @PluginName String pluginName) {
     PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName, true);
     copyLocal = cfg.getBoolean(CONFIG_COPY_LOCAL, DEFAULT_COPY_LOCAL);
+    partitioned = cfg.getBoolean(CONFIG_PARTITIONED, DEFAULT_PARTITIONED);
     maxAge = cfg.getInt(CONFIG_MAX_AGE, DEFAULT_MAX_AGE);
+    retentionRules = new ArrayList<>();
+    for (String rule : cfg.getStringList(CONFIG_RETENTION)) {
+      try {
+        retentionRules.add(RetentionRule.parse(rule));
+      } catch (IllegalArgumentException e) {
+        log.warn("Ignoring {}: {}", CONFIG_RETENTION, e.getMessage());
+      }
+    }
     maxTries = cfg.getInt(CONFIG_MAX_TRIES, DEFAULT_MAX_TRIES);
     returnLimit = cfg.getInt(CONFIG_RETURN_LIMIT, DEFAULT_RETURN_LIMIT);
     waitTime = cfg.getInt(CONFIG_WAIT_TIME, DEFAULT_WAIT_TIME);
@@ -80,12 +191,73 @@ public class EventsLogConfig {
     storeUsername = cfg.getString(CONFIG_USERNAME);
     storePassword = cfg.getString(CONFIG_PASSWORD);
     maxConnections = Math.max(cfg.getInt(CONFIG_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS), 1);
+    ingestConnections =
+        Math.min(
+            Math.max(cfg.getInt(CONFIG_INGEST_CONNECTIONS, maxConnections / 4), 0),
+            maxConnections - 1);
+    statementCacheSize =
+        Math.max(cfg.getInt(CONFIG_STATEMENT_CACHE_SIZE, DEFAULT_STATEMENT_CACHE_SIZE), 0);
+    batchSize = Math.max(cfg.getInt(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE), 1);
+    batchLinger = Math.max(cfg.getInt(CONFIG_BATCH_LINGER, DEFAULT_BATCH_LINGER), 0);
+    visibilityCacheSize =
+        Math.max(cfg.getInt(CONFIG_VISIBILITY_CACHE_SIZE, DEFAULT_VISIBILITY_CACHE_SIZE), 0);
+    visibilityCacheTtl =
+        Math.max(cfg.getInt(CONFIG_VISIBILITY_CACHE_TTL, DEFAULT_VISIBILITY_CACHE_TTL), 0);
+    queryCacheSize = Math.max(cfg.getInt(CONFIG_QUERY_CACHE_SIZE, DEFAULT_QUERY_CACHE_SIZE), 0);
+    tailBufferSize = Math.max(cfg.getInt(CONFIG_TAIL_BUFFER_SIZE, returnLimit), 0);
+    restoreRate = Math.max(cfg.getInt(CONFIG_RESTORE_RATE, DEFAULT_RESTORE_RATE), 0);
+    pollBufferSize = Math.max(cfg.getInt(CONFIG_POLL_BUFFER_SIZE, DEFAULT_POLL_BUFFER_SIZE), 0);
+    pollTimeout = Math.max(cfg.getInt(CONFIG_POLL_TIMEOUT, DEFAULT_POLL_TIMEOUT), 0);
+    queryThreads = Math.max(cfg.getInt(CONFIG_QUERY_THREADS, maxConnections), 1);
+    queryQueueCapacity =
+        Math.max(cfg.getInt(CONFIG_QUERY_QUEUE_CAPACITY, DEFAULT_QUERY_QUEUE_CAPACITY), 0);
+    queryTimeout = Math.max(cfg.getInt(CONFIG_QUERY_TIMEOUT, DEFAULT_QUERY_TIMEOUT), 0);
+    queryRate = Math.max(cfg.getInt(CONFIG_QUERY_RATE, DEFAULT_QUERY_RATE), 0);
+    queryBurst = Math.max(cfg.getInt(CONFIG_QUERY_BURST, DEFAULT_QUERY_BURST), 1);
+    compressionMinSize =
+        Math.max(cfg.getInt(CONFIG_COMPRESSION_MIN_SIZE, DEFAULT_COMPRESSION_MIN_SIZE), 0);
+    cleanupHour =
+        Math.min(Math.max(cfg.getInt(CONFIG_CLEANUP_HOUR, DEFAULT_CLEANUP_HOUR), 0), 23);
+    cleanupWindow =
+        Math.min(
+            Math.max(cfg.getInt(CONFIG_CLEANUP_WINDOW, DEFAULT_CLEANUP_WINDOW), 1),
+            (int) TimeUnit.DAYS.toMinutes(1));
+    cleanupBatchSize =
+        Math.max(cfg.getInt(CONFIG_CLEANUP_BATCH_SIZE, DEFAULT_CLEANUP_BATCH_SIZE), 1);
+    cleanupPause = Math.max(cfg.getInt(CONFIG_CLEANUP_PAUSE, DEFAULT_CLEANUP_PAUSE), 0);
+    cleanupMaxLatency =
+        Math.max(cfg.getInt(CONFIG_CLEANUP_MAX_LATENCY, DEFAULT_CLEANUP_MAX_LATENCY), 0);
+    archiveAge = Math.max(cfg.getInt(CONFIG_ARCHIVE_AGE, DEFAULT_ARCHIVE_AGE), 0);
+    archivePath =
+        Paths.get(
+            cfg.getString(
+                CONFIG_ARCHIVE_PATH,
+                site.data_dir.resolve(pluginName).resolve("archive").normalize().toString()));
+    writerLanes = Math.max(cfg.getInt(CONFIG_WRITER_LANES, maxConnections), 1);
+    queueCapacity =
+        Math.min(
+            Math.max(cfg.getInt(CONFIG_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY), 1),
+            MAX_QUEUE_CAPACITY);
+    overflowPolicy = cfg.getEnum(CONFIG_OVERFLOW_POLICY, DEFAULT_OVERFLOW_POLICY);
+    overflowTimeout = Math.max(cfg.getInt(CONFIG_OVERFLOW_TIMEOUT, DEFAULT_OVERFLOW_TIMEOUT), 0);
+    storeType = cfg.getEnum(CONFIG_STORE_TYPE, DEFAULT_STORE_TYPE);
+    logPath =
+        Paths.get(
+            cfg.getString(
+                CONFIG_LOG_PATH,
+                site.data_dir.resolve(pluginName).resolve("log").normalize().toString()));
+    logSegmentSize = Math.max(cfg.getInt(CONFIG_LOG_SEGMENT_SIZE, DEFAULT_LOG_SEGMENT_SIZE), 1);
   }
 
   public int getMaxAge() {
     return maxAge;
   }
 
+  /** @return the retention rules, the first one matching an event applying to it */
+  public List<RetentionRule> getRetentionRules() {
+    return retentionRules;
+  }
+
   public int getReturnLimit() {
     return returnLimit;
   }
@@ -126,7 +298,143 @@ public class EventsLogConfig {
     return copyLocal;
   }
 
+  /** @return true if the events table is partitioned by day */
+  public boolean isPartitioned() {
+    return partitioned;
+  }
+
   public int getMaxConnections() {
     return maxConnections;
   }
+
+  public int getIngestConnections() {
+    return ingestConnections;
+  }
+
+  /** @return the number of connections queries of events can use at the same time */
+  public int getQueryConcurrency() {
+    return maxConnections - ingestConnections;
+  }
+
+  public int getStatementCacheSize() {
+    return statementCacheSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public int getBatchLinger() {
+    return batchLinger;
+  }
+
+  public int getVisibilityCacheSize() {
+    return visibilityCacheSize;
+  }
+
+  public int getVisibilityCacheTtl() {
+    return visibilityCacheTtl;
+  }
+
+  public int getQueryCacheSize() {
+    return queryCacheSize;
+  }
+
+  public int getTailBufferSize() {
+    return tailBufferSize;
+  }
+
+  public int getRestoreRate() {
+    return restoreRate;
+  }
+
+  public int getPollBufferSize() {
+    return pollBufferSize;
+  }
+
+  public int getPollTimeout() {
+    return pollTimeout;
+  }
+
+  public int getQueryThreads() {
+    return queryThreads;
+  }
+
+  public int getQueryQueueCapacity() {
+    return queryQueueCapacity;
+  }
+
+  public int getQueryTimeout() {
+    return queryTimeout;
+  }
+
+  public int getQueryRate() {
+    return queryRate;
+  }
+
+  public int getQueryBurst() {
+    return queryBurst;
+  }
+
+  public int getCompressionMinSize() {
+    return compressionMinSize;
+  }
+
+  public int getCleanupHour() {
+    return cleanupHour;
+  }
+
+  public int getCleanupWindow() {
+    return cleanupWindow;
+  }
+
+  public int getCleanupBatchSize() {
+    return cleanupBatchSize;
+  }
+
+  public int getCleanupPause() {
+    return cleanupPause;
+  }
+
+  public int getCleanupMaxLatency() {
+    return cleanupMaxLatency;
+  }
+
+  /** @return the age in days after which events are moved to the archive, 0 to never move them */
+  public int getArchiveAge() {
+    return archiveAge;
+  }
+
+  public Path getArchivePath() {
+    return archivePath;
+  }
+
+  public int getWriterLanes() {
+    return writerLanes;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public int getOverflowTimeout() {
+    return overflowTimeout;
+  }
+
+  public StoreType getStoreType() {
+    return storeType;
+  }
+
+  public Path getLogPath() {
+    return logPath;
+  }
+
+  /** @return the maximum number of events in a segment of the event log */
+  public int getLogSegmentSize() {
+    return logSegmentSize;
+  }
 }
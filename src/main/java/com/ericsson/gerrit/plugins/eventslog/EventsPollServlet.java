@@ -0,0 +1,317 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.ericsson.gerrit.plugins.eventslog.EventsRestApiServlet.CURSOR_HEADER;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.util.RequestScopePropagator;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-polls the events stored after a cursor: the request is answered as soon as events visible to
+ * the caller are stored, or with no event once the timeout expires. New events are pushed to the
+ * waiting requests as they are stored, so that clients do not need to poll /events/ in a loop.
+ * Requests are held without a thread when the container supports asynchronous processing.
+ */
+@Singleton
+class EventsPollServlet extends HttpServlet {
+  private static final Logger log = LoggerFactory.getLogger(EventsPollServlet.class);
+  private static final long serialVersionUID = 1L;
+  static final String CURSOR_PARAM = "cursor";
+  static final String TIMEOUT_PARAM = "timeout";
+
+  private final EventStore store;
+  private final QueryMaker queryMaker;
+  private final Provider<CurrentUser> userProvider;
+  private final ResponseCompression compression;
+  private final RequestScopePropagator scopePropagator;
+  private final int maxTimeout;
+
+  @Inject
+  EventsPollServlet(
+      EventStore store,
+      QueryMaker queryMaker,
+      Provider<CurrentUser> userProvider,
+      ResponseCompression compression,
+      RequestScopePropagator scopePropagator,
+      EventsLogConfig cfg) {
+    this.store = store;
+    this.queryMaker = queryMaker;
+    this.userProvider = userProvider;
+    this.compression = compression;
+    this.scopePropagator = scopePropagator;
+    this.maxTimeout = cfg.getPollTimeout();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse rsp)
+      throws IOException, ServletException {
+    if (!userProvider.get().isIdentifiedUser()) {
+      rsp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+    Map<String, String> params =
+        req.getQueryString() != null
+            ? EventsRestApiServlet.getParameters(req)
+            : Collections.emptyMap();
+    String cursor = params.get(CURSOR_PARAM);
+    long timeout;
+    try {
+      timeout = timeout(params.get(TIMEOUT_PARAM));
+    } catch (NumberFormatException e) {
+      log.error("Bad Request", e);
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    Waiter waiter = new Waiter();
+    EventSubscription subscription;
+    try {
+      subscription = store.subscribe(cursor, waiter::wake);
+    } catch (MalformedQueryException e) {
+      log.error("Bad Request", e);
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    Page page = new Page();
+    if (cursor != null) {
+      // events stored before the subscription was made are read from the store
+      if (!query(cursor, page, rsp)) {
+        subscription.close();
+        return;
+      }
+      if (page.hasCursor()) {
+        // the cursor moves past events the caller cannot see too
+        subscription.close();
+        page.write(rsp, compression.open(req, rsp));
+        return;
+      }
+    }
+    if (req.isAsyncSupported() && timeout > 0) {
+      AsyncPoll poll = new AsyncPoll(req.startAsync(), subscription);
+      poll.context.setTimeout(timeout);
+      poll.context.addListener(poll);
+      waiter.onWake(() -> poll.context.start(poll.finish));
+      return;
+    }
+    try {
+      waiter.await(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    respond(subscription, req, rsp);
+  }
+
+  private long timeout(String value) {
+    long seconds = value != null ? Long.parseLong(value) : maxTimeout;
+    if (seconds < 0) {
+      throw new NumberFormatException("Negative timeout: " + value);
+    }
+    return TimeUnit.SECONDS.toMillis(Math.min(seconds, maxTimeout));
+  }
+
+  private EventQuery cursorQuery(String cursor) throws MalformedQueryException {
+    return cursor != null
+        ? queryMaker.formQueryFromRequestParameters(ImmutableMap.of(CURSOR_PARAM, cursor))
+        : queryMaker.getDefaultQuery();
+  }
+
+  /**
+   * Queries the events after the cursor into the page, or the most recent events if there is no
+   * cursor.
+   *
+   * @return true if the events were queried, false if an error was sent instead
+   */
+  private boolean query(String cursor, Page page, HttpServletResponse rsp) throws IOException {
+    try {
+      store.queryChangeEvents(cursorQuery(cursor), page);
+      return true;
+    } catch (MalformedQueryException e) {
+      log.error("Bad Request", e);
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+    } catch (ServiceUnavailableException e) {
+      log.error("Service Unavailable", e);
+      EventsRestApiServlet.sendUnavailable(rsp);
+    } catch (TooManyQueriesException e) {
+      log.warn(e.getMessage());
+      EventsRestApiServlet.sendTooManyRequests(rsp, EventsRestApiServlet.RETRY_AFTER_SECONDS);
+    } catch (EventsLogException e) {
+      log.error("Could not query events after cursor", e);
+      rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    return false;
+  }
+
+  private void respond(
+      EventSubscription subscription, HttpServletRequest req, HttpServletResponse rsp)
+      throws IOException {
+    Page page = new Page();
+    try {
+      if (!subscription.drain(page)) {
+        // more events were stored than could be buffered, read them from the store
+        if (!query(subscription.getCursor(), page, rsp)) {
+          return;
+        }
+      }
+    } finally {
+      subscription.close();
+    }
+    page.write(rsp, compression.open(req, rsp));
+  }
+
+  /** Events collected before the response is written, so that errors can still be sent. */
+  private static class Page implements EventVisitor {
+    private final List<String> events = new ArrayList<>();
+    private String cursor;
+
+    @Override
+    public void nextCursor(String cursor) {
+      this.cursor = cursor;
+    }
+
+    @Override
+    public void visit(String event) {
+      events.add(event);
+    }
+
+    boolean hasCursor() {
+      return cursor != null;
+    }
+
+    void write(HttpServletResponse rsp, Writer writer) throws IOException {
+      if (cursor != null) {
+        rsp.setHeader(CURSOR_HEADER, cursor);
+      }
+      try (Writer out = writer) {
+        for (String event : events) {
+          out.write(event);
+          out.write('\n');
+        }
+      }
+    }
+  }
+
+  /**
+   * Wakes the request up once the subscription is ready, either by releasing the thread waiting for
+   * it or by running the given action, whichever the request uses.
+   */
+  private static class Waiter {
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private Runnable action;
+
+    void wake() {
+      Runnable toRun;
+      synchronized (this) {
+        if (ready.getCount() == 0) {
+          return;
+        }
+        ready.countDown();
+        toRun = action;
+      }
+      if (toRun != null) {
+        toRun.run();
+      }
+    }
+
+    void onWake(Runnable action) {
+      synchronized (this) {
+        if (ready.getCount() > 0) {
+          this.action = action;
+          return;
+        }
+      }
+      action.run();
+    }
+
+    void await(long timeout) throws InterruptedException {
+      ready.await(timeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * A request held without a thread, answered once when the subscription is ready or the timeout
+   * expires, whichever comes first. The request is answered in the scope of the request which
+   * started it, as the events it may still read from the store are checked against its user.
+   */
+  private class AsyncPoll implements AsyncListener {
+    private final AsyncContext context;
+    private final EventSubscription subscription;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final Runnable finish;
+
+    AsyncPoll(AsyncContext context, EventSubscription subscription) {
+      this.context = context;
+      this.subscription = subscription;
+      this.finish = scopePropagator.wrap(this::answer);
+    }
+
+    private void answer() {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        respond(
+            subscription,
+            (HttpServletRequest) context.getRequest(),
+            (HttpServletResponse) context.getResponse());
+      } catch (IOException e) {
+        log.warn("Could not send events to waiting client", e);
+      } finally {
+        context.complete();
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      finish.run();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      subscription.close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      done.set(true);
+      subscription.close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+  }
+}
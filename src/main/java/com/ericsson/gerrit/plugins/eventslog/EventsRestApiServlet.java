@@ -16,6 +16,7 @@ package com.ericsson.gerrit.plugins.eventslog;
 
 import com.google.gerrit.extensions.restapi.Url;
 import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.util.RequestScopePropagator;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -23,6 +24,12 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -30,50 +37,242 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Lists events. When the container supports asynchronous processing, queries run on the {@link
+ * QueryExecutor} instead of the HTTP thread, and are rejected with 503 when too many are waiting,
+ * when they waited for longer than the query timeout, or when the request times out first. Accounts
+ * sending queries faster than the configured rate, and queries finding too many others reading from
+ * the database, are rejected with 429. Events are sent as newline delimited JSON, compressed when
+ * the client accepts it, and restricted to the fields given by the fields parameter, if any.
+ */
 @Singleton
 class EventsRestApiServlet extends HttpServlet {
   private static final Logger log = LoggerFactory.getLogger(EventsRestApiServlet.class);
   private static final long serialVersionUID = 1L;
+  static final String CURSOR_HEADER = "X-Events-Log-Cursor";
+  static final String FIELDS_PARAM = "fields";
+  static final String RETRY_AFTER_HEADER = "Retry-After";
+  static final int RETRY_AFTER_SECONDS = 5;
+  static final int SC_TOO_MANY_REQUESTS = 429;
+  static final int ASYNC_TIMEOUT_MARGIN_SECONDS = 5;
+  static final int MAX_ASYNC_TIMEOUT_SECONDS = 600;
 
   private final EventStore store;
   private final QueryMaker queryMaker;
   private final Provider<CurrentUser> userProvider;
+  private final QueryExecutor executor;
+  private final QueryRateLimiter rateLimiter;
+  private final ResponseCompression compression;
+  private final RequestScopePropagator scopePropagator;
+  private final long queryTimeoutNanos;
+  private final long asyncTimeoutMillis;
 
   @Inject
   EventsRestApiServlet(
-      EventStore store, QueryMaker queryMaker, Provider<CurrentUser> userProvider) {
+      EventStore store,
+      QueryMaker queryMaker,
+      Provider<CurrentUser> userProvider,
+      QueryExecutor executor,
+      QueryRateLimiter rateLimiter,
+      ResponseCompression compression,
+      RequestScopePropagator scopePropagator,
+      EventsLogConfig cfg) {
     this.store = store;
     this.queryMaker = queryMaker;
     this.userProvider = userProvider;
+    this.executor = executor;
+    this.rateLimiter = rateLimiter;
+    this.compression = compression;
+    this.scopePropagator = scopePropagator;
+    this.queryTimeoutNanos = TimeUnit.SECONDS.toNanos(cfg.getQueryTimeout());
+    // a query may wait for up to the query timeout, then run for up to the query timeout
+    this.asyncTimeoutMillis =
+        TimeUnit.SECONDS.toMillis(
+            cfg.getQueryTimeout() > 0
+                ? 2L * cfg.getQueryTimeout() + ASYNC_TIMEOUT_MARGIN_SECONDS
+                : MAX_ASYNC_TIMEOUT_SECONDS);
   }
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse rsp)
       throws IOException, ServletException {
-    if (!userProvider.get().isIdentifiedUser()) {
+    CurrentUser user = userProvider.get();
+    if (!user.isIdentifiedUser()) {
       rsp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
       return;
     }
-    rsp.setContentType("text/html");
-    Map<String, String> params = req.getQueryString() != null ? getParameters(req) : null;
-
-    try (Writer out = rsp.getWriter()) {
-      String query = queryMaker.formQueryFromRequestParameters(params);
-      for (String event : store.queryChangeEvents(query)) {
-        out.write(event + "\n");
-      }
+    long retryAfter = rateLimiter.tryAcquire(user.getAccountId());
+    if (retryAfter > 0) {
+      sendTooManyRequests(rsp, retryAfter);
+      return;
+    }
+    Map<String, String> requestParams = req.getQueryString() != null ? getParameters(req) : null;
+    String fields = requestParams != null ? requestParams.remove(FIELDS_PARAM) : null;
+    FieldProjection projection;
+    try {
+      projection = fields != null ? FieldProjection.parse(fields) : null;
     } catch (MalformedQueryException e) {
       log.error("Bad Request", e);
       rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    // only fields: the most recent events
+    Map<String, String> params = fields != null && requestParams.isEmpty() ? null : requestParams;
+    if (!req.isAsyncSupported()) {
+      query(req, params, projection, rsp, new ResponseGuard());
+      return;
+    }
+
+    AsyncQuery query = new AsyncQuery(req, rsp, params, projection);
+    try {
+      executor.submit(scopePropagator, query, query::reject);
+    } catch (RejectedExecutionException e) {
+      log.warn("Too many queries waiting to run, rejecting query");
+      query.reject();
+    }
+  }
+
+  private void query(
+      HttpServletRequest req,
+      Map<String, String> params,
+      FieldProjection projection,
+      HttpServletResponse rsp,
+      ResponseGuard guard)
+      throws IOException {
+    try (Writer out = guard.open(() -> compression.open(req, rsp))) {
+      EventQuery query = queryMaker.formQueryFromRequestParameters(params);
+      store.queryChangeEvents(
+          query,
+          new EventVisitor() {
+            @Override
+            public void nextCursor(String cursor) throws IOException {
+              guard.run(() -> rsp.setHeader(CURSOR_HEADER, cursor));
+            }
+
+            @Override
+            public void visit(String event) throws IOException {
+              out.write(projection != null ? projection.apply(event) : event);
+              out.write('\n');
+            }
+          });
+    } catch (MalformedQueryException e) {
+      log.error("Bad Request", e);
+      guard.run(() -> rsp.sendError(HttpServletResponse.SC_BAD_REQUEST));
     } catch (ServiceUnavailableException e) {
       log.error("Service Unavailable", e);
-      rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      guard.run(() -> sendUnavailable(rsp));
+    } catch (TooManyQueriesException e) {
+      log.warn(e.getMessage());
+      guard.run(() -> sendTooManyRequests(rsp, RETRY_AFTER_SECONDS));
     } catch (EventsLogException e) {
       log.error("Could not query from request parameters", e);
     }
   }
 
-  private static Map<String, String> getParameters(HttpServletRequest req) {
+  /**
+   * A query running on the {@link QueryExecutor}. The request is answered with 503 if the query is
+   * still waiting when the request times out or when the executor rejects it, and is completed only
+   * once, whichever comes first. A query still running when the request times out is aborted at its
+   * next write, as the response is closed to it before being completed.
+   */
+  private class AsyncQuery implements Runnable, AsyncListener {
+    private final HttpServletRequest req;
+    private final HttpServletResponse rsp;
+    private final AsyncContext context;
+    private final Map<String, String> params;
+    private final FieldProjection projection;
+    private final long submitted = System.nanoTime();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final ResponseGuard guard = new ResponseGuard();
+
+    AsyncQuery(
+        HttpServletRequest req,
+        HttpServletResponse rsp,
+        Map<String, String> params,
+        FieldProjection projection) {
+      this.req = req;
+      this.rsp = rsp;
+      this.context = req.startAsync();
+      this.params = params;
+      this.projection = projection;
+      context.addListener(this);
+      context.setTimeout(asyncTimeoutMillis);
+    }
+
+    @Override
+    public void run() {
+      if (!started.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        if (queryTimeoutNanos > 0 && System.nanoTime() - submitted > queryTimeoutNanos) {
+          log.warn("Query waited for longer than the query timeout, rejecting it");
+          guard.run(() -> sendUnavailable(rsp));
+        } else {
+          query(req, params, projection, rsp, guard);
+        }
+      } catch (IOException e) {
+        log.warn("Could not send events", e);
+      } finally {
+        complete();
+      }
+    }
+
+    void reject() {
+      if (started.compareAndSet(false, true)) {
+        try {
+          guard.run(() -> sendUnavailable(rsp));
+        } catch (IOException e) {
+          log.warn("Could not reject query", e);
+        }
+      }
+      complete();
+    }
+
+    private void complete() {
+      if (guard.close()) {
+        context.complete();
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      log.warn("Query did not complete before the request timed out");
+      reject();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      guard.close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+  }
+
+  static void sendUnavailable(HttpServletResponse rsp) throws IOException {
+    if (rsp.isCommitted()) {
+      // the query timed out after events were sent
+      return;
+    }
+    rsp.setIntHeader(RETRY_AFTER_HEADER, RETRY_AFTER_SECONDS);
+    rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  static void sendTooManyRequests(HttpServletResponse rsp, long retryAfter) throws IOException {
+    if (rsp.isCommitted()) {
+      return;
+    }
+    rsp.setHeader(RETRY_AFTER_HEADER, Long.toString(retryAfter));
+    rsp.sendError(SC_TOO_MANY_REQUESTS);
+  }
+
+  static Map<String, String> getParameters(HttpServletRequest req) {
     Map<String, String> params = new HashMap<>();
     for (final String pair : req.getQueryString().split("[&;]")) {
       int eq = pair.indexOf('=');
@@ -0,0 +1,223 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.Splitter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps only the given fields of events, such as {@code type,change.number,eventCreatedOn}. Nested
+ * fields are named by their path, and the fields of objects in arrays by the path of the array.
+ * Events are filtered token by token as they are read, without building a tree of their JSON.
+ * Objects and arrays left with no field are left out.
+ */
+class FieldProjection {
+  private final Field root;
+
+  private FieldProjection(Field root) {
+    this.root = root;
+  }
+
+  /**
+   * @param fields the comma separated paths of the fields to keep
+   * @return the projection keeping these fields
+   * @throws MalformedQueryException if no field is given or a path has an empty name
+   */
+  static FieldProjection parse(String fields) throws MalformedQueryException {
+    Field root = new Field();
+    for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(fields)) {
+      Field field = root;
+      for (String name : Splitter.on('.').split(path)) {
+        if (name.isEmpty()) {
+          throw new MalformedQueryException();
+        }
+        field = field.children.computeIfAbsent(name, n -> new Field());
+      }
+      field.whole = true;
+    }
+    if (root.children.isEmpty()) {
+      throw new MalformedQueryException();
+    }
+    return new FieldProjection(root);
+  }
+
+  /**
+   * @param event the event as JSON
+   * @return the event as JSON, with only the fields of the projection
+   * @throws IOException if the event is not valid JSON
+   */
+  String apply(String event) throws IOException {
+    StringWriter projected = new StringWriter(event.length() / 4);
+    try (JsonReader in = new JsonReader(new StringReader(event));
+        JsonWriter out = new JsonWriter(projected)) {
+      new Filter(in, out).root(root);
+    }
+    return projected.toString();
+  }
+
+  private static class Field {
+    private final Map<String, Field> children = new HashMap<>();
+    private boolean whole;
+  }
+
+  /** An object or array of the output, written only once it gets a field. */
+  private static class Level {
+    private final String name;
+    private final boolean array;
+    private boolean written;
+
+    Level(String name, boolean array) {
+      this.name = name;
+      this.array = array;
+    }
+  }
+
+  private static class Filter {
+    private final JsonReader in;
+    private final JsonWriter out;
+    private final Deque<Level> levels = new ArrayDeque<>();
+
+    Filter(JsonReader in, JsonWriter out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    void root(Field field) throws IOException {
+      out.beginObject();
+      Level root = new Level(null, false);
+      root.written = true;
+      levels.push(root);
+      members(field);
+      out.endObject();
+    }
+
+    private void members(Field field) throws IOException {
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        Field child = field.children.get(name);
+        if (child == null) {
+          in.skipValue();
+        } else if (child.whole) {
+          open();
+          out.name(name);
+          copy();
+        } else {
+          select(name, child);
+        }
+      }
+      in.endObject();
+    }
+
+    private void select(String name, Field field) throws IOException {
+      JsonToken token = in.peek();
+      if (token == JsonToken.BEGIN_OBJECT) {
+        levels.push(new Level(name, false));
+        members(field);
+        close();
+      } else if (token == JsonToken.BEGIN_ARRAY) {
+        levels.push(new Level(name, true));
+        in.beginArray();
+        while (in.hasNext()) {
+          select(null, field);
+        }
+        in.endArray();
+        close();
+      } else {
+        // a value with no field
+        in.skipValue();
+      }
+    }
+
+    /** Writes the enclosing objects and arrays not written yet, outermost first. */
+    private void open() throws IOException {
+      for (Iterator<Level> it = levels.descendingIterator(); it.hasNext(); ) {
+        Level level = it.next();
+        if (!level.written) {
+          if (level.name != null) {
+            out.name(level.name);
+          }
+          if (level.array) {
+            out.beginArray();
+          } else {
+            out.beginObject();
+          }
+          level.written = true;
+        }
+      }
+    }
+
+    private void close() throws IOException {
+      Level level = levels.pop();
+      if (!level.written) {
+        return;
+      }
+      if (level.array) {
+        out.endArray();
+      } else {
+        out.endObject();
+      }
+    }
+
+    private void copy() throws IOException {
+      switch (in.peek()) {
+        case BEGIN_OBJECT:
+          in.beginObject();
+          out.beginObject();
+          while (in.hasNext()) {
+            out.name(in.nextName());
+            copy();
+          }
+          in.endObject();
+          out.endObject();
+          break;
+        case BEGIN_ARRAY:
+          in.beginArray();
+          out.beginArray();
+          while (in.hasNext()) {
+            copy();
+          }
+          in.endArray();
+          out.endArray();
+          break;
+        case STRING:
+          out.value(in.nextString());
+          break;
+        case NUMBER:
+          out.jsonValue(in.nextString());
+          break;
+        case BOOLEAN:
+          out.value(in.nextBoolean());
+          break;
+        case NULL:
+          in.nextNull();
+          out.nullValue();
+          break;
+        default:
+          throw new IOException("Unexpected " + in.peek() + " in event");
+      }
+    }
+  }
+}
@@ -20,5 +20,6 @@ class HttpModule extends HttpPluginModule {
   @Override
   protected void configureServlets() {
     serve("/events/").with(EventsRestApiServlet.class);
+    serve("/events/poll/").with(EventsPollServlet.class);
   }
 }
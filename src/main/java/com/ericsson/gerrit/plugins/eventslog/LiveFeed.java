@@ -0,0 +1,253 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fans the events out to the subscriptions waiting for them, as soon as they are committed. Each
+ * subscription keeps the events in a buffer of bounded size, ordered by id, and only remembers that
+ * it missed events once the buffer is full. Only the events a subscription can see are buffered and
+ * signalled, so that events of other projects neither wake it up nor fill its buffer; the access of
+ * a subscription to a project is checked once and then remembered.
+ *
+ * <p>Events are committed in any order by concurrent writers, so a subscription only returns the
+ * events up to the id below which no event is still being committed, as told by the store, holding
+ * back those following them until then.
+ */
+@Singleton
+public class LiveFeed {
+  private static final Logger log = LoggerFactory.getLogger(LiveFeed.class);
+  private static final IntSupplier ALL_COMMITTED = () -> Integer.MAX_VALUE;
+
+  private final int bufferSize;
+  private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+
+  @Inject
+  public LiveFeed(EventsLogConfig cfg) {
+    this.bufferSize = cfg.getPollBufferSize();
+  }
+
+  /**
+   * Subscribes to the events stored from now on, by a store committing its events in id order.
+   *
+   * @param afterId the id after which events are wanted, or -1 for all the events
+   * @param isVisible tells whether events of a project can be received
+   * @param onReady called once the subscription becomes ready to be drained
+   * @return the subscription
+   */
+  public EventSubscription subscribe(int afterId, Predicate<String> isVisible, Runnable onReady) {
+    return subscribe(afterId, isVisible, onReady, ALL_COMMITTED);
+  }
+
+  /**
+   * Subscribes to the events stored from now on.
+   *
+   * @param afterId the id after which events are wanted, or -1 for all the events
+   * @param isVisible tells whether events of a project can be received
+   * @param onReady called once the subscription becomes ready to be drained
+   * @param committedUpTo gives the id up to which all the events are committed
+   * @return the subscription
+   */
+  public EventSubscription subscribe(
+      int afterId, Predicate<String> isVisible, Runnable onReady, IntSupplier committedUpTo) {
+    Subscriber subscriber = new Subscriber(afterId, isVisible, onReady, committedUpTo);
+    subscribers.add(subscriber);
+    return subscriber;
+  }
+
+  /**
+   * Passes events which were just committed to the subscriptions.
+   *
+   * @param entries the stored events, with their ids
+   */
+  public void publish(List<EventEntry> entries) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.receive(entries);
+    }
+  }
+
+  /**
+   * Tells the subscriptions that the events held back may now be returned, once the writes they
+   * were waiting for are committed or have failed.
+   */
+  public void release() {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.signal();
+    }
+  }
+
+  /** Tells the subscriptions that events were stored without their ids being known. */
+  public void missed() {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.miss();
+    }
+  }
+
+  private class Subscriber implements EventSubscription {
+    private final Predicate<String> isVisible;
+    private final Runnable onReady;
+    private final IntSupplier committedUpTo;
+    private final Map<String, Boolean> visibleProjects = new ConcurrentHashMap<>();
+    private final NavigableMap<Integer, EventEntry> buffer = new TreeMap<>();
+    private int fromId;
+    private int afterId;
+    private boolean missed;
+    private boolean notified;
+
+    Subscriber(
+        int afterId, Predicate<String> isVisible, Runnable onReady, IntSupplier committedUpTo) {
+      this.fromId = afterId;
+      this.afterId = afterId;
+      this.isVisible = isVisible;
+      this.onReady = onReady;
+      this.committedUpTo = committedUpTo;
+    }
+
+    @Override
+    public boolean isReady() {
+      synchronized (this) {
+        return missed || hasCommitted();
+      }
+    }
+
+    private boolean hasCommitted() {
+      return !buffer.isEmpty() && buffer.firstKey() <= committedUpTo.getAsInt();
+    }
+
+    @Override
+    public boolean drain(EventVisitor visitor) throws IOException {
+      List<EventEntry> entries;
+      synchronized (this) {
+        if (missed) {
+          return false;
+        }
+        NavigableMap<Integer, EventEntry> committed =
+            buffer.headMap(committedUpTo.getAsInt(), true);
+        entries = new ArrayList<>(committed.values());
+        committed.clear();
+        notified = false;
+        if (!entries.isEmpty()) {
+          afterId = Math.max(afterId, entries.get(entries.size() - 1).getId());
+        }
+      }
+      if (!entries.isEmpty()) {
+        visitor.nextCursor(EventCursor.encode(entries.get(entries.size() - 1).getId()));
+      }
+      for (EventEntry entry : entries) {
+        if (Boolean.TRUE.equals(checkVisible(entry.getName()))) {
+          visitor.visit(entry.getEvent());
+        }
+      }
+      return true;
+    }
+
+    /** @return whether the project is visible, or null if it could not be checked */
+    private Boolean checkVisible(String project) {
+      Boolean visible = visibleProjects.get(project);
+      if (visible == null) {
+        try {
+          visible = isVisible.test(project);
+        } catch (RuntimeException e) {
+          log.warn("Cannot check the access to project {}", project, e);
+          return null;
+        }
+        visibleProjects.put(project, visible);
+      }
+      return visible;
+    }
+
+    @Override
+    public synchronized String getCursor() {
+      return afterId >= 0 ? EventCursor.encode(afterId) : null;
+    }
+
+    @Override
+    public void close() {
+      subscribers.remove(this);
+    }
+
+    void receive(List<EventEntry> entries) {
+      if (entries.isEmpty()) {
+        return;
+      }
+      List<EventEntry> received = new ArrayList<>(entries.size());
+      for (EventEntry entry : entries) {
+        // events of projects which could not be checked are checked again when drained
+        if (!Boolean.FALSE.equals(checkVisible(entry.getName()))) {
+          received.add(entry);
+        }
+      }
+      synchronized (this) {
+        if (missed) {
+          return;
+        }
+        if (fromId < 0) {
+          // events before the first one published may still be committed
+          fromId = Math.min(entries.get(0).getId() - 1, committedUpTo.getAsInt());
+          afterId = fromId;
+        }
+        for (EventEntry entry : received) {
+          if (entry.getId() <= fromId) {
+            continue;
+          }
+          if (buffer.size() == bufferSize) {
+            // the events left in the buffer are queried again from the cursor
+            missed = true;
+            buffer.clear();
+            break;
+          }
+          buffer.put(entry.getId(), entry);
+        }
+      }
+      signal();
+    }
+
+    void signal() {
+      synchronized (this) {
+        if (!isReady() || notified) {
+          return;
+        }
+        notified = true;
+      }
+      onReady.run();
+    }
+
+    void miss() {
+      synchronized (this) {
+        if (missed) {
+          return;
+        }
+        missed = true;
+        buffer.clear();
+      }
+      onReady.run();
+    }
+  }
+}
@@ -0,0 +1,237 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.GroupIndexedListener;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.ProjectPermission;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers which projects users can access, so that queries do not go through the permission
+ * backend for every project they return, nor for every project they are restricted to. Accesses are
+ * kept per account, anonymous users sharing theirs. Entries expire after a configurable time and
+ * are dropped whenever a project configuration or a group changes, since either may change what
+ * users see; creating a project also changes a project configuration.
+ */
+@Singleton
+public class ProjectVisibilityCache implements GitReferenceUpdatedListener, GroupIndexedListener {
+  private static final Logger log = LoggerFactory.getLogger(ProjectVisibilityCache.class);
+
+  private final PermissionBackend permissionBackend;
+  private final Provider<CurrentUser> userProvider;
+  private final ProjectCache projectCache;
+  private final Cache<Key, Boolean> cache;
+  private final Cache<Object, VisibleProjects> projectSets;
+  private final AtomicLong generation = new AtomicLong();
+  private final Counter0 hits;
+  private final Counter0 misses;
+
+  @Inject
+  public ProjectVisibilityCache(
+      EventsLogConfig cfg,
+      PermissionBackend permissionBackend,
+      Provider<CurrentUser> userProvider,
+      ProjectCache projectCache,
+      MetricMaker metricMaker) {
+    this.permissionBackend = permissionBackend;
+    this.userProvider = userProvider;
+    this.projectCache = projectCache;
+    this.cache =
+        cfg.getVisibilityCacheSize() > 0
+            ? CacheBuilder.newBuilder()
+                .maximumSize(cfg.getVisibilityCacheSize())
+                .expireAfterWrite(cfg.getVisibilityCacheTtl(), TimeUnit.SECONDS)
+                .build()
+            : null;
+    // a set of projects counts as many entries as it checked projects
+    this.projectSets =
+        cfg.getVisibilityCacheSize() > 0
+            ? CacheBuilder.newBuilder()
+                .maximumWeight(cfg.getVisibilityCacheSize())
+                .<Object, VisibleProjects>weigher((owner, projects) -> Math.max(projects.size(), 1))
+                .expireAfterWrite(cfg.getVisibilityCacheTtl(), TimeUnit.SECONDS)
+                .build()
+            : null;
+    hits =
+        metricMaker.newCounter(
+            "visibility_cache/hits",
+            new Description("Project access checks answered from the cache")
+                .setRate()
+                .setUnit("checks"));
+    misses =
+        metricMaker.newCounter(
+            "visibility_cache/misses",
+            new Description("Project access checks passed on to the permission backend")
+                .setRate()
+                .setUnit("checks"));
+  }
+
+  /**
+   * Returns a predicate telling whether the current user can access a project, given its name. The
+   * predicate must only be used within the request it was obtained in.
+   *
+   * @return the predicate
+   */
+  public Predicate<String> forCurrentUser() {
+    PermissionBackend.WithUser withUser = permissionBackend.currentUser();
+    Object owner = cache != null ? owner(userProvider.get()) : null;
+    if (owner == null) {
+      return project -> check(withUser, project);
+    }
+    return project -> isVisible(owner, withUser, project);
+  }
+
+  /**
+   * Returns all the projects of the project cache the current user can access, checked once and
+   * then kept until the cache is invalidated.
+   *
+   * @return the projects the current user can access and those they cannot
+   */
+  public VisibleProjects visibleProjects() {
+    Object owner = projectSets != null ? owner(userProvider.get()) : null;
+    if (owner == null) {
+      return VisibleProjects.check(projectCache.all(), forCurrentUser());
+    }
+    VisibleProjects projects = projectSets.getIfPresent(owner);
+    if (projects == null) {
+      long checkedGeneration = generation.get();
+      projects = VisibleProjects.check(projectCache.all(), forCurrentUser());
+      synchronized (generation) {
+        // projects checked before an invalidation may no longer be accurate
+        if (generation.get() == checkedGeneration) {
+          projectSets.put(owner, projects);
+        }
+      }
+    }
+    return projects;
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    if (cache != null && RefNames.REFS_CONFIG.equals(event.getRefName())) {
+      // access rights are inherited, so the change may affect any project
+      invalidateAll();
+    }
+  }
+
+  @Override
+  public void onGroupIndexed(String uuid) {
+    if (cache != null) {
+      invalidateAll();
+    }
+  }
+
+  private void invalidateAll() {
+    synchronized (generation) {
+      generation.incrementAndGet();
+      projectSets.invalidateAll();
+    }
+    cache.invalidateAll();
+  }
+
+  /** @return the key accesses of the user are kept under, or null if they are not kept */
+  private static Object owner(CurrentUser user) {
+    if (user.isIdentifiedUser()) {
+      return user.getAccountId();
+    }
+    if (user instanceof AnonymousUser) {
+      return user.getCacheKey();
+    }
+    return null;
+  }
+
+  private boolean isVisible(Object owner, PermissionBackend.WithUser withUser, String project) {
+    Key key = new Key(owner, project);
+    Boolean visible = cache.getIfPresent(key);
+    if (visible != null) {
+      hits.increment();
+      return visible;
+    }
+    misses.increment();
+    try {
+      visible = test(withUser, project);
+    } catch (PermissionBackendException e) {
+      log.warn("Cannot check project access permission", e);
+      return false;
+    }
+    cache.put(key, visible);
+    return visible;
+  }
+
+  private static boolean check(PermissionBackend.WithUser withUser, String project) {
+    try {
+      return test(withUser, project);
+    } catch (PermissionBackendException e) {
+      log.warn("Cannot check project access permission", e);
+      return false;
+    }
+  }
+
+  private static boolean test(PermissionBackend.WithUser withUser, String project)
+      throws PermissionBackendException {
+    try {
+      withUser.project(new Project.NameKey(project)).check(ProjectPermission.ACCESS);
+      return true;
+    } catch (AuthException e) {
+      return false;
+    }
+  }
+
+  private static class Key {
+    private final Object owner;
+    private final String project;
+
+    Key(Object owner, String project) {
+      this.owner = owner;
+      this.project = project;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return owner.equals(other.owner) && project.equals(other.project);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(owner, project);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.util.RequestScopePropagator;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the queries of the REST API away from the HTTP threads, on a fixed number of threads with a
+ * bounded queue, so that a slow database cannot hold up all the threads serving Gerrit. Queries
+ * submitted while the queue is full are rejected rather than queued, and those still queued when
+ * the plugin stops are rejected as well.
+ */
+@Singleton
+class QueryExecutor implements LifecycleListener {
+  private final int threads;
+  private final int queueCapacity;
+  private volatile ThreadPoolExecutor pool;
+
+  @Inject
+  QueryExecutor(EventsLogConfig cfg) {
+    this.threads = cfg.getQueryThreads();
+    this.queueCapacity = cfg.getQueryQueueCapacity();
+  }
+
+  @Override
+  public void start() {
+    BlockingQueue<Runnable> queue =
+        queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+    pool =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            queue,
+            new ThreadFactoryBuilder()
+                .setNameFormat("[events-log] Query events-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  @Override
+  public void stop() {
+    if (pool != null) {
+      List<Runnable> pending = pool.shutdownNow();
+      pool = null;
+      // the queries still waiting are answered, not to leave their requests open
+      for (Runnable query : pending) {
+        ((PendingQuery) query).reject();
+      }
+    }
+  }
+
+  /**
+   * Submits a query to run in the scope of the current request.
+   *
+   * @param scope the propagator of the scope of the current request
+   * @param task the task running the query
+   * @param onRejected the task answering the query if the executor stops before running it
+   * @throws RejectedExecutionException if too many queries are already waiting to run
+   */
+  void submit(RequestScopePropagator scope, Runnable task, Runnable onRejected) {
+    ThreadPoolExecutor current = pool;
+    if (current == null) {
+      throw new RejectedExecutionException("Query executor is not started");
+    }
+    current.execute(new PendingQuery(scope.wrap(task), onRejected));
+  }
+
+  private static class PendingQuery implements Runnable {
+    private final Runnable task;
+    private final Runnable onRejected;
+
+    PendingQuery(Runnable task, Runnable onRejected) {
+      this.task = task;
+      this.onRejected = onRejected;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    void reject() {
+      onRejected.run();
+    }
+  }
+}
@@ -16,23 +16,23 @@ package com.ericsson.gerrit.plugins.eventslog;
 
 import java.util.Map;
 
-/** Helps build well-formed database query strings. */
+/** Helps build well-formed queries on the stored events. */
 public interface QueryMaker {
 
   /**
-   * Forms a String query based on the given parameters.
+   * Forms a query based on the given parameters.
    *
    * @param params parameters which are used to form the query
-   * @return a query based on the given parameters. The query should conform to the format required
-   *     by the database.
+   * @return a query based on the given parameters
    * @throws MalformedQueryException if the given parameters do conform to requirements
    */
-  String formQueryFromRequestParameters(Map<String, String> params) throws MalformedQueryException;
+  EventQuery formQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException;
 
   /**
    * Get the query designated as the default when no parameters are given.
    *
    * @return the query which is formed when no parameters are given.
    */
-  String getDefaultQuery();
+  EventQuery getDefaultQuery();
 }
@@ -0,0 +1,119 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of queries of each account with a token bucket: an account can send up to
+ * queryBurst queries at once, after which it gets one more query every 60 / queryRate seconds.
+ * Buckets of accounts which did not query for a while are forgotten, being full again by then.
+ * Queries are not limited unless queryRate is set.
+ */
+@Singleton
+class QueryRateLimiter {
+  private static final int MAX_ACCOUNTS = 10000;
+
+  private final long nanosPerToken;
+  private final int burst;
+  private final Ticker ticker;
+  private final Cache<Account.Id, TokenBucket> buckets;
+  private final Counter0 rejected;
+
+  @Inject
+  QueryRateLimiter(EventsLogConfig cfg, MetricMaker metricMaker) {
+    this(cfg, metricMaker, Ticker.systemTicker());
+  }
+
+  QueryRateLimiter(EventsLogConfig cfg, MetricMaker metricMaker, Ticker ticker) {
+    this.nanosPerToken =
+        cfg.getQueryRate() > 0 ? TimeUnit.MINUTES.toNanos(1) / cfg.getQueryRate() : 0;
+    this.burst = cfg.getQueryBurst();
+    this.ticker = ticker;
+    this.buckets =
+        CacheBuilder.newBuilder()
+            .maximumSize(MAX_ACCOUNTS)
+            .expireAfterAccess(nanosPerToken * burst, TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build();
+    rejected =
+        metricMaker.newCounter(
+            "rate_limit/rejected_queries",
+            new Description("Queries rejected because their account sent too many")
+                .setRate()
+                .setUnit("queries"));
+    metricMaker.newCallbackMetric(
+        "rate_limit/tracked_accounts",
+        Long.class,
+        new Description("Number of accounts whose rate of queries is tracked")
+            .setGauge()
+            .setUnit("accounts"),
+        buckets::size);
+  }
+
+  /**
+   * Takes a token from the bucket of the account, if there is one left.
+   *
+   * @param account the account sending a query
+   * @return 0 if the query can run, otherwise the number of seconds after which it can be retried
+   */
+  long tryAcquire(Account.Id account) {
+    if (nanosPerToken == 0) {
+      return 0;
+    }
+    long waitNanos;
+    try {
+      waitNanos = buckets.get(account, TokenBucket::new).take();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+    if (waitNanos == 0) {
+      return 0;
+    }
+    rejected.increment();
+    // rounded up, for the retry to find a token
+    return TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1;
+  }
+
+  private class TokenBucket {
+    private long tokens = burst;
+    private long refilledAt = ticker.read();
+
+    /** @return 0 if a token was taken, otherwise the time in nanoseconds until one is available */
+    synchronized long take() {
+      long now = ticker.read();
+      long refill = (now - refilledAt) / nanosPerToken;
+      if (refill > 0) {
+        tokens = Math.min(burst, tokens + refill);
+        refilledAt = tokens == burst ? now : refilledAt + refill * nanosPerToken;
+      }
+      if (tokens > 0) {
+        tokens--;
+        return 0;
+      }
+      return refilledAt + nanosPerToken - now;
+    }
+  }
+}
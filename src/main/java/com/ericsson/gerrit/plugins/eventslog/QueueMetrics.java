@@ -0,0 +1,88 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/** Metrics reported by the EventQueue. */
+@Singleton
+class QueueMetrics {
+  private final MetricMaker metricMaker;
+  private final Counter0 blocked;
+  private final Counter0 dropped;
+  private final Counter0 spilled;
+  private final Timer0 batchLinger;
+
+  @Inject
+  QueueMetrics(MetricMaker metricMaker) {
+    this.metricMaker = metricMaker;
+    blocked =
+        metricMaker.newCounter(
+            "queue/blocked_events",
+            new Description("Events whose producer had to wait for room in a full queue")
+                .setRate()
+                .setUnit("events"));
+    dropped =
+        metricMaker.newCounter(
+            "queue/dropped_events",
+            new Description("Events dropped because the queue was full")
+                .setRate()
+                .setUnit("events"));
+    spilled =
+        metricMaker.newCounter(
+            "queue/spilled_events",
+            new Description("Events spilled to the local store because the queue was full")
+                .setRate()
+                .setUnit("events"));
+    batchLinger =
+        metricMaker.newTimer(
+            "queue/batch_linger",
+            new Description("Time spent waiting for a batch of events to fill up")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+  }
+
+  void registerDepth(Supplier<Integer> depth) {
+    metricMaker.newCallbackMetric(
+        "queue/depth",
+        Integer.class,
+        new Description("Number of events waiting to be stored").setGauge().setUnit("events"),
+        depth);
+  }
+
+  void blocked() {
+    blocked.increment();
+  }
+
+  void dropped() {
+    dropped.increment();
+  }
+
+  void spilled() {
+    spilled.increment();
+  }
+
+  void recordLinger(long nanos) {
+    batchLinger.record(nanos, TimeUnit.NANOSECONDS);
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes events to the response as newline delimited JSON, compressed on the fly with gzip or
+ * deflate when the client accepts either. Responses smaller than compressionMinSize bytes are sent
+ * uncompressed, as compressing them saves less than it costs. Deflaters are kept for reuse between
+ * responses, saving the allocation of their native buffers.
+ */
+@Singleton
+class ResponseCompression {
+  static final String CONTENT_TYPE = "application/x-ndjson";
+  static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  static final String VARY_HEADER = "Vary";
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  /** The encodings supported, in order of preference. */
+  enum Encoding {
+    GZIP("gzip", true),
+    DEFLATE("deflate", false);
+
+    private final String name;
+    private final boolean nowrap;
+
+    Encoding(String name, boolean nowrap) {
+      this.name = name;
+      this.nowrap = nowrap;
+    }
+
+    private static Encoding forName(String name) {
+      switch (name) {
+        case "gzip":
+        case "x-gzip":
+          return GZIP;
+        case "deflate":
+          return DEFLATE;
+        default:
+          return null;
+      }
+    }
+  }
+
+  private final int minSize;
+  private final Map<Encoding, BlockingQueue<Deflater>> deflaters = new EnumMap<>(Encoding.class);
+
+  @Inject
+  ResponseCompression(EventsLogConfig cfg) {
+    this.minSize = cfg.getCompressionMinSize();
+    for (Encoding encoding : Encoding.values()) {
+      deflaters.put(encoding, new ArrayBlockingQueue<>(cfg.getQueryThreads()));
+    }
+  }
+
+  /**
+   * Opens a writer of events on the response. Nothing is sent until the writer is written to, so
+   * that errors can still be sent if no event is written.
+   *
+   * @param req the request, whose accepted encodings are honoured
+   * @param rsp the response to write to
+   * @return the writer, to be closed once all the events are written
+   */
+  Writer open(HttpServletRequest req, HttpServletResponse rsp) {
+    rsp.setContentType(CONTENT_TYPE);
+    rsp.setCharacterEncoding(UTF_8.name());
+    rsp.setHeader(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+    Encoding encoding = negotiate(req.getHeader(ACCEPT_ENCODING_HEADER));
+    return new OutputStreamWriter(new CompressingStream(rsp, encoding), UTF_8);
+  }
+
+  /**
+   * @param acceptEncoding the value of the Accept-Encoding header, may be null
+   * @return the preferred encoding accepted, or null to send the response uncompressed
+   */
+  static Encoding negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    Map<Encoding, Float> accepted = new EnumMap<>(Encoding.class);
+    float anyQuality = 0;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] params = coding.split(";");
+      String name = params[0].trim().toLowerCase(Locale.US);
+      float quality = quality(params);
+      if (name.equals("*")) {
+        anyQuality = quality;
+      } else {
+        Encoding encoding = Encoding.forName(name);
+        if (encoding != null) {
+          accepted.put(encoding, quality);
+        }
+      }
+    }
+    Encoding preferred = null;
+    float preferredQuality = 0;
+    for (Encoding encoding : Encoding.values()) {
+      float quality = accepted.getOrDefault(encoding, anyQuality);
+      if (quality > preferredQuality) {
+        preferred = encoding;
+        preferredQuality = quality;
+      }
+    }
+    return preferred;
+  }
+
+  private static float quality(String[] params) {
+    for (int i = 1; i < params.length; i++) {
+      String param = params[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Float.parseFloat(param.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  private Deflater takeDeflater(Encoding encoding) {
+    Deflater deflater = deflaters.get(encoding).poll();
+    return deflater != null
+        ? deflater
+        : new Deflater(Deflater.DEFAULT_COMPRESSION, encoding.nowrap);
+  }
+
+  private void releaseDeflater(Encoding encoding, Deflater deflater) {
+    deflater.reset();
+    if (!deflaters.get(encoding).offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Buffers the first minSize bytes of the response, to decide whether to compress it, then
+   * streams it to the client, compressed or not.
+   */
+  private class CompressingStream extends OutputStream {
+    private final HttpServletResponse rsp;
+    private final Encoding encoding;
+    private byte[] buffer;
+    private int count;
+    private OutputStream raw;
+    private OutputStream out;
+    private Deflater deflater;
+    private DeflaterOutputStream deflated;
+    private CRC32 crc;
+
+    CompressingStream(HttpServletResponse rsp, Encoding encoding) {
+      this.rsp = rsp;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (out == null) {
+        if (encoding != null && count + len < minSize) {
+          if (buffer == null) {
+            buffer = new byte[minSize];
+          }
+          System.arraycopy(b, off, buffer, count, len);
+          count += len;
+          return;
+        }
+        start(encoding);
+      }
+      out.write(b, off, len);
+    }
+
+    private void start(Encoding compression) throws IOException {
+      raw = rsp.getOutputStream();
+      out = raw;
+      if (compression != null) {
+        rsp.setHeader(CONTENT_ENCODING_HEADER, compression.name);
+        deflater = takeDeflater(compression);
+        deflated = new DeflaterOutputStream(raw, deflater, BUFFER_SIZE);
+        out = deflated;
+        if (compression == Encoding.GZIP) {
+          raw.write(GZIP_HEADER);
+          crc = new CRC32();
+          out = new CheckedOutputStream(deflated, crc);
+        }
+      }
+      if (count > 0) {
+        out.write(buffer, 0, count);
+      }
+      buffer = null;
+    }
+
+    @Override
+    public void flush() {
+      // flushing the deflater before the end would only degrade the compression
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (out == null) {
+        if (count == 0) {
+          // nothing was written, leave the response to the caller
+          return;
+        }
+        rsp.setContentLength(count);
+        start(null);
+      }
+      if (deflated != null) {
+        try {
+          deflated.finish();
+          if (crc != null) {
+            writeTrailer(crc.getValue(), deflater.getBytesRead());
+          }
+        } finally {
+          releaseDeflater(encoding, deflater);
+        }
+      }
+      raw.close();
+    }
+
+    private void writeTrailer(long checksum, long size) throws IOException {
+      byte[] trailer = new byte[8];
+      for (int i = 0; i < 4; i++) {
+        trailer[i] = (byte) (checksum >>> (8 * i));
+        trailer[i + 4] = (byte) (size >>> (8 * i));
+      }
+      raw.write(trailer);
+    }
+  }
+}
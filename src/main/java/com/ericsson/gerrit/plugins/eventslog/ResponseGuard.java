@@ -0,0 +1,117 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Supplier;
+
+/**
+ * Serializes the writes to a response with its completion. Once closed, the response may be
+ * recycled by the container for another request, so every later write fails instead of reaching it.
+ */
+class ResponseGuard {
+
+  /** A write to the response. */
+  @FunctionalInterface
+  interface ResponseWrite {
+    void run() throws IOException;
+  }
+
+  private boolean closed;
+
+  /**
+   * Runs a write to the response, unless it is closed.
+   *
+   * @param write the write to run
+   * @throws IOException if the write fails, or if the response is closed
+   */
+  synchronized void run(ResponseWrite write) throws IOException {
+    if (closed) {
+      throw new IOException("Response already completed");
+    }
+    write.run();
+  }
+
+  /**
+   * Opens a writer whose writes are guarded, unless the response is closed.
+   *
+   * @param opener opens the writer to the response
+   * @return the guarded writer
+   * @throws IOException if the response is closed
+   */
+  synchronized Writer open(Supplier<Writer> opener) throws IOException {
+    if (closed) {
+      throw new IOException("Response already completed");
+    }
+    return new GuardedWriter(opener.get());
+  }
+
+  /**
+   * Closes the response to any further write, waiting for the one running, if any.
+   *
+   * @return whether this call closed it
+   */
+  synchronized boolean close() {
+    if (closed) {
+      return false;
+    }
+    closed = true;
+    return true;
+  }
+
+  private class GuardedWriter extends Writer {
+    private final Writer out;
+
+    GuardedWriter(Writer out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      run(() -> out.write(c));
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+      run(() -> out.write(str));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      run(() -> out.write(str, off, len));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      run(() -> out.write(cbuf, off, len));
+    }
+
+    @Override
+    public void flush() throws IOException {
+      run(out::flush);
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (ResponseGuard.this) {
+        // a closed response no longer belongs to this request, leave it as it is
+        if (!closed) {
+          out.close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.Splitter;
+import java.util.List;
+
+/**
+ * The maximum age of the events of the projects and types matching the rule, such as {@code 7
+ * project=mirror/* type=ref-updated}. The project is either a name or a prefix followed by {@code
+ * *}; a rule with no project or no type matches any.
+ */
+public class RetentionRule {
+  private static final String PROJECT = "project=";
+  private static final String TYPE = "type=";
+
+  private final int maxAge;
+  private final String project;
+  private final String type;
+
+  RetentionRule(int maxAge, String project, String type) {
+    this.maxAge = maxAge;
+    this.project = project;
+    this.type = type;
+  }
+
+  /**
+   * @param rule the maximum age in days, followed by the project and the type it applies to
+   * @return the rule
+   * @throws IllegalArgumentException if the rule is not valid
+   */
+  public static RetentionRule parse(String rule) {
+    List<String> parts = Splitter.on(' ').trimResults().omitEmptyStrings().splitToList(rule);
+    if (parts.isEmpty()) {
+      throw new IllegalArgumentException("Empty retention rule");
+    }
+    int maxAge;
+    try {
+      maxAge = Integer.parseInt(parts.get(0));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid maximum age in retention rule: " + rule, e);
+    }
+    if (maxAge < 0) {
+      throw new IllegalArgumentException("Negative maximum age in retention rule: " + rule);
+    }
+    String project = null;
+    String type = null;
+    for (String part : parts.subList(1, parts.size())) {
+      if (part.startsWith(PROJECT) && part.length() > PROJECT.length()) {
+        project = part.substring(PROJECT.length());
+      } else if (part.startsWith(TYPE) && part.length() > TYPE.length()) {
+        type = part.substring(TYPE.length());
+      } else {
+        throw new IllegalArgumentException("Invalid retention rule: " + rule);
+      }
+    }
+    return new RetentionRule(maxAge, project, type);
+  }
+
+  /** @return the maximum age in days of the events matching the rule */
+  public int getMaxAge() {
+    return maxAge;
+  }
+
+  /** @return the name, or prefix followed by {@code *}, of the projects, or null for any */
+  public String getProject() {
+    return project;
+  }
+
+  /** @return the type of the events, or null for any */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @param project the project of an event
+   * @param type the type of the event
+   * @return true if the rule applies to the event
+   */
+  public boolean matches(String project, String type) {
+    if (this.type != null && !this.type.equals(type)) {
+      return false;
+    }
+    if (this.project == null) {
+      return true;
+    }
+    return this.project.endsWith("*")
+        ? project.startsWith(this.project.substring(0, this.project.length() - 1))
+        : this.project.equals(project);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder rule = new StringBuilder().append(maxAge);
+    if (project != null) {
+      rule.append(' ').append(PROJECT).append(project);
+    }
+    if (type != null) {
+      rule.append(' ').append(TYPE).append(type);
+    }
+    return rule.toString();
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by an array of pre-allocated slots.
+ *
+ * <p>Every slot carries a sequence number telling whether it is ready to be written or read for a
+ * given position, so producers and consumers only ever compete on a single compare-and-set of the
+ * tail or head position. Any number of threads may offer and poll concurrently; polling from
+ * producers is what allows them to drop the oldest element when the buffer is full.
+ *
+ * @param <E> the type of elements held in this buffer
+ */
+public class RingBuffer<E> {
+  private final int mask;
+  private final AtomicReferenceArray<E> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Constructs a <code>RingBuffer</code> holding at least <code>capacity</code> elements. The
+   * capacity is rounded up to the next power of two.
+   *
+   * @param capacity the minimum number of elements this buffer can hold
+   */
+  public RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    mask = size - 1;
+    slots = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Inserts the element at the tail of this buffer if there is a free slot.
+   *
+   * @param element the element to insert
+   * @return true if the element was inserted, false if the buffer is full
+   */
+  public boolean offer(E element) {
+    long pos = tail.get();
+    while (true) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          slots.lazySet(index, element);
+          sequences.set(index, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the element at the head of this buffer.
+   *
+   * @return the removed element, or null if the buffer is empty
+   */
+  public E poll() {
+    long pos = head.get();
+    while (true) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - (pos + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          E element = slots.get(index);
+          slots.lazySet(index, null);
+          sequences.set(index, pos + mask + 1);
+          return element;
+        }
+        pos = head.get();
+      } else if (diff < 0) {
+        return null;
+      } else {
+        pos = head.get();
+      }
+    }
+  }
+
+  /**
+   * Removes up to <code>max</code> elements from the head of this buffer and adds them to the given
+   * collection, in order.
+   *
+   * @param target the collection to add the elements to
+   * @param max the maximum number of elements to remove
+   * @return the number of elements removed
+   */
+  public int drainTo(Collection<? super E> target, int max) {
+    int drained = 0;
+    while (drained < max) {
+      E element = poll();
+      if (element == null) {
+        break;
+      }
+      target.add(element);
+      drained++;
+    }
+    return drained;
+  }
+
+  /** @return the number of elements currently held in this buffer */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /** @return the maximum number of elements this buffer can hold */
+  public int capacity() {
+    return mask + 1;
+  }
+}
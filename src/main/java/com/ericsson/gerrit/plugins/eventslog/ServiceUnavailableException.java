@@ -23,4 +23,15 @@ public class ServiceUnavailableException extends EventsLogException {
   public ServiceUnavailableException() {
     super(MESSAGE);
   }
+
+  /**
+   * Constructs a <code>ServiceUnavailableException</code> object with a given <code>message</code>
+   * and a given <code>cause</code>.
+   *
+   * @param message a description of the exception
+   * @param cause the underlying reason for this <code>ServiceUnavailableException</code>
+   */
+  public ServiceUnavailableException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
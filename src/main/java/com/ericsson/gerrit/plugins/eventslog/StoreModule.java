@@ -0,0 +1,44 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.ericsson.gerrit.plugins.eventslog.log.LogModule;
+import com.ericsson.gerrit.plugins.eventslog.sql.SQLModule;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+
+/** Installs the module of the store configured to keep the events. */
+class StoreModule extends AbstractModule {
+
+  /** Where the events are kept. */
+  public enum StoreType {
+    /** In a database, reached through JDBC. */
+    SQL,
+    /** In an append-only log of files in the data directory of the plugin. */
+    LOG
+  }
+
+  private final StoreType storeType;
+
+  @Inject
+  StoreModule(EventsLogConfig cfg) {
+    this.storeType = cfg.getStoreType();
+  }
+
+  @Override
+  protected void configure() {
+    install(storeType == StoreType.LOG ? new LogModule() : new SQLModule());
+  }
+}
@@ -0,0 +1,26 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+/** An exception type for when too many queries are already running against the database. */
+public class TooManyQueriesException extends EventsLogException {
+  private static final long serialVersionUID = 1L;
+  private static final String MESSAGE = "Too many queries running, cannot query events";
+
+  /** Constructs a <code>TooManyQueriesException</code> object with the default message. */
+  public TooManyQueriesException() {
+    super(MESSAGE);
+  }
+}
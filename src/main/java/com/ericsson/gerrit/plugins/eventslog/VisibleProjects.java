@@ -0,0 +1,80 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.reviewdb.client.Project;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The projects of the project cache a user can access, checked all at once so that a query can be
+ * restricted to them without checking every project again. Projects created after the check are
+ * neither visible nor hidden, their access has to be checked on its own.
+ */
+public final class VisibleProjects {
+  private final ImmutableSet<String> visible;
+  private final ImmutableSet<String> hidden;
+
+  /**
+   * @param projects all the projects
+   * @param isVisible tells whether the user can access a project
+   * @return the projects the user can access and those they cannot
+   */
+  static VisibleProjects check(Iterable<Project.NameKey> projects, Predicate<String> isVisible) {
+    ImmutableSet.Builder<String> visible = ImmutableSet.builder();
+    ImmutableSet.Builder<String> hidden = ImmutableSet.builder();
+    for (Project.NameKey project : projects) {
+      (isVisible.test(project.get()) ? visible : hidden).add(project.get());
+    }
+    return new VisibleProjects(visible.build(), hidden.build());
+  }
+
+  private VisibleProjects(ImmutableSet<String> visible, ImmutableSet<String> hidden) {
+    this.visible = visible;
+    this.hidden = hidden;
+  }
+
+  /** @return the projects the user can access */
+  public Set<String> getVisible() {
+    return visible;
+  }
+
+  /** @return the projects the user cannot access */
+  public Set<String> getHidden() {
+    return hidden;
+  }
+
+  /**
+   * @param project the name of a project
+   * @return true if the access of the user to the project was checked
+   */
+  public boolean isKnown(String project) {
+    return visible.contains(project) || hidden.contains(project);
+  }
+
+  /**
+   * @param project the name of a project
+   * @return true if the user can access the project
+   */
+  public boolean isVisible(String project) {
+    return visible.contains(project);
+  }
+
+  /** @return the number of projects checked */
+  int size() {
+    return visible.size() + hidden.size();
+  }
+}
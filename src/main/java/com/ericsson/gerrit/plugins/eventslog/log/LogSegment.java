@@ -0,0 +1,637 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.log;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A file of events appended in id order, along with an offset index and a time index kept in
+ * memory-mapped files.
+ *
+ * <p>Each event is written as a record giving its length and checksum, followed by its id, creation
+ * time, change number, project, type and the event itself. The offset index gives where each record
+ * ends, so that any event is found from its id without reading the ones before it. The time index
+ * gives the oldest and newest creation times of each block of {@link #BLOCK_SIZE} events, so that
+ * reading a time window skips the blocks outside of it. Records are read in place from memory
+ * mappings of the file, only decoding the fields which are asked for. The file is mapped in chunks
+ * of {@link #CHUNK_SIZE} bytes, so that appending to a segment only has its last chunk remapped.
+ *
+ * <p>Events are appended by one writer at a time and only become readable once published. A segment
+ * is closed once full and then only read until it expires. The indexes of the last segment are
+ * rebuilt from its records when it is opened, dropping a record only partly written when the plugin
+ * stopped.
+ */
+class LogSegment {
+  static final String PREFIX = "events-";
+  static final String SUFFIX = ".log";
+  static final String OFFSET_INDEX_SUFFIX = ".idx";
+  static final String TIME_INDEX_SUFFIX = ".tim";
+  static final int BLOCK_SIZE = 64;
+  // keeps the positions of the records within the reach of a single mapping
+  static final long MAX_SIZE = 1L << 30;
+  static final int CHUNK_SIZE = 1 << 24;
+  private static final int HEADER_SIZE = 8;
+  private static final int FIXED_SIZE = 16;
+  private static final int NO_CHANGE = -1;
+
+  private final Path file;
+  private final int baseId;
+  private final int capacity;
+  private final MappedByteBuffer offsets;
+  private final MappedByteBuffer times;
+  private FileChannel channel;
+  private long size;
+  private volatile int written;
+  private volatile int count;
+  private volatile long minTime = Long.MAX_VALUE;
+  private volatile long maxTime = Long.MIN_VALUE;
+  // the mapping of each chunk, covering the records starting in it
+  private ByteBuffer[] chunks = new ByteBuffer[0];
+
+  private LogSegment(
+      Path file,
+      int baseId,
+      MappedByteBuffer offsets,
+      MappedByteBuffer times,
+      FileChannel channel) {
+    this.file = file;
+    this.baseId = baseId;
+    this.capacity = offsets.capacity() / Long.BYTES;
+    this.offsets = offsets;
+    this.times = times;
+    this.channel = channel;
+  }
+
+  /**
+   * Creates an empty segment to append events to.
+   *
+   * @param dir the directory of the log
+   * @param baseId the id of the first event of the segment
+   * @param capacity the maximum number of events in the segment
+   * @return the segment
+   * @throws IOException if the files of the segment cannot be created
+   */
+  static LogSegment create(Path dir, int baseId, int capacity) throws IOException {
+    Path file = dir.resolve(String.format("%s%010d%s", PREFIX, baseId, SUFFIX));
+    for (Path leftover : files(file)) {
+      Files.deleteIfExists(leftover);
+    }
+    return new LogSegment(
+        file,
+        baseId,
+        mapIndex(sibling(file, OFFSET_INDEX_SUFFIX), offsetIndexSize(capacity)),
+        mapIndex(sibling(file, TIME_INDEX_SUFFIX), timeIndexSize(capacity)),
+        openChannel(file));
+  }
+
+  /**
+   * Opens an existing segment.
+   *
+   * @param file the file of the segment
+   * @param capacity the maximum number of events in the segment, if it has no offset index yet
+   * @param last whether this is the last segment of the log, which events are appended to and whose
+   *     indexes are rebuilt
+   * @return the segment
+   * @throws IOException if the files of the segment cannot be read
+   */
+  static LogSegment open(Path file, int capacity, boolean last) throws IOException {
+    String name = file.getFileName().toString();
+    int baseId;
+    try {
+      baseId = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      throw new IOException("Not an event log segment: " + file, e);
+    }
+    Path offsetFile = sibling(file, OFFSET_INDEX_SUFFIX);
+    Path timeFile = sibling(file, TIME_INDEX_SUFFIX);
+    if (!last && Files.exists(offsetFile) && Files.exists(timeFile)) {
+      LogSegment segment =
+          new LogSegment(file, baseId, mapRead(offsetFile), mapRead(timeFile), null);
+      segment.load();
+      return segment;
+    }
+    if (Files.exists(offsetFile) && Files.size(offsetFile) >= Long.BYTES) {
+      capacity = (int) (Files.size(offsetFile) / Long.BYTES);
+    }
+    LogSegment segment =
+        new LogSegment(
+            file,
+            baseId,
+            mapIndex(offsetFile, offsetIndexSize(capacity)),
+            mapIndex(timeFile, timeIndexSize(capacity)),
+            openChannel(file));
+    segment.recover();
+    if (!last) {
+      segment.close();
+    }
+    return segment;
+  }
+
+  private static Path sibling(Path file, String suffix) {
+    String name = file.getFileName().toString();
+    return file.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + suffix);
+  }
+
+  private static List<Path> files(Path file) {
+    List<Path> files = new ArrayList<>();
+    files.add(file);
+    files.add(sibling(file, OFFSET_INDEX_SUFFIX));
+    files.add(sibling(file, TIME_INDEX_SUFFIX));
+    return files;
+  }
+
+  private static FileChannel openChannel(Path file) throws IOException {
+    FileChannel channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    return channel;
+  }
+
+  private static long offsetIndexSize(int capacity) {
+    return (long) capacity * Long.BYTES;
+  }
+
+  private static long timeIndexSize(int capacity) {
+    return (long) blocks(capacity) * 2 * Long.BYTES;
+  }
+
+  private static MappedByteBuffer mapIndex(Path file, long indexSize) throws IOException {
+    try (FileChannel index =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid once the channel is closed
+      return index.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+    }
+  }
+
+  private static MappedByteBuffer mapRead(Path file) throws IOException {
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+    }
+  }
+
+  private static int blocks(int events) {
+    return (events + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  /** Reads the number of events and their creation times from the indexes of a closed segment. */
+  private void load() throws IOException {
+    // the offset index is filled from the start, with the end of each record
+    int low = 0;
+    int high = capacity;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (end(mid) != 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    int events = low;
+    for (int block = 0; block < blocks(events); block++) {
+      minTime = Math.min(minTime, times.getLong(block * 2 * Long.BYTES));
+      maxTime = Math.max(maxTime, times.getLong(block * 2 * Long.BYTES + Long.BYTES));
+    }
+    size = events > 0 ? end(events - 1) : 0;
+    if (size > Files.size(file)) {
+      throw new IOException("Truncated event log segment: " + file);
+    }
+    written = events;
+    count = events;
+  }
+
+  /** Rebuilds the indexes from the records, truncating the file after the last valid one. */
+  private void recover() throws IOException {
+    long fileSize = Math.min(channel.size(), Integer.MAX_VALUE);
+    ByteBuffer in =
+        fileSize > 0
+            ? channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+            : ByteBuffer.allocate(0);
+    CRC32 crc = new CRC32();
+    int position = 0;
+    int events = 0;
+    while (events < capacity && position + HEADER_SIZE <= fileSize) {
+      int length = in.getInt(position);
+      if (length < FIXED_SIZE || position + HEADER_SIZE + (long) length > fileSize) {
+        break;
+      }
+      ByteBuffer body = in.duplicate();
+      body.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+      crc.reset();
+      crc.update(body);
+      if ((int) crc.getValue() != in.getInt(position + 4)
+          || in.getInt(position + HEADER_SIZE) != baseId + events) {
+        break;
+      }
+      long time = in.getLong(position + HEADER_SIZE + Integer.BYTES);
+      position += HEADER_SIZE + length;
+      index(events, position, time);
+      events++;
+    }
+    for (int i = events; i < capacity && end(i) != 0; i++) {
+      offsets.putLong(i * Long.BYTES, 0);
+    }
+    channel.truncate(position);
+    channel.position(position);
+    size = position;
+    written = events;
+    count = events;
+  }
+
+  private void index(int event, long end, long time) {
+    offsets.putLong(event * Long.BYTES, end);
+    int at = event / BLOCK_SIZE * 2 * Long.BYTES;
+    if (event % BLOCK_SIZE == 0 || time < times.getLong(at)) {
+      times.putLong(at, time);
+    }
+    if (event % BLOCK_SIZE == 0 || time > times.getLong(at + Long.BYTES)) {
+      times.putLong(at + Long.BYTES, time);
+    }
+    minTime = Math.min(minTime, time);
+    maxTime = Math.max(maxTime, time);
+  }
+
+  /**
+   * Appends the events which fit in the segment, giving them the next ids. The events are not
+   * readable until published.
+   *
+   * @param entries the events to append
+   * @return the events appended, with their ids, fewer than given if the segment became full
+   * @throws IOException if the events cannot be written, in which case none of them is appended
+   */
+  List<EventEntry> append(List<EventEntry> entries) throws IOException {
+    if (channel == null) {
+      throw new IOException("Event log segment is closed: " + file);
+    }
+    List<EventEntry> appended = new ArrayList<>();
+    List<ByteBuffer> records = new ArrayList<>();
+    long total = 0;
+    for (EventEntry entry : entries) {
+      if (written + appended.size() == capacity || (size + total >= MAX_SIZE && total > 0)) {
+        break;
+      }
+      int id = baseId + written + appended.size();
+      ByteBuffer record = encode(id, entry);
+      records.add(record);
+      total += record.remaining();
+      appended.add(entry.withId(id));
+    }
+    ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+    try {
+      long left = total;
+      while (left > 0) {
+        left -= channel.write(buffers);
+      }
+    } catch (IOException e) {
+      try {
+        channel.truncate(size);
+        channel.position(size);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    long end = size;
+    for (int i = 0; i < appended.size(); i++) {
+      end += records.get(i).capacity();
+      index(written + i, end, appended.get(i).getTimestamp().getTime());
+    }
+    size = end;
+    written += appended.size();
+    return appended;
+  }
+
+  private static ByteBuffer encode(int id, EventEntry entry) {
+    byte[] project = bytes(entry.getName());
+    byte[] type = bytes(entry.getType());
+    byte[] event = bytes(entry.getEvent());
+    int length = FIXED_SIZE + 3 * Integer.BYTES + length(project) + length(type) + length(event);
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+    record.putInt(length).putInt(0);
+    record.putInt(id);
+    record.putLong(entry.getTimestamp().getTime());
+    record.putInt(entry.getChangeNumber() != null ? entry.getChangeNumber() : NO_CHANGE);
+    putString(record, project);
+    putString(record, type);
+    putString(record, event);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER_SIZE, length);
+    record.putInt(Integer.BYTES, (int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  private static byte[] bytes(String value) {
+    return value != null ? value.getBytes(UTF_8) : null;
+  }
+
+  private static int length(byte[] value) {
+    return value != null ? value.length : 0;
+  }
+
+  private static void putString(ByteBuffer record, byte[] value) {
+    if (value == null) {
+      record.putInt(-1);
+      return;
+    }
+    record.putInt(value.length);
+    record.put(value);
+  }
+
+  /**
+   * Syncs the events appended so far to disk.
+   *
+   * @throws IOException if the file cannot be synced
+   */
+  void sync() throws IOException {
+    FileChannel current = channel;
+    if (current != null) {
+      current.force(false);
+    }
+  }
+
+  /**
+   * Makes the events appended up to the given id readable.
+   *
+   * @param lastId the id of the last event to publish
+   */
+  void publish(int lastId) {
+    int upTo = Math.min(written, lastId - baseId + 1);
+    if (upTo > count) {
+      count = upTo;
+    }
+  }
+
+  /**
+   * Syncs the segment and its indexes to disk and stops appending to it. The segment stays open if
+   * it cannot be synced, so that closing it can be retried.
+   *
+   * @throws IOException if the segment cannot be synced
+   */
+  void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    channel.force(true);
+    offsets.force();
+    times.force();
+    try {
+      channel.close();
+    } finally {
+      channel = null;
+    }
+  }
+
+  /**
+   * Deletes the files of the segment. Readers still holding the segment keep reading from the
+   * mappings.
+   *
+   * @throws IOException if a file cannot be deleted
+   */
+  void delete() throws IOException {
+    for (Path segmentFile : files(file)) {
+      Files.deleteIfExists(segmentFile);
+    }
+  }
+
+  /**
+   * Reads the published events after the given id created within the given time window. Blocks
+   * whose events were all created outside of the window are skipped.
+   *
+   * @param afterId the id after which events are read
+   * @param from the beginning of the time window, in milliseconds
+   * @param to the end of the time window, in milliseconds
+   * @param reverse whether to read the events from the newest to the oldest
+   * @param visitor receives the events read
+   * @return false if the visitor stopped reading
+   * @throws IOException if the file cannot be read
+   */
+  boolean read(int afterId, long from, long to, boolean reverse, RecordVisitor visitor)
+      throws IOException {
+    int events = count;
+    int first = Math.max(afterId - baseId + 1, 0);
+    if (first >= events) {
+      return true;
+    }
+    Record record = new Record();
+    ByteBuffer chunk = null;
+    int chunkIndex = -1;
+    int firstBlock = first / BLOCK_SIZE;
+    int lastBlock = (events - 1) / BLOCK_SIZE;
+    for (int i = 0; i <= lastBlock - firstBlock; i++) {
+      int block = reverse ? lastBlock - i : firstBlock + i;
+      if (!mayHold(block, events, from, to)) {
+        continue;
+      }
+      int start = Math.max(first, block * BLOCK_SIZE);
+      int stop = Math.min(events, (block + 1) * BLOCK_SIZE);
+      for (int j = 0; j < stop - start; j++) {
+        int event = reverse ? stop - 1 - j : start + j;
+        long offset = event == 0 ? 0 : end(event - 1);
+        long recordEnd = end(event);
+        long chunkStart = (long) chunkIndex * CHUNK_SIZE;
+        if (offset / CHUNK_SIZE != chunkIndex || recordEnd > chunkStart + chunk.capacity()) {
+          chunkIndex = (int) (offset / CHUNK_SIZE);
+          chunkStart = (long) chunkIndex * CHUNK_SIZE;
+          chunk = chunk(chunkIndex, recordEnd);
+        }
+        record.at(chunk, offset - chunkStart);
+        long time = record.getTime();
+        if (time >= from && time <= to && !visitor.visit(record)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean mayHold(int block, int events, long from, long to) {
+    if ((block + 1) * BLOCK_SIZE > events) {
+      // the creation times of a block only stop changing once it is full
+      return true;
+    }
+    int at = block * 2 * Long.BYTES;
+    return times.getLong(at) <= to && times.getLong(at + Long.BYTES) >= from;
+  }
+
+  private long end(int event) {
+    return offsets.getLong(event * Long.BYTES);
+  }
+
+  /**
+   * Returns a mapping of the file from the start of the given chunk, covering at least up to the
+   * given offset. It spans the whole chunk once written, along with the end of the last record
+   * starting in it.
+   */
+  private synchronized ByteBuffer chunk(int index, long upTo) throws IOException {
+    if (index >= chunks.length) {
+      chunks = Arrays.copyOf(chunks, index + 1);
+    }
+    long start = (long) index * CHUNK_SIZE;
+    ByteBuffer chunk = chunks[index];
+    if (chunk == null || start + chunk.capacity() < upTo) {
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+        long end = Math.max(upTo, Math.min(in.size(), start + CHUNK_SIZE));
+        chunk = in.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      }
+      chunks[index] = chunk;
+    }
+    return chunk;
+  }
+
+  /** @return the segment file */
+  Path getFile() {
+    return file;
+  }
+
+  /** @return the id of the first event of the segment */
+  int getBaseId() {
+    return baseId;
+  }
+
+  /** @return the number of published events */
+  int getCount() {
+    return count;
+  }
+
+  /** @return the id of the last published event, or the id before the first if there is none */
+  int getLastId() {
+    return baseId + count - 1;
+  }
+
+  /** @return the id the next event appended gets */
+  int getNextId() {
+    return baseId + written;
+  }
+
+  /** @return true if no more events can be appended */
+  boolean isFull() {
+    return written == capacity || size >= MAX_SIZE;
+  }
+
+  /** @return true if no events were appended */
+  boolean isEmpty() {
+    return written == 0;
+  }
+
+  /** @return the creation time of the newest event appended, in milliseconds */
+  long getMaxTime() {
+    return maxTime;
+  }
+
+  /**
+   * @param from the beginning of the time window, in milliseconds
+   * @param to the end of the time window, in milliseconds
+   * @return true if some events of the segment may have been created within the time window
+   */
+  boolean overlaps(long from, long to) {
+    return written > 0 && minTime <= to && maxTime >= from;
+  }
+
+  /** Receives the records read from a segment. */
+  @FunctionalInterface
+  interface RecordVisitor {
+    /**
+     * @param record the record, only valid until the method returns
+     * @return true to go on reading, false to stop
+     */
+    boolean visit(Record record) throws IOException;
+  }
+
+  /** A record read in place from the mapping of a segment, decoding its fields when asked for. */
+  static class Record {
+    private ByteBuffer buffer;
+    private int position;
+    private String project;
+
+    private Record() {}
+
+    private void at(ByteBuffer chunk, long start) {
+      buffer = chunk;
+      position = (int) start + HEADER_SIZE;
+      project = null;
+    }
+
+    int getId() {
+      return buffer.getInt(position);
+    }
+
+    long getTime() {
+      return buffer.getLong(position + Integer.BYTES);
+    }
+
+    Integer getChangeNumber() {
+      int change = buffer.getInt(position + Integer.BYTES + Long.BYTES);
+      return change != NO_CHANGE ? change : null;
+    }
+
+    String getProject() {
+      if (project == null) {
+        project = getString(position + FIXED_SIZE);
+      }
+      return project;
+    }
+
+    String getType() {
+      return getString(skip(position + FIXED_SIZE));
+    }
+
+    String getEvent() {
+      return getString(skip(skip(position + FIXED_SIZE)));
+    }
+
+    /** @return the event as an entry, holding all the fields of the record */
+    EventEntry toEntry() {
+      return new EventEntry(
+          getProject(),
+          new Timestamp(getTime()),
+          getEvent(),
+          getId(),
+          getType(),
+          getChangeNumber());
+    }
+
+    private int skip(int at) {
+      return at + Integer.BYTES + Math.max(buffer.getInt(at), 0);
+    }
+
+    private String getString(int at) {
+      int length = buffer.getInt(at);
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      ByteBuffer value = buffer.duplicate();
+      value.position(at + Integer.BYTES);
+      value.get(bytes);
+      return new String(bytes, UTF_8);
+    }
+  }
+}
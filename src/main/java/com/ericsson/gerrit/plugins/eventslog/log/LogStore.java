@@ -0,0 +1,382 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.log;
+
+import static java.util.stream.Collectors.toList;
+
+import com.ericsson.gerrit.plugins.eventslog.EventCleanerPool;
+import com.ericsson.gerrit.plugins.eventslog.EventCursor;
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventStore;
+import com.ericsson.gerrit.plugins.eventslog.EventSubscription;
+import com.ericsson.gerrit.plugins.eventslog.EventVisitor;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
+import com.ericsson.gerrit.plugins.eventslog.LiveFeed;
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.ProjectVisibilityCache;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the events in an append-only log of segment files in the log directory, with no database.
+ *
+ * <p>Events are appended one after the other to the last segment, a new segment being started once
+ * it holds logSegmentSize events. The writers append their events and then wait for them to be
+ * synced to disk, a single sync covering the events appended by all the writers in the meantime.
+ * Events only become visible to queries and subscriptions once synced. Expired events are removed a
+ * whole segment at a time, once all the events of the segment are older than maxAge.
+ */
+@Singleton
+class LogStore implements EventStore, LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(LogStore.class);
+  private static final long RETENTION_INTERVAL = TimeUnit.HOURS.toMillis(1);
+  private static final long SYNC_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+  private final Path dir;
+  private final int segmentSize;
+  private final int maxAge;
+  private final ScheduledExecutorService pool;
+  private final ProjectVisibilityCache visibility;
+  private final LiveFeed feed;
+  private final Object syncLock = new Object();
+  private volatile List<LogSegment> segments = Collections.emptyList();
+  private LogSegment active;
+  private List<EventEntry> unsynced = new ArrayList<>();
+  private int syncedId;
+  private ScheduledFuture<?> retentionTask;
+
+  @Inject
+  LogStore(
+      EventsLogConfig cfg,
+      @EventCleanerPool ScheduledExecutorService pool,
+      ProjectVisibilityCache visibility,
+      LiveFeed feed) {
+    this.dir = cfg.getLogPath();
+    this.segmentSize = cfg.getLogSegmentSize();
+    this.maxAge = cfg.getMaxAge();
+    this.pool = pool;
+    this.visibility = visibility;
+    this.feed = feed;
+  }
+
+  @Override
+  public void start() {
+    try {
+      open();
+    } catch (IOException e) {
+      log.error("Cannot open the event log in {}, events will not be stored", dir, e);
+    }
+    retentionTask =
+        pool.scheduleAtFixedRate(
+            this::removeOldSegments, RETENTION_INTERVAL, RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (retentionTask != null) {
+      retentionTask.cancel(false);
+    }
+    synchronized (this) {
+      if (active != null) {
+        try {
+          active.close();
+        } catch (IOException e) {
+          log.warn("Cannot sync the event log segment {}", active.getFile(), e);
+        }
+        active = null;
+      }
+    }
+  }
+
+  /**
+   * Opens the segments found in the log directory, appending to the last one, or starts the log.
+   * Segments which cannot be read are skipped.
+   *
+   * @throws IOException if the log directory or its last segment cannot be read
+   */
+  synchronized void open() throws IOException {
+    Files.createDirectories(dir);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> found =
+        Files.newDirectoryStream(dir, LogSegment.PREFIX + "*" + LogSegment.SUFFIX)) {
+      found.forEach(files::add);
+    }
+    // the ids are padded, so that the names sort in id order
+    Collections.sort(files);
+    List<LogSegment> opened = new ArrayList<>();
+    for (int i = 0; i < files.size(); i++) {
+      boolean last = i == files.size() - 1;
+      try {
+        opened.add(LogSegment.open(files.get(i), segmentSize, last));
+      } catch (IOException e) {
+        if (last) {
+          throw e;
+        }
+        log.warn("Cannot read event log segment {}", files.get(i), e);
+      }
+    }
+    if (opened.isEmpty()) {
+      opened.add(LogSegment.create(dir, 1, segmentSize));
+    }
+    active = opened.get(opened.size() - 1);
+    segments = Collections.unmodifiableList(opened);
+    synchronized (syncLock) {
+      syncedId = active.getLastId();
+    }
+    log.info("Opened {} event log segments in {}", opened.size(), dir);
+  }
+
+  /**
+   * {@inheritDoc} Queries with neither a cursor nor a time window read the log backwards from the
+   * most recent event, the others read it forwards from the cursor, skipping the segments and the
+   * blocks of events created outside of the time window. The limit of the query only counts the
+   * events visible to the user.
+   *
+   * @throws ServiceUnavailableException if the log could not be opened
+   */
+  @Override
+  public void queryChangeEvents(EventQuery query, EventVisitor visitor)
+      throws EventsLogException, IOException {
+    List<LogSegment> current = segments;
+    if (current.isEmpty()) {
+      throw new ServiceUnavailableException();
+    }
+    Predicate<String> isVisible = visibility.forCurrentUser();
+    Map<String, Boolean> visibleProjects = new HashMap<>();
+    List<EventEntry> entries = new ArrayList<>();
+    LogSegment.RecordVisitor collector =
+        record -> {
+          if (query.matchesFilters(record.getProject(), record.getType(), record.getChangeNumber())
+              && visibleProjects.computeIfAbsent(record.getProject(), isVisible::test)) {
+            entries.add(record.toEntry());
+          }
+          return entries.size() < query.getLimit();
+        };
+    if (query.isLatest()) {
+      for (int i = current.size() - 1; i >= 0; i--) {
+        if (!current.get(i).read(0, Long.MIN_VALUE, Long.MAX_VALUE, true, collector)) {
+          break;
+        }
+      }
+      Collections.reverse(entries);
+    } else {
+      long from = query.hasWindow() ? query.getFrom().getTime() : Long.MIN_VALUE;
+      long to = query.hasWindow() ? query.getTo().getTime() : Long.MAX_VALUE;
+      for (LogSegment segment : current) {
+        if (segment.getLastId() <= query.getAfterId() || !segment.overlaps(from, to)) {
+          continue;
+        }
+        if (!segment.read(query.getAfterId(), from, to, false, collector)) {
+          break;
+        }
+      }
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+    visitor.nextCursor(EventCursor.encode(entries.get(entries.size() - 1).getId()));
+    for (EventEntry entry : entries) {
+      visitor.visit(entry.getEvent());
+    }
+  }
+
+  @Override
+  public EventSubscription subscribe(String cursor, Runnable onReady)
+      throws MalformedQueryException {
+    int afterId = cursor != null ? EventCursor.decode(cursor) : -1;
+    return feed.subscribe(afterId, visibility.forCurrentUser(), onReady);
+  }
+
+  @Override
+  public void storeEvent(ProjectEvent event) {
+    storeEvents(Collections.singletonList(event));
+  }
+
+  /**
+   * {@inheritDoc} The events are appended to the log and synced to disk before returning, along
+   * with the events appended by the other writers in the meantime.
+   */
+  @Override
+  public void storeEvents(List<ProjectEvent> events) {
+    List<EventEntry> entries =
+        events.stream()
+            .filter(e -> e.getProjectNameKey() != null)
+            .map(EventEntry::of)
+            .collect(toList());
+    if (entries.isEmpty()) {
+      return;
+    }
+    int lastId;
+    try {
+      lastId = append(entries);
+    } catch (IOException e) {
+      log.warn("Cannot store {} ChangeEvent(s)", entries.size(), e);
+      return;
+    }
+    sync(lastId);
+  }
+
+  /**
+   * {@inheritDoc} The log needs no secondary storage, so the event is appended to the log right
+   * away.
+   */
+  @Override
+  public void spillEvent(ProjectEvent event) {
+    storeEvent(event);
+  }
+
+  /** Returns the id of the last event appended. */
+  private synchronized int append(List<EventEntry> entries) throws IOException {
+    if (active == null) {
+      throw new IOException("The event log is not open");
+    }
+    List<EventEntry> appended = new ArrayList<>(entries.size());
+    try {
+      while (appended.size() < entries.size()) {
+        if (active.isFull()) {
+          roll();
+        }
+        appended.addAll(active.append(entries.subList(appended.size(), entries.size())));
+      }
+    } finally {
+      // the events appended before a failure are synced along with the next ones
+      unsynced.addAll(appended);
+    }
+    return appended.get(appended.size() - 1).getId();
+  }
+
+  /** Closes the active segment and starts a new one. */
+  private void roll() throws IOException {
+    active.close();
+    LogSegment next = LogSegment.create(dir, active.getNextId(), segmentSize);
+    List<LogSegment> updated = new ArrayList<>(segments);
+    updated.add(next);
+    segments = Collections.unmodifiableList(updated);
+    active = next;
+  }
+
+  /**
+   * Syncs the appended events to disk, unless a sync which started after they were appended already
+   * did, and then makes them visible. The writers waiting while a sync is in progress are all
+   * covered by the next one. If the sync fails, the events are kept to be synced again, by the next
+   * writer or by a retry scheduled shortly after, and are not made visible before.
+   */
+  private void sync(int lastId) {
+    synchronized (syncLock) {
+      if (syncedId >= lastId) {
+        return;
+      }
+      List<EventEntry> batch;
+      LogSegment segment;
+      synchronized (this) {
+        batch = unsynced;
+        unsynced = new ArrayList<>();
+        segment = active;
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      try {
+        if (segment != null) {
+          // the events appended to the previous segments were synced when they were closed
+          segment.sync();
+        }
+      } catch (IOException e) {
+        log.error(
+            "Cannot sync {} ChangeEvent(s) to disk, retrying in {} ms",
+            batch.size(),
+            SYNC_RETRY_DELAY,
+            e);
+        synchronized (this) {
+          // the events stay invisible until a sync covering them succeeds
+          batch.addAll(unsynced);
+          unsynced = batch;
+        }
+        pool.schedule(() -> sync(lastId), SYNC_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        return;
+      }
+      int batchLastId = batch.get(batch.size() - 1).getId();
+      for (LogSegment published : segments) {
+        published.publish(batchLastId);
+      }
+      syncedId = batchLastId;
+      feed.publish(batch);
+    }
+  }
+
+  /**
+   * Deletes the segments whose events were all created more than maxAge days ago. The segment
+   * events are appended to is closed first if all its events are that old, so that the log does not
+   * keep expired events while receiving few new ones.
+   */
+  void removeOldSegments() {
+    long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAge);
+    List<LogSegment> expired = new ArrayList<>();
+    synchronized (this) {
+      if (active == null) {
+        return;
+      }
+      if (!active.isEmpty() && active.getMaxTime() < cutoff) {
+        try {
+          roll();
+        } catch (IOException e) {
+          log.warn("Cannot start a new event log segment", e);
+        }
+      }
+      for (LogSegment segment : segments) {
+        if (segment != active && segment.getMaxTime() < cutoff) {
+          expired.add(segment);
+        }
+      }
+      if (expired.isEmpty()) {
+        return;
+      }
+      List<LogSegment> updated = new ArrayList<>(segments);
+      updated.removeAll(expired);
+      segments = Collections.unmodifiableList(updated);
+    }
+    int removed = 0;
+    for (LogSegment segment : expired) {
+      try {
+        segment.delete();
+        removed += segment.getCount();
+      } catch (IOException e) {
+        log.warn("Cannot delete event log segment {}", segment.getFile(), e);
+      }
+    }
+    log.info("Removed {} events created before {}", removed, new Timestamp(cutoff));
+  }
+}
@@ -0,0 +1,350 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An immutable file of archived events, sorted by creation time and compressed in blocks.
+ *
+ * <p>The file starts with a header giving the range of the ids and of the creation times of its
+ * events and the set of their projects, followed by a sparse index giving the creation time of the
+ * first event of each block and where the block is. Each block holds up to {@link #BLOCK_SIZE}
+ * events and is compressed on its own, so that a query restricted to a time window only reads and
+ * inflates the blocks overlapping the window. The file is memory-mapped, leaving caching its pages
+ * to the operating system.
+ */
+class ArchiveSegment {
+  static final String SUFFIX = ".seg";
+  static final int BLOCK_SIZE = 256;
+  private static final int MAGIC = 0x45564c41;
+  private static final int VERSION = 1;
+  private static final Comparator<EventEntry> BY_TIME =
+      Comparator.comparing(EventEntry::getTimestamp).thenComparingInt(EventEntry::getId);
+
+  private final Path file;
+  private final MappedByteBuffer buffer;
+  private final int count;
+  private final int minId;
+  private final int maxId;
+  private final long minTime;
+  private final long maxTime;
+  private final Set<String> projects;
+  private final long[] blockTimes;
+  private final int[] blockOffsets;
+  private final int[] blockLengths;
+
+  private ArchiveSegment(Path file, MappedByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    try {
+      ByteBuffer in = buffer.duplicate();
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        throw new IOException("Not an archive segment: " + file);
+      }
+      count = in.getInt();
+      minId = in.getInt();
+      maxId = in.getInt();
+      minTime = in.getLong();
+      maxTime = in.getLong();
+      int projectCount = in.getInt();
+      projects = new HashSet<>(projectCount * 2);
+      for (int i = 0; i < projectCount; i++) {
+        projects.add(getString(in));
+      }
+      int blocks = in.getInt();
+      blockTimes = new long[blocks];
+      blockOffsets = new int[blocks];
+      blockLengths = new int[blocks];
+      for (int i = 0; i < blocks; i++) {
+        blockTimes[i] = in.getLong();
+        blockOffsets[i] = in.getInt();
+        blockLengths[i] = in.getInt();
+      }
+      int dataStart = in.position();
+      for (int i = 0; i < blocks; i++) {
+        blockOffsets[i] += dataStart;
+        if (blockOffsets[i] + blockLengths[i] > buffer.limit()) {
+          throw new IOException("Truncated archive segment: " + file);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated archive segment: " + file, e);
+    }
+  }
+
+  /**
+   * Maps an archive segment file into memory.
+   *
+   * @param file the segment file
+   * @return the segment
+   * @throws IOException if the file cannot be read or is not a segment
+   */
+  static ArchiveSegment open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // the mapping stays valid once the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ArchiveSegment(file, buffer);
+    }
+  }
+
+  /**
+   * Writes the events to a new segment file, replacing the file atomically if it exists.
+   *
+   * @param file the segment file
+   * @param entries the events, in any order
+   * @return the segment
+   * @throws IOException if the file cannot be written
+   */
+  static ArchiveSegment write(Path file, List<EventEntry> entries) throws IOException {
+    List<EventEntry> sorted = new ArrayList<>(entries);
+    sorted.sort(BY_TIME);
+    Set<String> projects = new HashSet<>();
+    int minId = Integer.MAX_VALUE;
+    int maxId = Integer.MIN_VALUE;
+    for (EventEntry entry : sorted) {
+      projects.add(entry.getName());
+      minId = Math.min(minId, entry.getId());
+      maxId = Math.max(maxId, entry.getId());
+    }
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    DataOutputStream indexOut = new DataOutputStream(index);
+    for (int from = 0; from < sorted.size(); from += BLOCK_SIZE) {
+      List<EventEntry> block = sorted.subList(from, Math.min(from + BLOCK_SIZE, sorted.size()));
+      int offset = data.size();
+      writeBlock(data, block);
+      indexOut.writeLong(block.get(0).getTimestamp().getTime());
+      indexOut.writeInt(offset);
+      indexOut.writeInt(data.size() - offset);
+    }
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (OutputStream os = Files.newOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(os)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(sorted.size());
+      out.writeInt(minId);
+      out.writeInt(maxId);
+      out.writeLong(sorted.isEmpty() ? 0 : sorted.get(0).getTimestamp().getTime());
+      out.writeLong(sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1).getTimestamp().getTime());
+      out.writeInt(projects.size());
+      for (String project : projects) {
+        writeString(out, project);
+      }
+      out.writeInt((sorted.size() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+      index.writeTo(out);
+      data.writeTo(out);
+    }
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    return open(file);
+  }
+
+  private static void writeBlock(OutputStream data, List<EventEntry> block) throws IOException {
+    // the stream does not release a compressor it was given, even when closed
+    Deflater compressor = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      DeflaterOutputStream deflater = new DeflaterOutputStream(data, compressor);
+      DataOutputStream out = new DataOutputStream(deflater);
+      for (EventEntry entry : block) {
+        out.writeInt(entry.getId());
+        out.writeLong(entry.getTimestamp().getTime());
+        writeString(out, entry.getName());
+        writeString(out, entry.getType());
+        out.writeBoolean(entry.getChangeNumber() != null);
+        out.writeInt(entry.getChangeNumber() != null ? entry.getChangeNumber() : 0);
+        writeString(out, entry.getEvent());
+      }
+      out.flush();
+      deflater.finish();
+    } finally {
+      compressor.end();
+    }
+  }
+
+  /**
+   * Reads the events created within the given time window, in creation time order.
+   *
+   * @param from the beginning of the time window, or null to read from the first event
+   * @param to the end of the time window, or null to read up to the last event
+   * @param filter the events to keep
+   * @param consumer receives the events kept
+   * @throws IOException if the file cannot be read
+   */
+  void read(
+      Timestamp from, Timestamp to, Predicate<EventEntry> filter, Consumer<EventEntry> consumer)
+      throws IOException {
+    long fromTime = from != null ? from.getTime() : Long.MIN_VALUE;
+    long toTime = to != null ? to.getTime() : Long.MAX_VALUE;
+    for (int i = firstBlock(fromTime); i < blockTimes.length && blockTimes[i] <= toTime; i++) {
+      byte[] compressed = new byte[blockLengths[i]];
+      ByteBuffer block = buffer.duplicate();
+      block.position(blockOffsets[i]);
+      block.get(compressed);
+      int events = Math.min(BLOCK_SIZE, count - i * BLOCK_SIZE);
+      try (DataInputStream in =
+          new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+        for (int j = 0; j < events; j++) {
+          EventEntry entry = readEntry(in);
+          long time = entry.getTimestamp().getTime();
+          if (time >= fromTime && time <= toTime && filter.test(entry)) {
+            consumer.accept(entry);
+          }
+        }
+      }
+    }
+  }
+
+  /** @return all the events of the segment, in creation time order */
+  List<EventEntry> readAll() throws IOException {
+    List<EventEntry> entries = new ArrayList<>(count);
+    read(null, null, e -> true, entries::add);
+    return entries;
+  }
+
+  /** Returns the index of the first block which may hold events created at or after the time. */
+  private int firstBlock(long fromTime) {
+    // events created at the same time may straddle two blocks
+    int low = 0;
+    int high = blockTimes.length - 1;
+    int first = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (blockTimes[mid] < fromTime) {
+        first = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return first;
+  }
+
+  private static EventEntry readEntry(DataInputStream in) throws IOException {
+    int id = in.readInt();
+    Timestamp timestamp = new Timestamp(in.readLong());
+    String project = readString(in);
+    String type = readString(in);
+    boolean hasChange = in.readBoolean();
+    int change = in.readInt();
+    String event = readString(in);
+    return new EventEntry(project, timestamp, event, id, type, hasChange ? change : null);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static String getString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** @return the segment file */
+  Path getFile() {
+    return file;
+  }
+
+  /** @return the number of events in the segment */
+  int getCount() {
+    return count;
+  }
+
+  /** @return the lowest id of the events of the segment */
+  int getMinId() {
+    return minId;
+  }
+
+  /** @return the highest id of the events of the segment */
+  int getMaxId() {
+    return maxId;
+  }
+
+  /** @return the creation time of the oldest event of the segment */
+  long getMinTime() {
+    return minTime;
+  }
+
+  /** @return the creation time of the newest event of the segment */
+  long getMaxTime() {
+    return maxTime;
+  }
+
+  /**
+   * @param from the beginning of the time window
+   * @param to the end of the time window
+   * @return true if some events of the segment may have been created within the time window
+   */
+  boolean overlaps(Timestamp from, Timestamp to) {
+    return count > 0 && minTime <= to.getTime() && maxTime >= from.getTime();
+  }
+
+  /**
+   * @param project a predicate on project names
+   * @return true if some events of the segment belong to a project matching the predicate
+   */
+  boolean hasProject(Predicate<String> project) {
+    return projects.stream().anyMatch(project);
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the health of the connection to the main database.
+ *
+ * <p>While the circuit is closed, events are written to the main database. Once a writer lane
+ * failed to connect as many times in a row as the threshold, the circuit opens and events go
+ * straight to the local database. Each lane counts its own failures while retrying its batch, so
+ * that failures of other lanes do not add up. A periodic probe then moves the circuit to half-open
+ * while it checks the connection, closing it again on success.
+ */
+class CircuitBreaker {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+  CircuitBreaker(int failureThreshold) {
+    this.failureThreshold = Math.max(failureThreshold, 1);
+  }
+
+  State getState() {
+    return state.get();
+  }
+
+  boolean isClosed() {
+    return state.get() == State.CLOSED;
+  }
+
+  /**
+   * @param failures the consecutive connection failures of a writer lane
+   * @return true if the failures reached the threshold and the circuit should open
+   */
+  boolean isTripping(int failures) {
+    return failures >= failureThreshold;
+  }
+
+  /** @return true if the circuit was closed and is now open */
+  boolean trip() {
+    return state.getAndSet(State.OPEN) == State.CLOSED;
+  }
+
+  void halfOpen() {
+    state.compareAndSet(State.OPEN, State.HALF_OPEN);
+  }
+
+  void probeFailed() {
+    state.compareAndSet(State.HALF_OPEN, State.OPEN);
+  }
+
+  void close() {
+    state.set(State.CLOSED);
+  }
+}
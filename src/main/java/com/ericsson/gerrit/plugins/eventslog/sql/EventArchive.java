@@ -0,0 +1,247 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The events moved out of the database once older than archiveAge, kept in immutable segment files
+ * in the archive directory until they expire.
+ *
+ * <p>Each segment holds the events of a range of consecutive ids, so that a query returning the
+ * first events matching it in id order reads the segments in id order and stops as soon as it has
+ * enough events. Events archived twice, when the plugin stopped after writing a segment but before
+ * removing its events from the database, are returned once.
+ */
+@Singleton
+class EventArchive {
+  private static final Logger log = LoggerFactory.getLogger(EventArchive.class);
+  private static final String PREFIX = "events-";
+  private static final Comparator<ArchiveSegment> BY_ID =
+      Comparator.comparingInt(ArchiveSegment::getMinId).thenComparingInt(ArchiveSegment::getMaxId);
+
+  private final Path dir;
+  private volatile List<ArchiveSegment> segments = Collections.emptyList();
+
+  @Inject
+  EventArchive(EventsLogConfig cfg) {
+    this.dir = cfg.getArchivePath();
+  }
+
+  /**
+   * Maps the segments found in the archive directory, skipping those which cannot be read.
+   *
+   * @throws IOException if the archive directory cannot be read
+   */
+  synchronized void open() throws IOException {
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    List<ArchiveSegment> found = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(ArchiveSegment.SUFFIX + ".tmp")) {
+          // left over by a write which did not complete
+          Files.deleteIfExists(file);
+        } else if (name.startsWith(PREFIX) && name.endsWith(ArchiveSegment.SUFFIX)) {
+          try {
+            found.add(ArchiveSegment.open(file));
+          } catch (IOException e) {
+            log.warn("Cannot read archive segment {}", file, e);
+          }
+        }
+      }
+    }
+    found.sort(BY_ID);
+    segments = Collections.unmodifiableList(found);
+    log.info("Opened {} archive segments in {}", found.size(), dir);
+  }
+
+  /**
+   * Writes the events to a new segment.
+   *
+   * @param entries the events to archive, of consecutive ids
+   * @throws IOException if the segment cannot be written
+   */
+  synchronized void write(List<EventEntry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    Files.createDirectories(dir);
+    List<ArchiveSegment> updated = new ArrayList<>(segments);
+    updated.add(ArchiveSegment.write(file(entries), entries));
+    update(updated);
+  }
+
+  private Path file(List<EventEntry> entries) {
+    int minId = entries.stream().mapToInt(EventEntry::getId).min().getAsInt();
+    int maxId = entries.stream().mapToInt(EventEntry::getId).max().getAsInt();
+    return dir.resolve(
+        String.format("%s%010d-%010d%s", PREFIX, minId, maxId, ArchiveSegment.SUFFIX));
+  }
+
+  /**
+   * Removes the expired events, according to the retention rules applying to each of them. The
+   * segments whose events were all created before the oldest cutoff are deleted, and the segments
+   * holding events older than the newest cutoff are rewritten without their expired events.
+   *
+   * @param policy the retention policy
+   * @return the number of events removed
+   * @throws IOException if a segment cannot be deleted or rewritten
+   */
+  synchronized int expire(RetentionPolicy policy) throws IOException {
+    int removed = dropBefore(policy.getOldestCutoff());
+    long newestCutoff = policy.getNewestCutoff().getTime();
+    return removed + rewrite(s -> s.getMinTime() < newestCutoff, policy::isExpired);
+  }
+
+  private int dropBefore(Timestamp cutoff) throws IOException {
+    List<ArchiveSegment> expired =
+        segments.stream()
+            .filter(s -> s.getMaxTime() < cutoff.getTime())
+            .collect(Collectors.toList());
+    if (expired.isEmpty()) {
+      return 0;
+    }
+    List<ArchiveSegment> updated = new ArrayList<>(segments);
+    updated.removeAll(expired);
+    update(updated);
+    int dropped = 0;
+    for (ArchiveSegment segment : expired) {
+      // readers still holding the segment keep reading from the mapping
+      Files.deleteIfExists(segment.getFile());
+      dropped += segment.getCount();
+    }
+    return dropped;
+  }
+
+  /**
+   * Rewrites the segments holding events of the project without them.
+   *
+   * @param project the name of the project
+   * @return the number of events removed
+   * @throws IOException if a segment cannot be rewritten
+   */
+  synchronized int removeProject(String project) throws IOException {
+    return rewrite(s -> s.hasProject(project::equals), e -> e.getName().equals(project));
+  }
+
+  /**
+   * Rewrites the segments which may hold events to remove without them.
+   *
+   * @param holds whether a segment may hold events to remove
+   * @param removed whether an event is removed
+   * @return the number of events removed
+   */
+  private int rewrite(Predicate<ArchiveSegment> holds, Predicate<EventEntry> removed)
+      throws IOException {
+    int count = 0;
+    for (ArchiveSegment segment : segments) {
+      if (!holds.test(segment)) {
+        continue;
+      }
+      List<EventEntry> kept =
+          segment.readAll().stream().filter(removed.negate()).collect(Collectors.toList());
+      if (kept.size() == segment.getCount()) {
+        continue;
+      }
+      List<ArchiveSegment> updated = new ArrayList<>(segments);
+      updated.remove(segment);
+      Path rewritten = null;
+      if (!kept.isEmpty()) {
+        rewritten = file(kept);
+        updated.add(ArchiveSegment.write(rewritten, kept));
+      }
+      update(updated);
+      if (!segment.getFile().equals(rewritten)) {
+        Files.deleteIfExists(segment.getFile());
+      }
+      count += segment.getCount() - kept.size();
+    }
+    return count;
+  }
+
+  private void update(List<ArchiveSegment> updated) {
+    updated.sort(BY_ID);
+    segments = Collections.unmodifiableList(new ArrayList<>(updated));
+  }
+
+  /**
+   * @param query the query
+   * @return true if the query is restricted to a time window overlapping archived events
+   */
+  boolean reachedBy(EventQuery query) {
+    if (!query.hasWindow()) {
+      return false;
+    }
+    for (ArchiveSegment segment : segments) {
+      if (segment.overlaps(query.getFrom(), query.getTo())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Merges the archived events matching the query with those read from the database.
+   *
+   * @param query the query reaching the archive
+   * @param entries the events matching the query read from the database, in id order
+   * @param isVisible whether the events of a project are visible, for archived events of hidden
+   *     projects not to count in the limit of the query
+   * @return the first events matching the query, in id order, up to the limit of the query
+   * @throws IOException if a segment cannot be read
+   */
+  List<EventEntry> merge(EventQuery query, List<EventEntry> entries, Predicate<String> isVisible)
+      throws IOException {
+    int limit = query.getLimit();
+    TreeSet<EventEntry> merged = new TreeSet<>(entries);
+    Predicate<EventEntry> filter = e -> query.matches(e) && isVisible.test(e.getName());
+    for (ArchiveSegment segment : segments) {
+      if (merged.size() >= limit && segment.getMinId() > merged.last().getId()) {
+        break;
+      }
+      if (segment.getMaxId() <= query.getAfterId()
+          || !segment.overlaps(query.getFrom(), query.getTo())
+          || !segment.hasProject(p -> query.matchesProject(p) && isVisible.test(p))) {
+        continue;
+      }
+      segment.read(query.getFrom(), query.getTo(), filter, merged::add);
+      while (merged.size() > limit) {
+        merged.pollLast();
+      }
+    }
+    return new ArrayList<>(merged);
+  }
+}
@@ -15,28 +15,97 @@
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
 import com.ericsson.gerrit.plugins.eventslog.EventCleanerPool;
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.RetentionRule;
+import com.google.common.collect.Range;
 import com.google.gerrit.extensions.events.ProjectDeletedListener;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Purges the events of deleted projects and, every day at cleanupHour, removes the expired events:
+ * those older than the maximum age of the first retention rule matching their project and type, or
+ * than maxAge if none does. Expired events are deleted in batches of consecutive ids with a pause
+ * between batches, so that writers and queries are never held up for long, and the cleanup stops at
+ * the end of the cleanup window, leaving the remaining events for the next day. The events older
+ * than archiveAge are then moved to the archive by the same batches. The pause grows while writing
+ * or querying events is slower than cleanupMaxLatency. The events of a deleted project are hidden
+ * at once by a tombstone, kept until they are all purged in batches of at most cleanupBatchSize
+ * events, each continuing from the last one deleted.
+ */
 @Singleton
 public class EventsLogCleaner implements ProjectDeletedListener {
-  private static final int HOUR = 23;
+  private static final Logger log = LoggerFactory.getLogger(EventsLogCleaner.class);
   private static final long INTERVAL = TimeUnit.DAYS.toSeconds(1);
+  private static final long MIN_BACK_OFF = 100;
+  private static final long MAX_BACK_OFF = TimeUnit.MINUTES.toMillis(1);
+  private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  /** Deletes the events of a batch of consecutive ids. */
+  @FunctionalInterface
+  private interface BatchDelete {
+    int delete(int firstId, int lastId) throws SQLException, IOException;
+  }
+
+  /** Gives the id of the last event of the batch starting at the given id. */
+  @FunctionalInterface
+  private interface BatchEnd {
+    int lastId(int firstId) throws SQLException;
+  }
 
   private final SQLClient eventsDb;
+  private final QueryResultCache resultCache;
+  private final TailBuffer tail;
+  private final StoreMetrics metrics;
+  private final ProjectTombstones tombstones;
+  private final EventArchive archive;
+  private final int hour;
+  private final long window;
+  private final int batchSize;
+  private final long pause;
+  private final long maxLatency;
+  private final List<RetentionRule> rules;
+  private final int archiveAge;
 
   private ScheduledExecutorService pool;
 
   @Inject
-  EventsLogCleaner(@EventsDb SQLClient eventsDb, @EventCleanerPool ScheduledExecutorService pool) {
+  EventsLogCleaner(
+      EventsLogConfig cfg,
+      @EventsDb SQLClient eventsDb,
+      QueryResultCache resultCache,
+      TailBuffer tail,
+      StoreMetrics metrics,
+      ProjectTombstones tombstones,
+      EventArchive archive,
+      @EventCleanerPool ScheduledExecutorService pool) {
     this.eventsDb = eventsDb;
+    this.resultCache = resultCache;
+    this.tail = tail;
+    this.metrics = metrics;
+    this.tombstones = tombstones;
+    this.archive = archive;
+    this.hour = cfg.getCleanupHour();
+    this.window = TimeUnit.MINUTES.toNanos(cfg.getCleanupWindow());
+    this.batchSize = cfg.getCleanupBatchSize();
+    this.pause = cfg.getCleanupPause();
+    this.maxLatency = cfg.getCleanupMaxLatency();
+    this.rules = cfg.getRetentionRules();
+    this.archiveAge = cfg.getArchiveAge();
     this.pool = pool;
   }
 
@@ -45,21 +114,308 @@ public class EventsLogCleaner implements ProjectDeletedListener {
     removeProjectEventsAsync(event.getProjectName());
   }
 
+  /**
+   * Hides the events of the project at once, then purges them in the background. The tombstone of
+   * the project is recorded in the database, so that the purge resumes after a restart.
+   *
+   * @param projectName the name of the deleted project
+   */
   public void removeProjectEventsAsync(String projectName) {
-    pool.submit(() -> eventsDb.removeProjectEvents(projectName));
+    tombstones.add(projectName);
+    resultCache.evictProject(projectName);
+    pool.submit(
+        () -> {
+          try {
+            eventsDb.addTombstone(projectName);
+          } catch (SQLException e) {
+            log.warn("Cannot record the deletion of project {} in database", projectName, e);
+          }
+          purgeProject(projectName);
+        });
+  }
+
+  /** Resumes the purge of the events of the projects deleted before the plugin was stopped. */
+  public void resumeProjectPurges() {
+    pool.submit(
+        () -> {
+          try {
+            for (String project : eventsDb.getTombstones()) {
+              tombstones.add(project);
+              purgeProject(project);
+            }
+          } catch (SQLException e) {
+            log.warn("Cannot read the deleted projects from database", e);
+          }
+        });
+  }
+
+  private void purgeProject(String project) {
+    try {
+      int removed = archive.removeProject(project);
+      if (removed > 0) {
+        log.info("Removed {} archived events of project {}", removed, project);
+      }
+    } catch (IOException e) {
+      log.warn("Cannot remove project {} events from the archive", project, e);
+      return;
+    }
+    Range<Integer> ids;
+    try {
+      ids = eventsDb.getProjectIds(project);
+    } catch (SQLException e) {
+      log.warn("Cannot remove project {} events from database", project, e);
+      return;
+    }
+    if (ids == null) {
+      projectPurged(project, true);
+      return;
+    }
+    // the events of a project may be sparse, so batches are bounded by rows rather than by ids
+    new Cleanup(
+            "events of project " + project,
+            ids,
+            NO_DEADLINE,
+            first -> {
+              Integer end = eventsDb.getProjectBatchEnd(project, first, batchSize);
+              return end != null ? end : ids.upperEndpoint();
+            },
+            (first, last) -> eventsDb.removeProjectEvents(project, first, last),
+            complete -> projectPurged(project, complete))
+        .run();
+  }
+
+  private void projectPurged(String project, boolean complete) {
+    if (complete) {
+      try {
+        eventsDb.removeTombstone(project);
+      } catch (SQLException e) {
+        log.warn("Cannot remove the tombstone of project {} from database", project, e);
+      }
+      tombstones.remove(project);
+    }
+    resultCache.evictProject(project);
+    tail.reset();
   }
 
   public void scheduleCleaningWith(int maxAge) {
     pool.scheduleAtFixedRate(
-        () -> eventsDb.removeOldEvents(maxAge), getInitialDelay(), INTERVAL, TimeUnit.SECONDS);
+        () -> removeOldEvents(maxAge), getInitialDelay(), INTERVAL, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Starts removing the expired events. On a partitioned table, the partitions of the days expired
+   * whatever rule applies are dropped at once. The remaining expired events are deleted a batch at
+   * a time, the first one right away and the following ones scheduled on the pool, in between the
+   * removal of deleted projects. The expired archived events are removed by the same rules, and
+   * once the expired events are removed, the events older than archiveAge are moved to the archive
+   * the same way.
+   *
+   * @param maxAge the maximum age, in days, of the events matching no retention rule
+   */
+  void removeOldEvents(int maxAge) {
+    long deadline = System.nanoTime() + window;
+    RetentionPolicy policy = new RetentionPolicy(maxAge, rules, System.currentTimeMillis());
+    try {
+      int expired = archive.expire(policy);
+      if (expired > 0) {
+        log.info("Removed {} expired archived events", expired);
+      }
+    } catch (IOException e) {
+      log.warn("Cannot remove expired events from the archive", e);
+    }
+    try {
+      if (eventsDb.isPartitioned()) {
+        eventsDb.dropPartitionsBefore(policy.getOldestCutoff());
+        if (policy.getOldestCutoff().equals(policy.getNewestCutoff())) {
+          invalidate();
+          archiveOldEvents(deadline);
+          return;
+        }
+      }
+      Range<Integer> ids = eventsDb.getIdsBefore(policy.getNewestCutoff());
+      if (ids == null) {
+        invalidate();
+        log.info("No event created before {} to remove", policy.getNewestCutoff());
+        archiveOldEvents(deadline);
+        return;
+      }
+      new Cleanup(
+              "expired events created before " + policy.getNewestCutoff(),
+              ids,
+              deadline,
+              (first, last) -> eventsDb.removeExpiredEvents(policy, first, last),
+              complete -> {
+                invalidate();
+                if (complete) {
+                  archiveOldEvents(deadline);
+                }
+              })
+          .run();
+    } catch (SQLException e) {
+      log.warn("Cannot remove old event entries from database", e);
+    }
+  }
+
+  /**
+   * Starts moving the events older than archiveAge to the archive, a batch at a time. Each batch is
+   * written to a segment of its own before being deleted from the database.
+   */
+  private void archiveOldEvents(long deadline) {
+    if (archiveAge == 0) {
+      return;
+    }
+    Timestamp cutoff =
+        new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(archiveAge));
+    try {
+      Range<Integer> ids = eventsDb.getIdsBefore(cutoff);
+      if (ids == null) {
+        log.info("No event created before {} to archive", cutoff);
+        return;
+      }
+      new Cleanup(
+              "events created before " + cutoff + " to the archive",
+              ids,
+              deadline,
+              (first, last) -> archiveEvents(cutoff, first, last),
+              complete -> invalidate())
+          .run();
+    } catch (SQLException e) {
+      log.warn("Cannot archive old event entries from database", e);
+    }
+  }
+
+  private int archiveEvents(Timestamp cutoff, int firstId, int lastId)
+      throws SQLException, IOException {
+    List<EventEntry> entries = eventsDb.getEventsBefore(cutoff, firstId, lastId);
+    if (entries.isEmpty()) {
+      return 0;
+    }
+    archive.write(entries);
+    return eventsDb.removeEventsBefore(cutoff, firstId, lastId);
+  }
+
+  private void invalidate() {
+    resultCache.invalidateAll();
+    tail.reset();
   }
 
   private long getInitialDelay() {
     ZonedDateTime now = ZonedDateTime.now(ZoneId.systemDefault());
-    ZonedDateTime next = now.withHour(HOUR).truncatedTo(ChronoUnit.HOURS);
+    ZonedDateTime next = now.withHour(hour).truncatedTo(ChronoUnit.HOURS);
     if (now.isAfter(next)) {
       next = next.plusDays(1);
     }
     return Duration.between(now, next).getSeconds();
   }
+
+  /** Deletes a batch of events each time it runs, then schedules itself for the next. */
+  private class Cleanup implements Runnable {
+    private final String description;
+    private final int lastId;
+    private final long deadline;
+    private final BatchEnd batchEnd;
+    private final BatchDelete delete;
+    private final Consumer<Boolean> onFinish;
+    private int nextId;
+    private long backOff;
+    private int deleted;
+    private int batches;
+    private long busyNanos;
+
+    /**
+     * Deletes the events in batches of batchSize consecutive ids.
+     *
+     * @param description what is deleted, for the logs
+     * @param ids the range of the ids of the events to delete
+     * @param deadline the time, as of {@link System#nanoTime()}, at which to stop deleting
+     * @param delete deletes the events of a batch
+     * @param onFinish called once deleting stops, with whether all the events were deleted
+     */
+    Cleanup(
+        String description,
+        Range<Integer> ids,
+        long deadline,
+        BatchDelete delete,
+        Consumer<Boolean> onFinish) {
+      this(
+          description,
+          ids,
+          deadline,
+          first -> (int) Math.min((long) first + batchSize - 1, Integer.MAX_VALUE),
+          delete,
+          onFinish);
+    }
+
+    /**
+     * @param description what is deleted, for the logs
+     * @param ids the range of the ids of the events to delete
+     * @param deadline the time, as of {@link System#nanoTime()}, at which to stop deleting
+     * @param batchEnd gives the id of the last event of each batch
+     * @param delete deletes the events of a batch
+     * @param onFinish called once deleting stops, with whether all the events were deleted
+     */
+    Cleanup(
+        String description,
+        Range<Integer> ids,
+        long deadline,
+        BatchEnd batchEnd,
+        BatchDelete delete,
+        Consumer<Boolean> onFinish) {
+      this.description = description;
+      this.nextId = ids.lowerEndpoint();
+      this.lastId = ids.upperEndpoint();
+      this.deadline = deadline;
+      this.batchEnd = batchEnd;
+      this.delete = delete;
+      this.onFinish = onFinish;
+    }
+
+    @Override
+    public void run() {
+      if (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0) {
+        finish(false, "stopped at the end of the cleanup window");
+        return;
+      }
+      if (maxLatency > 0 && metrics.recentLatency() > maxLatency) {
+        backOff = Math.min(Math.max(backOff * 2, Math.max(pause, MIN_BACK_OFF)), MAX_BACK_OFF);
+        log.debug("Database is slow, pausing the cleanup for {} ms", backOff);
+        pool.schedule(this, backOff, TimeUnit.MILLISECONDS);
+        return;
+      }
+      backOff = 0;
+      long start = System.nanoTime();
+      int batchLastId;
+      int count;
+      try {
+        batchLastId = Math.min(batchEnd.lastId(nextId), lastId);
+        count = delete.delete(nextId, batchLastId);
+      } catch (SQLException | IOException e) {
+        log.warn("Cannot remove {} from database", description, e);
+        finish(false, "stopped by an error");
+        return;
+      }
+      long elapsed = System.nanoTime() - start;
+      metrics.recordCleanup(count, elapsed);
+      deleted += count;
+      batches++;
+      busyNanos += elapsed;
+      if (batchLastId >= lastId) {
+        finish(true, "done");
+        return;
+      }
+      nextId = batchLastId + 1;
+      pool.schedule(this, pause, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(boolean complete, String outcome) {
+      onFinish.accept(complete);
+      log.info(
+          "Removed {} {} in {} batches taking {} ms, {}",
+          deleted,
+          description,
+          batches,
+          TimeUnit.NANOSECONDS.toMillis(busyNanos),
+          outcome);
+    }
+  }
 }
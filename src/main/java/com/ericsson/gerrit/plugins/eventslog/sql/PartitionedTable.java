@@ -0,0 +1,227 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DEFAULT_PARTITION;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static java.lang.String.format;
+
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The events table split into one partition per day, so that expired events are removed by dropping
+ * whole partitions rather than by deleting their rows, and queries restricted to a time window only
+ * read the partitions of the days it overlaps.
+ *
+ * <p>On PostgreSQL the table is partitioned natively by range of creation date, with a default
+ * partition receiving the events of days having no partition, and the database prunes the
+ * partitions of queries itself. On H2 each day is a table of its own, the ids of all of them coming
+ * from one sequence, and the events table is a view of all of them; queries restricted to a time
+ * window only read the tables of the days it overlaps.
+ */
+class PartitionedTable {
+  private static final Logger log = LoggerFactory.getLogger(PartitionedTable.class);
+  static final int DAYS_AHEAD = 7;
+  private static final String DELETE_DEFAULT_QUERY =
+      format("DELETE FROM %s WHERE %s < ?", DEFAULT_PARTITION, DATE_ENTRY);
+
+  private final boolean postgresql;
+  private final NavigableSet<LocalDate> days = new ConcurrentSkipListSet<>();
+
+  PartitionedTable(boolean postgresql) {
+    this.postgresql = postgresql;
+  }
+
+  /**
+   * Creates the partitioned table if it does not exist yet, with the partitions of the given day
+   * and of the following ones, and loads the partitions already created.
+   *
+   * @param conn the connection to the database
+   * @param today the current day
+   * @return false if the events table exists but is not partitioned, in which case it is left as it
+   *     is
+   * @throws SQLException if there was a problem with the database
+   */
+  synchronized boolean create(Connection conn, LocalDate today) throws SQLException {
+    boolean exists = false;
+    boolean partitioned = false;
+    try (ResultSet tables = conn.getMetaData().getTables(null, null, "%", null)) {
+      while (tables.next()) {
+        String table = tables.getString("TABLE_NAME");
+        LocalDate day = SQLTable.partitionDay(table);
+        if (day != null) {
+          days.add(day);
+        }
+        exists |= table.equalsIgnoreCase(TABLE_NAME);
+        partitioned |= day != null || table.equalsIgnoreCase(DEFAULT_PARTITION);
+      }
+    }
+    if (exists && !partitioned) {
+      return false;
+    }
+    try (Statement stat = conn.createStatement()) {
+      if (postgresql) {
+        stat.execute(SQLTable.createPartitionedTableQuery());
+        stat.execute(SQLTable.createDefaultPartitionQuery());
+        stat.execute(SQLTable.createIndexes(true));
+      } else {
+        stat.execute(SQLTable.createSequenceQuery());
+      }
+    }
+    addDays(conn, today, today.plusDays(DAYS_AHEAD));
+    if (!postgresql) {
+      replaceView(conn);
+    }
+    return true;
+  }
+
+  /**
+   * Creates the partitions of the days from the first to the last given, for those not created yet.
+   *
+   * @throws SQLException if there was a problem with the database
+   */
+  synchronized void addDays(Connection conn, LocalDate first, LocalDate last) throws SQLException {
+    boolean added = false;
+    for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+      if (days.contains(day)) {
+        continue;
+      }
+      try (Statement stat = conn.createStatement()) {
+        stat.execute(SQLTable.createPartitionQuery(postgresql, day));
+      } catch (SQLException e) {
+        if (!postgresql) {
+          throw e;
+        }
+        // fails if the default partition already holds events of the day, which stay there
+        log.warn("Cannot create partition {}", SQLTable.partitionName(day), e);
+        continue;
+      }
+      days.add(day);
+      added = true;
+    }
+    if (added && !postgresql) {
+      replaceView(conn);
+    }
+  }
+
+  /**
+   * Drops the partitions holding events older than the given time. On PostgreSQL, the older events
+   * of the default partition are deleted.
+   *
+   * @param conn the connection to the database
+   * @param cutoff the time of the oldest events to keep
+   * @return the days whose partitions were dropped
+   * @throws SQLException if there was a problem with the database
+   */
+  synchronized List<LocalDate> dropBefore(Connection conn, LocalDateTime cutoff)
+      throws SQLException {
+    List<LocalDate> expired = new ArrayList<>(days.headSet(cutoff.toLocalDate()));
+    if (!expired.isEmpty()) {
+      days.removeAll(expired);
+      if (!postgresql) {
+        // the view must no longer read from the tables before they are dropped
+        replaceView(conn);
+      }
+      try (Statement stat = conn.createStatement()) {
+        for (LocalDate day : expired) {
+          stat.execute("DROP TABLE IF EXISTS " + SQLTable.partitionName(day));
+        }
+      }
+    }
+    if (postgresql) {
+      try (PreparedStatement stat = conn.prepareStatement(DELETE_DEFAULT_QUERY)) {
+        stat.setTimestamp(1, Timestamp.valueOf(cutoff));
+        stat.executeUpdate();
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Returns the table events of the given day are inserted into, creating the partition of the day
+   * if needed.
+   *
+   * @throws SQLException if there was a problem with the database
+   */
+  String insertTable(Connection conn, LocalDate day) throws SQLException {
+    if (postgresql) {
+      // rows are routed to their partition by the database
+      return TABLE_NAME;
+    }
+    if (!days.contains(day)) {
+      addDays(conn, day, day);
+    }
+    return SQLTable.partitionName(day);
+  }
+
+  /** @return the tables events are deleted from */
+  List<String> tables() {
+    if (postgresql) {
+      return Collections.singletonList(TABLE_NAME);
+    }
+    return days.stream().map(SQLTable::partitionName).collect(Collectors.toList());
+  }
+
+  /**
+   * Returns the table a query reads from, only holding the partitions of the days overlapping its
+   * time window. Only needed on H2, PostgreSQL pruning partitions itself.
+   *
+   * @param query the query
+   * @return the events table, or a derived table of the same name reading only from the partitions
+   *     the query needs
+   */
+  String source(EventQuery query) {
+    if (postgresql || !query.hasWindow() || days.isEmpty()) {
+      return TABLE_NAME;
+    }
+    LocalDateTime start = query.getFrom().toLocalDateTime();
+    LocalDateTime end = query.getTo().toLocalDateTime();
+    List<String> selects = new ArrayList<>();
+    if (!start.isAfter(end)) {
+      for (LocalDate day : days.subSet(start.toLocalDate(), true, end.toLocalDate(), true)) {
+        selects.add("SELECT * FROM " + SQLTable.partitionName(day));
+      }
+    }
+    if (selects.isEmpty()) {
+      selects.add(format("SELECT * FROM %s WHERE FALSE", SQLTable.partitionName(days.first())));
+    }
+    return format("(%s) %s", String.join(" UNION ALL ", selects), TABLE_NAME);
+  }
+
+  private void replaceView(Connection conn) throws SQLException {
+    List<String> partitions =
+        days.stream().map(SQLTable::partitionName).collect(Collectors.toList());
+    try (Statement stat = conn.createStatement()) {
+      stat.execute(SQLTable.createViewQuery(partitions));
+    }
+  }
+}
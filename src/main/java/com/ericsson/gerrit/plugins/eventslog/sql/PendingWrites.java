@@ -0,0 +1,102 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the writes to the events table still in flight, to tell up to which id all the events
+ * written so far are committed. The ids of the events are given when they are inserted, but the
+ * events are only read once committed, and concurrent writers commit in any order: reading past an
+ * id still in flight would move the cursor over an event committed right afterwards.
+ *
+ * <p>A write started after an event was committed gives its own events higher ids, so all the
+ * events up to the highest id known to be committed when the oldest write still in flight started
+ * are committed. Only the writes of this server are tracked, and only while the database returns
+ * the ids of the events it stores. The highest id committed before the server started is read from
+ * the database when the store is set up; writes started before it is known are not bounded.
+ */
+class PendingWrites {
+  static final int NONE = Integer.MAX_VALUE;
+  private static final int UNKNOWN = -1;
+
+  private final Map<Long, Integer> started = new HashMap<>();
+  private long nextWrite;
+  private int highestStored = UNKNOWN;
+  private boolean idsKnown = true;
+
+  /**
+   * Records the highest id of the events committed so far, read from the database.
+   *
+   * @param lastId the highest id of the stored events, 0 if there are none
+   */
+  synchronized void seed(int lastId) {
+    highestStored = Math.max(highestStored, lastId);
+  }
+
+  /**
+   * Records a write about to start.
+   *
+   * @return the write, to be passed to {@link #end} once committed or to {@link #abort} on failure
+   */
+  synchronized long begin() {
+    long write = nextWrite++;
+    started.put(write, highestStored);
+    return write;
+  }
+
+  /**
+   * Records a committed write.
+   *
+   * @param write the write, as returned by {@link #begin}
+   * @param stored the events committed with their ids, empty if their ids are not known
+   */
+  synchronized void end(long write, List<EventEntry> stored) {
+    started.remove(write);
+    if (stored.isEmpty()) {
+      // without the ids, the events committed cannot be told apart from those in flight
+      idsKnown = false;
+    }
+    for (EventEntry entry : stored) {
+      highestStored = Math.max(highestStored, entry.getId());
+    }
+  }
+
+  /**
+   * Records a failed write, none of whose events were committed.
+   *
+   * @param write the write, as returned by {@link #begin}
+   */
+  synchronized void abort(long write) {
+    started.remove(write);
+  }
+
+  /**
+   * @return the id up to which all the events are committed, or {@link #NONE} if no write is in
+   *     flight or the ids of the committed events are not known
+   */
+  synchronized int getSafeId() {
+    if (started.isEmpty() || !idsKnown) {
+      return NONE;
+    }
+    int safeId = Collections.min(started.values());
+    // a write started before the committed events were known does not tell up to where they are
+    return safeId == UNKNOWN ? NONE : safeId;
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
+import static java.lang.String.format;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Restricts a query to the events of some projects, either those listed or all but those listed.
+ *
+ * <p>The restriction is added to the conditions of the query, so that its limit only counts the
+ * events of the allowed projects. Project names are passed as one array parameter, so that the
+ * statement is the same whatever the number of projects.
+ */
+final class ProjectFilter {
+  private static final ProjectFilter NONE = new ProjectFilter(ImmutableList.of(), true);
+
+  private final List<String> projects;
+  private final boolean exclude;
+
+  /** @return a filter letting the events of all projects through */
+  static ProjectFilter none() {
+    return NONE;
+  }
+
+  /**
+   * @param projects the projects whose events are kept
+   * @return a filter keeping only the events of the given projects
+   */
+  static ProjectFilter including(Collection<String> projects) {
+    return new ProjectFilter(ImmutableList.copyOf(projects), false);
+  }
+
+  /**
+   * @param projects the projects whose events are dropped
+   * @return a filter dropping the events of the given projects
+   */
+  static ProjectFilter excluding(Collection<String> projects) {
+    return new ProjectFilter(ImmutableList.copyOf(projects), true);
+  }
+
+  private ProjectFilter(List<String> projects, boolean exclude) {
+    this.projects = projects;
+    this.exclude = exclude;
+  }
+
+  /** @return true if no event can get through the filter */
+  boolean isEmpty() {
+    return !exclude && projects.isEmpty();
+  }
+
+  /** @return true if all the events get through the filter */
+  boolean isAll() {
+    return exclude && projects.isEmpty();
+  }
+
+  /**
+   * @param postgresql whether the condition is for PostgreSQL rather than H2
+   * @return the condition keeping the events let through by the filter, with the project names
+   *     bound as one array parameter, or null if all the events get through
+   */
+  String condition(boolean postgresql) {
+    if (isAll()) {
+      return null;
+    }
+    if (postgresql) {
+      return format("%s %s (?)", PROJECT_ENTRY, exclude ? "<> ALL" : "= ANY");
+    }
+    return format(
+        "%s %s (SELECT X FROM TABLE(X VARCHAR=?))", PROJECT_ENTRY, exclude ? "NOT IN" : "IN");
+  }
+
+  /** @return the project names, bound to the parameter of {@link #condition(boolean)} */
+  String[] parameter() {
+    return projects.toArray(new String[0]);
+  }
+}
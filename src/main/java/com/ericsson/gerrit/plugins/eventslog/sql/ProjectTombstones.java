@@ -0,0 +1,50 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The deleted projects whose events are still being purged from the database. Their events are
+ * hidden from queries and subscriptions from the moment the project is deleted until they are all
+ * purged.
+ */
+@Singleton
+class ProjectTombstones {
+  private final Set<String> projects = ConcurrentHashMap.newKeySet();
+
+  void add(String project) {
+    projects.add(project);
+  }
+
+  void remove(String project) {
+    projects.remove(project);
+  }
+
+  boolean contains(String project) {
+    return projects.contains(project);
+  }
+
+  /**
+   * @param isVisible whether the events of a project are visible
+   * @return whether the events of a project are visible and the project is not being purged
+   */
+  Predicate<String> hiding(Predicate<String> isVisible) {
+    return project -> !projects.contains(project) && isVisible.test(project);
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the results of queries over time windows which ended long enough ago for no event to be
+ * added to them anymore. Results are kept for all projects, so they can be shared between users and
+ * must be filtered by visibility when they are returned.
+ *
+ * <p>The cache is bounded by the total number of events it holds, least recently used results being
+ * dropped first. Results are evicted when events are removed from the database or restored into it
+ * from the local database.
+ */
+@Singleton
+class QueryResultCache {
+  static final Duration CLOSED_WINDOW_DELAY = Duration.ofHours(1);
+
+  /** Events returned by a query, kept as read from the database. */
+  static class Page {
+    private final ImmutableList<EventEntry> entries;
+    private final boolean complete;
+
+    private Page(ImmutableList<EventEntry> entries, boolean complete) {
+      this.entries = entries;
+      this.complete = complete;
+    }
+
+    /** @return the events, in the order returned by the query */
+    ImmutableList<EventEntry> getEntries() {
+      return entries;
+    }
+
+    /**
+     * Returns whether the page holds all the events in the window. Pages cut short by the limit of
+     * the query only hold the first events of the window, which may include events some users
+     * cannot see; those users need to read the events following the page.
+     *
+     * @return true if the page holds all the events matching the query
+     */
+    boolean isComplete() {
+      return complete;
+    }
+
+    private int weight() {
+      return entries.size() + 1;
+    }
+  }
+
+  private final Cache<EventQuery, Page> cache;
+  private final AtomicLong generation = new AtomicLong();
+  private final Counter0 hits;
+  private final Counter0 misses;
+
+  @Inject
+  QueryResultCache(EventsLogConfig cfg, MetricMaker metricMaker) {
+    this.cache =
+        cfg.getQueryCacheSize() > 0
+            ? CacheBuilder.newBuilder()
+                .maximumWeight(cfg.getQueryCacheSize())
+                .<EventQuery, Page>weigher((query, page) -> page.weight())
+                .build()
+            : null;
+    hits =
+        metricMaker.newCounter(
+            "query_cache/hits",
+            new Description("Queries answered from the cache").setRate().setUnit("queries"));
+    misses =
+        metricMaker.newCounter(
+            "query_cache/misses",
+            new Description("Cacheable queries passed on to the database")
+                .setRate()
+                .setUnit("queries"));
+  }
+
+  /**
+   * Returns whether the result of the query can be cached, i.e. the query is restricted to a time
+   * window which ended long enough ago.
+   *
+   * @param query the query
+   * @return true if the result of the query can be cached, otherwise false
+   */
+  boolean isCacheable(EventQuery query) {
+    if (cache == null || !query.hasWindow()) {
+      return false;
+    }
+    return query.getTo().toLocalDateTime().isBefore(LocalDateTime.now().minus(CLOSED_WINDOW_DELAY));
+  }
+
+  /**
+   * @param query the query
+   * @return the cached result of the query, or null if there is none
+   */
+  Page getIfPresent(EventQuery query) {
+    Page page = cache.getIfPresent(query);
+    if (page != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return page;
+  }
+
+  /**
+   * Returns the current generation of the cache. Reading a result must start by getting the
+   * generation, and the result must be put in the cache with it, so that results read while entries
+   * were evicted are not kept.
+   *
+   * @return the current generation
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Caches the result of the query, unless the cache was invalidated since the given generation.
+   *
+   * @param query the query
+   * @param entries the events returned by the query
+   * @param readGeneration the generation of the cache when the query started
+   * @return the cached page
+   */
+  Page put(EventQuery query, List<EventEntry> entries, long readGeneration) {
+    Page page = new Page(ImmutableList.copyOf(entries), entries.size() < query.getLimit());
+    synchronized (generation) {
+      if (generation.get() == readGeneration) {
+        cache.put(query, page);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Drops the cached results holding events of the project.
+   *
+   * @param project the name of the project
+   */
+  void evictProject(String project) {
+    if (cache == null) {
+      return;
+    }
+    synchronized (generation) {
+      generation.incrementAndGet();
+      cache
+          .asMap()
+          .values()
+          .removeIf(page -> page.entries.stream().anyMatch(e -> e.getName().equals(project)));
+    }
+  }
+
+  /** Drops all the cached results. */
+  void invalidateAll() {
+    if (cache == null) {
+      return;
+    }
+    synchronized (generation) {
+      generation.incrementAndGet();
+      cache.invalidateAll();
+    }
+  }
+}
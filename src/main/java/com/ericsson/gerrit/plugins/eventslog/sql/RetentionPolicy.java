@@ -0,0 +1,143 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TYPE_ENTRY;
+import static java.lang.String.format;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.RetentionRule;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The times before which events expire at a given moment, by project and type of event according to
+ * the retention rules, and by maxAge for the events matching no rule. The condition selecting the
+ * expired events is a single expression, so that they are all deleted by the same range deletes
+ * whatever rule they match.
+ */
+class RetentionPolicy {
+  // PostgreSQL resolves untyped parameters of a CASE expression to text
+  private static final String TIMESTAMP_PARAMETER = "CAST(? AS TIMESTAMP)";
+
+  private final List<RetentionRule> rules;
+  private final Timestamp defaultCutoff;
+  private final List<Timestamp> cutoffs;
+  private final String condition;
+
+  /**
+   * @param maxAge the maximum age in days of the events matching no rule
+   * @param rules the retention rules, the first one matching an event applying to it
+   * @param now the current time in milliseconds
+   */
+  RetentionPolicy(int maxAge, List<RetentionRule> rules, long now) {
+    this.rules = rules;
+    this.defaultCutoff = cutoff(now, maxAge);
+    this.cutoffs = new ArrayList<>(rules.size());
+    for (RetentionRule rule : rules) {
+      cutoffs.add(cutoff(now, rule.getMaxAge()));
+    }
+    this.condition = condition(rules);
+  }
+
+  private static Timestamp cutoff(long now, int maxAge) {
+    return new Timestamp(now - TimeUnit.DAYS.toMillis(maxAge));
+  }
+
+  private static String condition(List<RetentionRule> rules) {
+    if (rules.isEmpty()) {
+      return format("%s < ?", DATE_ENTRY);
+    }
+    StringBuilder condition = new StringBuilder(format("%s < CASE", DATE_ENTRY));
+    for (RetentionRule rule : rules) {
+      List<String> matches = new ArrayList<>(2);
+      if (rule.getProject() != null) {
+        matches.add(format(isPrefix(rule) ? "%s LIKE ?" : "%s = ?", PROJECT_ENTRY));
+      }
+      if (rule.getType() != null) {
+        matches.add(format("%s = ?", TYPE_ENTRY));
+      }
+      condition.append(" WHEN ");
+      condition.append(matches.isEmpty() ? "1 = 1" : String.join(" AND ", matches));
+      condition.append(" THEN ").append(TIMESTAMP_PARAMETER);
+    }
+    return condition.append(" ELSE ").append(TIMESTAMP_PARAMETER).append(" END").toString();
+  }
+
+  private static boolean isPrefix(RetentionRule rule) {
+    return rule.getProject().endsWith("*");
+  }
+
+  /** @return the time before which all the events have expired, whichever rule they match */
+  Timestamp getOldestCutoff() {
+    return Collections.min(allCutoffs());
+  }
+
+  /** @return the time after which no event has expired, whichever rule it matches */
+  Timestamp getNewestCutoff() {
+    return Collections.max(allCutoffs());
+  }
+
+  private List<Timestamp> allCutoffs() {
+    List<Timestamp> all = new ArrayList<>(cutoffs);
+    all.add(defaultCutoff);
+    return all;
+  }
+
+  /**
+   * @param entry a stored event
+   * @return true if the event has expired, according to the first rule matching it
+   */
+  boolean isExpired(EventEntry entry) {
+    for (int i = 0; i < rules.size(); i++) {
+      if (rules.get(i).matches(entry.getName(), entry.getType())) {
+        return entry.getTimestamp().before(cutoffs.get(i));
+      }
+    }
+    return entry.getTimestamp().before(defaultCutoff);
+  }
+
+  /** @return the condition selecting the expired events, with its values as parameters */
+  String condition() {
+    return condition;
+  }
+
+  /** @return the values of the parameters of the condition, in order */
+  List<Object> parameters() {
+    List<Object> parameters = new ArrayList<>();
+    for (int i = 0; i < rules.size(); i++) {
+      RetentionRule rule = rules.get(i);
+      if (rule.getProject() != null) {
+        parameters.add(isPrefix(rule) ? likePrefix(rule.getProject()) : rule.getProject());
+      }
+      if (rule.getType() != null) {
+        parameters.add(rule.getType());
+      }
+      parameters.add(cutoffs.get(i));
+    }
+    parameters.add(defaultCutoff);
+    return parameters;
+  }
+
+  private static String likePrefix(String pattern) {
+    String prefix = pattern.substring(0, pattern.length() - 1);
+    return prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+  }
+}
@@ -14,49 +14,132 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.H2_DB_PREFIX;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.CHANGE_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.EVENT_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PRIMARY_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TOMBSTONE_TABLE;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TYPE_ENTRY;
 import static java.lang.String.format;
-import static java.util.concurrent.TimeUnit.DAYS;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.concurrent.TimeUnit.SECONDS;
 
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
-import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
-import com.google.common.base.Supplier;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.collect.Range;
 import com.google.gerrit.server.events.ProjectEvent;
-import com.google.gerrit.server.events.SupplierSerializer;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 class SQLClient {
   private static final Logger log = LoggerFactory.getLogger(SQLClient.class);
-  private final Gson gson;
+  private static final int FETCH_SIZE = 500;
+  private static final String QUERY_CANCELED_STATE = "57014";
+  private static final String INSERT_FORMAT =
+      format(
+          "INSERT INTO %%s(%s, %s, %s, %s, %s) VALUES(?, ?, ?, ?, ?)",
+          PROJECT_ENTRY, DATE_ENTRY, TYPE_ENTRY, CHANGE_ENTRY, EVENT_ENTRY);
+  private static final String INSERT_QUERY = format(INSERT_FORMAT, TABLE_NAME);
+  private static final String[] GENERATED_KEYS = {PRIMARY_ENTRY};
+  private static final String SELECT_AFTER_QUERY =
+      format(
+          "SELECT * FROM %s WHERE %s > ? ORDER BY %s LIMIT ?",
+          TABLE_NAME, PRIMARY_ENTRY, PRIMARY_ENTRY);
+  private static final String SELECT_MAX_ID_QUERY =
+      format("SELECT MAX(%s) FROM %s", PRIMARY_ENTRY, TABLE_NAME);
+  private static final String SELECT_WITHOUT_TYPE_QUERY =
+      format(
+          "SELECT * FROM %s WHERE %s IS NULL AND %s > ? ORDER BY %s LIMIT ?",
+          TABLE_NAME, TYPE_ENTRY, PRIMARY_ENTRY, PRIMARY_ENTRY);
+  private static final String UPDATE_FILTER_FIELDS_QUERY =
+      format(
+          "UPDATE %s SET %s = ?, %s = ? WHERE %s = ?",
+          TABLE_NAME, TYPE_ENTRY, CHANGE_ENTRY, PRIMARY_ENTRY);
+  private static final String SELECT_IDS_BEFORE_QUERY =
+      format(
+          "SELECT MIN(%s), MAX(%s) FROM %s WHERE %s < ?",
+          PRIMARY_ENTRY, PRIMARY_ENTRY, TABLE_NAME, DATE_ENTRY);
+  private static final String DELETE_EXPIRED_FORMAT =
+      format("DELETE FROM %%s WHERE %s BETWEEN ? AND ? AND %%s", PRIMARY_ENTRY);
+  private static final String SELECT_RANGE_BEFORE_QUERY =
+      format(
+          "SELECT * FROM %s WHERE %s BETWEEN ? AND ? AND %s < ? ORDER BY %s",
+          TABLE_NAME, PRIMARY_ENTRY, DATE_ENTRY, PRIMARY_ENTRY);
+  private static final String DELETE_RANGE_BEFORE_FORMAT =
+      format("DELETE FROM %%s WHERE %s BETWEEN ? AND ? AND %s < ?", PRIMARY_ENTRY, DATE_ENTRY);
+  private static final String DELETE_UP_TO_FORMAT =
+      format("DELETE FROM %%s WHERE %s <= ?", PRIMARY_ENTRY);
+  private static final String SELECT_PROJECT_IDS_QUERY =
+      format(
+          "SELECT MIN(%s), MAX(%s) FROM %s WHERE %s = ?",
+          PRIMARY_ENTRY, PRIMARY_ENTRY, TABLE_NAME, PROJECT_ENTRY);
+  private static final String SELECT_PROJECT_BATCH_END_FORMAT =
+      format(
+          "SELECT MAX(%s) FROM (SELECT %s FROM %%s WHERE %s = ? AND %s >= ? ORDER BY %s LIMIT ?) b",
+          PRIMARY_ENTRY, PRIMARY_ENTRY, PROJECT_ENTRY, PRIMARY_ENTRY, PRIMARY_ENTRY);
+  private static final String DELETE_PROJECT_FORMAT =
+      format("DELETE FROM %%s WHERE %s BETWEEN ? AND ? AND %s = ?", PRIMARY_ENTRY, PROJECT_ENTRY);
+  private static final String INSERT_TOMBSTONE_QUERY =
+      format("INSERT INTO %s(%s) VALUES(?)", TOMBSTONE_TABLE, PROJECT_ENTRY);
+  private static final String DELETE_TOMBSTONE_QUERY =
+      format("DELETE FROM %s WHERE %s = ?", TOMBSTONE_TABLE, PROJECT_ENTRY);
+  private static final String SELECT_TOMBSTONES_QUERY =
+      format("SELECT %s FROM %s", PROJECT_ENTRY, TOMBSTONE_TABLE);
+
+  /** Receives the entries returned by a query, one at a time. */
+  @FunctionalInterface
+  interface EntryVisitor {
+    void visit(EventEntry entry) throws IOException;
+  }
+
   private final boolean isPostgresql;
+  private final int queryTimeout;
 
   private HikariDataSource ds;
+  private volatile PartitionedTable partitions;
 
   public SQLClient(HikariConfig config) {
+    this(config, 0, false);
+  }
+
+  /**
+   * @param config the configuration of the connection pool
+   * @param queryTimeout the time in seconds after which queries of events are cancelled, 0 for no
+   *     limit
+   * @param partitioned whether the events table is partitioned by day, on PostgreSQL and H2
+   */
+  public SQLClient(HikariConfig config, int queryTimeout, boolean partitioned) {
     ds = new HikariDataSource(config);
+    this.queryTimeout = queryTimeout;
 
-    gson = new GsonBuilder().registerTypeAdapter(Supplier.class, new SupplierSerializer()).create();
     isPostgresql = config.getJdbcUrl().contains("postgresql");
+    if (partitioned) {
+      if (isPostgresql || config.getJdbcUrl().startsWith(H2_DB_PREFIX)) {
+        partitions = new PartitionedTable(isPostgresql);
+      } else {
+        log.warn("Partitioned tables are only supported on PostgreSQL and H2, using one table");
+      }
+    }
   }
 
   /**
@@ -65,7 +148,18 @@ class SQLClient {
    * @throws SQLException If there was a problem with the database
    */
   void createDBIfNotCreated() throws SQLException {
+    execute(SQLTable.createTombstoneTableQuery());
+    if (partitions != null) {
+      try (Connection conn = ds.getConnection()) {
+        if (partitions.create(conn, LocalDate.now())) {
+          return;
+        }
+      }
+      log.warn("Table {} is not partitioned, keep using it as it is", TABLE_NAME);
+      partitions = null;
+    }
     execute(SQLTable.createTableQuery(isPostgresql));
+    execute(SQLTable.addColumnsQuery());
     execute(SQLTable.createIndexes(isPostgresql));
   }
 
@@ -87,19 +181,34 @@ class SQLClient {
   }
 
   /**
-   * Get events as a multimap list of Strings and SQLEntries. The String represents the project
-   * name, and the SQLEntry is the event information.
+   * Get the events matching the query, passing them to the visitor one at a time as they are read
+   * from the database. Rows are fetched in chunks, so the whole result is never held in memory.
    *
-   * @param query the query as a string
-   * @return Multimap list of Strings (project names) and SQLEntries (events)
+   * @param query the query
+   * @param filter the projects the query is restricted to
+   * @param visitor the visitor receiving the events
    * @throws EventsLogException If there was a problem with the database
+   * @throws ServiceUnavailableException If the query timed out
+   * @throws IOException If the visitor failed to handle an event
    */
-  ListMultimap<String, SQLEntry> getEvents(String query) throws EventsLogException {
-    try (Connection conn = ds.getConnection();
-        Statement stat = conn.createStatement()) {
-      return listEvents(stat, query);
+  void getEvents(SQLQuery query, ProjectFilter filter, EntryVisitor visitor)
+      throws EventsLogException, IOException {
+    try (Connection conn = ds.getConnection()) {
+      if (isPostgresql) {
+        // PostgreSQL only honours the fetch size within a transaction
+        conn.setAutoCommit(false);
+      }
+      try (PreparedStatement stat = prepare(conn, sql(query, filter), values(query, filter))) {
+        stat.setFetchSize(FETCH_SIZE);
+        stat.setQueryTimeout(queryTimeout);
+        try (ResultSet rs = stat.executeQuery()) {
+          while (rs.next()) {
+            visitor.visit(toEntry(rs));
+          }
+        }
+      }
     } catch (SQLException e) {
-      throw new EventsLogException("Cannot query database", e);
+      throw queryFailed(e);
     }
   }
 
@@ -107,59 +216,335 @@ class SQLClient {
    * Store the event in the database.
    *
    * @param event The event to store
+   * @return the stored event with the id it was given, or an empty list if the database did not
+   *     return it
    * @throws SQLException If there was a problem with the database
    */
-  void storeEvent(ProjectEvent event) throws SQLException {
-    storeEvent(
-        event.getProjectNameKey().get(),
-        new Timestamp(SECONDS.toMillis(event.eventCreatedOn)),
-        gson.toJson(event));
+  List<EventEntry> storeEvent(ProjectEvent event) throws SQLException {
+    EventEntry entry = EventEntry.of(event);
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(insertQuery(conn, entry), GENERATED_KEYS)) {
+      bind(stat, entry);
+      stat.executeUpdate();
+      return withIds(stat, Collections.singletonList(entry));
+    }
   }
 
   /**
-   * Store the event in the database.
+   * Store the events in the database as one JDBC batch, committed in a single transaction. Either
+   * all the events are stored or none of them are.
    *
-   * @param projectName The project in which this event happened
-   * @param timestamp The time at which this event took place
-   * @param event The event as a string
+   * @param events The events to store
+   * @return the stored events with the ids they were given, in id order, or an empty list if the
+   *     database did not return them
    * @throws SQLException If there was a problem with the database
    */
-  void storeEvent(String projectName, Timestamp timestamp, String event) throws SQLException {
-    execute(
-        format("INSERT INTO %s(%s, %s, %s) ", TABLE_NAME, PROJECT_ENTRY, DATE_ENTRY, EVENT_ENTRY)
-            + format("VALUES('%s', '%s', '%s')", projectName, timestamp, event));
+  List<EventEntry> storeEvents(List<ProjectEvent> events) throws SQLException {
+    List<EventEntry> entries = new ArrayList<>(events.size());
+    for (ProjectEvent event : events) {
+      entries.add(EventEntry.of(event));
+    }
+    return insert(entries);
   }
 
   /**
-   * Remove all events that are older than maxAge.
+   * Store the entries in the database as one JDBC batch, committed in a single transaction. Either
+   * all the entries are stored or none of them are.
    *
-   * @param maxAge The maximum age to keep events
+   * @param entries The entries to store
+   * @return the stored entries with the ids they were given, in id order, or an empty list if the
+   *     database did not return them
+   * @throws SQLException If there was a problem with the database
    */
-  void removeOldEvents(int maxAge) {
-    try {
-      execute(
-          format(
-              "DELETE FROM %s WHERE %s < '%s'",
-              TABLE_NAME,
-              DATE_ENTRY,
-              new Timestamp(System.currentTimeMillis() - MILLISECONDS.convert(maxAge, DAYS))));
-      log.info("Events older than {} days were removed from database {}", maxAge, ds.getPoolName());
-    } catch (SQLException e) {
-      log.warn("Cannot remove old event entries from database {}", ds.getPoolName(), e);
+  List<EventEntry> storeEntries(List<EventEntry> entries) throws SQLException {
+    return insert(entries);
+  }
+
+  /**
+   * Inserts the entries in a single transaction, with one JDBC batch per table they go to.
+   *
+   * @return the entries with their ids, in id order, or an empty list if the ids are not returned
+   */
+  private List<EventEntry> insert(List<EventEntry> entries) throws SQLException {
+    try (Connection conn = ds.getConnection()) {
+      Map<String, List<EventEntry>> batches = new LinkedHashMap<>();
+      for (EventEntry entry : entries) {
+        batches.computeIfAbsent(insertQuery(conn, entry), q -> new ArrayList<>()).add(entry);
+      }
+      conn.setAutoCommit(false);
+      try {
+        List<EventEntry> stored = new ArrayList<>(entries.size());
+        for (Map.Entry<String, List<EventEntry>> batch : batches.entrySet()) {
+          try (PreparedStatement stat = conn.prepareStatement(batch.getKey(), GENERATED_KEYS)) {
+            for (EventEntry entry : batch.getValue()) {
+              bind(stat, entry);
+              stat.addBatch();
+            }
+            stat.executeBatch();
+            if (stored != null) {
+              // the keys of each statement are returned in the order of its own entries
+              List<EventEntry> withIds = withIds(stat, batch.getValue());
+              if (withIds.isEmpty()) {
+                stored = null;
+              } else {
+                stored.addAll(withIds);
+              }
+            }
+          }
+        }
+        conn.commit();
+        if (stored == null) {
+          return Collections.emptyList();
+        }
+        stored.sort(Comparator.comparingInt(EventEntry::getId));
+        return stored;
+      } catch (SQLException e) {
+        rollback(conn, e);
+        throw e;
+      }
+    }
+  }
+
+  private String insertQuery(Connection conn, EventEntry entry) throws SQLException {
+    PartitionedTable table = partitions;
+    if (table == null) {
+      return INSERT_QUERY;
+    }
+    LocalDate day = entry.getTimestamp().toLocalDateTime().toLocalDate();
+    return format(INSERT_FORMAT, table.insertTable(conn, day));
+  }
+
+  /** @return true if expired events are removed by dropping the partitions of whole days */
+  boolean isPartitioned() {
+    return partitions != null;
+  }
+
+  /**
+   * Drops the partitions of the days before the given time, and creates the partitions of the
+   * coming days.
+   *
+   * @param cutoff the time of the oldest events to keep
+   * @throws SQLException If there was a problem with the database
+   */
+  void dropPartitionsBefore(Timestamp cutoff) throws SQLException {
+    PartitionedTable table = partitions;
+    if (table == null) {
+      return;
+    }
+    LocalDate today = LocalDate.now();
+    try (Connection conn = ds.getConnection()) {
+      table.addDays(conn, today, today.plusDays(PartitionedTable.DAYS_AHEAD));
+      List<LocalDate> dropped = table.dropBefore(conn, cutoff.toLocalDateTime());
+      log.info(
+          "Partitions of events of days {} were dropped from database {}",
+          dropped,
+          ds.getPoolName());
+    }
+  }
+
+  /**
+   * Returns the range of the ids of the events created before the given time, for them to be
+   * removed a batch at a time.
+   *
+   * @param cutoff the time of the oldest events to keep
+   * @return the range of the ids, or null if no event is that old
+   * @throws SQLException If there was a problem with the database
+   */
+  Range<Integer> getIdsBefore(Timestamp cutoff) throws SQLException {
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(SELECT_IDS_BEFORE_QUERY)) {
+      stat.setTimestamp(1, cutoff);
+      try (ResultSet rs = stat.executeQuery()) {
+        if (!rs.next() || rs.getObject(1) == null) {
+          return null;
+        }
+        return Range.closed(rs.getInt(1), rs.getInt(2));
+      }
+    }
+  }
+
+  /**
+   * Remove the events expired according to the retention policy whose ids are within the given
+   * range.
+   *
+   * @param policy the retention policy
+   * @param firstId the lowest id of the events to remove
+   * @param lastId the highest id of the events to remove
+   * @return the number of events removed
+   * @throws SQLException If there was a problem with the database
+   */
+  int removeExpiredEvents(RetentionPolicy policy, int firstId, int lastId) throws SQLException {
+    List<Object> values = new ArrayList<>();
+    values.add(firstId);
+    values.add(lastId);
+    values.addAll(policy.parameters());
+    int removed = 0;
+    for (String table : tables()) {
+      removed +=
+          executeUpdate(format(DELETE_EXPIRED_FORMAT, table, policy.condition()), values.toArray());
+    }
+    return removed;
+  }
+
+  /**
+   * Get the events created before the given time whose ids are within the given range, for them to
+   * be moved to the archive.
+   *
+   * @param cutoff the time of the oldest events to leave out
+   * @param firstId the lowest id of the events to get
+   * @param lastId the highest id of the events to get
+   * @return the events, in id order
+   * @throws SQLException If there was a problem with the database
+   */
+  List<EventEntry> getEventsBefore(Timestamp cutoff, int firstId, int lastId) throws SQLException {
+    List<EventEntry> entries = new ArrayList<>();
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(SELECT_RANGE_BEFORE_QUERY)) {
+      stat.setInt(1, firstId);
+      stat.setInt(2, lastId);
+      stat.setTimestamp(3, cutoff);
+      try (ResultSet rs = stat.executeQuery()) {
+        while (rs.next()) {
+          entries.add(toEntry(rs));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Remove the events created before the given time whose ids are within the given range.
+   *
+   * @param cutoff the time of the oldest events to keep
+   * @param firstId the lowest id of the events to remove
+   * @param lastId the highest id of the events to remove
+   * @return the number of events removed
+   * @throws SQLException If there was a problem with the database
+   */
+  int removeEventsBefore(Timestamp cutoff, int firstId, int lastId) throws SQLException {
+    int removed = 0;
+    for (String table : tables()) {
+      removed += executeUpdate(format(DELETE_RANGE_BEFORE_FORMAT, table), firstId, lastId, cutoff);
+    }
+    return removed;
+  }
+
+  /**
+   * Remove all events whose id is lower than or equal to the given id.
+   *
+   * @param id The id of the last event to remove
+   * @throws SQLException If there was a problem with the database
+   */
+  void removeEventsUpTo(int id) throws SQLException {
+    for (String table : tables()) {
+      executeUpdate(format(DELETE_UP_TO_FORMAT, table), id);
+    }
+  }
+
+  /**
+   * Returns the range of the ids of the events of the project, for them to be removed a batch at a
+   * time.
+   *
+   * @param project the name of the project
+   * @return the range of the ids, or null if the project has no event
+   * @throws SQLException If there was a problem with the database
+   */
+  Range<Integer> getProjectIds(String project) throws SQLException {
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(SELECT_PROJECT_IDS_QUERY)) {
+      stat.setString(1, project);
+      try (ResultSet rs = stat.executeQuery()) {
+        if (!rs.next() || rs.getObject(1) == null) {
+          return null;
+        }
+        return Range.closed(rs.getInt(1), rs.getInt(2));
+      }
+    }
+  }
+
+  /**
+   * Returns the id of the last event of a batch of events of the project, so that each batch
+   * removes at most the given number of events however sparse they are.
+   *
+   * @param project the name of the project
+   * @param firstId the lowest id of the events of the batch
+   * @param limit the maximum number of events of the batch, in each table
+   * @return the id of the last event of the batch, or null if the project has no event left
+   * @throws SQLException If there was a problem with the database
+   */
+  Integer getProjectBatchEnd(String project, int firstId, int limit) throws SQLException {
+    Integer end = null;
+    try (Connection conn = ds.getConnection()) {
+      for (String table : tables()) {
+        try (PreparedStatement stat =
+            conn.prepareStatement(format(SELECT_PROJECT_BATCH_END_FORMAT, table))) {
+          stat.setString(1, project);
+          stat.setInt(2, firstId);
+          stat.setInt(3, limit);
+          try (ResultSet rs = stat.executeQuery()) {
+            if (rs.next() && rs.getObject(1) != null) {
+              end = end != null ? Math.min(end, rs.getInt(1)) : rs.getInt(1);
+            }
+          }
+        }
+      }
     }
+    return end;
   }
 
   /**
-   * Remove all events corresponding to this project.
+   * Remove the events of the project whose ids are within the given range.
    *
    * @param project Events attributed to this project should be removed
+   * @param firstId the lowest id of the events to remove
+   * @param lastId the highest id of the events to remove
+   * @return the number of events removed
+   * @throws SQLException If there was a problem with the database
    */
-  void removeProjectEvents(String project) {
-    try {
-      execute(format("DELETE FROM %s WHERE project = '%s'", TABLE_NAME, project));
-    } catch (SQLException e) {
-      log.warn("Cannot remove project {} events from database", project, e);
+  int removeProjectEvents(String project, int firstId, int lastId) throws SQLException {
+    int removed = 0;
+    for (String table : tables()) {
+      removed += executeUpdate(format(DELETE_PROJECT_FORMAT, table), firstId, lastId, project);
+    }
+    return removed;
+  }
+
+  /**
+   * Records that the project was deleted and its events are to be purged.
+   *
+   * @param project the name of the project
+   * @throws SQLException If there was a problem with the database
+   */
+  void addTombstone(String project) throws SQLException {
+    // a project of the same name may have been deleted before, and its events not purged yet
+    executeUpdate(DELETE_TOMBSTONE_QUERY, project);
+    executeUpdate(INSERT_TOMBSTONE_QUERY, project);
+  }
+
+  /**
+   * Forgets the deleted project, once its events are purged.
+   *
+   * @param project the name of the project
+   * @throws SQLException If there was a problem with the database
+   */
+  void removeTombstone(String project) throws SQLException {
+    executeUpdate(DELETE_TOMBSTONE_QUERY, project);
+  }
+
+  /**
+   * @return the names of the deleted projects whose events are not purged yet
+   * @throws SQLException If there was a problem with the database
+   */
+  List<String> getTombstones() throws SQLException {
+    List<String> projects = new ArrayList<>();
+    try (Connection conn = ds.getConnection();
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery(SELECT_TOMBSTONES_QUERY)) {
+      while (rs.next()) {
+        projects.add(rs.getString(1));
+      }
     }
+    return projects;
   }
 
   /**
@@ -173,44 +558,206 @@ class SQLClient {
   }
 
   /**
-   * Get all events from the database as a list of database entries.
+   * Get a chunk of events from the database, in id order, starting after the given id.
    *
-   * @return List of all events retrieved from the database
+   * @param afterId The id of the last event already read, or 0 to start from the first event
+   * @param limit The maximum number of events to return
+   * @return List of the events retrieved from the database
    * @throws SQLException If there was a problem with the database
    */
-  List<SQLEntry> getAll() throws SQLException {
-    List<SQLEntry> entries = new ArrayList<>();
+  List<EventEntry> getEventsAfter(int afterId, int limit) throws SQLException {
+    List<EventEntry> entries = new ArrayList<>(limit);
     try (Connection conn = ds.getConnection();
-        Statement stat = conn.createStatement();
-        ResultSet rs = stat.executeQuery("SELECT * FROM " + TABLE_NAME)) {
-      while (rs.next()) {
-        entries.add(
-            new SQLEntry(
-                rs.getString(PROJECT_ENTRY),
-                rs.getTimestamp(DATE_ENTRY),
-                rs.getString(EVENT_ENTRY),
-                rs.getInt(PRIMARY_ENTRY)));
+        PreparedStatement stat = conn.prepareStatement(SELECT_AFTER_QUERY)) {
+      stat.setInt(1, afterId);
+      stat.setInt(2, limit);
+      try (ResultSet rs = stat.executeQuery()) {
+        while (rs.next()) {
+          entries.add(toEntry(rs));
+        }
       }
       return entries;
     }
   }
 
-  private ListMultimap<String, SQLEntry> listEvents(Statement stat, String query)
-      throws MalformedQueryException {
-    try (ResultSet rs = stat.executeQuery(query)) {
-      ListMultimap<String, SQLEntry> result = ArrayListMultimap.create();
-      while (rs.next()) {
-        SQLEntry entry =
-            new SQLEntry(
-                rs.getString(PROJECT_ENTRY),
-                rs.getTimestamp(DATE_ENTRY),
-                rs.getString(EVENT_ENTRY),
-                rs.getInt(PRIMARY_ENTRY));
-        result.put(rs.getString(PROJECT_ENTRY), entry);
-      }
-      return result;
+  /**
+   * Get the id of the last event stored.
+   *
+   * @return the highest id of the stored events, or 0 if there are none
+   * @throws SQLException If there was a problem with the database
+   */
+  int getLastId() throws SQLException {
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(SELECT_MAX_ID_QUERY);
+        ResultSet rs = stat.executeQuery()) {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  /**
+   * Get a chunk of the events stored without type, by an earlier version of the plugin, in id
+   * order, starting after the given id.
+   *
+   * @param afterId The id of the last event already read, or 0 to start from the first event
+   * @param limit The maximum number of events to return
+   * @return List of the events without type, empty if the table was created with the type column
+   * @throws SQLException If there was a problem with the database
+   */
+  List<EventEntry> getEventsWithoutType(int afterId, int limit) throws SQLException {
+    if (partitions != null) {
+      // partitioned tables are always created with the type column
+      return Collections.emptyList();
+    }
+    List<EventEntry> entries = new ArrayList<>(limit);
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(SELECT_WITHOUT_TYPE_QUERY)) {
+      stat.setInt(1, afterId);
+      stat.setInt(2, limit);
+      try (ResultSet rs = stat.executeQuery()) {
+        while (rs.next()) {
+          entries.add(toEntry(rs));
+        }
+      }
+      return entries;
+    }
+  }
+
+  /**
+   * Set the type and change of stored events, in a single batch.
+   *
+   * @param entries The stored events, with their id, type and change
+   * @throws SQLException If there was a problem with the database
+   */
+  void updateFilterFields(List<EventEntry> entries) throws SQLException {
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(UPDATE_FILTER_FIELDS_QUERY)) {
+      for (EventEntry entry : entries) {
+        stat.setString(1, entry.getType());
+        if (entry.getChangeNumber() != null) {
+          stat.setInt(2, entry.getChangeNumber());
+        } else {
+          stat.setNull(2, Types.INTEGER);
+        }
+        stat.setInt(3, entry.getId());
+        stat.addBatch();
+      }
+      stat.executeBatch();
+    }
+  }
+
+  private static void bind(PreparedStatement stat, EventEntry entry) throws SQLException {
+    stat.setString(1, entry.getName());
+    stat.setTimestamp(2, entry.getTimestamp());
+    stat.setString(3, entry.getType());
+    if (entry.getChangeNumber() != null) {
+      stat.setInt(4, entry.getChangeNumber());
+    } else {
+      stat.setNull(4, Types.INTEGER);
+    }
+    stat.setString(5, entry.getEvent());
+  }
+
+  private static List<EventEntry> withIds(PreparedStatement stat, List<EventEntry> entries) {
+    List<EventEntry> stored = new ArrayList<>(entries.size());
+    try (ResultSet keys = stat.getGeneratedKeys()) {
+      while (stored.size() < entries.size() && keys.next()) {
+        EventEntry entry = entries.get(stored.size());
+        stored.add(entry.withId(keys.getInt(1)));
+      }
+    } catch (SQLException e) {
+      log.debug("Cannot get the ids of the stored events", e);
+      return Collections.emptyList();
+    }
+    return stored.size() == entries.size() ? stored : Collections.emptyList();
+  }
+
+  private static EventEntry toEntry(ResultSet rs) throws SQLException {
+    int changeNumber = rs.getInt(CHANGE_ENTRY);
+    boolean noChange = rs.wasNull();
+    return new EventEntry(
+        rs.getString(PROJECT_ENTRY),
+        rs.getTimestamp(DATE_ENTRY),
+        rs.getString(EVENT_ENTRY),
+        rs.getInt(PRIMARY_ENTRY),
+        rs.getString(TYPE_ENTRY),
+        noChange ? null : changeNumber);
+  }
+
+  private List<String> tables() {
+    PartitionedTable table = partitions;
+    return table != null ? table.tables() : Collections.singletonList(TABLE_NAME);
+  }
+
+  private String sql(SQLQuery query, ProjectFilter filter) {
+    PartitionedTable table = partitions;
+    return query.getSql(
+        table != null ? table.source(query) : TABLE_NAME, filter.condition(isPostgresql));
+  }
+
+  private static List<Object> values(SQLQuery query, ProjectFilter filter) {
+    List<Object> values = new ArrayList<>(query.getValues());
+    if (!filter.isAll()) {
+      values.add(filter.parameter());
+    }
+    return values;
+  }
+
+  private PreparedStatement prepare(Connection conn, String sql, List<Object> values)
+      throws SQLException {
+    PreparedStatement stat = conn.prepareStatement(sql);
+    try {
+      for (int i = 0; i < values.size(); i++) {
+        Object value = values.get(i);
+        if (value instanceof String[] && isPostgresql) {
+          stat.setArray(i + 1, conn.createArrayOf("varchar", (String[]) value));
+        } else {
+          stat.setObject(i + 1, value);
+        }
+      }
+      return stat;
+    } catch (SQLException e) {
+      close(stat, e);
+      throw e;
+    }
+  }
+
+  private static void close(PreparedStatement stat, SQLException cause) {
+    if (stat != null) {
+      try {
+        stat.close();
+      } catch (SQLException e) {
+        cause.addSuppressed(e);
+      }
+    }
+  }
+
+  private static EventsLogException queryFailed(SQLException e) {
+    if (isTimeout(e)) {
+      return new ServiceUnavailableException("Query of events timed out", e);
+    }
+    return new EventsLogException("Cannot query database", e);
+  }
+
+  private static boolean isTimeout(SQLException e) {
+    // not all drivers throw SQLTimeoutException for a cancelled statement
+    return e instanceof SQLTimeoutException || QUERY_CANCELED_STATE.equals(e.getSQLState());
+  }
+
+  private static void rollback(Connection conn, SQLException cause) {
+    try {
+      conn.rollback();
     } catch (SQLException e) {
-      throw new MalformedQueryException(e);
+      cause.addSuppressed(e);
+    }
+  }
+
+  private int executeUpdate(String query, Object... values) throws SQLException {
+    try (Connection conn = ds.getConnection();
+        PreparedStatement stat = conn.prepareStatement(query)) {
+      for (int i = 0; i < values.length; i++) {
+        stat.setObject(i + 1, values[i]);
+      }
+      return stat.executeUpdate();
     }
   }
 
@@ -22,13 +22,15 @@ import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
 import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.events.ProjectDeletedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.internal.UniqueAnnotations;
 import com.zaxxer.hikari.HikariConfig;
 
-class SQLModule extends AbstractModule {
+public class SQLModule extends AbstractModule {
 
   @Override
   protected void configure() {
@@ -36,6 +38,7 @@ class SQLModule extends AbstractModule {
     bind(EventStore.class).to(SQLStore.class);
     bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(SQLStore.class);
     bind(QueryMaker.class).to(SQLQueryMaker.class);
+    DynamicSet.bind(binder(), ProjectDeletedListener.class).to(EventsLogCleaner.class);
   }
 
   @Provides
@@ -49,7 +52,7 @@ class SQLModule extends AbstractModule {
     dsConfig.setPoolName("[" + pluginName + "] EventsDb");
     dsConfig.setMaximumPoolSize(cfg.getMaxConnections());
     setDataSourceOptions(cfg, dsConfig);
-    return new SQLClient(dsConfig);
+    return new SQLClient(dsConfig, cfg.getQueryTimeout(), cfg.isPartitioned());
   }
 
   @Provides
@@ -64,6 +67,7 @@ class SQLModule extends AbstractModule {
   }
 
   private void setDataSourceOptions(EventsLogConfig cfg, HikariConfig dsConfig) {
+    setStatementCache(cfg.getStatementCacheSize(), dsConfig);
     for (String option : cfg.getUrlOptions()) {
       int equalsPos = option.indexOf('=');
       String key = option.substring(0, equalsPos);
@@ -71,4 +75,14 @@ class SQLModule extends AbstractModule {
       dsConfig.addDataSourceProperty(key, value);
     }
   }
+
+  /**
+   * Sizes the cache of prepared statements of the PostgreSQL driver, for the plans of the queries
+   * to be reused. The options given in urlOptions take precedence.
+   */
+  private static void setStatementCache(int size, HikariConfig dsConfig) {
+    if (dsConfig.getJdbcUrl().startsWith("jdbc:postgresql:")) {
+      dsConfig.addDataSourceProperty("preparedStatementCacheQueries", Integer.toString(size));
+    }
+  }
 }
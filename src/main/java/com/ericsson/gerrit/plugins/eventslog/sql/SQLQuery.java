@@ -0,0 +1,115 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.CHANGE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PRIMARY_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TYPE_ENTRY;
+import static java.lang.String.format;
+
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query on the events table: the conditions it translates to, with the values bound to their
+ * parameters, so that queries only differing by their values share the same statement.
+ */
+final class SQLQuery extends EventQuery {
+  private final List<String> conditions;
+  private final List<Object> values;
+
+  /**
+   * @param query a query on the stored events
+   * @return the query on the events table
+   */
+  static SQLQuery of(EventQuery query) {
+    return query instanceof SQLQuery ? (SQLQuery) query : new SQLQuery(query);
+  }
+
+  SQLQuery(EventQuery query) {
+    super(query);
+    List<String> conditions = new ArrayList<>();
+    List<Object> values = new ArrayList<>();
+    if (hasCursor()) {
+      conditions.add(PRIMARY_ENTRY + " > ?");
+      values.add(getAfterId());
+    }
+    if (hasUpperBound()) {
+      conditions.add(PRIMARY_ENTRY + " < ?");
+      values.add(getBeforeId());
+    }
+    if (hasWindow()) {
+      conditions.add(DATE_ENTRY + " BETWEEN ? AND ?");
+      values.add(getFrom());
+      values.add(getTo());
+    }
+    addFilter(conditions, values, PROJECT_ENTRY, getProjects());
+    addFilter(conditions, values, TYPE_ENTRY, getTypes());
+    addFilter(conditions, values, CHANGE_ENTRY, getChanges());
+    this.conditions = ImmutableList.copyOf(conditions);
+    this.values = Collections.unmodifiableList(values);
+  }
+
+  private static void addFilter(
+      List<String> conditions, List<Object> values, String column, Collection<?> filter) {
+    if (filter == null) {
+      return;
+    }
+    conditions.add(
+        filter.size() == 1
+            ? column + " = ?"
+            : format(
+                "%s IN (%s)", column, String.join(", ", Collections.nCopies(filter.size(), "?"))));
+    values.addAll(filter);
+  }
+
+  /** @return the SQL text of the query, reading from the events table */
+  String getSql() {
+    return getSql(TABLE_NAME, null);
+  }
+
+  /**
+   * @param table the table, or derived table, the events are read from
+   * @param condition a condition further restricting the events, whose parameters are bound after
+   *     the values of the query, or null
+   * @return the SQL text of the query
+   */
+  String getSql(String table, String condition) {
+    List<String> all = new ArrayList<>(conditions);
+    if (condition != null) {
+      all.add(condition);
+    }
+    String where = all.isEmpty() ? "" : " WHERE " + String.join(" AND ", all);
+    if (isLatest()) {
+      return format(
+          "SELECT * FROM (SELECT * FROM %s%s ORDER BY %s DESC LIMIT %d) a ORDER BY %s ASC",
+          table, where, PRIMARY_ENTRY, getLimit(), PRIMARY_ENTRY);
+    }
+    return format(
+        "SELECT * FROM %s%s ORDER BY %s LIMIT %d", table, where, PRIMARY_ENTRY, getLimit());
+  }
+
+  /** @return the values of the parameters of the query, in order */
+  List<Object> getValues() {
+    return values;
+  }
+}
@@ -14,84 +14,23 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
-import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
-import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PRIMARY_ENTRY;
-import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
-
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventQueryMaker;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
-import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
-import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.Map;
 
+/** Forms the queries on the events table, translated to SQL once when they are formed. */
 @Singleton
-class SQLQueryMaker implements QueryMaker {
-  private static final int TWO = 2;
-  private static final String TIME_ONE = "t1";
-  private static final String TIME_TWO = "t2";
-  private static final DateTimeFormatter DATE_TIME_FORMAT =
-      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-  private static final DateTimeFormatter DATE_ONLY_FORMAT =
-      DateTimeFormatter.ofPattern("yyyy-MM-dd");
-
-  private final int returnLimit;
+class SQLQueryMaker extends EventQueryMaker {
 
   @Inject
   SQLQueryMaker(EventsLogConfig config) {
-    this.returnLimit = config.getReturnLimit();
-  }
-
-  @Override
-  public String formQueryFromRequestParameters(Map<String, String> params)
-      throws MalformedQueryException {
-    if (params == null) {
-      return getDefaultQuery();
-    }
-    String[] dates;
-    try {
-      dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
-    } catch (DateTimeParseException e) {
-      throw new MalformedQueryException(e);
-    }
-    return String.format(
-        "SELECT * FROM %s WHERE %s BETWEEN '%s' and '%s' ORDER BY date_created LIMIT %d",
-        TABLE_NAME, DATE_ENTRY, dates[0], dates[1], returnLimit);
+    super(config);
   }
 
   @Override
-  public String getDefaultQuery() {
-    return String.format(
-        "SELECT * FROM (SELECT * FROM %s ORDER BY %s DESC LIMIT %s) a ORDER BY %s ASC",
-        TABLE_NAME, PRIMARY_ENTRY, returnLimit, PRIMARY_ENTRY);
-  }
-
-  private String[] parseDates(String dateOne, String dateTwo)
-      throws MalformedQueryException, DateTimeParseException {
-    if (dateOne == null && dateTwo == null) {
-      throw new MalformedQueryException();
-    }
-    LocalDateTime dOne = dateOne == null ? LocalDateTime.now() : parseDate(dateOne);
-    LocalDateTime dTwo = dateTwo == null ? LocalDateTime.now() : parseDate(dateTwo);
-    LocalDateTime[] dates = new LocalDateTime[TWO];
-
-    dates[0] = dOne.isBefore(dTwo) ? dOne : dTwo;
-    dates[1] = dOne.isBefore(dTwo) ? dTwo : dOne;
-    return new String[] {DATE_TIME_FORMAT.format(dates[0]), DATE_TIME_FORMAT.format(dates[1])};
-  }
-
-  private LocalDateTime parseDate(String date) throws DateTimeParseException {
-    LocalDateTime parsedDate;
-    try {
-      parsedDate = LocalDateTime.parse(date, DATE_TIME_FORMAT);
-    } catch (DateTimeParseException e) {
-      LocalDate localDate = LocalDate.parse(date, DATE_ONLY_FORMAT);
-      parsedDate = localDate.atStartOfDay();
-    }
-    return parsedDate;
+  protected SQLQuery make(EventQuery query) {
+    return new SQLQuery(query);
   }
 }
@@ -17,19 +17,24 @@ package com.ericsson.gerrit.plugins.eventslog.sql;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
 import static java.util.stream.Collectors.toList;
 
+import com.ericsson.gerrit.plugins.eventslog.EventCursor;
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
 import com.ericsson.gerrit.plugins.eventslog.EventPool;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
 import com.ericsson.gerrit.plugins.eventslog.EventStore;
+import com.ericsson.gerrit.plugins.eventslog.EventSubscription;
+import com.ericsson.gerrit.plugins.eventslog.EventVisitor;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
+import com.ericsson.gerrit.plugins.eventslog.LiveFeed;
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.ProjectVisibilityCache;
 import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.ericsson.gerrit.plugins.eventslog.TooManyQueriesException;
+import com.ericsson.gerrit.plugins.eventslog.VisibleProjects;
 import com.google.gerrit.common.TimeUtil;
 import com.google.gerrit.extensions.events.LifecycleListener;
-import com.google.gerrit.extensions.restapi.AuthException;
-import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.events.ProjectEvent;
-import com.google.gerrit.server.permissions.PermissionBackend;
-import com.google.gerrit.server.permissions.PermissionBackendException;
-import com.google.gerrit.server.permissions.ProjectPermission;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
@@ -38,12 +43,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,18 +61,37 @@ import org.slf4j.LoggerFactory;
 class SQLStore implements EventStore, LifecycleListener {
   private static final Logger log = LoggerFactory.getLogger(SQLStore.class);
   private static final String H2_DB_SUFFIX = ".h2.db";
+  private static final int RESTORE_CHUNK_SIZE = 1000;
+  private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+  private static final long ADMISSION_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+  private static final String CONNECTION_EXCEPTION_CLASS = "08";
+  private static final String ADMIN_SHUTDOWN_STATE = "57P01";
 
   private final EventsLogCleaner eventsLogCleaner;
   private SQLClient eventsDb;
   private SQLClient localEventsDb;
   private final int maxAge;
   private final int maxTries;
+  private final CircuitBreaker breaker;
   private final int waitTime;
   private final int connectTime;
-  private boolean online = true;
+  private final StoreMetrics metrics;
+  private final AtomicBoolean restoring = new AtomicBoolean();
+  private final AtomicBoolean restoreRequested = new AtomicBoolean();
+  private final AtomicBoolean backfilling = new AtomicBoolean();
+  private final int restoreRate;
+  private volatile boolean localDbCreated;
   private boolean copyLocal;
   private final ScheduledExecutorService pool;
-  private final PermissionBackend permissionBackend;
+  private final ProjectVisibilityCache visibility;
+  private final QueryResultCache resultCache;
+  private final TailBuffer tail;
+  private final LiveFeed feed;
+  private final ProjectTombstones tombstones;
+  private final EventArchive archive;
+  private final int queryConcurrency;
+  private final Semaphore queryPermits;
+  private final PendingWrites pendingWrites = new PendingWrites();
   private ScheduledFuture<?> checkConnTask;
   private Path localPath;
 
@@ -72,24 +101,48 @@ class SQLStore implements EventStore, LifecycleListener {
       @EventsDb SQLClient eventsDb,
       @LocalEventsDb SQLClient localEventsDb,
       @EventPool ScheduledExecutorService pool,
-      PermissionBackend permissionBackend,
-      EventsLogCleaner eventsLogCleaner) {
+      ProjectVisibilityCache visibility,
+      QueryResultCache resultCache,
+      TailBuffer tail,
+      LiveFeed feed,
+      ProjectTombstones tombstones,
+      EventArchive archive,
+      EventsLogCleaner eventsLogCleaner,
+      StoreMetrics metrics) {
     this.maxAge = cfg.getMaxAge();
     this.maxTries = cfg.getMaxTries();
+    this.breaker = new CircuitBreaker(maxTries);
     this.waitTime = cfg.getWaitTime();
     this.connectTime = cfg.getConnectTime();
+    this.restoreRate = cfg.getRestoreRate();
+    this.metrics = metrics;
     this.copyLocal = cfg.getCopyLocal();
     this.eventsDb = eventsDb;
     this.localEventsDb = localEventsDb;
     this.eventsLogCleaner = eventsLogCleaner;
     this.pool = pool;
-    this.permissionBackend = permissionBackend;
+    this.visibility = visibility;
+    this.resultCache = resultCache;
+    this.tail = tail;
+    this.feed = feed;
+    this.tombstones = tombstones;
+    this.archive = archive;
     this.localPath = cfg.getLocalStorePath();
+    this.queryConcurrency = cfg.getQueryConcurrency();
+    this.queryPermits = new Semaphore(queryConcurrency, true);
+    metrics.registerReady(this::isReady);
+    metrics.registerRunningQueries(() -> queryConcurrency - queryPermits.availablePermits());
   }
 
   @Override
   public void start() {
+    try {
+      archive.open();
+    } catch (IOException e) {
+      log.warn("Cannot open the archive, archived events will not be returned", e);
+    }
     setUp();
+    eventsLogCleaner.resumeProjectPurges();
     eventsLogCleaner.scheduleCleaningWith(maxAge);
   }
 
@@ -101,82 +154,335 @@ class SQLStore implements EventStore, LifecycleListener {
   }
 
   /**
-   * {@inheritDoc} The events returned are restricted to the projects which are visible to the user.
+   * {@inheritDoc} The events returned are restricted to the projects which are visible to the user,
+   * leaving out deleted projects whose events are being purged. The visible projects are resolved
+   * first and the query is restricted to them, so that its limit only counts events the user can
+   * see. Queries on the most recent events are answered from memory when possible, only reading the
+   * older events from the database when too few are visible in memory, and results of queries over
+   * time windows which ended long ago are cached for all users and filtered by visibility
+   * afterwards; results cut short by the limit are completed with the events following them for
+   * users who cannot see all their events. Queries over time windows reaching the archive also read
+   * the archived events, merged with those of the database in id order. The cursor passed to the
+   * visitor points after the last event returned, which may be followed by events the user cannot
+   * see. While events are being written, only the events up to the highest id below which none is
+   * still being committed are returned, so that the cursor does not move over them. Only a limited
+   * number of queries can read from the database at the same time, leaving the remaining
+   * connections to the writers.
    *
    * @throws ServiceUnavailableException if working in offline mode
+   * @throws TooManyQueriesException if too many queries are reading from the database
    */
   @Override
-  public List<String> queryChangeEvents(String query) throws EventsLogException {
-    if (!online) {
+  public void queryChangeEvents(EventQuery eventQuery, EventVisitor visitor)
+      throws EventsLogException, IOException {
+    SQLQuery query = committed(SQLQuery.of(eventQuery));
+    if (!isOnline()) {
       throw new ServiceUnavailableException();
     }
-    List<SQLEntry> entries = new ArrayList<>();
+    Predicate<String> isVisible = tombstones.hiding(visibility.forCurrentUser());
+    Map<String, Boolean> visibleProjects = new HashMap<>();
+    Predicate<String> isVisibleOnce = p -> visibleProjects.computeIfAbsent(p, isVisible::test);
+    TailBuffer.Answer tailAnswer = tail.answer(query, isVisibleOnce);
+    if (tailAnswer != null && tailAnswer.isComplete()) {
+      visitEntries(tailAnswer.getEntries(), isVisibleOnce, visitor);
+      return;
+    }
+    QueryResultCache.Page page = resultCache.isCacheable(query) ? getPage(query) : null;
+    if (page != null && page.isComplete()) {
+      visitEntries(page.getEntries(), isVisibleOnce, visitor);
+      return;
+    }
+    VisibleProjects projects = visibility.visibleProjects();
+    ProjectFilter filter = projectFilter(projects);
+    if (filter.isEmpty()) {
+      return;
+    }
+    // projects created since they were resolved are checked on their own
+    Predicate<String> isListedVisible =
+        tombstones.hiding(p -> projects.isKnown(p) ? projects.isVisible(p) : isVisibleOnce.test(p));
+    if (tailAnswer != null) {
+      List<EventEntry> entries =
+          readEvents(SQLQuery.of(tailAnswer.getOlder()), filter, isListedVisible);
+      entries.addAll(tailAnswer.getEntries());
+      visitEntries(entries, isListedVisible, visitor);
+      return;
+    }
+    if (page != null) {
+      visitEntries(continuePage(query, page, filter, isListedVisible), isListedVisible, visitor);
+      return;
+    }
+    visitEntries(readEvents(query, filter, isListedVisible), isListedVisible, visitor);
+  }
 
-    for (Entry<String, Collection<SQLEntry>> entry : eventsDb.getEvents(query).asMap().entrySet()) {
-      String projectName = entry.getKey();
-      try {
-        permissionBackend
-            .currentUser()
-            .project(new Project.NameKey(projectName))
-            .check(ProjectPermission.ACCESS);
-        entries.addAll(entry.getValue());
-      } catch (AuthException e) {
-        // Ignore
-      } catch (PermissionBackendException e) {
-        log.warn("Cannot check project access permission", e);
+  /**
+   * Restricts the query to the events up to the highest id below which no event is still being
+   * committed, so that the cursor it returns does not move over events committed later with lower
+   * ids. Cached windows which ended long ago are left as they are.
+   */
+  private SQLQuery committed(SQLQuery query) {
+    int safeId = pendingWrites.getSafeId();
+    if (safeId == PendingWrites.NONE || resultCache.isCacheable(query)) {
+      return query;
+    }
+    return SQLQuery.of(query.preceding(safeId + 1, query.getLimit()));
+  }
+
+  private QueryResultCache.Page getPage(SQLQuery query) throws EventsLogException, IOException {
+    QueryResultCache.Page page = resultCache.getIfPresent(query);
+    if (page == null) {
+      long generation = resultCache.generation();
+      List<EventEntry> entries = readEvents(query, ProjectFilter.none(), p -> true);
+      page = resultCache.put(query, entries, generation);
+    }
+    return page;
+  }
+
+  /**
+   * Completes a page cut short by the limit of the query with the events following it, so that the
+   * events already read are not read again. Only the events still missing for the limit to be
+   * reached with visible events are read.
+   *
+   * @return the events of the page followed by those read, in id order
+   */
+  private List<EventEntry> continuePage(
+      SQLQuery query, QueryResultCache.Page page, ProjectFilter filter, Predicate<String> isVisible)
+      throws EventsLogException, IOException {
+    List<EventEntry> entries = new ArrayList<>(page.getEntries());
+    int visible = (int) entries.stream().filter(e -> isVisible.test(e.getName())).count();
+    if (visible < query.getLimit() && !entries.isEmpty()) {
+      int lastId = entries.get(entries.size() - 1).getId();
+      SQLQuery next = SQLQuery.of(query.continuing(lastId, query.getLimit() - visible));
+      entries.addAll(readEvents(next, filter, isVisible));
+    }
+    return entries;
+  }
+
+  /**
+   * Reads the events matching the query from the database, merged with the archived events matching
+   * it if the query reaches the archive.
+   *
+   * @param isVisible whether the events of a project are visible
+   * @return the events, in id order
+   */
+  private List<EventEntry> readEvents(
+      SQLQuery query, ProjectFilter filter, Predicate<String> isVisible)
+      throws EventsLogException, IOException {
+    List<EventEntry> entries = new ArrayList<>();
+    acquireQueryPermit();
+    try {
+      long start = System.nanoTime();
+      eventsDb.getEvents(query, filter, entries::add);
+      metrics.recordQuery(System.nanoTime() - start);
+    } finally {
+      queryPermits.release();
+    }
+    return archive.reachedBy(query) ? archive.merge(query, entries, isVisible) : entries;
+  }
+
+  private void acquireQueryPermit() throws TooManyQueriesException {
+    try {
+      if (queryPermits.tryAcquire(ADMISSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    metrics.queryRejected();
+    throw new TooManyQueriesException();
+  }
+
+  private static void visitEntries(
+      List<EventEntry> entries, Predicate<String> isVisible, EventVisitor visitor)
+      throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    visitor.nextCursor(EventCursor.encode(entries.get(entries.size() - 1).getId()));
+    for (EventEntry entry : entries) {
+      if (isVisible.test(entry.getName())) {
+        visitor.visit(entry.getEvent());
       }
     }
-    return entries.stream().sorted().map(SQLEntry::getEvent).collect(toList());
   }
 
   /**
-   * {@inheritDoc} If storing the event fails due to a connection problem, storage will be
-   * re-attempted as specified in gerrit.config. After failing the maximum amount of times, the
-   * event will be stored in a local h2 database.
+   * Builds the filter restricting queries to the visible projects. It lists whichever of the
+   * visible or hidden projects are fewer.
    */
+  private static ProjectFilter projectFilter(VisibleProjects projects) {
+    return projects.getHidden().size() < projects.getVisible().size()
+        ? ProjectFilter.excluding(projects.getHidden())
+        : ProjectFilter.including(projects.getVisible());
+  }
+
+  @Override
+  public EventSubscription subscribe(String cursor, Runnable onReady)
+      throws MalformedQueryException {
+    int afterId = cursor != null ? EventCursor.decode(cursor) : -1;
+    return feed.subscribe(
+        afterId, tombstones.hiding(visibility.forCurrentUser()), onReady, pendingWrites::getSafeId);
+  }
+
   @Override
   public void storeEvent(ProjectEvent event) {
-    Project.NameKey projectName = event.getProjectNameKey();
-    if (projectName == null) {
-      return;
+    storeEvents(Collections.singletonList(event));
+  }
+
+  /**
+   * {@inheritDoc} The events are written as a single batch, committed in one transaction. As the
+   * calling thread does not wait to try again, events failing to be stored due to a connection
+   * problem are stored in the local h2 database, to be restored to the main database later on.
+   */
+  @Override
+  public void storeEvents(List<ProjectEvent> events) {
+    if (tryStoreEvents(events, 0) > 0) {
+      spill(projectEvents(events));
     }
-    int failedConnections = 0;
-    boolean done = false;
-    while (!done) {
-      done = true;
-      try {
-        getEventsDb().storeEvent(event);
-      } catch (SQLException e) {
-        log.warn("Cannot store ChangeEvent for: {}", projectName.get(), e);
-        if (e.getCause() instanceof ConnectException
-            || e.getMessage().contains("terminating connection")) {
-          done = false;
-          try {
-            retryIfAllowed(failedConnections);
-          } catch (InterruptedException e1) {
-            log.warn("Cannot store ChangeEvent for {}: Interrupted", projectName.get());
-            Thread.currentThread().interrupt();
-            return;
-          }
-          failedConnections++;
-        }
+  }
+
+  /**
+   * {@inheritDoc} The events are written as a single batch, committed in one transaction. If
+   * storing the events fails due to a connection problem, storing them is to be tried again after
+   * an exponential back-off with jitter, as specified in gerrit.config. Once a batch failed the
+   * maximum amount of times, or while the connection to the database is known to be down, the
+   * events are stored in a local h2 database.
+   */
+  @Override
+  public long tryStoreEvents(List<ProjectEvent> events, int failedAttempts) {
+    List<ProjectEvent> toStore = projectEvents(events);
+    if (toStore.isEmpty()) {
+      return 0;
+    }
+    long start = System.nanoTime();
+    long retryDelay = store(toStore, failedAttempts);
+    metrics.recordFlush(toStore.size(), System.nanoTime() - start);
+    return retryDelay;
+  }
+
+  private static List<ProjectEvent> projectEvents(List<ProjectEvent> events) {
+    return events.stream().filter(e -> e.getProjectNameKey() != null).collect(toList());
+  }
+
+  /**
+   * {@inheritDoc} The event is stored in the local h2 database and restored to the main database in
+   * the background, unless the main database is offline, in which case it will be restored once the
+   * connection is re-established.
+   */
+  @Override
+  public void spillEvent(ProjectEvent event) {
+    if (event.getProjectNameKey() != null) {
+      spill(Collections.singletonList(event));
+    }
+  }
+
+  private void spill(List<ProjectEvent> events) {
+    try {
+      if (!localDbCreated) {
+        localEventsDb.createDBIfNotCreated();
+        localDbCreated = true;
       }
+      write(localEventsDb, events);
+    } catch (SQLException e) {
+      log.warn("Cannot spill {} ChangeEvent(s) to local database", events.size(), e);
+      return;
+    }
+    if (isOnline()) {
+      scheduleRestore();
+      scheduleBackfill();
     }
   }
 
-  private void retryIfAllowed(int failedConnections) throws InterruptedException {
-    if (failedConnections < maxTries - 1) {
-      log.info("Retrying store event");
-      Thread.sleep(waitTime);
-    } else {
-      log.error("Failed to store event {} times", maxTries);
+  /**
+   * Returns whether the store is ready, i.e. it is connected to the main database and has no events
+   * left to restore from the local database. Events returned by queries may be incomplete until it
+   * is.
+   *
+   * @return true if the store is ready, otherwise false
+   */
+  boolean isReady() {
+    return isOnline() && !restoring.get();
+  }
+
+  /**
+   * Writes the events to the main database, once. The events are stored locally once the batch
+   * failed to connect as many times in a row as allowed.
+   *
+   * @return the delay after which writing the events should be tried again, or 0 if done
+   */
+  private long store(List<ProjectEvent> events, int failedAttempts) {
+    if (!breaker.isClosed()) {
+      storeLocal(events);
+      return 0;
+    }
+    long write = pendingWrites.begin();
+    try {
+      List<EventEntry> stored = write(eventsDb, events);
+      pendingWrites.end(write, stored);
+      if (stored.size() == events.size()) {
+        tail.append(stored);
+        feed.publish(stored);
+      } else {
+        // the ids are unknown, so the events cannot be served from memory
+        tail.reset();
+        feed.missed();
+      }
+      return 0;
+    } catch (SQLException e) {
+      pendingWrites.abort(write);
+      feed.release();
+      log.warn("Cannot store {} ChangeEvent(s)", events.size(), e);
+      if (!isConnectionFailure(e)) {
+        return 0;
+      }
+    }
+    if (breaker.isTripping(failedAttempts + 1)) {
+      log.error("Failed to store event {} times", failedAttempts + 1);
       setOnline(false);
+      storeLocal(events);
+      return 0;
     }
+    long delay = Math.max(retryDelay(failedAttempts), 1);
+    log.info("Retrying store event in {} ms", delay);
+    return delay;
+  }
+
+  private static boolean isConnectionFailure(SQLException e) {
+    String state = e.getSQLState();
+    String message = e.getMessage();
+    return e.getCause() instanceof ConnectException
+        || (state != null
+            && (state.startsWith(CONNECTION_EXCEPTION_CLASS) || ADMIN_SHUTDOWN_STATE.equals(state)))
+        || (message != null && message.contains("terminating connection"));
+  }
+
+  private void storeLocal(List<ProjectEvent> events) {
+    try {
+      write(localEventsDb, events);
+    } catch (SQLException e) {
+      log.warn("Cannot store {} ChangeEvent(s) in local database", events.size(), e);
+    }
+  }
+
+  private static List<EventEntry> write(SQLClient db, List<ProjectEvent> events)
+      throws SQLException {
+    if (events.size() == 1) {
+      return db.storeEvent(events.get(0));
+    }
+    return db.storeEvents(events);
+  }
+
+  private long retryDelay(int failedConnections) {
+    long delay = Math.min((long) waitTime << Math.min(failedConnections, 20), MAX_RETRY_DELAY);
+    long half = delay / 2;
+    return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
   }
 
   private void setUp() {
     try {
       getEventsDb().createDBIfNotCreated();
+      if (isOnline()) {
+        pendingWrites.seed(eventsDb.getLastId());
+      }
     } catch (SQLException e) {
       log.warn(
           "Cannot start the database. Events will be stored locally"
@@ -184,19 +490,34 @@ class SQLStore implements EventStore, LifecycleListener {
           e);
       setOnline(false);
     }
-    if (online) {
-      restoreEventsFromLocal();
+    if (isOnline()) {
+      scheduleRestore();
+      scheduleBackfill();
     }
   }
 
+  private boolean isOnline() {
+    return breaker.isClosed();
+  }
+
   private SQLClient getEventsDb() {
-    return online ? eventsDb : localEventsDb;
+    return isOnline() ? eventsDb : localEventsDb;
   }
 
-  private void setOnline(boolean online) {
-    this.online = online;
+  private synchronized void setOnline(boolean online) {
+    if (online) {
+      breaker.close();
+    } else if (!breaker.trip()) {
+      // another writer already switched to the local database
+      return;
+    }
     setUp();
+    if (isOnline() != online) {
+      // setUp() failed and already switched back
+      return;
+    }
     if (!online) {
+      cancelCheckConnectionTaskIfScheduled(false);
       checkConnTask =
           pool.scheduleWithFixedDelay(
               new CheckConnectionTask(), 0, connectTime, TimeUnit.MILLISECONDS);
@@ -205,48 +526,178 @@ class SQLStore implements EventStore, LifecycleListener {
     }
   }
 
-  private void cancelCheckConnectionTaskIfScheduled(boolean mayInterrupt) {
+  private synchronized void cancelCheckConnectionTaskIfScheduled(boolean mayInterrupt) {
     if (checkConnTask != null) {
       checkConnTask.cancel(mayInterrupt);
     }
   }
 
-  private void restoreEventsFromLocal() {
-    if (!localDbExists()) {
-      return;
+  private void scheduleRestore() {
+    restoreRequested.set(true);
+    if (restoring.compareAndSet(false, true)) {
+      pool.execute(new RestoreTask());
     }
-    try {
-      List<SQLEntry> entries = localEventsDb.getAll();
-      if (entries.isEmpty()) {
-        log.debug("No events to restore from local");
+  }
+
+  private void scheduleBackfill() {
+    if (backfilling.compareAndSet(false, true)) {
+      pool.execute(new BackfillTask());
+    }
+  }
+
+  /**
+   * Fills in the type and change of the events stored by an earlier version of the plugin, one
+   * chunk at a time, so that queries filtered by type or change also return them. The task
+   * reschedules itself after every chunk, and stops at the first failure until the database is set
+   * up again.
+   */
+  class BackfillTask implements Runnable {
+    private int lastId;
+    private int filled;
+
+    @Override
+    public void run() {
+      int count = isOnline() ? backfillChunk() : 0;
+      if (count > 0) {
+        pool.execute(this);
         return;
       }
-      for (SQLEntry entry : entries) {
-        restoreEvent(entry);
+      if (filled > 0) {
+        log.info("Filled in the type of {} events", filled);
+      }
+      backfilling.set(false);
+    }
+
+    private int backfillChunk() {
+      try {
+        List<EventEntry> chunk = eventsDb.getEventsWithoutType(lastId, RESTORE_CHUNK_SIZE);
+        if (chunk.isEmpty()) {
+          return 0;
+        }
+        List<EventEntry> entries = new ArrayList<>(chunk.size());
+        for (EventEntry entry : chunk) {
+          EventEntry withFields = entry.withFilterFields();
+          if (withFields.getType() != null) {
+            entries.add(withFields);
+          }
+        }
+        if (!entries.isEmpty()) {
+          eventsDb.updateFilterFields(entries);
+          // the events may belong to windows already cached
+          resultCache.invalidateAll();
+          filled += entries.size();
+        }
+        lastId = chunk.get(chunk.size() - 1).getId();
+        return chunk.size();
+      } catch (SQLException e) {
+        log.warn("Could not fill in the type of stored events", e);
+        return -1;
       }
-    } catch (SQLException e) {
-      log.warn("Could not query all events from local", e);
     }
-    copyFile(copyLocal);
-    localEventsDb.removeOldEvents(0);
   }
 
-  private void restoreEvent(SQLEntry entry) {
-    try {
-      eventsDb.storeEvent(entry.getName(), entry.getTimestamp(), entry.getEvent());
-    } catch (SQLException e) {
-      log.warn("Could not restore events from local", e);
+  /**
+   * Restores the events from the local database to the main database, one chunk at a time. The task
+   * reschedules itself after every chunk, so that restoring does not exceed the configured rate and
+   * does not hold up the other tasks of the pool. A chunk which cannot be restored is tried again
+   * with an exponential back-off, until the main database is found to be offline.
+   */
+  class RestoreTask implements Runnable {
+    private final int chunkSize =
+        restoreRate > 0 ? Math.min(restoreRate, RESTORE_CHUNK_SIZE) : RESTORE_CHUNK_SIZE;
+    private int lastId;
+    private int restored;
+    private int failures;
+
+    @Override
+    public void run() {
+      long start = System.nanoTime();
+      restoreRequested.set(false);
+      int count = isOnline() && localDbExists() ? restoreChunk() : 0;
+      if (count > 0) {
+        restored += count;
+        failures = 0;
+        pool.schedule(this, delay(count, start), TimeUnit.MILLISECONDS);
+        return;
+      }
+      if (count < 0) {
+        // events are left in the local database, the store is not ready until they are restored
+        long delay = retryDelay(failures++);
+        log.info("Retrying restoring events from local in {} ms", delay);
+        pool.schedule(this, delay, TimeUnit.MILLISECONDS);
+        return;
+      }
+      if (restored > 0) {
+        log.info("Restored {} events from local", restored);
+      } else {
+        log.debug("No events to restore from local");
+      }
+      restoring.set(false);
+      if (restoreRequested.get() && isOnline()) {
+        scheduleRestore();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "(Events-log) Restore events from local";
+    }
+
+    /** @return the number of events restored, 0 if there are none left, -1 on failure */
+    private int restoreChunk() {
+      try {
+        List<EventEntry> chunk = localEventsDb.getEventsAfter(lastId, chunkSize);
+        if (chunk.isEmpty()) {
+          return 0;
+        }
+        // events spilled by an earlier version of the plugin have no type
+        chunk = chunk.stream().map(EventEntry::withFilterFields).collect(toList());
+        if (restored == 0) {
+          copyFile(copyLocal);
+        }
+        long write = pendingWrites.begin();
+        try {
+          pendingWrites.end(write, eventsDb.storeEntries(chunk));
+        } catch (SQLException e) {
+          pendingWrites.abort(write);
+          feed.release();
+          throw e;
+        }
+        // restored events may belong to windows already cached
+        resultCache.invalidateAll();
+        tail.reset();
+        feed.missed();
+        lastId = chunk.get(chunk.size() - 1).getId();
+        localEventsDb.removeEventsUpTo(lastId);
+        metrics.restored(chunk.size());
+        return chunk.size();
+      } catch (SQLException e) {
+        log.warn("Could not restore events from local", e);
+        return -1;
+      }
+    }
+
+    private long delay(int count, long start) {
+      if (restoreRate <= 0) {
+        return 0;
+      }
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      return Math.max(0, TimeUnit.SECONDS.toMillis(count) / restoreRate - elapsed);
     }
   }
 
+  /** Probes the main database while the circuit is open, closing it once the database is back. */
   class CheckConnectionTask implements Runnable {
     CheckConnectionTask() {}
 
     @Override
     public void run() {
+      breaker.halfOpen();
       if (checkConnection()) {
         setOnline(true);
         log.info("Connected to database");
+      } else {
+        breaker.probeFailed();
       }
     }
 
@@ -16,15 +16,35 @@ package com.ericsson.gerrit.plugins.eventslog.sql;
 
 import static java.lang.String.format;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 final class SQLTable {
   static final String TABLE_NAME = "ChangeEvents";
   static final String PRIMARY_ENTRY = "id";
   static final String PROJECT_ENTRY = "project";
   static final String DATE_ENTRY = "date_created";
   static final String EVENT_ENTRY = "event_info";
+  static final String TYPE_ENTRY = "event_type";
+  static final String CHANGE_ENTRY = "change_number";
+  static final String DEFAULT_PARTITION = TABLE_NAME + "_default";
+  static final String TOMBSTONE_TABLE = TABLE_NAME + "_tombstones";
 
   private static final String CREATED_INDEX = "created_idx";
   private static final String PROJECT_INDEX = "project_idx";
+  private static final String TYPE_INDEX = "type_idx";
+  private static final String CHANGE_INDEX = "change_idx";
+  private static final String ADD_COLUMN_FORMAT = "ALTER TABLE %s ADD COLUMN IF NOT EXISTS %s %s";
+  private static final String TYPE_COLUMN_TYPE = "VARCHAR(255)";
+  private static final String CHANGE_COLUMN_TYPE = "INT";
+  private static final String ID_SEQUENCE = TABLE_NAME + "_seq";
+  private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+  private static final Pattern PARTITION_NAME =
+      Pattern.compile(TABLE_NAME + "_(\\d{8})", Pattern.CASE_INSENSITIVE);
   private static final String H2_INDEX_CREATION_FORMAT = "CREATE INDEX IF NOT EXISTS %s ON %s (%s)";
   private static final String POSTGRESQL_INDEX_CREATION_FORMAT =
       "DO $$\n"
@@ -50,14 +70,118 @@ final class SQLTable {
     } else {
       query.append(format("%s INT AUTO_INCREMENT PRIMARY KEY,", PRIMARY_ENTRY));
     }
+    appendColumns(query);
+    query.append(")");
+    return query.toString();
+  }
+
+  /**
+   * Returns the statement creating the table of the deleted projects whose events are not purged
+   * yet.
+   */
+  static String createTombstoneTableQuery() {
+    return format(
+        "CREATE TABLE IF NOT EXISTS %s(%s VARCHAR(255) PRIMARY KEY, %s TIMESTAMP DEFAULT NOW())",
+        TOMBSTONE_TABLE, PROJECT_ENTRY, DATE_ENTRY);
+  }
+
+  private static void appendColumns(StringBuilder query) {
     query.append(format("%s VARCHAR(255),", PROJECT_ENTRY));
     query.append(format("%s TIMESTAMP DEFAULT NOW(),", DATE_ENTRY));
-    query.append(format("%s TEXT)", EVENT_ENTRY));
+    query.append(format("%s %s,", TYPE_ENTRY, TYPE_COLUMN_TYPE));
+    query.append(format("%s %s,", CHANGE_ENTRY, CHANGE_COLUMN_TYPE));
+    query.append(format("%s TEXT", EVENT_ENTRY));
+  }
+
+  /**
+   * Returns the statement creating the events table partitioned by range of creation date, on
+   * PostgreSQL. The creation date is part of the primary key, as required for partitioned tables.
+   */
+  static String createPartitionedTableQuery() {
+    StringBuilder query = new StringBuilder(200);
+    query.append(format("CREATE TABLE IF NOT EXISTS %s(", TABLE_NAME));
+    query.append(format("%s SERIAL,", PRIMARY_ENTRY));
+    appendColumns(query);
+    query.append(format(", PRIMARY KEY (%s, %s))", PRIMARY_ENTRY, DATE_ENTRY));
+    query.append(format(" PARTITION BY RANGE (%s)", DATE_ENTRY));
+    return query.toString();
+  }
+
+  /**
+   * Returns the statement creating the partition receiving the events of no other partition, on
+   * PostgreSQL.
+   */
+  static String createDefaultPartitionQuery() {
+    return format(
+        "CREATE TABLE IF NOT EXISTS %s PARTITION OF %s DEFAULT", DEFAULT_PARTITION, TABLE_NAME);
+  }
+
+  /** Returns the statement creating the sequence the ids of all the partitions come from, on H2. */
+  static String createSequenceQuery() {
+    return format("CREATE SEQUENCE IF NOT EXISTS %s", ID_SEQUENCE);
+  }
+
+  /**
+   * Returns the statements creating the partition holding the events of the given day: a partition
+   * of the events table on PostgreSQL, or a table of its own with its own indexes on H2.
+   */
+  static String createPartitionQuery(boolean postgresql, LocalDate day) {
+    String partition = partitionName(day);
+    if (postgresql) {
+      return format(
+          "CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')",
+          partition, TABLE_NAME, day, day.plusDays(1));
+    }
+    StringBuilder query = new StringBuilder(400);
+    query.append(format("CREATE TABLE IF NOT EXISTS %s(", partition));
+    query.append(
+        format("%s INT DEFAULT NEXT VALUE FOR %s PRIMARY KEY,", PRIMARY_ENTRY, ID_SEQUENCE));
+    appendColumns(query);
+    query.append(");");
+    query.append(getH2Query(partition, "_" + day.format(PARTITION_SUFFIX)));
     return query.toString();
   }
 
+  /** Returns the statement making the events table a view of all the given partitions, on H2. */
+  static String createViewQuery(Collection<String> partitions) {
+    return format(
+        "CREATE OR REPLACE VIEW %s AS SELECT * FROM %s",
+        TABLE_NAME, String.join(" UNION ALL SELECT * FROM ", partitions));
+  }
+
+  static String partitionName(LocalDate day) {
+    return TABLE_NAME + "_" + day.format(PARTITION_SUFFIX);
+  }
+
+  /**
+   * @param table the name of a table
+   * @return the day whose events the table is the partition of, or null if the table is not the
+   *     partition of a day
+   */
+  static LocalDate partitionDay(String table) {
+    Matcher matcher = PARTITION_NAME.matcher(table);
+    if (!matcher.matches()) {
+      return null;
+    }
+    try {
+      return LocalDate.parse(matcher.group(1), PARTITION_SUFFIX);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the statements adding the columns introduced after the table was first created, for
+   * databases created by an earlier version of the plugin.
+   */
+  static String addColumnsQuery() {
+    return format(ADD_COLUMN_FORMAT, TABLE_NAME, TYPE_ENTRY, TYPE_COLUMN_TYPE)
+        + ";"
+        + format(ADD_COLUMN_FORMAT, TABLE_NAME, CHANGE_ENTRY, CHANGE_COLUMN_TYPE);
+  }
+
   static String createIndexes(boolean postgresql) {
-    return postgresql ? getPostgresqlQuery() : getH2Query();
+    return postgresql ? getPostgresqlQuery() : getH2Query(TABLE_NAME, "");
   }
 
   private static String getPostgresqlQuery() {
@@ -77,14 +201,29 @@ final class SQLTable {
             PROJECT_INDEX,
             TABLE_NAME,
             PROJECT_ENTRY));
+    query.append("\n;\n");
+    query.append(
+        format(POSTGRESQL_INDEX_CREATION_FORMAT, TYPE_INDEX, TYPE_INDEX, TABLE_NAME, TYPE_ENTRY));
+    query.append("\n;\n");
+    query.append(
+        format(
+            POSTGRESQL_INDEX_CREATION_FORMAT,
+            CHANGE_INDEX,
+            CHANGE_INDEX,
+            TABLE_NAME,
+            CHANGE_ENTRY));
     return query.toString();
   }
 
-  private static String getH2Query() {
+  private static String getH2Query(String table, String suffix) {
     StringBuilder query = new StringBuilder();
-    query.append(format(H2_INDEX_CREATION_FORMAT, CREATED_INDEX, TABLE_NAME, DATE_ENTRY));
+    query.append(format(H2_INDEX_CREATION_FORMAT, CREATED_INDEX + suffix, table, DATE_ENTRY));
+    query.append(";");
+    query.append(format(H2_INDEX_CREATION_FORMAT, PROJECT_INDEX + suffix, table, PROJECT_ENTRY));
+    query.append(";");
+    query.append(format(H2_INDEX_CREATION_FORMAT, TYPE_INDEX + suffix, table, TYPE_ENTRY));
     query.append(";");
-    query.append(format(H2_INDEX_CREATION_FORMAT, PROJECT_INDEX, TABLE_NAME, PROJECT_ENTRY));
+    query.append(format(H2_INDEX_CREATION_FORMAT, CHANGE_INDEX + suffix, table, CHANGE_ENTRY));
     return query.toString();
   }
 }
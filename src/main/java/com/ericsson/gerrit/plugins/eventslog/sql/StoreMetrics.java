@@ -0,0 +1,165 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics reported by the SQLStore while writing and querying events. The recent average times of
+ * writing batches and of running queries are also kept, for the cleaner to back off while the
+ * database slows down.
+ */
+@Singleton
+class StoreMetrics {
+  private static final long RECENT = TimeUnit.MINUTES.toNanos(1);
+
+  private final Histogram0 batchSize;
+  private final Timer0 flushLatency;
+  private final Timer0 queryLatency;
+  private final Counter0 restored;
+  private final Counter0 rejectedQueries;
+  private final Counter0 cleanedEvents;
+  private final Timer0 cleanupTime;
+  private final MetricMaker metricMaker;
+  private final RecentAverage recentFlush = new RecentAverage();
+  private final RecentAverage recentQuery = new RecentAverage();
+
+  @Inject
+  StoreMetrics(MetricMaker metricMaker) {
+    this.metricMaker = metricMaker;
+    batchSize =
+        metricMaker.newHistogram(
+            "store/batch_size",
+            new Description("Number of events written to the database in one batch")
+                .setCumulative()
+                .setUnit("events"));
+    flushLatency =
+        metricMaker.newTimer(
+            "store/flush_latency",
+            new Description("Time spent writing a batch of events to the database")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    queryLatency =
+        metricMaker.newTimer(
+            "store/query_latency",
+            new Description("Time spent reading the events of a query from the database")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    restored =
+        metricMaker.newCounter(
+            "store/restored_events",
+            new Description("Events restored from the local database to the main database")
+                .setRate()
+                .setUnit("events"));
+    rejectedQueries =
+        metricMaker.newCounter(
+            "store/rejected_queries",
+            new Description("Queries rejected because too many were reading from the database")
+                .setRate()
+                .setUnit("queries"));
+    cleanedEvents =
+        metricMaker.newCounter(
+            "cleaner/deleted_events",
+            new Description("Expired events deleted from the database")
+                .setRate()
+                .setUnit("events"));
+    cleanupTime =
+        metricMaker.newTimer(
+            "cleaner/batch_latency",
+            new Description("Time spent deleting a batch of expired events")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+  }
+
+  void registerReady(Supplier<Boolean> ready) {
+    metricMaker.newCallbackMetric(
+        "store/ready",
+        Boolean.class,
+        new Description("Whether the store is connected and has no events left to restore")
+            .setGauge(),
+        ready);
+  }
+
+  void registerRunningQueries(Supplier<Integer> running) {
+    metricMaker.newCallbackMetric(
+        "store/running_queries",
+        Integer.class,
+        new Description("Number of queries reading from the database")
+            .setGauge()
+            .setUnit("queries"),
+        running);
+  }
+
+  void recordFlush(int size, long flushNanos) {
+    batchSize.record(size);
+    flushLatency.record(flushNanos, TimeUnit.NANOSECONDS);
+    recentFlush.record(flushNanos);
+  }
+
+  void recordQuery(long queryNanos) {
+    queryLatency.record(queryNanos, TimeUnit.NANOSECONDS);
+    recentQuery.record(queryNanos);
+  }
+
+  void recordCleanup(int deleted, long cleanupNanos) {
+    cleanedEvents.incrementBy(deleted);
+    cleanupTime.record(cleanupNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return the recent average time, in milliseconds, of writing a batch of events or of running a
+   *     query, whichever is the longest, or 0 if the database was not used in the last minute
+   */
+  long recentLatency() {
+    return TimeUnit.NANOSECONDS.toMillis(Math.max(recentFlush.get(), recentQuery.get()));
+  }
+
+  void restored(int count) {
+    restored.incrementBy(count);
+  }
+
+  void queryRejected() {
+    rejectedQueries.increment();
+  }
+
+  /** Exponentially weighted moving average of the recent samples, forgotten once they get old. */
+  private static class RecentAverage {
+    private final AtomicLong average = new AtomicLong();
+    private volatile long updated;
+
+    void record(long nanos) {
+      average.accumulateAndGet(nanos, (avg, n) -> avg == 0 ? n : avg + (n - avg) / 8);
+      updated = System.nanoTime();
+    }
+
+    long get() {
+      if (System.nanoTime() - updated > RECENT) {
+        average.set(0);
+        return 0;
+      }
+      return average.get();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the most recently stored events in memory, ordered by id and filled by the writers once the
+ * events are committed, so that queries only reading the most recent events can be answered without
+ * going to the database, whatever their filters.
+ *
+ * <p>The buffer tracks which events it covers: all the events with an id greater than or equal to
+ * {@code coveredFrom}, and all the events created after {@code coveredSince}. Both move forward as
+ * the oldest events are dropped. A query reaching beyond what is covered is left to the database,
+ * except for queries on the most recent events, which only read from the database the older events
+ * they still miss. The events and their coverage are guarded by one lock, so that readers never see
+ * events added or dropped without their coverage.
+ */
+@Singleton
+class TailBuffer {
+  private static final int NONE = Integer.MAX_VALUE;
+
+  private final int capacity;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final NavigableMap<Integer, EventEntry> entries = new TreeMap<>();
+  private int coveredFrom = NONE;
+  private long coveredSince = System.currentTimeMillis();
+  private final Counter0 hits;
+  private final Counter0 misses;
+
+  @Inject
+  TailBuffer(EventsLogConfig cfg, MetricMaker metricMaker) {
+    this.capacity = cfg.getTailBufferSize();
+    hits =
+        metricMaker.newCounter(
+            "tail_buffer/hits",
+            new Description("Queries answered from the events kept in memory")
+                .setRate()
+                .setUnit("queries"));
+    misses =
+        metricMaker.newCounter(
+            "tail_buffer/misses",
+            new Description("Queries on recent events passed on to the database")
+                .setRate()
+                .setUnit("queries"));
+  }
+
+  /**
+   * Adds events which were just committed to the database.
+   *
+   * @param stored the stored events, with their ids
+   */
+  void append(List<EventEntry> stored) {
+    if (capacity == 0 || stored.isEmpty()) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (coveredFrom == NONE) {
+        coveredFrom = stored.get(0).getId();
+      }
+      for (EventEntry entry : stored) {
+        if (entry.getId() < coveredFrom) {
+          // committed by a writer which was overtaken by the events already dropped
+          coveredSince = Math.max(coveredSince, entry.getTimestamp().getTime());
+          continue;
+        }
+        entries.put(entry.getId(), entry);
+        if (entries.size() > capacity) {
+          EventEntry dropped = entries.pollFirstEntry().getValue();
+          coveredFrom = Math.max(coveredFrom, dropped.getId() + 1);
+          coveredSince = Math.max(coveredSince, dropped.getTimestamp().getTime());
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forgets all the events, for when events were added to or removed from the database without
+   * going through the buffer.
+   */
+  void reset() {
+    lock.writeLock().lock();
+    try {
+      entries.clear();
+      coveredFrom = NONE;
+      coveredSince = Math.max(coveredSince, System.currentTimeMillis());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Answers the query from the events in memory, if they cover all the events it reads. Queries on
+   * the most recent events are answered even when fewer events than their limit are visible in
+   * memory, leaving the older events to be read from the database.
+   *
+   * @param query the query
+   * @param isVisible tells whether events of a project can be returned
+   * @return the answer, or null if the query must be answered by the database
+   */
+  Answer answer(EventQuery query, Predicate<String> isVisible) {
+    if (capacity == 0) {
+      return null;
+    }
+    Answer answer;
+    lock.readLock().lock();
+    try {
+      if (coveredFrom == NONE) {
+        answer = null;
+      } else if (query.isLatest()) {
+        answer = latest(query, isVisible);
+      } else if (isCovered(query)) {
+        answer = new Answer(first(query, isVisible), null);
+      } else {
+        answer = null;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (answer != null && answer.isComplete()) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return answer;
+  }
+
+  private Answer latest(EventQuery query, Predicate<String> isVisible) {
+    List<EventEntry> result = new ArrayList<>(query.getLimit());
+    for (EventEntry entry : entries.descendingMap().values()) {
+      if (result.size() == query.getLimit()) {
+        break;
+      }
+      if (query.matches(entry) && isVisible.test(entry.getName())) {
+        result.add(entry);
+      }
+    }
+    Collections.reverse(result);
+    if (result.size() == query.getLimit()) {
+      return new Answer(result, null);
+    }
+    // older visible events may not be covered
+    return new Answer(result, query.preceding(coveredFrom, query.getLimit() - result.size()));
+  }
+
+  private List<EventEntry> first(EventQuery query, Predicate<String> isVisible) {
+    Collection<EventEntry> after =
+        query.hasCursor() ? entries.tailMap(query.getAfterId(), false).values() : entries.values();
+    List<EventEntry> result = new ArrayList<>();
+    for (EventEntry entry : after) {
+      if (result.size() == query.getLimit()) {
+        break;
+      }
+      if (query.matches(entry) && isVisible.test(entry.getName())) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  private boolean isCovered(EventQuery query) {
+    if (query.getFrom() != null && query.getFrom().getTime() > coveredSince) {
+      return true;
+    }
+    return query.getAfterId() >= coveredFrom - 1;
+  }
+
+  /** The events answering a query, possibly preceded by older events left to the database. */
+  static final class Answer {
+    private final List<EventEntry> entries;
+    private final EventQuery older;
+
+    private Answer(List<EventEntry> entries, EventQuery older) {
+      this.entries = entries;
+      this.older = older;
+    }
+
+    /** @return the visible events answering the query, in id order */
+    List<EventEntry> getEntries() {
+      return entries;
+    }
+
+    /**
+     * @return the query reading the older events still missing from the database, or null if the
+     *     events in memory answer the whole query
+     */
+    EventQuery getOlder() {
+      return older;
+    }
+
+    boolean isComplete() {
+      return older == null;
+    }
+  }
+}
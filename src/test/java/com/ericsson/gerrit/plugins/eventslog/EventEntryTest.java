@@ -12,7 +12,7 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-package com.ericsson.gerrit.plugins.eventslog.sql;
+package com.ericsson.gerrit.plugins.eventslog;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -21,21 +21,21 @@ import java.util.Calendar;
 import org.junit.Before;
 import org.junit.Test;
 
-public class SQLEntryTest {
+public class EventEntryTest {
 
   private static final long NOW = Calendar.getInstance().getTimeInMillis();
-  private SQLEntry entry1;
-  private SQLEntry entry2;
-  private SQLEntry entry3;
-  private SQLEntry entry4;
+  private EventEntry entry1;
+  private EventEntry entry2;
+  private EventEntry entry3;
+  private EventEntry entry4;
 
   @Before
   public void setUp() {
     Timestamp timestamp = new Timestamp(NOW);
-    entry1 = new SQLEntry("name1", timestamp, "event1", Integer.MAX_VALUE);
-    entry2 = new SQLEntry("name2", timestamp, "event2", Integer.MIN_VALUE);
-    entry3 = new SQLEntry("name3", timestamp, "event3", 0);
-    entry4 = new SQLEntry("name4", timestamp, "event4", Integer.MAX_VALUE);
+    entry1 = new EventEntry("name1", timestamp, "event1", Integer.MAX_VALUE);
+    entry2 = new EventEntry("name2", timestamp, "event2", Integer.MIN_VALUE);
+    entry3 = new EventEntry("name3", timestamp, "event3", 0);
+    entry4 = new EventEntry("name4", timestamp, "event4", Integer.MAX_VALUE);
   }
 
   @Test
@@ -66,6 +66,22 @@ public class SQLEntryTest {
     assertThat(entry2.compareTo(entry1)).isEqualTo(-1);
   }
 
+  @Test
+  public void readFilterFieldsFromEvent() throws Exception {
+    Timestamp timestamp = new Timestamp(NOW);
+    EventEntry entry =
+        new EventEntry("name", timestamp, "{\"type\":\"t\",\"change\":{\"number\":7}}", 3);
+    EventEntry withFields = entry.withFilterFields();
+    assertThat(withFields.getType()).isEqualTo("t");
+    assertThat(withFields.getChangeNumber()).isEqualTo(7);
+    assertThat(withFields.getId()).isEqualTo(3);
+
+    EventEntry noChange = new EventEntry("name", timestamp, "{\"type\":\"t\"}", 3);
+    assertThat(noChange.withFilterFields().getType()).isEqualTo("t");
+    assertThat(noChange.withFilterFields().getChangeNumber()).isNull();
+    assertThat(entry1.withFilterFields()).isSameAs(entry1);
+  }
+
   @SuppressWarnings("unlikely-arg-type")
   @Test
   public void testEquals() throws Exception {
@@ -14,15 +14,12 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
-import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
 import com.google.gerrit.server.events.ChangeEvent;
 import com.google.gerrit.server.events.Event;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -31,38 +28,25 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class EventHandlerTest {
-  @Mock private EventStore storeMock;
+  @Mock private EventQueue queueMock;
   private EventHandler eventHandler;
 
   @Before
   public void setUp() {
-    ScheduledExecutorService poolMock = new PoolMock();
-    eventHandler = new EventHandler(storeMock, poolMock);
+    eventHandler = new EventHandler(queueMock);
   }
 
   @Test
-  public void passEventToStore() {
+  public void passEventToQueue() {
     ChangeEvent eventMock = mock(ChangeEvent.class);
     eventHandler.onEvent(eventMock);
-    verify(storeMock).storeEvent(eventMock);
+    verify(queueMock).offer(eventMock);
   }
 
   @Test
   public void nonProjectEvent() {
     Event eventMock = mock(Event.class);
     eventHandler.onEvent(eventMock);
-    verifyZeroInteractions(storeMock);
-  }
-
-  class PoolMock extends ScheduledThreadPoolExecutor {
-    PoolMock() {
-      super(1);
-    }
-
-    @Override
-    public void execute(Runnable command) {
-      assertThat(command.toString()).isEqualTo("(Events-log) Insert Event");
-      command.run();
-    }
+    verifyZeroInteractions(queueMock);
   }
 }
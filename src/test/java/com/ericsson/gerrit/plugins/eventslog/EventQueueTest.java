@@ -0,0 +1,234 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventQueue.OverflowPolicy;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.git.WorkQueue;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class EventQueueTest {
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private EventStore storeMock;
+  @Mock private WorkQueue workQueueMock;
+
+  private ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+  private QueueMetrics metrics = new QueueMetrics(new DisabledMetricMaker());
+  private EventQueue queue;
+
+  @Before
+  public void setUp() {
+    when(cfgMock.getWriterLanes()).thenReturn(1);
+    when(cfgMock.getQueueCapacity()).thenReturn(2);
+    when(cfgMock.getOverflowPolicy()).thenReturn(OverflowPolicy.BLOCK);
+    when(cfgMock.getOverflowTimeout()).thenReturn(0);
+    when(cfgMock.getBatchSize()).thenReturn(2);
+    when(cfgMock.getBatchLinger()).thenReturn(0);
+    when(workQueueMock.createQueue(anyInt(), anyString())).thenReturn(executor);
+  }
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.stop();
+    }
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void writerStoresQueuedEventsInBatches() {
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+
+    queue.start();
+    verify(storeMock, timeout(1000)).tryStoreEvents(ImmutableList.of(event1, event2), 0);
+  }
+
+  @Test
+  public void blockPolicyDropsNewEventAfterTimeout() {
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    ProjectEvent event3 = mock(ProjectEvent.class);
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+    queue.offer(event3);
+
+    assertThat(queue.size()).isEqualTo(2);
+    queue.start();
+    verify(storeMock, timeout(1000)).tryStoreEvents(ImmutableList.of(event1, event2), 0);
+  }
+
+  @Test
+  public void dropOldestPolicyKeepsNewEvent() {
+    when(cfgMock.getOverflowPolicy()).thenReturn(OverflowPolicy.DROP_OLDEST);
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    ProjectEvent event3 = mock(ProjectEvent.class);
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+    queue.offer(event3);
+
+    assertThat(queue.size()).isEqualTo(2);
+    queue.start();
+    verify(storeMock, timeout(1000)).tryStoreEvents(ImmutableList.of(event2, event3), 0);
+  }
+
+  @Test
+  public void spillPolicyPassesEventToStore() {
+    when(cfgMock.getOverflowPolicy()).thenReturn(OverflowPolicy.SPILL);
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    ProjectEvent event3 = mock(ProjectEvent.class);
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+    verifyZeroInteractions(storeMock);
+
+    queue.offer(event3);
+    verify(storeMock).spillEvent(event3);
+    assertThat(queue.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void eventsOfOneProjectShareALane() {
+    when(cfgMock.getWriterLanes()).thenReturn(2);
+    when(cfgMock.getQueueCapacity()).thenReturn(4);
+    ProjectEvent a1 = newProjectEvent("a");
+    ProjectEvent a2 = newProjectEvent("a");
+    ProjectEvent a3 = newProjectEvent("a");
+    ProjectEvent b1 = newProjectEvent("b");
+    ProjectEvent b2 = newProjectEvent("b");
+    queue = newQueue();
+    queue.offer(a1);
+    queue.offer(b1);
+    queue.offer(a2);
+    queue.offer(b2);
+    queue.offer(a3);
+
+    assertThat(queue.size()).isEqualTo(4);
+    queue.start();
+    verify(storeMock, timeout(1000)).tryStoreEvents(ImmutableList.of(a1, a2), 0);
+    verify(storeMock, timeout(1000)).tryStoreEvents(ImmutableList.of(b1, b2), 0);
+  }
+
+  private static ProjectEvent newProjectEvent(String project) {
+    ProjectEvent event = mock(ProjectEvent.class);
+    when(event.getProjectNameKey()).thenReturn(new Project.NameKey(project));
+    return event;
+  }
+
+  @Test
+  public void stopShutsDownWritersAndStoresQueuedEvents() {
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    queue = newQueue();
+    queue.start();
+    queue.stop();
+    assertThat(executor.isTerminated()).isTrue();
+
+    queue.offer(event1);
+    queue.offer(event2);
+    queue.stop();
+    verify(storeMock).storeEvents(ImmutableList.of(event1, event2));
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void stopSpillsQueuedEventsTheStoreFailsToTake() {
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    doThrow(new IllegalStateException()).when(storeMock).storeEvents(anyList());
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+
+    queue.stop();
+    verify(storeMock).spillEvent(event1);
+    verify(storeMock).spillEvent(event2);
+  }
+
+  @Test
+  public void retryParkedBatchBeforeDrainingTheLane() {
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    ProjectEvent event3 = mock(ProjectEvent.class);
+    List<ProjectEvent> batch = ImmutableList.of(event1, event2);
+    when(storeMock.tryStoreEvents(batch, 0)).thenReturn(10L);
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+
+    queue.start();
+    verify(storeMock, timeout(1000)).tryStoreEvents(batch, 1);
+    queue.offer(event3);
+    verify(storeMock, timeout(1000)).tryStoreEvents(ImmutableList.of(event3), 0);
+    InOrder inOrder = inOrder(storeMock);
+    inOrder.verify(storeMock).tryStoreEvents(batch, 0);
+    inOrder.verify(storeMock).tryStoreEvents(batch, 1);
+    inOrder.verify(storeMock).tryStoreEvents(ImmutableList.of(event3), 0);
+  }
+
+  @Test
+  public void stopStoresParkedBatch() {
+    ProjectEvent event1 = mock(ProjectEvent.class);
+    ProjectEvent event2 = mock(ProjectEvent.class);
+    List<ProjectEvent> batch = ImmutableList.of(event1, event2);
+    when(storeMock.tryStoreEvents(batch, 0)).thenReturn(60000L);
+    ScheduledThreadPoolExecutor retryPool = new ScheduledThreadPoolExecutor(1);
+    when(workQueueMock.createQueue(1, "Store events")).thenReturn(retryPool);
+    queue = newQueue();
+    queue.offer(event1);
+    queue.offer(event2);
+
+    queue.start();
+    verify(storeMock, timeout(1000)).tryStoreEvents(batch, 0);
+    queue.stop();
+    verify(storeMock).storeEvents(batch);
+    retryPool.shutdownNow();
+  }
+
+  private EventQueue newQueue() {
+    return new EventQueue(workQueueMock, () -> storeMock, cfgMock, metrics);
+  }
+}
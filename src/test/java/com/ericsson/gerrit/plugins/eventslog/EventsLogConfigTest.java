@@ -14,27 +14,87 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_ARCHIVE_AGE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_ARCHIVE_PATH;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_BATCH_LINGER;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_BATCH_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CLEANUP_BATCH_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CLEANUP_HOUR;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CLEANUP_MAX_LATENCY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CLEANUP_PAUSE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CLEANUP_WINDOW;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_COMPRESSION_MIN_SIZE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CONN_TIME;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_COPY_LOCAL;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_INGEST_CONNECTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_LOCAL_PATH;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_LOG_PATH;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_LOG_SEGMENT_SIZE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_AGE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_CONNECTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_TRIES;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_OVERFLOW_POLICY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_OVERFLOW_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_PARTITIONED;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_PASSWORD;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_POLL_BUFFER_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_POLL_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_BURST;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_CACHE_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_QUEUE_CAPACITY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_RATE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_THREADS;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUEUE_CAPACITY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_RESTORE_RATE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_RETENTION;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_RETURN_LIMIT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_STATEMENT_CACHE_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_STORE_TYPE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_TAIL_BUFFER_SIZE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_URL;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_URL_OPTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_USERNAME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_VISIBILITY_CACHE_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_VISIBILITY_CACHE_TTL;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_WAIT_TIME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_WRITER_LANES;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_ARCHIVE_AGE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_BATCH_LINGER;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_BATCH_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CLEANUP_BATCH_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CLEANUP_HOUR;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CLEANUP_MAX_LATENCY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CLEANUP_PAUSE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CLEANUP_WINDOW;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_COMPRESSION_MIN_SIZE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CONN_TIME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_LOG_SEGMENT_SIZE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_AGE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_CONNECTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_TRIES;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_OVERFLOW_POLICY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_OVERFLOW_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_POLL_BUFFER_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_POLL_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_BURST;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_CACHE_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_QUEUE_CAPACITY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_RATE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUEUE_CAPACITY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_RESTORE_RATE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_RETURN_LIMIT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_STATEMENT_CACHE_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_STORE_TYPE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_VISIBILITY_CACHE_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_VISIBILITY_CACHE_TTL;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_WAIT_TIME;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.when;
 
+import com.ericsson.gerrit.plugins.eventslog.EventQueue.OverflowPolicy;
+import com.ericsson.gerrit.plugins.eventslog.StoreModule.StoreType;
 import com.google.common.collect.ImmutableList;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
@@ -54,6 +114,8 @@ import org.mockito.junit.MockitoJUnitRunner;
 @RunWith(MockitoJUnitRunner.class)
 public class EventsLogConfigTest {
   private static final String LOCAL_STORE_PATH = "~/gerrit/events-db/";
+  private static final String ARCHIVE_PATH = "~/gerrit/events-archive";
+  private static final String LOG_PATH = "~/gerrit/events-log";
   private static final String PLUGIN = "plugin";
   private static final String PLUGIN_NAME = "eventsLog";
   private static final int CUSTOM_MAX_CONNECTIONS = 32;
@@ -77,19 +139,56 @@ public class EventsLogConfigTest {
     when(cfgFactoryMock.getFromGerritConfig(PLUGIN_NAME, true)).thenReturn(pluginConfig);
     EventsLogConfig eventsLogConfig = new EventsLogConfig(cfgFactoryMock, site, PLUGIN_NAME);
     assertThat(eventsLogConfig.getCopyLocal()).isFalse();
+    assertThat(eventsLogConfig.isPartitioned()).isFalse();
     assertThat(eventsLogConfig.getMaxAge()).isEqualTo(DEFAULT_MAX_AGE);
+    assertThat(eventsLogConfig.getRetentionRules()).isEmpty();
     assertThat(eventsLogConfig.getMaxTries()).isEqualTo(DEFAULT_MAX_TRIES);
     assertThat(eventsLogConfig.getReturnLimit()).isEqualTo(DEFAULT_RETURN_LIMIT);
     assertThat(eventsLogConfig.getConnectTime()).isEqualTo(DEFAULT_CONN_TIME);
     assertThat(eventsLogConfig.getWaitTime()).isEqualTo(DEFAULT_WAIT_TIME);
     assertThat(eventsLogConfig.getLocalStorePath().toString() + "/")
         .isEqualTo(site.site_path.toString() + "/events-db/");
+    assertThat(eventsLogConfig.getArchivePath().toString())
+        .isEqualTo(site.data_dir.toString() + "/" + PLUGIN_NAME + "/archive");
     assertThat(eventsLogConfig.getStoreUrl())
         .isEqualTo("jdbc:h2:" + site.data_dir.toString() + "/db");
     assertThat(eventsLogConfig.getUrlOptions()).isEmpty();
     assertThat(eventsLogConfig.getStoreUsername()).isNull();
     assertThat(eventsLogConfig.getStorePassword()).isNull();
     assertThat(eventsLogConfig.getMaxConnections()).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+    assertThat(eventsLogConfig.getIngestConnections()).isEqualTo(DEFAULT_MAX_CONNECTIONS / 4);
+    assertThat(eventsLogConfig.getQueryConcurrency())
+        .isEqualTo(DEFAULT_MAX_CONNECTIONS - DEFAULT_MAX_CONNECTIONS / 4);
+    assertThat(eventsLogConfig.getStatementCacheSize()).isEqualTo(DEFAULT_STATEMENT_CACHE_SIZE);
+    assertThat(eventsLogConfig.getBatchSize()).isEqualTo(DEFAULT_BATCH_SIZE);
+    assertThat(eventsLogConfig.getBatchLinger()).isEqualTo(DEFAULT_BATCH_LINGER);
+    assertThat(eventsLogConfig.getVisibilityCacheSize()).isEqualTo(DEFAULT_VISIBILITY_CACHE_SIZE);
+    assertThat(eventsLogConfig.getVisibilityCacheTtl()).isEqualTo(DEFAULT_VISIBILITY_CACHE_TTL);
+    assertThat(eventsLogConfig.getQueryCacheSize()).isEqualTo(DEFAULT_QUERY_CACHE_SIZE);
+    assertThat(eventsLogConfig.getTailBufferSize()).isEqualTo(DEFAULT_RETURN_LIMIT);
+    assertThat(eventsLogConfig.getRestoreRate()).isEqualTo(DEFAULT_RESTORE_RATE);
+    assertThat(eventsLogConfig.getPollBufferSize()).isEqualTo(DEFAULT_POLL_BUFFER_SIZE);
+    assertThat(eventsLogConfig.getPollTimeout()).isEqualTo(DEFAULT_POLL_TIMEOUT);
+    assertThat(eventsLogConfig.getQueryThreads()).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+    assertThat(eventsLogConfig.getQueryQueueCapacity()).isEqualTo(DEFAULT_QUERY_QUEUE_CAPACITY);
+    assertThat(eventsLogConfig.getQueryTimeout()).isEqualTo(DEFAULT_QUERY_TIMEOUT);
+    assertThat(eventsLogConfig.getQueryRate()).isEqualTo(DEFAULT_QUERY_RATE);
+    assertThat(eventsLogConfig.getQueryBurst()).isEqualTo(DEFAULT_QUERY_BURST);
+    assertThat(eventsLogConfig.getCompressionMinSize()).isEqualTo(DEFAULT_COMPRESSION_MIN_SIZE);
+    assertThat(eventsLogConfig.getCleanupHour()).isEqualTo(DEFAULT_CLEANUP_HOUR);
+    assertThat(eventsLogConfig.getCleanupWindow()).isEqualTo(DEFAULT_CLEANUP_WINDOW);
+    assertThat(eventsLogConfig.getCleanupBatchSize()).isEqualTo(DEFAULT_CLEANUP_BATCH_SIZE);
+    assertThat(eventsLogConfig.getCleanupPause()).isEqualTo(DEFAULT_CLEANUP_PAUSE);
+    assertThat(eventsLogConfig.getCleanupMaxLatency()).isEqualTo(DEFAULT_CLEANUP_MAX_LATENCY);
+    assertThat(eventsLogConfig.getArchiveAge()).isEqualTo(DEFAULT_ARCHIVE_AGE);
+    assertThat(eventsLogConfig.getWriterLanes()).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+    assertThat(eventsLogConfig.getQueueCapacity()).isEqualTo(DEFAULT_QUEUE_CAPACITY);
+    assertThat(eventsLogConfig.getOverflowPolicy()).isEqualTo(DEFAULT_OVERFLOW_POLICY);
+    assertThat(eventsLogConfig.getOverflowTimeout()).isEqualTo(DEFAULT_OVERFLOW_TIMEOUT);
+    assertThat(eventsLogConfig.getStoreType()).isEqualTo(DEFAULT_STORE_TYPE);
+    assertThat(eventsLogConfig.getLogPath().toString())
+        .isEqualTo(site.data_dir.toString() + "/" + PLUGIN_NAME + "/log");
+    assertThat(eventsLogConfig.getLogSegmentSize()).isEqualTo(DEFAULT_LOG_SEGMENT_SIZE);
   }
 
   @Test
@@ -98,33 +197,106 @@ public class EventsLogConfigTest {
     when(cfgFactoryMock.getFromGerritConfig(PLUGIN_NAME, true)).thenReturn(pluginConfig);
     EventsLogConfig eventsLogConfig = new EventsLogConfig(cfgFactoryMock, site, PLUGIN_NAME);
     assertThat(eventsLogConfig.getCopyLocal()).isTrue();
+    assertThat(eventsLogConfig.isPartitioned()).isTrue();
     assertThat(eventsLogConfig.getMaxAge()).isEqualTo(20);
+    assertThat(eventsLogConfig.getRetentionRules()).hasSize(1);
+    assertThat(eventsLogConfig.getRetentionRules().get(0).toString())
+        .isEqualTo("7 project=mirror/* type=ref-updated");
     assertThat(eventsLogConfig.getMaxTries()).isEqualTo(5);
     assertThat(eventsLogConfig.getReturnLimit()).isEqualTo(10000);
     assertThat(eventsLogConfig.getConnectTime()).isEqualTo(5000);
     assertThat(eventsLogConfig.getWaitTime()).isEqualTo(5000);
     assertThat(eventsLogConfig.getLocalStorePath().toString() + "/").isEqualTo(LOCAL_STORE_PATH);
+    assertThat(eventsLogConfig.getArchivePath().toString()).isEqualTo(ARCHIVE_PATH);
     assertThat(eventsLogConfig.getStoreUrl()).isEqualTo("jdbc:h2:~/gerrit/db");
     assertThat(eventsLogConfig.getUrlOptions()).asList().isEqualTo(urlOptions);
     assertThat(eventsLogConfig.getStoreUsername()).isEqualTo("testUsername");
     assertThat(eventsLogConfig.getStorePassword()).isEqualTo("testPassword");
     assertThat(eventsLogConfig.getMaxConnections()).isEqualTo(CUSTOM_MAX_CONNECTIONS);
+    assertThat(eventsLogConfig.getIngestConnections()).isEqualTo(12);
+    assertThat(eventsLogConfig.getQueryConcurrency()).isEqualTo(CUSTOM_MAX_CONNECTIONS - 12);
+    assertThat(eventsLogConfig.getStatementCacheSize()).isEqualTo(100);
+    assertThat(eventsLogConfig.getBatchSize()).isEqualTo(100);
+    assertThat(eventsLogConfig.getBatchLinger()).isEqualTo(50);
+    assertThat(eventsLogConfig.getVisibilityCacheSize()).isEqualTo(500);
+    assertThat(eventsLogConfig.getVisibilityCacheTtl()).isEqualTo(30);
+    assertThat(eventsLogConfig.getQueryCacheSize()).isEqualTo(200);
+    assertThat(eventsLogConfig.getTailBufferSize()).isEqualTo(300);
+    assertThat(eventsLogConfig.getRestoreRate()).isEqualTo(100);
+    assertThat(eventsLogConfig.getPollBufferSize()).isEqualTo(200);
+    assertThat(eventsLogConfig.getPollTimeout()).isEqualTo(60);
+    assertThat(eventsLogConfig.getQueryThreads()).isEqualTo(6);
+    assertThat(eventsLogConfig.getQueryQueueCapacity()).isEqualTo(50);
+    assertThat(eventsLogConfig.getQueryTimeout()).isEqualTo(10);
+    assertThat(eventsLogConfig.getQueryRate()).isEqualTo(120);
+    assertThat(eventsLogConfig.getQueryBurst()).isEqualTo(5);
+    assertThat(eventsLogConfig.getCompressionMinSize()).isEqualTo(4096);
+    assertThat(eventsLogConfig.getCleanupHour()).isEqualTo(2);
+    assertThat(eventsLogConfig.getCleanupWindow()).isEqualTo(60);
+    assertThat(eventsLogConfig.getCleanupBatchSize()).isEqualTo(500);
+    assertThat(eventsLogConfig.getCleanupPause()).isEqualTo(100);
+    assertThat(eventsLogConfig.getCleanupMaxLatency()).isEqualTo(50);
+    assertThat(eventsLogConfig.getArchiveAge()).isEqualTo(90);
+    assertThat(eventsLogConfig.getWriterLanes()).isEqualTo(4);
+    assertThat(eventsLogConfig.getQueueCapacity()).isEqualTo(1024);
+    assertThat(eventsLogConfig.getOverflowPolicy()).isEqualTo(OverflowPolicy.SPILL);
+    assertThat(eventsLogConfig.getOverflowTimeout()).isEqualTo(200);
+    assertThat(eventsLogConfig.getStoreType()).isEqualTo(StoreType.LOG);
+    assertThat(eventsLogConfig.getLogPath().toString()).isEqualTo(LOG_PATH);
+    assertThat(eventsLogConfig.getLogSegmentSize()).isEqualTo(5000);
   }
 
   private Config customConfig() {
     Config config = new Config();
     config.setBoolean(PLUGIN, PLUGIN_NAME, CONFIG_COPY_LOCAL, true);
+    config.setBoolean(PLUGIN, PLUGIN_NAME, CONFIG_PARTITIONED, true);
     config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_MAX_AGE, 20);
+    config.setStringList(
+        PLUGIN,
+        PLUGIN_NAME,
+        CONFIG_RETENTION,
+        ImmutableList.of("7 project=mirror/* type=ref-updated", "week type=ref-updated"));
     config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_MAX_TRIES, 5);
     config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_RETURN_LIMIT, 10000);
     config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_CONN_TIME, 5000);
     config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_WAIT_TIME, 5000);
     config.setString(PLUGIN, PLUGIN_NAME, CONFIG_URL, "jdbc:h2:~/gerrit/db");
     config.setString(PLUGIN, PLUGIN_NAME, CONFIG_LOCAL_PATH, LOCAL_STORE_PATH);
+    config.setString(PLUGIN, PLUGIN_NAME, CONFIG_ARCHIVE_PATH, ARCHIVE_PATH);
     config.setStringList(PLUGIN, PLUGIN_NAME, CONFIG_URL_OPTIONS, urlOptions);
     config.setString(PLUGIN, PLUGIN_NAME, CONFIG_USERNAME, "testUsername");
     config.setString(PLUGIN, PLUGIN_NAME, CONFIG_PASSWORD, "testPassword");
     config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_MAX_CONNECTIONS, CUSTOM_MAX_CONNECTIONS);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_INGEST_CONNECTIONS, 12);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_STATEMENT_CACHE_SIZE, 100);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_BATCH_SIZE, 100);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_BATCH_LINGER, 50);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_VISIBILITY_CACHE_SIZE, 500);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_VISIBILITY_CACHE_TTL, 30);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUERY_CACHE_SIZE, 200);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_TAIL_BUFFER_SIZE, 300);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_RESTORE_RATE, 100);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_POLL_BUFFER_SIZE, 200);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_POLL_TIMEOUT, 60);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUERY_THREADS, 6);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUERY_QUEUE_CAPACITY, 50);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUERY_TIMEOUT, 10);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUERY_RATE, 120);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUERY_BURST, 5);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_COMPRESSION_MIN_SIZE, 4096);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_CLEANUP_HOUR, 2);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_CLEANUP_WINDOW, 60);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_CLEANUP_BATCH_SIZE, 500);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_CLEANUP_PAUSE, 100);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_CLEANUP_MAX_LATENCY, 50);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_ARCHIVE_AGE, 90);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_WRITER_LANES, 4);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_QUEUE_CAPACITY, 1024);
+    config.setEnum(PLUGIN, PLUGIN_NAME, CONFIG_OVERFLOW_POLICY, OverflowPolicy.SPILL);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_OVERFLOW_TIMEOUT, 200);
+    config.setEnum(PLUGIN, PLUGIN_NAME, CONFIG_STORE_TYPE, StoreType.LOG);
+    config.setString(PLUGIN, PLUGIN_NAME, CONFIG_LOG_PATH, LOG_PATH);
+    config.setInt(PLUGIN, PLUGIN_NAME, CONFIG_LOG_SEGMENT_SIZE, 5000);
     return config;
   }
 }
@@ -23,7 +23,7 @@ import org.junit.Test;
 
 @TestPlugin(
     name = "events-log",
-    sysModule = "com.ericsson.gerrit.plugins.eventslog.sql.SQLModule",
+    sysModule = "com.ericsson.gerrit.plugins.eventslog.StoreModule",
     httpModule = "com.ericsson.gerrit.plugins.eventslog.HttpModule")
 public class EventsLogIT extends LightweightPluginDaemonTest {
 
@@ -0,0 +1,163 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.server.CurrentUser;
+import com.google.inject.Provider;
+import java.io.PrintWriter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventsPollServletTest {
+  private static final EventQuery CURSOR_QUERY = new EventQuery(10);
+
+  @Mock private EventStore storeMock;
+  @Mock private QueryMaker queryMakerMock;
+  @Mock private Provider<CurrentUser> userProviderMock;
+  @Mock private CurrentUser userMock;
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private ResponseCompression compressionMock;
+  @Mock private EventSubscription subscriptionMock;
+  @Mock private HttpServletRequest reqMock;
+  @Mock private HttpServletResponse rspMock;
+  @Mock private PrintWriter outMock;
+
+  private EventsPollServlet pollServlet;
+
+  @Before
+  public void setUp() throws Exception {
+    when(cfgMock.getPollTimeout()).thenReturn(30);
+    pollServlet =
+        new EventsPollServlet(
+            storeMock, queryMakerMock, userProviderMock, compressionMock, null, cfgMock);
+
+    when(userProviderMock.get()).thenReturn(userMock);
+    when(userMock.isIdentifiedUser()).thenReturn(true);
+  }
+
+  @Test
+  public void unauthorized() throws Exception {
+    when(userMock.isIdentifiedUser()).thenReturn(false);
+    pollServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_UNAUTHORIZED);
+  }
+
+  @Test
+  public void badTimeout() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("timeout=-1");
+    pollServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void badCursor() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("cursor=@@");
+    when(storeMock.subscribe(eq("@@"), any(Runnable.class)))
+        .thenThrow(new MalformedQueryException());
+    pollServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void answerAtOnceWithEventsAfterCursor() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("cursor=abc;timeout=10");
+    when(storeMock.subscribe(eq("abc"), any(Runnable.class))).thenReturn(subscriptionMock);
+    when(queryMakerMock.formQueryFromRequestParameters(ImmutableMap.of("cursor", "abc")))
+        .thenReturn(CURSOR_QUERY);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(outMock);
+    doAnswer(
+            invocation -> {
+              EventVisitor visitor = invocation.getArgument(1);
+              visitor.nextCursor("next");
+              visitor.visit("event");
+              return null;
+            })
+        .when(storeMock)
+        .queryChangeEvents(eq(CURSOR_QUERY), any(EventVisitor.class));
+    pollServlet.doGet(reqMock, rspMock);
+    verify(rspMock).setHeader(EventsRestApiServlet.CURSOR_HEADER, "next");
+    verify(outMock).write("event");
+    verify(subscriptionMock).close();
+  }
+
+  @Test
+  public void answerWithEventsReceivedWhileWaiting() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("timeout=10");
+    doAnswer(
+            invocation -> {
+              Runnable onReady = invocation.getArgument(1);
+              onReady.run();
+              return subscriptionMock;
+            })
+        .when(storeMock)
+        .subscribe(isNull(), any(Runnable.class));
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(outMock);
+    when(subscriptionMock.drain(any(EventVisitor.class)))
+        .thenAnswer(
+            invocation -> {
+              EventVisitor visitor = invocation.getArgument(0);
+              visitor.nextCursor("next");
+              visitor.visit("event");
+              return true;
+            });
+    pollServlet.doGet(reqMock, rspMock);
+    verify(rspMock).setHeader(EventsRestApiServlet.CURSOR_HEADER, "next");
+    verify(outMock).write("event");
+    verify(subscriptionMock).close();
+  }
+
+  @Test
+  public void queryMissedEventsFromCursor() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("timeout=0");
+    when(storeMock.subscribe(isNull(), any(Runnable.class))).thenReturn(subscriptionMock);
+    when(subscriptionMock.drain(any(EventVisitor.class))).thenReturn(false);
+    when(subscriptionMock.getCursor()).thenReturn("abc");
+    when(queryMakerMock.formQueryFromRequestParameters(ImmutableMap.of("cursor", "abc")))
+        .thenReturn(CURSOR_QUERY);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
+    pollServlet.doGet(reqMock, rspMock);
+    verify(storeMock).queryChangeEvents(eq(CURSOR_QUERY), any(EventVisitor.class));
+    verify(subscriptionMock).close();
+  }
+
+  @Test
+  public void answerWithNoEventOnTimeout() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("timeout=0");
+    when(storeMock.subscribe(isNull(), any(Runnable.class))).thenReturn(subscriptionMock);
+    when(subscriptionMock.drain(any(EventVisitor.class))).thenReturn(true);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(outMock);
+    pollServlet.doGet(reqMock, rspMock);
+    verify(rspMock, never()).setHeader(eq(EventsRestApiServlet.CURSOR_HEADER), anyString());
+    verify(outMock, never()).write(anyString());
+    verify(subscriptionMock).close();
+  }
+}
@@ -15,18 +15,30 @@
 package com.ericsson.gerrit.plugins.eventslog;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.server.CurrentUser;
 import com.google.inject.Provider;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Before;
@@ -34,12 +46,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class EventsRestApiServletTest {
-  private static final String RANDOM_QUERY = "random query";
+  private static final EventQuery RANDOM_QUERY = new EventQuery(10);
 
   @Mock private EventStore storeMock;
   @Mock private QueryMaker queryMakerMock;
@@ -47,13 +60,28 @@ public class EventsRestApiServletTest {
   @Mock private CurrentUser userMock;
   @Mock private HttpServletRequest reqMock;
   @Mock private HttpServletResponse rspMock;
+  @Mock private QueryExecutor executorMock;
+  @Mock private QueryRateLimiter rateLimiterMock;
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private ResponseCompression compressionMock;
+  @Mock private AsyncContext asyncContextMock;
   @Captor private ArgumentCaptor<Map<String, String>> captor;
 
   private EventsRestApiServlet eventServlet;
 
   @Before
   public void setUp() {
-    eventServlet = new EventsRestApiServlet(storeMock, queryMakerMock, userProviderMock);
+    when(cfgMock.getQueryTimeout()).thenReturn(30);
+    eventServlet =
+        new EventsRestApiServlet(
+            storeMock,
+            queryMakerMock,
+            userProviderMock,
+            executorMock,
+            rateLimiterMock,
+            compressionMock,
+            null,
+            cfgMock);
 
     when(userProviderMock.get()).thenReturn(userMock);
     when(userMock.isIdentifiedUser()).thenReturn(true);
@@ -62,8 +90,8 @@ public class EventsRestApiServletTest {
   @Test
   public void queryStringSplitting() throws Exception {
     when(reqMock.getQueryString()).thenReturn("a=1;b=2");
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
     when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
-    when(storeMock.queryChangeEvents(RANDOM_QUERY)).thenReturn(new ArrayList<>());
     eventServlet.doGet(reqMock, rspMock);
     assertThat(ImmutableMap.of("a", "1", "b", "2")).isEqualTo(captor.getValue());
   }
@@ -71,8 +99,8 @@ public class EventsRestApiServletTest {
   @Test
   public void badQueryString() throws Exception {
     when(reqMock.getQueryString()).thenReturn("a;b");
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
     when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
-    when(storeMock.queryChangeEvents(RANDOM_QUERY)).thenReturn(new ArrayList<>());
     eventServlet.doGet(reqMock, rspMock);
     assertThat(captor.getValue()).isEmpty();
   }
@@ -99,11 +127,214 @@ public class EventsRestApiServletTest {
     when(reqMock.getQueryString()).thenReturn("@@");
     PrintWriter outMock = mock(PrintWriter.class);
     List<String> listMock = ImmutableList.of("event one", "event two");
-    when(rspMock.getWriter()).thenReturn(outMock);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(outMock);
     when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
-    when(storeMock.queryChangeEvents(RANDOM_QUERY)).thenReturn(listMock);
+    doAnswer(
+            invocation -> {
+              EventVisitor visitor = invocation.getArgument(1);
+              visitor.nextCursor("cursor");
+              for (String event : listMock) {
+                visitor.visit(event);
+              }
+              return null;
+            })
+        .when(storeMock)
+        .queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
     eventServlet.doGet(reqMock, rspMock);
-    verify(outMock).write(listMock.get(0) + "\n");
-    verify(outMock).write(listMock.get(1) + "\n");
+    verify(rspMock).setHeader(EventsRestApiServlet.CURSOR_HEADER, "cursor");
+    InOrder inOrder = inOrder(outMock);
+    inOrder.verify(outMock).write(listMock.get(0));
+    inOrder.verify(outMock).write('\n');
+    inOrder.verify(outMock).write(listMock.get(1));
+    inOrder.verify(outMock).write('\n');
+  }
+
+  @Test
+  public void queryOnExecutorWhenAsyncIsSupported() throws Exception {
+    when(reqMock.isAsyncSupported()).thenReturn(true);
+    when(reqMock.startAsync()).thenReturn(asyncContextMock);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
+    when(queryMakerMock.formQueryFromRequestParameters(null)).thenReturn(RANDOM_QUERY);
+    eventServlet.doGet(reqMock, rspMock);
+    verify(storeMock, never()).queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(executorMock).submit(any(), task.capture(), any(Runnable.class));
+    verify(asyncContextMock).setTimeout(65000L);
+    task.getValue().run();
+    verify(storeMock).queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+    verify(asyncContextMock).complete();
+  }
+
+  @Test
+  public void rejectWaitingQueryWhenExecutorStops() throws Exception {
+    when(reqMock.isAsyncSupported()).thenReturn(true);
+    when(reqMock.startAsync()).thenReturn(asyncContextMock);
+    eventServlet.doGet(reqMock, rspMock);
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    ArgumentCaptor<Runnable> onRejected = ArgumentCaptor.forClass(Runnable.class);
+    verify(executorMock).submit(any(), task.capture(), onRejected.capture());
+    onRejected.getValue().run();
+    verify(rspMock).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(asyncContextMock).complete();
+
+    task.getValue().run();
+    verify(storeMock, never()).queryChangeEvents(any(), any(EventVisitor.class));
+    verify(asyncContextMock).complete();
+  }
+
+  @Test
+  public void rejectWaitingQueryWhenRequestTimesOut() throws Exception {
+    when(reqMock.isAsyncSupported()).thenReturn(true);
+    when(reqMock.startAsync()).thenReturn(asyncContextMock);
+    eventServlet.doGet(reqMock, rspMock);
+
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(asyncContextMock).addListener(listener.capture());
+    listener.getValue().onTimeout(new AsyncEvent(asyncContextMock));
+    verify(rspMock).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(asyncContextMock).complete();
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(executorMock).submit(any(), task.capture(), any(Runnable.class));
+    task.getValue().run();
+    verify(storeMock, never()).queryChangeEvents(any(), any(EventVisitor.class));
+  }
+
+  @Test
+  public void abortRunningQueryWhenRequestTimesOut() throws Exception {
+    when(reqMock.isAsyncSupported()).thenReturn(true);
+    when(reqMock.startAsync()).thenReturn(asyncContextMock);
+    PrintWriter outMock = mock(PrintWriter.class);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(outMock);
+    when(queryMakerMock.formQueryFromRequestParameters(null)).thenReturn(RANDOM_QUERY);
+    eventServlet.doGet(reqMock, rspMock);
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(asyncContextMock).addListener(listener.capture());
+    doAnswer(
+            invocation -> {
+              EventVisitor visitor = invocation.getArgument(1);
+              visitor.visit("event one");
+              listener.getValue().onTimeout(new AsyncEvent(asyncContextMock));
+              verify(asyncContextMock).complete();
+              visitor.visit("event two");
+              return null;
+            })
+        .when(storeMock)
+        .queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(executorMock).submit(any(), task.capture(), any(Runnable.class));
+    task.getValue().run();
+    verify(outMock).write("event one");
+    verify(outMock, never()).write("event two");
+    verify(outMock, never()).close();
+    verify(rspMock, never()).sendError(anyInt());
+    verify(asyncContextMock).complete();
+  }
+
+  @Test
+  public void boundAsyncRequestsWhenQueryTimeoutIsDisabled() throws Exception {
+    when(cfgMock.getQueryTimeout()).thenReturn(0);
+    eventServlet =
+        new EventsRestApiServlet(
+            storeMock,
+            queryMakerMock,
+            userProviderMock,
+            executorMock,
+            rateLimiterMock,
+            compressionMock,
+            null,
+            cfgMock);
+    when(reqMock.isAsyncSupported()).thenReturn(true);
+    when(reqMock.startAsync()).thenReturn(asyncContextMock);
+    eventServlet.doGet(reqMock, rspMock);
+    verify(asyncContextMock)
+        .setTimeout(TimeUnit.SECONDS.toMillis(EventsRestApiServlet.MAX_ASYNC_TIMEOUT_SECONDS));
+  }
+
+  @Test
+  public void rejectQueryWhenExecutorIsSaturated() throws Exception {
+    when(reqMock.isAsyncSupported()).thenReturn(true);
+    when(reqMock.startAsync()).thenReturn(asyncContextMock);
+    doThrow(new RejectedExecutionException())
+        .when(executorMock)
+        .submit(any(), any(Runnable.class), any(Runnable.class));
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock)
+        .setIntHeader(
+            EventsRestApiServlet.RETRY_AFTER_HEADER, EventsRestApiServlet.RETRY_AFTER_SECONDS);
+    verify(rspMock).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(asyncContextMock).complete();
+  }
+
+  @Test
+  public void unavailableWhenQueryTimesOut() throws Exception {
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
+    when(queryMakerMock.formQueryFromRequestParameters(null)).thenReturn(RANDOM_QUERY);
+    doThrow(new ServiceUnavailableException("timed out", null))
+        .when(storeMock)
+        .queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  @Test
+  public void rejectQueryWhenAccountIsOverRate() throws Exception {
+    Account.Id account = new Account.Id(1);
+    when(userMock.getAccountId()).thenReturn(account);
+    when(rateLimiterMock.tryAcquire(account)).thenReturn(7L);
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).setHeader(EventsRestApiServlet.RETRY_AFTER_HEADER, "7");
+    verify(rspMock).sendError(EventsRestApiServlet.SC_TOO_MANY_REQUESTS);
+    verify(storeMock, never()).queryChangeEvents(any(), any(EventVisitor.class));
+  }
+
+  @Test
+  public void tooManyRequestsWhenTooManyQueriesAreRunning() throws Exception {
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
+    when(queryMakerMock.formQueryFromRequestParameters(null)).thenReturn(RANDOM_QUERY);
+    doThrow(new TooManyQueriesException())
+        .when(storeMock)
+        .queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(EventsRestApiServlet.SC_TOO_MANY_REQUESTS);
+  }
+
+  @Test
+  public void writeOnlyRequestedFields() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("fields=type,change.number;project=p");
+    PrintWriter outMock = mock(PrintWriter.class);
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(outMock);
+    when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
+    doAnswer(
+            invocation -> {
+              EventVisitor visitor = invocation.getArgument(1);
+              visitor.visit("{\"type\":\"a\",\"change\":{\"number\":1,\"subject\":\"s\"}}");
+              return null;
+            })
+        .when(storeMock)
+        .queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+    eventServlet.doGet(reqMock, rspMock);
+    assertThat(captor.getValue()).isEqualTo(ImmutableMap.of("project", "p"));
+    verify(outMock).write("{\"type\":\"a\",\"change\":{\"number\":1}}");
+  }
+
+  @Test
+  public void onlyFieldsQueryMostRecentEvents() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("fields=type");
+    when(compressionMock.open(reqMock, rspMock)).thenReturn(mock(PrintWriter.class));
+    when(queryMakerMock.formQueryFromRequestParameters(null)).thenReturn(RANDOM_QUERY);
+    eventServlet.doGet(reqMock, rspMock);
+    verify(storeMock).queryChangeEvents(eq(RANDOM_QUERY), any(EventVisitor.class));
+  }
+
+  @Test
+  public void badFields() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("fields=change..number");
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_BAD_REQUEST);
+    verify(storeMock, never()).queryChangeEvents(any(), any(EventVisitor.class));
   }
 }
@@ -0,0 +1,67 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class FieldProjectionTest {
+  private static final String EVENT =
+      "{\"type\":\"patchset-created\","
+          + "\"change\":{\"number\":12,\"owner\":{\"name\":\"joe\"},\"subject\":\"s\"},"
+          + "\"patchSet\":{\"number\":3,\"approvals\":[{\"type\":\"CR\",\"value\":\"1\"},"
+          + "{\"value\":\"2\"}]},"
+          + "\"eventCreatedOn\":1500000000,\"private\":true,\"topic\":null}";
+
+  @Test
+  public void keepNestedFields() throws Exception {
+    FieldProjection projection =
+        FieldProjection.parse("type,change.number,patchSet.number,eventCreatedOn");
+    assertThat(projection.apply(EVENT))
+        .isEqualTo(
+            "{\"type\":\"patchset-created\",\"change\":{\"number\":12},"
+                + "\"patchSet\":{\"number\":3},\"eventCreatedOn\":1500000000}");
+  }
+
+  @Test
+  public void keepWholeObject() throws Exception {
+    assertThat(FieldProjection.parse("change").apply(EVENT))
+        .isEqualTo("{\"change\":{\"number\":12,\"owner\":{\"name\":\"joe\"},\"subject\":\"s\"}}");
+  }
+
+  @Test
+  public void keepFieldsOfObjectsInArrays() throws Exception {
+    assertThat(FieldProjection.parse("patchSet.approvals.type").apply(EVENT))
+        .isEqualTo("{\"patchSet\":{\"approvals\":[{\"type\":\"CR\"}]}}");
+  }
+
+  @Test
+  public void leaveOutMissingFields() throws Exception {
+    assertThat(FieldProjection.parse("change.topic,private,topic").apply(EVENT))
+        .isEqualTo("{\"private\":true,\"topic\":null}");
+    assertThat(FieldProjection.parse("missing").apply(EVENT)).isEqualTo("{}");
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void emptyFieldName() throws Exception {
+    FieldProjection.parse("change..number");
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void noField() throws Exception {
+    FieldProjection.parse(",");
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LiveFeedTest {
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private Runnable onReady;
+
+  private LiveFeed feed;
+
+  @Before
+  public void setUp() {
+    when(cfgMock.getPollBufferSize()).thenReturn(3);
+    feed = new LiveFeed(cfgMock);
+  }
+
+  @Test
+  public void receiveVisibleEventsAfterCursor() throws Exception {
+    EventSubscription subscription = feed.subscribe(2, p -> !p.equals("hidden"), onReady);
+    feed.publish(entries("visible", 1, 2));
+    verify(onReady, never()).run();
+
+    feed.publish(entries("hidden", 3));
+    feed.publish(entries("visible", 4, 5));
+    verify(onReady).run();
+    assertThat(subscription.isReady()).isTrue();
+    List<String> events = new ArrayList<>();
+    assertThat(subscription.drain(events::add)).isTrue();
+    assertThat(events).containsExactly("event4", "event5").inOrder();
+    assertThat(subscription.getCursor()).isEqualTo(EventCursor.encode(5));
+    assertThat(subscription.isReady()).isFalse();
+  }
+
+  @Test
+  public void hiddenEventsNeitherSignalNorFillTheBuffer() throws Exception {
+    EventSubscription subscription = feed.subscribe(0, p -> !p.equals("hidden"), onReady);
+    feed.publish(entries("hidden", 1, 2, 3, 4));
+    verify(onReady, never()).run();
+    assertThat(subscription.isReady()).isFalse();
+
+    feed.publish(entries("visible", 5));
+    verify(onReady).run();
+    List<String> events = new ArrayList<>();
+    assertThat(subscription.drain(events::add)).isTrue();
+    assertThat(events).containsExactly("event5");
+  }
+
+  @Test
+  public void failingVisibilityCheckDoesNotStopOtherSubscribers() throws Exception {
+    EventSubscription subscription =
+        feed.subscribe(
+            0,
+            p -> {
+              throw new IllegalStateException();
+            },
+            onReady);
+    EventSubscription other = feed.subscribe(0, p -> true, onReady);
+    feed.publish(entries("visible", 1));
+    assertThat(other.isReady()).isTrue();
+    List<String> events = new ArrayList<>();
+    assertThat(subscription.drain(events::add)).isTrue();
+    assertThat(events).isEmpty();
+  }
+
+  @Test
+  public void holdBackEventsFollowingEventsStillBeingCommitted() throws Exception {
+    AtomicInteger committedUpTo = new AtomicInteger(1);
+    EventSubscription subscription = feed.subscribe(0, p -> true, onReady, committedUpTo::get);
+    feed.publish(entries("visible", 1, 3));
+    verify(onReady).run();
+    List<String> events = new ArrayList<>();
+    assertThat(subscription.drain(events::add)).isTrue();
+    assertThat(events).containsExactly("event1");
+    assertThat(subscription.isReady()).isFalse();
+
+    committedUpTo.set(3);
+    feed.publish(entries("visible", 2));
+    assertThat(subscription.drain(events::add)).isTrue();
+    assertThat(events).containsExactly("event1", "event2", "event3").inOrder();
+    assertThat(subscription.getCursor()).isEqualTo(EventCursor.encode(3));
+  }
+
+  @Test
+  public void startFromFirstEventPublished() {
+    EventSubscription subscription = feed.subscribe(-1, p -> true, onReady);
+    assertThat(subscription.getCursor()).isNull();
+    feed.publish(entries("visible", 7));
+    assertThat(subscription.getCursor()).isEqualTo(EventCursor.encode(6));
+  }
+
+  @Test
+  public void missEventsOnceBufferIsFull() throws Exception {
+    EventSubscription subscription = feed.subscribe(0, p -> true, onReady);
+    feed.publish(entries("visible", 1, 2, 3, 4));
+    verify(onReady).run();
+    assertThat(subscription.drain(event -> {})).isFalse();
+    assertThat(subscription.getCursor()).isEqualTo(EventCursor.encode(0));
+  }
+
+  @Test
+  public void missEventsStoredWithoutIds() throws Exception {
+    EventSubscription subscription = feed.subscribe(0, p -> true, onReady);
+    feed.missed();
+    verify(onReady).run();
+    assertThat(subscription.drain(event -> {})).isFalse();
+  }
+
+  @Test
+  public void stopReceivingOnceClosed() {
+    EventSubscription subscription = feed.subscribe(0, p -> true, onReady);
+    subscription.close();
+    feed.publish(entries("visible", 1));
+    verify(onReady, never()).run();
+    assertThat(subscription.isReady()).isFalse();
+  }
+
+  private static List<EventEntry> entries(String project, int... ids) {
+    return IntStream.of(ids)
+        .mapToObj(id -> new EventEntry(project, new Timestamp(0), "event" + id, id))
+        .collect(toList());
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.ProjectPermission;
+import com.google.gerrit.server.project.ProjectCache;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class ProjectVisibilityCacheTest {
+  private static final String PROJECT = "testProject";
+  private static final String HIDDEN_PROJECT = "hiddenProject";
+
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private PermissionBackend permissionBackendMock;
+  @Mock private PermissionBackend.WithUser withUserMock;
+  @Mock private PermissionBackend.ForProject forProjectMock;
+  @Mock private CurrentUser userMock;
+  @Mock private GitReferenceUpdatedListener.Event refUpdatedMock;
+  @Mock private ProjectCache projectCacheMock;
+  @Mock private PermissionBackend.ForProject forHiddenProjectMock;
+
+  private ProjectVisibilityCache cache;
+
+  @Before
+  public void setUp() {
+    when(cfgMock.getVisibilityCacheSize()).thenReturn(100);
+    when(cfgMock.getVisibilityCacheTtl()).thenReturn(60);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(new Project.NameKey(PROJECT))).thenReturn(forProjectMock);
+    when(userMock.isIdentifiedUser()).thenReturn(true);
+    when(userMock.getAccountId()).thenReturn(new Account.Id(1));
+    when(withUserMock.project(new Project.NameKey(HIDDEN_PROJECT)))
+        .thenReturn(forHiddenProjectMock);
+    when(projectCacheMock.all())
+        .thenReturn(
+            ImmutableSortedSet.of(
+                new Project.NameKey(PROJECT), new Project.NameKey(HIDDEN_PROJECT)));
+    cache = newCache();
+  }
+
+  @Test
+  public void checkAccessOnceWhileCached() throws Exception {
+    assertThat(cache.forCurrentUser().test(PROJECT)).isTrue();
+    assertThat(cache.forCurrentUser().test(PROJECT)).isTrue();
+    verify(forProjectMock, times(1)).check(ProjectPermission.ACCESS);
+  }
+
+  @Test
+  public void cacheHiddenProjects() throws Exception {
+    doThrow(new AuthException("")).when(forProjectMock).check(ProjectPermission.ACCESS);
+    assertThat(cache.forCurrentUser().test(PROJECT)).isFalse();
+    assertThat(cache.forCurrentUser().test(PROJECT)).isFalse();
+    verify(forProjectMock, times(1)).check(ProjectPermission.ACCESS);
+  }
+
+  @Test
+  public void doNotCacheFailedChecks() throws Exception {
+    doThrow(new PermissionBackendException(""))
+        .doNothing()
+        .when(forProjectMock)
+        .check(ProjectPermission.ACCESS);
+    assertThat(cache.forCurrentUser().test(PROJECT)).isFalse();
+    assertThat(cache.forCurrentUser().test(PROJECT)).isTrue();
+  }
+
+  @Test
+  public void invalidateOnProjectConfigChange() throws Exception {
+    cache.forCurrentUser().test(PROJECT);
+    when(refUpdatedMock.getRefName()).thenReturn("refs/heads/master");
+    cache.onGitReferenceUpdated(refUpdatedMock);
+    cache.forCurrentUser().test(PROJECT);
+    verify(forProjectMock, times(1)).check(ProjectPermission.ACCESS);
+
+    when(refUpdatedMock.getRefName()).thenReturn(RefNames.REFS_CONFIG);
+    cache.onGitReferenceUpdated(refUpdatedMock);
+    cache.forCurrentUser().test(PROJECT);
+    verify(forProjectMock, times(2)).check(ProjectPermission.ACCESS);
+  }
+
+  @Test
+  public void invalidateOnGroupChange() throws Exception {
+    cache.forCurrentUser().test(PROJECT);
+    cache.onGroupIndexed("uuid");
+    cache.forCurrentUser().test(PROJECT);
+    verify(forProjectMock, times(2)).check(ProjectPermission.ACCESS);
+  }
+
+  @Test
+  public void checkVisibleProjectsOncePerAccount() throws Exception {
+    doThrow(new AuthException("")).when(forHiddenProjectMock).check(ProjectPermission.ACCESS);
+    VisibleProjects projects = cache.visibleProjects();
+    assertThat(projects.getVisible()).containsExactly(PROJECT);
+    assertThat(projects.getHidden()).containsExactly(HIDDEN_PROJECT);
+    assertThat(projects.isKnown("newProject")).isFalse();
+    assertThat(cache.visibleProjects()).isSameAs(projects);
+    verify(forProjectMock, times(1)).check(ProjectPermission.ACCESS);
+    verify(projectCacheMock, times(1)).all();
+
+    when(userMock.getAccountId()).thenReturn(new Account.Id(2));
+    assertThat(cache.visibleProjects()).isNotSameAs(projects);
+  }
+
+  @Test
+  public void anonymousUsersShareVisibleProjects() throws Exception {
+    cache =
+        new ProjectVisibilityCache(
+            cfgMock,
+            permissionBackendMock,
+            AnonymousUser::new,
+            projectCacheMock,
+            new DisabledMetricMaker());
+    assertThat(cache.visibleProjects()).isSameAs(cache.visibleProjects());
+    assertThat(cache.forCurrentUser().test(PROJECT)).isTrue();
+    verify(forProjectMock, times(1)).check(ProjectPermission.ACCESS);
+  }
+
+  @Test
+  public void invalidateVisibleProjects() throws Exception {
+    VisibleProjects projects = cache.visibleProjects();
+    cache.onGroupIndexed("uuid");
+    assertThat(cache.visibleProjects()).isNotSameAs(projects);
+  }
+
+  @Test
+  public void doNotCacheWhenDisabled() throws Exception {
+    when(cfgMock.getVisibilityCacheSize()).thenReturn(0);
+    cache = newCache();
+    cache.forCurrentUser().test(PROJECT);
+    cache.forCurrentUser().test(PROJECT);
+    verify(forProjectMock, times(2)).check(ProjectPermission.ACCESS);
+  }
+
+  private ProjectVisibilityCache newCache() {
+    return new ProjectVisibilityCache(
+        cfgMock,
+        permissionBackendMock,
+        () -> userMock,
+        projectCacheMock,
+        new DisabledMetricMaker());
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryRateLimiterTest {
+  private static final Account.Id ACCOUNT = new Account.Id(1);
+  private static final Account.Id OTHER_ACCOUNT = new Account.Id(2);
+
+  @Mock private EventsLogConfig cfgMock;
+
+  private FakeTicker ticker;
+  private QueryRateLimiter limiter;
+
+  @Before
+  public void setUp() {
+    when(cfgMock.getQueryRate()).thenReturn(6);
+    when(cfgMock.getQueryBurst()).thenReturn(2);
+    ticker = new FakeTicker();
+    limiter = new QueryRateLimiter(cfgMock, new DisabledMetricMaker(), ticker);
+  }
+
+  @Test
+  public void rejectQueriesOverBurst() {
+    assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(0);
+    assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(0);
+    assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(10);
+    assertThat(limiter.tryAcquire(OTHER_ACCOUNT)).isEqualTo(0);
+  }
+
+  @Test
+  public void refillOneQueryPerPeriod() {
+    limiter.tryAcquire(ACCOUNT);
+    limiter.tryAcquire(ACCOUNT);
+    ticker.advance(4);
+    assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(6);
+    ticker.advance(6);
+    assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(0);
+    assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(10);
+  }
+
+  @Test
+  public void unlimitedWhenRateIsZero() {
+    when(cfgMock.getQueryRate()).thenReturn(0);
+    limiter = new QueryRateLimiter(cfgMock, new DisabledMetricMaker(), ticker);
+    for (int i = 0; i < 10; i++) {
+      assertThat(limiter.tryAcquire(ACCOUNT)).isEqualTo(0);
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.ericsson.gerrit.plugins.eventslog.ResponseCompression.ACCEPT_ENCODING_HEADER;
+import static com.ericsson.gerrit.plugins.eventslog.ResponseCompression.CONTENT_ENCODING_HEADER;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.ResponseCompression.Encoding;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResponseCompressionTest {
+  private static final String LARGE = Strings.repeat("{\"type\":\"comment-added\"}\n", 100);
+  private static final String SMALL = "{\"type\":\"comment-added\"}\n";
+
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private HttpServletRequest reqMock;
+  @Mock private HttpServletResponse rspMock;
+
+  private BufferOutputStream out;
+  private ResponseCompression compression;
+
+  @Before
+  public void setUp() throws Exception {
+    when(cfgMock.getCompressionMinSize()).thenReturn(1024);
+    when(cfgMock.getQueryThreads()).thenReturn(2);
+    compression = new ResponseCompression(cfgMock);
+    out = new BufferOutputStream();
+  }
+
+  @Test
+  public void negotiateEncoding() {
+    assertThat(ResponseCompression.negotiate(null)).isNull();
+    assertThat(ResponseCompression.negotiate("identity")).isNull();
+    assertThat(ResponseCompression.negotiate("deflate, gzip")).isEqualTo(Encoding.GZIP);
+    assertThat(ResponseCompression.negotiate("gzip;q=0.5, deflate")).isEqualTo(Encoding.DEFLATE);
+    assertThat(ResponseCompression.negotiate("gzip;q=0, *")).isEqualTo(Encoding.DEFLATE);
+    assertThat(ResponseCompression.negotiate("*;q=0")).isNull();
+  }
+
+  @Test
+  public void compressWithGzip() throws Exception {
+    when(reqMock.getHeader(ACCEPT_ENCODING_HEADER)).thenReturn("gzip");
+    when(rspMock.getOutputStream()).thenReturn(out);
+    write(LARGE);
+    verify(rspMock).setContentType(ResponseCompression.CONTENT_TYPE);
+    verify(rspMock).setHeader(CONTENT_ENCODING_HEADER, "gzip");
+    assertThat(out.size()).isLessThan(LARGE.length());
+    assertThat(read(new GZIPInputStream(out.toInputStream()))).isEqualTo(LARGE);
+  }
+
+  @Test
+  public void compressWithDeflate() throws Exception {
+    when(reqMock.getHeader(ACCEPT_ENCODING_HEADER)).thenReturn("deflate");
+    when(rspMock.getOutputStream()).thenReturn(out);
+    write(LARGE);
+    verify(rspMock).setHeader(CONTENT_ENCODING_HEADER, "deflate");
+    assertThat(read(new InflaterInputStream(out.toInputStream()))).isEqualTo(LARGE);
+  }
+
+  @Test
+  public void reuseDeflaters() throws Exception {
+    when(reqMock.getHeader(ACCEPT_ENCODING_HEADER)).thenReturn("gzip");
+    when(rspMock.getOutputStream()).thenReturn(out);
+    write(LARGE);
+    out.reset();
+    write(LARGE);
+    assertThat(read(new GZIPInputStream(out.toInputStream()))).isEqualTo(LARGE);
+  }
+
+  @Test
+  public void sendSmallResponsesUncompressed() throws Exception {
+    when(reqMock.getHeader(ACCEPT_ENCODING_HEADER)).thenReturn("gzip");
+    when(rspMock.getOutputStream()).thenReturn(out);
+    write(SMALL);
+    verify(rspMock, never()).setHeader(eq(CONTENT_ENCODING_HEADER), anyString());
+    verify(rspMock).setContentLength(SMALL.length());
+    assertThat(out.toString(UTF_8.name())).isEqualTo(SMALL);
+  }
+
+  @Test
+  public void sendUncompressedWhenNotAccepted() throws Exception {
+    when(rspMock.getOutputStream()).thenReturn(out);
+    write(LARGE);
+    verify(rspMock, never()).setHeader(eq(CONTENT_ENCODING_HEADER), anyString());
+    assertThat(out.toString(UTF_8.name())).isEqualTo(LARGE);
+  }
+
+  @Test
+  public void leaveResponseUntouchedWhenNothingIsWritten() throws Exception {
+    write("");
+    verify(rspMock, never()).getOutputStream();
+  }
+
+  private void write(String content) throws Exception {
+    try (Writer writer = compression.open(reqMock, rspMock)) {
+      writer.write(content);
+    }
+  }
+
+  private static String read(InputStream in) throws Exception {
+    return new String(ByteStreams.toByteArray(in), UTF_8);
+  }
+
+  private static class BufferOutputStream extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {}
+
+    int size() {
+      return bytes.size();
+    }
+
+    void reset() {
+      bytes.reset();
+    }
+
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    String toString(String charset) throws Exception {
+      return bytes.toString(charset);
+    }
+  }
+}
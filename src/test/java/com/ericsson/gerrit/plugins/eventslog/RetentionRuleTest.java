@@ -0,0 +1,59 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class RetentionRuleTest {
+
+  @Test
+  public void parseRule() {
+    RetentionRule rule = RetentionRule.parse("7 project=mirror/* type=ref-updated");
+    assertThat(rule.getMaxAge()).isEqualTo(7);
+    assertThat(rule.getProject()).isEqualTo("mirror/*");
+    assertThat(rule.getType()).isEqualTo("ref-updated");
+    assertThat(rule.toString()).isEqualTo("7 project=mirror/* type=ref-updated");
+  }
+
+  @Test
+  public void parseRuleOfAnyProject() {
+    RetentionRule rule = RetentionRule.parse(" 90  type=comment-added ");
+    assertThat(rule.getMaxAge()).isEqualTo(90);
+    assertThat(rule.getProject()).isNull();
+    assertThat(rule.getType()).isEqualTo("comment-added");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxAge() {
+    RetentionRule.parse("week type=ref-updated");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeMaxAge() {
+    RetentionRule.parse("-1 type=ref-updated");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownCriterion() {
+    RetentionRule.parse("7 branch=master");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void emptyRule() {
+    RetentionRule.parse(" ");
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.log;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventCursor;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventQueryMaker;
+import com.ericsson.gerrit.plugins.eventslog.EventSubscription;
+import com.ericsson.gerrit.plugins.eventslog.EventVisitor;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.LiveFeed;
+import com.ericsson.gerrit.plugins.eventslog.ProjectVisibilityCache;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gson.Gson;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LogStoreTest {
+  private static final String PROJECT = "mock project";
+  private static final String HIDDEN_PROJECT = "hidden project";
+  private static final long NOW = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private ProjectVisibilityCache visibilityMock;
+  @Mock private ScheduledExecutorService poolMock;
+  @Mock private Runnable onReady;
+
+  private Path dir;
+  private EventQueryMaker queryMaker;
+  private LogStore store;
+
+  @Before
+  public void setUp() {
+    dir = testFolder.getRoot().toPath().resolve("log");
+    when(cfgMock.getLogPath()).thenReturn(dir);
+    when(cfgMock.getLogSegmentSize()).thenReturn(10);
+    when(cfgMock.getReturnLimit()).thenReturn(5);
+    when(cfgMock.getMaxAge()).thenReturn(5);
+    lenient().when(cfgMock.getPollBufferSize()).thenReturn(100);
+    lenient().when(visibilityMock.forCurrentUser()).thenReturn(p -> !p.equals(HIDDEN_PROJECT));
+    queryMaker = new EventQueryMaker(cfgMock);
+    store = newStore();
+  }
+
+  @After
+  public void tearDown() {
+    store.stop();
+  }
+
+  private LogStore newStore() {
+    LogStore logStore = new LogStore(cfgMock, poolMock, visibilityMock, new LiveFeed(cfgMock));
+    logStore.start();
+    return logStore;
+  }
+
+  @Test
+  public void queryMostRecentEventsAcrossSegments() throws Exception {
+    storeEvents(1, 12, PROJECT);
+
+    Result result = query(queryMaker.getDefaultQuery());
+    assertThat(result.numbers).containsExactly(8, 9, 10, 11, 12).inOrder();
+    assertThat(result.cursor).isEqualTo(EventCursor.encode(12));
+    assertThat(Files.exists(dir.resolve("events-0000000011.log"))).isTrue();
+  }
+
+  @Test
+  public void leaveOutEventsOfHiddenProjects() throws Exception {
+    for (int i = 1; i <= 12; i++) {
+      store.storeEvent(new MockEvent(i % 2 == 0 ? HIDDEN_PROJECT : PROJECT, NOW, i));
+    }
+
+    Result result = query(queryMaker.getDefaultQuery());
+    assertThat(result.numbers).containsExactly(3, 5, 7, 9, 11).inOrder();
+    assertThat(result.cursor).isEqualTo(EventCursor.encode(11));
+  }
+
+  @Test
+  public void queryEventsAfterCursor() throws Exception {
+    storeEvents(1, 12, PROJECT);
+
+    Result result =
+        query(
+            queryMaker.formQueryFromRequestParameters(
+                ImmutableMap.of("cursor", EventCursor.encode(7), "project", PROJECT)));
+    assertThat(result.numbers).containsExactly(8, 9, 10, 11, 12).inOrder();
+
+    result =
+        query(
+            queryMaker.formQueryFromRequestParameters(
+                ImmutableMap.of("cursor", EventCursor.encode(12))));
+    assertThat(result.numbers).isEmpty();
+    assertThat(result.cursor).isNull();
+  }
+
+  @Test
+  public void queryEventsWithinTimeWindow() throws Exception {
+    long yesterday = NOW - TimeUnit.DAYS.toSeconds(1);
+    for (int i = 1; i <= 20; i++) {
+      store.storeEvent(new MockEvent(PROJECT, i <= 15 ? yesterday : NOW, i));
+    }
+
+    String t1 =
+        new Timestamp(TimeUnit.SECONDS.toMillis(NOW))
+            .toLocalDateTime()
+            .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    EventQuery query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of("t1", t1));
+    assertThat(query(query).numbers).containsExactly(16, 17, 18, 19, 20).inOrder();
+  }
+
+  @Test
+  public void dropPartlyWrittenEventOnRestart() throws Exception {
+    storeEvents(1, 3, PROJECT);
+    store.stop();
+    Path file = dir.resolve("events-0000000001.log");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 1);
+    }
+
+    store = newStore();
+    assertThat(query(queryMaker.getDefaultQuery()).numbers).containsExactly(1, 2).inOrder();
+    store.storeEvent(new MockEvent(PROJECT, NOW, 4));
+    Result result = query(queryMaker.getDefaultQuery());
+    assertThat(result.numbers).containsExactly(1, 2, 4).inOrder();
+    assertThat(result.cursor).isEqualTo(EventCursor.encode(3));
+  }
+
+  @Test
+  public void reopenClosedSegments() throws Exception {
+    storeEvents(1, 25, PROJECT);
+    store.stop();
+
+    store = newStore();
+    Result result =
+        query(
+            queryMaker.formQueryFromRequestParameters(
+                ImmutableMap.of("cursor", EventCursor.encode(9))));
+    assertThat(result.numbers).containsExactly(10, 11, 12, 13, 14).inOrder();
+  }
+
+  @Test
+  public void removeExpiredSegments() throws Exception {
+    long old = NOW - TimeUnit.DAYS.toSeconds(10);
+    for (int i = 1; i <= 15; i++) {
+      store.storeEvent(new MockEvent(PROJECT, old, i));
+    }
+
+    store.removeOldSegments();
+    assertThat(Files.exists(dir.resolve("events-0000000001.log"))).isFalse();
+    assertThat(Files.exists(dir.resolve("events-0000000011.log"))).isFalse();
+    assertThat(query(queryMaker.getDefaultQuery()).numbers).isEmpty();
+
+    store.storeEvent(new MockEvent(PROJECT, NOW, 16));
+    store.removeOldSegments();
+    Result result = query(queryMaker.getDefaultQuery());
+    assertThat(result.numbers).containsExactly(16);
+    assertThat(result.cursor).isEqualTo(EventCursor.encode(16));
+  }
+
+  @Test
+  public void subscribeToStoredEvents() throws Exception {
+    storeEvents(1, 2, PROJECT);
+    EventSubscription subscription = store.subscribe(EventCursor.encode(2), onReady);
+    store.storeEvent(new MockEvent(HIDDEN_PROJECT, NOW, 3));
+    store.storeEvent(new MockEvent(PROJECT, NOW, 4));
+
+    verify(onReady).run();
+    Result result = new Result();
+    assertThat(subscription.drain(result)).isTrue();
+    assertThat(result.numbers).containsExactly(4);
+    assertThat(result.cursor).isEqualTo(EventCursor.encode(4));
+    subscription.close();
+  }
+
+  @Test(expected = ServiceUnavailableException.class)
+  public void queryFailsIfLogCannotBeOpened() throws Exception {
+    store.stop();
+    Path file = testFolder.newFile().toPath();
+    when(cfgMock.getLogPath()).thenReturn(file);
+    store = newStore();
+
+    store.storeEvent(new MockEvent(PROJECT, NOW, 1));
+    query(queryMaker.getDefaultQuery());
+  }
+
+  private void storeEvents(int first, int last, String project) {
+    List<ProjectEvent> events = new ArrayList<>();
+    for (int i = first; i <= last; i++) {
+      events.add(new MockEvent(project, NOW, i));
+    }
+    store.storeEvents(events);
+  }
+
+  private Result query(EventQuery query) throws Exception {
+    Result result = new Result();
+    store.queryChangeEvents(query, result);
+    return result;
+  }
+
+  private static class Result implements EventVisitor {
+    private final List<Integer> numbers = new ArrayList<>();
+    private String cursor;
+
+    @Override
+    public void visit(String event) {
+      numbers.add(new Gson().fromJson(event, MockEvent.class).number);
+    }
+
+    @Override
+    public void nextCursor(String next) {
+      cursor = next;
+    }
+  }
+
+  private static class MockEvent extends ProjectEvent {
+    private String project;
+    private int number;
+
+    MockEvent(String project, long createdOn, int number) {
+      super("mock-event");
+      this.project = project;
+      this.number = number;
+      this.eventCreatedOn = createdOn;
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return new Project.NameKey(project);
+    }
+  }
+}
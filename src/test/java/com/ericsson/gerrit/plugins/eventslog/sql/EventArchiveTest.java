@@ -0,0 +1,175 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventQueryMaker;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.RetentionRule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventArchiveTest {
+  private static final long START = Timestamp.valueOf("2014-10-10 10:00:00").getTime();
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Mock private EventsLogConfig cfgMock;
+
+  private Path dir;
+  private EventArchive archive;
+  private EventQuery query;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = testFolder.getRoot().toPath().resolve("archive");
+    when(cfgMock.getArchivePath()).thenReturn(dir);
+    archive = new EventArchive(cfgMock);
+    archive.open();
+    when(cfgMock.getReturnLimit()).thenReturn(5);
+    query = window("2014-10-10 10:00:00", "2014-10-10 11:00:00");
+  }
+
+  @Test
+  public void queryOutsideArchiveIsNotReached() throws Exception {
+    assertThat(archive.reachedBy(query)).isFalse();
+    archive.write(entries(1, 10, "foo"));
+    assertThat(archive.reachedBy(query)).isTrue();
+    assertThat(archive.reachedBy(window("2014-10-11 10:00:00", "2014-10-12 10:00:00"))).isFalse();
+    assertThat(archive.reachedBy(new EventQueryMaker(cfgMock).getDefaultQuery())).isFalse();
+  }
+
+  @Test
+  public void mergeArchivedEventsInIdOrder() throws Exception {
+    archive.write(entries(1, 10, "foo"));
+    archive.write(entries(11, 20, "foo"));
+    List<EventEntry> stored = entries(3, 3, "foo");
+    stored.add(entry(30, "foo"));
+
+    List<EventEntry> merged = archive.merge(query, stored, p -> true);
+    assertThat(ids(merged)).containsExactly(1, 2, 3, 4, 5).inOrder();
+  }
+
+  @Test
+  public void leaveOutArchivedEventsOfHiddenProjects() throws Exception {
+    List<EventEntry> entries = entries(1, 5, "foo");
+    entries.addAll(entries(6, 10, "bar"));
+    archive.write(entries);
+
+    List<EventEntry> merged = archive.merge(query, Collections.emptyList(), "bar"::equals);
+    assertThat(ids(merged)).containsExactly(6, 7, 8, 9, 10).inOrder();
+  }
+
+  @Test
+  public void reopenSegments() throws Exception {
+    archive.write(entries(1, 1000, "foo"));
+    Files.write(dir.resolve("events-0000001001-0000001010.seg.tmp"), new byte[] {1, 2});
+
+    EventArchive reopened = new EventArchive(cfgMock);
+    reopened.open();
+    List<EventEntry> merged = reopened.merge(query, Collections.emptyList(), p -> true);
+    assertThat(ids(merged)).containsExactly(1, 2, 3, 4, 5).inOrder();
+    assertThat(merged.get(0).getEvent()).isEqualTo("{\"id\":1}");
+    assertThat(Files.exists(dir.resolve("events-0000001001-0000001010.seg.tmp"))).isFalse();
+  }
+
+  @Test
+  public void dropExpiredSegments() throws Exception {
+    archive.write(entries(1, 10, "foo"));
+    archive.write(entries(11, 20, "foo"));
+
+    assertThat(archive.expire(new RetentionPolicy(0, ImmutableList.of(), START + 15000)))
+        .isEqualTo(14);
+    List<EventEntry> merged = archive.merge(query, Collections.emptyList(), p -> true);
+    assertThat(ids(merged)).containsExactly(15, 16, 17, 18, 19).inOrder();
+    assertThat(Files.exists(dir.resolve("events-0000000001-0000000010.seg"))).isFalse();
+    // the segment holding both expired and kept events is rewritten
+    assertThat(Files.exists(dir.resolve("events-0000000011-0000000020.seg"))).isFalse();
+    assertThat(Files.exists(dir.resolve("events-0000000015-0000000020.seg"))).isTrue();
+  }
+
+  @Test
+  public void removeArchivedEventsExpiredByTheirRule() throws Exception {
+    List<EventEntry> entries = entries(1, 5, "foo");
+    entries.addAll(entries(6, 10, "mirror/bar"));
+    archive.write(entries);
+    RetentionPolicy policy =
+        new RetentionPolicy(
+            1, ImmutableList.of(RetentionRule.parse("0 project=mirror/*")), START + 20000);
+
+    assertThat(archive.expire(policy)).isEqualTo(5);
+    assertThat(archive.expire(policy)).isEqualTo(0);
+    List<EventEntry> merged = archive.merge(query, Collections.emptyList(), p -> true);
+    assertThat(ids(merged)).containsExactly(1, 2, 3, 4, 5).inOrder();
+    assertThat(Files.exists(dir.resolve("events-0000000001-0000000010.seg"))).isFalse();
+  }
+
+  @Test
+  public void removeProjectFromSegments() throws Exception {
+    List<EventEntry> entries = entries(1, 5, "foo");
+    entries.addAll(entries(6, 10, "bar"));
+    archive.write(entries);
+    archive.write(entries(11, 20, "bar"));
+
+    assertThat(archive.removeProject("foo")).isEqualTo(5);
+    assertThat(archive.removeProject("foo")).isEqualTo(0);
+    List<EventEntry> merged = archive.merge(query, Collections.emptyList(), p -> true);
+    assertThat(ids(merged)).containsExactly(6, 7, 8, 9, 10).inOrder();
+
+    assertThat(archive.removeProject("bar")).isEqualTo(15);
+    assertThat(archive.reachedBy(query)).isFalse();
+  }
+
+  private EventQuery window(String from, String to) throws Exception {
+    return new EventQueryMaker(cfgMock)
+        .formQueryFromRequestParameters(ImmutableMap.of("t1", from, "t2", to));
+  }
+
+  private static List<EventEntry> entries(int firstId, int lastId, String project) {
+    List<EventEntry> entries = new ArrayList<>();
+    for (int id = firstId; id <= lastId; id++) {
+      entries.add(entry(id, project));
+    }
+    return entries;
+  }
+
+  private static EventEntry entry(int id, String project) {
+    return new EventEntry(
+        project, new Timestamp(START + id * 1000L), "{\"id\":" + id + "}", id, "ref-updated", id);
+  }
+
+  private static List<Integer> ids(List<EventEntry> entries) {
+    return entries.stream().map(EventEntry::getId).collect(toList());
+  }
+}
@@ -14,18 +14,35 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.RetentionRule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
 import com.google.gerrit.extensions.events.ProjectDeletedListener;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -36,22 +53,218 @@ public class EventsLogCleanerTest {
   @Mock private EventsLogConfig cfgMock;
   @Mock private EventsLogCleaner logCleanerMock;
   @Mock private SQLClient eventsDb;
+  @Mock private QueryResultCache resultCacheMock;
+  @Mock private TailBuffer tailMock;
+  @Mock private StoreMetrics metricsMock;
+  @Mock private EventArchive archiveMock;
   @Mock private ProjectDeletedListener.Event event;
 
+  private ProjectTombstones tombstones = new ProjectTombstones();
   private ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
   private EventsLogCleaner eventsLogCleaner;
 
   @Before
   public void setUp() throws Exception {
-    when(event.getProjectName()).thenReturn(PROJECT);
-    eventsLogCleaner = new EventsLogCleaner(eventsDb, executor);
+    when(cfgMock.getCleanupWindow()).thenReturn(60);
+    when(cfgMock.getCleanupBatchSize()).thenReturn(10);
+    when(cfgMock.getCleanupMaxLatency()).thenReturn(200);
+    eventsLogCleaner =
+        new EventsLogCleaner(
+            cfgMock,
+            eventsDb,
+            resultCacheMock,
+            tailMock,
+            metricsMock,
+            tombstones,
+            archiveMock,
+            executor);
   }
 
   @Test
-  public void testOnProjectDeleted() throws InterruptedException {
+  public void testOnProjectDeleted() throws Exception {
+    when(event.getProjectName()).thenReturn(PROJECT);
+    when(eventsDb.getProjectIds(PROJECT)).thenReturn(Range.closed(1, 45));
+    when(eventsDb.getProjectBatchEnd(PROJECT, 1, 10)).thenReturn(30);
+    when(eventsDb.getProjectBatchEnd(PROJECT, 31, 10)).thenReturn(45);
+    when(eventsDb.removeProjectEvents(eq(PROJECT), anyInt(), anyInt())).thenReturn(10, 5);
+
     eventsLogCleaner.onProjectDeleted(event);
-    executor.awaitTermination(1, TimeUnit.SECONDS);
-    verify(eventsDb, times(1)).removeProjectEvents(PROJECT);
+    verify(tailMock, timeout(1000)).reset();
+    verify(eventsDb).addTombstone(PROJECT);
+    verify(eventsDb).removeProjectEvents(PROJECT, 1, 30);
+    verify(eventsDb).removeProjectEvents(PROJECT, 31, 45);
+    verify(eventsDb).removeTombstone(PROJECT);
+    verify(resultCacheMock, times(2)).evictProject(PROJECT);
+    assertThat(tombstones.contains(PROJECT)).isFalse();
+  }
+
+  @Test
+  public void keepTombstoneWhenPurgeFails() throws Exception {
+    when(eventsDb.getProjectIds(PROJECT)).thenReturn(Range.closed(1, 15));
+    when(eventsDb.removeProjectEvents(eq(PROJECT), anyInt(), anyInt()))
+        .thenThrow(new SQLException());
+
+    eventsLogCleaner.removeProjectEventsAsync(PROJECT);
+    verify(tailMock, timeout(1000)).reset();
+    verify(eventsDb, times(1)).removeProjectEvents(eq(PROJECT), anyInt(), anyInt());
+    verify(eventsDb, never()).removeTombstone(PROJECT);
+    assertThat(tombstones.contains(PROJECT)).isTrue();
+  }
+
+  @Test
+  public void resumeProjectPurges() throws Exception {
+    when(eventsDb.getTombstones()).thenReturn(ImmutableList.of(PROJECT));
+
+    eventsLogCleaner.resumeProjectPurges();
+    verify(tailMock, timeout(1000)).reset();
+    verify(eventsDb).removeTombstone(PROJECT);
+    verify(eventsDb, never()).removeProjectEvents(eq(PROJECT), anyInt(), anyInt());
+    assertThat(tombstones.contains(PROJECT)).isFalse();
+  }
+
+  @Test
+  public void removeOldEventsInBatches() throws Exception {
+    when(eventsDb.getIdsBefore(any(Timestamp.class))).thenReturn(Range.closed(1, 25));
+    when(eventsDb.removeExpiredEvents(any(RetentionPolicy.class), anyInt(), anyInt()))
+        .thenReturn(10);
+
+    eventsLogCleaner.removeOldEvents(30);
+    verify(resultCacheMock, timeout(1000)).invalidateAll();
+    verify(eventsDb).removeExpiredEvents(any(RetentionPolicy.class), eq(1), eq(10));
+    verify(eventsDb).removeExpiredEvents(any(RetentionPolicy.class), eq(11), eq(20));
+    verify(eventsDb).removeExpiredEvents(any(RetentionPolicy.class), eq(21), eq(25));
+    verify(metricsMock, times(3)).recordCleanup(eq(10), anyLong());
+    verify(tailMock).reset();
+  }
+
+  @Test
+  public void backOffWhileDatabaseIsSlow() throws Exception {
+    when(eventsDb.getIdsBefore(any(Timestamp.class))).thenReturn(Range.closed(1, 5));
+    when(metricsMock.recentLatency()).thenReturn(500L, 500L, 10L);
+
+    eventsLogCleaner.removeOldEvents(30);
+    verify(eventsDb, never()).removeExpiredEvents(any(RetentionPolicy.class), anyInt(), anyInt());
+    verify(eventsDb, timeout(2000)).removeExpiredEvents(any(RetentionPolicy.class), eq(1), eq(5));
+    verify(metricsMock, times(3)).recentLatency();
+  }
+
+  @Test
+  public void stopCleanupOnError() throws Exception {
+    when(eventsDb.getIdsBefore(any(Timestamp.class))).thenReturn(Range.closed(1, 25));
+    when(eventsDb.removeExpiredEvents(any(RetentionPolicy.class), anyInt(), anyInt()))
+        .thenThrow(new SQLException());
+
+    eventsLogCleaner.removeOldEvents(30);
+    verify(eventsDb).removeExpiredEvents(any(RetentionPolicy.class), eq(1), eq(10));
+    verify(eventsDb, times(1)).removeExpiredEvents(any(RetentionPolicy.class), anyInt(), anyInt());
+    verify(resultCacheMock).invalidateAll();
+  }
+
+  @Test
+  public void nothingToRemove() throws Exception {
+    eventsLogCleaner.removeOldEvents(30);
+    verify(eventsDb, never()).removeExpiredEvents(any(RetentionPolicy.class), anyInt(), anyInt());
+  }
+
+  @Test
+  public void removeEventsOfShorterRetentionAfterDroppingPartitions() throws Exception {
+    when(cfgMock.getRetentionRules())
+        .thenReturn(ImmutableList.of(RetentionRule.parse("7 type=ref-updated")));
+    eventsLogCleaner =
+        new EventsLogCleaner(
+            cfgMock,
+            eventsDb,
+            resultCacheMock,
+            tailMock,
+            metricsMock,
+            tombstones,
+            archiveMock,
+            executor);
+    when(eventsDb.isPartitioned()).thenReturn(true);
+    when(eventsDb.getIdsBefore(any(Timestamp.class))).thenReturn(Range.closed(1, 5));
+
+    eventsLogCleaner.removeOldEvents(30);
+    ArgumentCaptor<Timestamp> dropped = ArgumentCaptor.forClass(Timestamp.class);
+    ArgumentCaptor<Timestamp> expired = ArgumentCaptor.forClass(Timestamp.class);
+    verify(eventsDb).dropPartitionsBefore(dropped.capture());
+    verify(eventsDb).getIdsBefore(expired.capture());
+    assertThat(expired.getValue().getTime() - dropped.getValue().getTime())
+        .isEqualTo(TimeUnit.DAYS.toMillis(23));
+    verify(eventsDb).removeExpiredEvents(any(RetentionPolicy.class), eq(1), eq(5));
+  }
+
+  @Test
+  public void dropPartitionsOfPartitionedTable() throws Exception {
+    when(eventsDb.isPartitioned()).thenReturn(true);
+
+    eventsLogCleaner.removeOldEvents(30);
+    verify(eventsDb).dropPartitionsBefore(any(Timestamp.class));
+    verify(eventsDb, never()).getIdsBefore(any(Timestamp.class));
+    verify(resultCacheMock).invalidateAll();
+  }
+
+  @Test
+  public void moveOldEventsToArchive() throws Exception {
+    when(cfgMock.getArchiveAge()).thenReturn(90);
+    eventsLogCleaner =
+        new EventsLogCleaner(
+            cfgMock,
+            eventsDb,
+            resultCacheMock,
+            tailMock,
+            metricsMock,
+            tombstones,
+            archiveMock,
+            executor);
+    when(eventsDb.getIdsBefore(any(Timestamp.class)))
+        .thenReturn(null)
+        .thenReturn(Range.closed(1, 15));
+    List<EventEntry> entries = ImmutableList.of(new EventEntry(PROJECT, new Timestamp(0), "{}", 1));
+    when(eventsDb.getEventsBefore(any(Timestamp.class), anyInt(), anyInt())).thenReturn(entries);
+    when(eventsDb.removeEventsBefore(any(Timestamp.class), anyInt(), anyInt())).thenReturn(10, 5);
+
+    eventsLogCleaner.removeOldEvents(30);
+    verify(resultCacheMock, timeout(1000).times(2)).invalidateAll();
+    verify(archiveMock).expire(any(RetentionPolicy.class));
+    verify(archiveMock, times(2)).write(entries);
+    verify(eventsDb).removeEventsBefore(any(Timestamp.class), eq(1), eq(10));
+    verify(eventsDb).removeEventsBefore(any(Timestamp.class), eq(11), eq(15));
+  }
+
+  @Test
+  public void keepEventsInDatabaseWhenArchiveFails() throws Exception {
+    when(cfgMock.getArchiveAge()).thenReturn(90);
+    eventsLogCleaner =
+        new EventsLogCleaner(
+            cfgMock,
+            eventsDb,
+            resultCacheMock,
+            tailMock,
+            metricsMock,
+            tombstones,
+            archiveMock,
+            executor);
+    when(eventsDb.getIdsBefore(any(Timestamp.class)))
+        .thenReturn(null)
+        .thenReturn(Range.closed(1, 15));
+    List<EventEntry> entries = ImmutableList.of(new EventEntry(PROJECT, new Timestamp(0), "{}", 1));
+    when(eventsDb.getEventsBefore(any(Timestamp.class), anyInt(), anyInt())).thenReturn(entries);
+    doThrow(new IOException()).when(archiveMock).write(entries);
+
+    eventsLogCleaner.removeOldEvents(30);
+    verify(archiveMock).write(entries);
+    verify(eventsDb, never()).removeEventsBefore(any(Timestamp.class), anyInt(), anyInt());
+  }
+
+  @Test
+  public void keepTombstoneWhenArchiveCannotBeRewritten() throws Exception {
+    when(archiveMock.removeProject(PROJECT)).thenThrow(new IOException());
+
+    eventsLogCleaner.removeProjectEventsAsync(PROJECT);
+    verify(eventsDb, timeout(1000)).addTombstone(PROJECT);
+    verify(archiveMock, timeout(1000)).removeProject(PROJECT);
+    verify(eventsDb, never()).getProjectIds(PROJECT);
+    assertThat(tombstones.contains(PROJECT)).isTrue();
   }
 
   @After
@@ -0,0 +1,174 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.google.common.truth.Truth.assertThat;
+import static java.lang.String.format;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventQueryMaker;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.google.common.collect.ImmutableMap;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartitionedTableTest {
+  private static final String TEST_URL =
+      "jdbc:h2:mem:partitioned;DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false";
+  private static final LocalDate TODAY = LocalDate.of(2018, 3, 10);
+
+  private Connection conn;
+  private PartitionedTable table;
+
+  @Before
+  public void setUp() throws SQLException {
+    conn = DriverManager.getConnection(TEST_URL);
+    table = new PartitionedTable(false);
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    try (Statement stat = conn.createStatement()) {
+      stat.execute("DROP ALL OBJECTS");
+    }
+    conn.close();
+  }
+
+  @Test
+  public void createPartitionsOfComingDays() throws Exception {
+    assertThat(table.create(conn, TODAY)).isTrue();
+    assertThat(table.tables())
+        .containsExactly(
+            "ChangeEvents_20180310",
+            "ChangeEvents_20180311",
+            "ChangeEvents_20180312",
+            "ChangeEvents_20180313",
+            "ChangeEvents_20180314",
+            "ChangeEvents_20180315",
+            "ChangeEvents_20180316",
+            "ChangeEvents_20180317")
+        .inOrder();
+  }
+
+  @Test
+  public void loadPartitionsAlreadyCreated() throws Exception {
+    table.create(conn, TODAY);
+    PartitionedTable reloaded = new PartitionedTable(false);
+    assertThat(reloaded.create(conn, TODAY.minusDays(1))).isTrue();
+    assertThat(reloaded.tables()).hasSize(9);
+  }
+
+  @Test
+  public void leaveUnpartitionedTable() throws Exception {
+    try (Statement stat = conn.createStatement()) {
+      stat.execute(SQLTable.createTableQuery(false));
+    }
+    assertThat(table.create(conn, TODAY)).isFalse();
+  }
+
+  @Test
+  public void readEventsOfAllPartitions() throws Exception {
+    table.create(conn, TODAY);
+    insert("proj", TODAY.minusDays(2));
+    insert("proj", TODAY);
+    insert("proj", TODAY.plusDays(1));
+
+    assertThat(table.tables()).contains("ChangeEvents_20180308");
+    assertThat(ids("SELECT * FROM " + TABLE_NAME)).containsExactly(1, 2, 3).inOrder();
+  }
+
+  @Test
+  public void readOnlyPartitionsOfWindow() throws Exception {
+    table.create(conn, TODAY);
+    insert("proj", TODAY.minusDays(2));
+    insert("proj", TODAY);
+    insert("proj", TODAY.plusDays(1));
+    String source = table.source(window("2018-03-10 00:00:00", "2018-03-10 23:59:59"));
+    assertThat(source).isEqualTo("(SELECT * FROM ChangeEvents_20180310) ChangeEvents");
+    assertThat(ids("SELECT * FROM " + source)).containsExactly(2);
+  }
+
+  @Test
+  public void readNothingOutsidePartitions() throws Exception {
+    table.create(conn, TODAY);
+    insert("proj", TODAY);
+    String source = table.source(window("2017-01-01 00:00:00", "2017-01-02 00:00:00"));
+    assertThat(ids("SELECT * FROM " + source)).isEmpty();
+  }
+
+  @Test
+  public void leaveQueriesWithoutWindow() throws Exception {
+    table.create(conn, TODAY);
+    assertThat(table.source(new EventQuery(10))).isEqualTo(TABLE_NAME);
+  }
+
+  @Test
+  public void dropPartitionsOfExpiredDays() throws Exception {
+    table.create(conn, TODAY);
+    insert("proj", TODAY.minusDays(2));
+    insert("proj", TODAY);
+
+    List<LocalDate> dropped = table.dropBefore(conn, TODAY.atStartOfDay());
+    assertThat(dropped).containsExactly(TODAY.minusDays(2));
+    assertThat(table.tables()).doesNotContain("ChangeEvents_20180308");
+    assertThat(ids("SELECT * FROM " + TABLE_NAME)).containsExactly(2);
+  }
+
+  private void insert(String project, LocalDate day) throws SQLException {
+    String insert =
+        format(
+            "INSERT INTO %s(%s, %s) VALUES(?, ?)",
+            table.insertTable(conn, day), PROJECT_ENTRY, DATE_ENTRY);
+    try (PreparedStatement stat = conn.prepareStatement(insert)) {
+      stat.setString(1, project);
+      stat.setTimestamp(2, Timestamp.valueOf(day.atTime(12, 0)));
+      stat.executeUpdate();
+    }
+  }
+
+  private static EventQuery window(String from, String to) throws Exception {
+    EventsLogConfig cfg = mock(EventsLogConfig.class);
+    when(cfg.getReturnLimit()).thenReturn(10);
+    return new EventQueryMaker(cfg)
+        .formQueryFromRequestParameters(ImmutableMap.of("t1", from, "t2", to));
+  }
+
+  private List<Integer> ids(String query) throws SQLException {
+    List<Integer> ids = new ArrayList<>();
+    try (Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery(query + " ORDER BY id")) {
+      while (rs.next()) {
+        ids.add(rs.getInt("id"));
+      }
+    }
+    return ids;
+  }
+}
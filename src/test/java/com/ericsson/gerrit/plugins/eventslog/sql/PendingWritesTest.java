@@ -0,0 +1,76 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.google.common.collect.ImmutableList;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class PendingWritesTest {
+  private PendingWrites writes = new PendingWrites();
+
+  @Test
+  public void nothingIsInFlightWithoutWrites() {
+    assertThat(writes.getSafeId()).isEqualTo(PendingWrites.NONE);
+  }
+
+  @Test
+  public void stopAtEventsCommittedBeforeOldestWriteInFlight() {
+    writes.end(writes.begin(), stored(1, 2));
+    long slow = writes.begin();
+    long fast = writes.begin();
+    writes.end(fast, stored(4));
+    long next = writes.begin();
+    assertThat(writes.getSafeId()).isEqualTo(2);
+
+    writes.end(slow, stored(3));
+    assertThat(writes.getSafeId()).isEqualTo(4);
+    writes.abort(next);
+    assertThat(writes.getSafeId()).isEqualTo(PendingWrites.NONE);
+  }
+
+  @Test
+  public void doNotBoundWritesStartedBeforeCommittedEventsAreKnown() {
+    writes.begin();
+    assertThat(writes.getSafeId()).isEqualTo(PendingWrites.NONE);
+  }
+
+  @Test
+  public void boundWritesByEventsCommittedBeforeRestart() {
+    writes.seed(41);
+    writes.begin();
+    assertThat(writes.getSafeId()).isEqualTo(41);
+  }
+
+  @Test
+  public void stopTrackingWhenIdsAreNotKnown() {
+    writes.end(writes.begin(), Collections.emptyList());
+    writes.begin();
+    assertThat(writes.getSafeId()).isEqualTo(PendingWrites.NONE);
+  }
+
+  private static List<EventEntry> stored(int... ids) {
+    ImmutableList.Builder<EventEntry> stored = ImmutableList.builder();
+    for (int id : ids) {
+      stored.add(new EventEntry("project", new Timestamp(0), "event", id));
+    }
+    return stored.build();
+  }
+}
@@ -0,0 +1,65 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ProjectFilterTest {
+
+  @Test
+  public void noneAddsNoCondition() throws Exception {
+    assertThat(ProjectFilter.none().condition(false)).isNull();
+    assertThat(ProjectFilter.none().isEmpty()).isFalse();
+    assertThat(ProjectFilter.none().isAll()).isTrue();
+  }
+
+  @Test
+  public void includingRestrictsToProjects() throws Exception {
+    ProjectFilter filter = ProjectFilter.including(ImmutableList.of("a", "b"));
+    assertThat(filter.condition(false)).isEqualTo("project IN (SELECT X FROM TABLE(X VARCHAR=?))");
+    assertThat(filter.condition(true)).isEqualTo("project = ANY (?)");
+    assertThat(filter.parameter()).asList().containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  public void excludingRestrictsToOtherProjects() throws Exception {
+    ProjectFilter filter = ProjectFilter.excluding(ImmutableList.of("a"));
+    assertThat(filter.condition(false))
+        .isEqualTo("project NOT IN (SELECT X FROM TABLE(X VARCHAR=?))");
+    assertThat(filter.condition(true)).isEqualTo("project <> ALL (?)");
+    assertThat(filter.parameter()).asList().containsExactly("a");
+  }
+
+  @Test
+  public void includingNoProjectIsEmpty() throws Exception {
+    assertThat(ProjectFilter.including(ImmutableList.of()).isEmpty()).isTrue();
+    assertThat(ProjectFilter.excluding(ImmutableList.of()).isEmpty()).isFalse();
+  }
+
+  @Test
+  public void keepStatementWhateverTheNumberOfProjects() throws Exception {
+    List<String> many = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      many.add("project" + i);
+    }
+    assertThat(ProjectFilter.including(many).condition(false))
+        .isEqualTo(ProjectFilter.including(ImmutableList.of("a")).condition(false));
+  }
+}
@@ -17,10 +17,14 @@ package com.ericsson.gerrit.plugins.eventslog.sql;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.when;
 
+import com.ericsson.gerrit.plugins.eventslog.EventCursor;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
 import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
 import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
 import com.google.common.collect.ImmutableMap;
+import java.sql.Timestamp;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -31,15 +35,16 @@ import org.mockito.junit.MockitoJUnitRunner;
 public class QueryMakerTest {
   private static final String T2 = "t2";
   private static final String T1 = "t1";
+  private static final String CURSOR = "cursor";
   private static final String OLD_DATE = "2013-10-10 10:00:00";
   private static final String NEW_DATE = "2014-10-10 10:00:00";
 
   private QueryMaker queryMaker;
-  private String defaultQuery;
+  private EventQuery defaultQuery;
 
   @Mock private EventsLogConfig cfgMock;
 
-  private String query;
+  private EventQuery query;
 
   @Before
   public void setUp() throws Exception {
@@ -53,6 +58,27 @@ public class QueryMakerTest {
     assertThat(queryMaker.formQueryFromRequestParameters(null)).isEqualTo(defaultQuery);
   }
 
+  @Test
+  public void defaultQueryReadsLatestEvents() throws Exception {
+    assertThat(defaultQuery.isLatest()).isTrue();
+    assertThat(sql(defaultQuery))
+        .isEqualTo(
+            "SELECT * FROM (SELECT * FROM ChangeEvents ORDER BY id DESC LIMIT 10) a"
+                + " ORDER BY id ASC");
+    assertThat(values(defaultQuery)).isEmpty();
+  }
+
+  @Test
+  public void precedingQueryReadsOlderEvents() throws Exception {
+    query = SQLQuery.of(defaultQuery.preceding(42, 3));
+    assertThat(query.isLatest()).isTrue();
+    assertThat(sql(query))
+        .isEqualTo(
+            "SELECT * FROM (SELECT * FROM ChangeEvents WHERE id < ? ORDER BY id DESC LIMIT 3) a"
+                + " ORDER BY id ASC");
+    assertThat(values(query)).containsExactly(42);
+  }
+
   @Test(expected = MalformedQueryException.class)
   public void badParameters() throws Exception {
     queryMaker.formQueryFromRequestParameters(ImmutableMap.of(T1, "13/13/32", T2, "14/10/10"));
@@ -61,13 +87,14 @@ public class QueryMakerTest {
   @Test
   public void dateOneOnly() throws Exception {
     query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of(T1, OLD_DATE));
-    assertThat(query).contains(String.format("'%s' and ", OLD_DATE));
+    assertThat(query.getFrom()).isEqualTo(Timestamp.valueOf(OLD_DATE));
+    assertThat(query.getTo()).isGreaterThan(Timestamp.valueOf(NEW_DATE));
   }
 
   @Test
   public void dateTwoOnly() throws Exception {
     query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of(T2, OLD_DATE));
-    assertThat(query).contains(String.format("'%s' and ", OLD_DATE));
+    assertThat(query.getFrom()).isEqualTo(Timestamp.valueOf(OLD_DATE));
   }
 
   @Test(expected = MalformedQueryException.class)
@@ -78,10 +105,80 @@ public class QueryMakerTest {
   @Test
   public void dateOrdering() throws Exception {
     query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of(T1, OLD_DATE, T2, NEW_DATE));
-    assertThat(query).contains(String.format("'%s' and '%s'", OLD_DATE, NEW_DATE));
+    assertThat(values(query))
+        .containsExactly(Timestamp.valueOf(OLD_DATE), Timestamp.valueOf(NEW_DATE))
+        .inOrder();
 
     query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of(T1, NEW_DATE, T2, OLD_DATE));
-    assertThat(query).contains(String.format("'%s' and '%s'", OLD_DATE, NEW_DATE));
+    assertThat(values(query))
+        .containsExactly(Timestamp.valueOf(OLD_DATE), Timestamp.valueOf(NEW_DATE))
+        .inOrder();
+  }
+
+  @Test
+  public void cursorOnly() throws Exception {
+    query =
+        queryMaker.formQueryFromRequestParameters(ImmutableMap.of(CURSOR, EventCursor.encode(42)));
+    assertThat(query.getAfterId()).isEqualTo(42);
+    assertThat(sql(query))
+        .isEqualTo("SELECT * FROM ChangeEvents WHERE id > ? ORDER BY id LIMIT 10");
+    assertThat(values(query)).containsExactly(42);
+  }
+
+  @Test
+  public void cursorAndDates() throws Exception {
+    query =
+        queryMaker.formQueryFromRequestParameters(
+            ImmutableMap.of(CURSOR, EventCursor.encode(42), T1, OLD_DATE, T2, NEW_DATE));
+    assertThat(sql(query))
+        .isEqualTo(
+            "SELECT * FROM ChangeEvents WHERE id > ? AND date_created BETWEEN ? AND ?"
+                + " ORDER BY id LIMIT 10");
+    assertThat(values(query))
+        .containsExactly(42, Timestamp.valueOf(OLD_DATE), Timestamp.valueOf(NEW_DATE))
+        .inOrder();
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void badCursor() throws Exception {
+    queryMaker.formQueryFromRequestParameters(ImmutableMap.of(CURSOR, "not a cursor"));
+  }
+
+  @Test
+  public void filtersOnly() throws Exception {
+    query =
+        queryMaker.formQueryFromRequestParameters(
+            ImmutableMap.of("project", "foo,b'ar", "type", "patchset-created", "change", " 1, 2 "));
+    assertThat(query.isLatest()).isTrue();
+    assertThat(query.getProjects()).containsExactly("foo", "b'ar");
+    assertThat(query.getChanges()).containsExactly(1, 2);
+    assertThat(sql(query)).contains("project IN (?, ?)");
+    assertThat(sql(query)).contains("event_type = ?");
+    assertThat(sql(query)).contains("change_number IN (?, ?)");
+    assertThat(sql(query)).contains("ORDER BY id DESC LIMIT 10");
+    assertThat(values(query)).containsExactly("foo", "b'ar", "patchset-created", 1, 2);
+  }
+
+  @Test
+  public void filtersAndDates() throws Exception {
+    query =
+        queryMaker.formQueryFromRequestParameters(
+            ImmutableMap.of(T1, OLD_DATE, "type", "comment-added"));
+    assertThat(sql(query)).contains("BETWEEN ? AND ? AND event_type = ? ORDER BY id LIMIT 10");
+    assertThat(values(query)).contains("comment-added");
+  }
+
+  @Test
+  public void sameParametersMakeEqualQueries() throws Exception {
+    ImmutableMap<String, String> params =
+        ImmutableMap.of(T1, OLD_DATE, T2, NEW_DATE, "change", "1");
+    assertThat(queryMaker.formQueryFromRequestParameters(params))
+        .isEqualTo(queryMaker.formQueryFromRequestParameters(params));
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void badChangeNumber() throws Exception {
+    queryMaker.formQueryFromRequestParameters(ImmutableMap.of("change", "1,two"));
   }
 
   @Test
@@ -95,6 +192,15 @@ public class QueryMakerTest {
     query =
         queryMaker.formQueryFromRequestParameters(
             ImmutableMap.of(T1, "2013-10-10", T2, "2014-10-10"));
+    assertThat(query.getFrom()).isEqualTo(Timestamp.valueOf("2013-10-10 00:00:00"));
     assertThat(query).isNotEqualTo(defaultQuery);
   }
+
+  private static String sql(EventQuery query) {
+    return ((SQLQuery) query).getSql();
+  }
+
+  private static List<Object> values(EventQuery query) {
+    return ((SQLQuery) query).getValues();
+  }
 }
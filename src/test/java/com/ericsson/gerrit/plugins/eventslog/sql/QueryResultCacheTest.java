@@ -0,0 +1,111 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventQueryMaker;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryResultCacheTest {
+  private static final EventEntry ENTRY =
+      new EventEntry("project", new Timestamp(0), "event", 1, "type", null);
+
+  @Mock private EventsLogConfig cfgMock;
+
+  private QueryResultCache cache;
+  private EventQueryMaker queryMaker;
+  private EventQuery closed;
+
+  @Before
+  public void setUp() throws Exception {
+    when(cfgMock.getQueryCacheSize()).thenReturn(100);
+    when(cfgMock.getReturnLimit()).thenReturn(2);
+    cache = new QueryResultCache(cfgMock, new DisabledMetricMaker());
+    queryMaker = new EventQueryMaker(cfgMock);
+    closed = window("2014-10-11 10:00:00");
+  }
+
+  @Test
+  public void onlyClosedWindowsAreCacheable() throws Exception {
+    String recent = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    assertThat(cache.isCacheable(closed)).isTrue();
+    assertThat(cache.isCacheable(window(recent))).isFalse();
+    assertThat(cache.isCacheable(queryMaker.getDefaultQuery())).isFalse();
+  }
+
+  @Test
+  public void equalQueriesShareTheirPage() throws Exception {
+    cache.put(closed, ImmutableList.of(ENTRY), cache.generation());
+    assertThat(cache.getIfPresent(window("2014-10-11 10:00:00"))).isNotNull();
+  }
+
+  @Test
+  public void pageCutByLimitIsNotComplete() {
+    assertThat(cache.put(closed, ImmutableList.of(ENTRY), cache.generation()).isComplete())
+        .isTrue();
+    assertThat(cache.getIfPresent(closed).getEntries()).containsExactly(ENTRY);
+
+    QueryResultCache.Page page = cache.put(closed, ImmutableList.of(ENTRY, ENTRY), 0);
+    assertThat(page.isComplete()).isFalse();
+    assertThat(cache.getIfPresent(closed).isComplete()).isFalse();
+    // kept for users who can see some of its events to only read the following ones
+    assertThat(cache.getIfPresent(closed).getEntries()).containsExactly(ENTRY, ENTRY);
+  }
+
+  @Test
+  public void evictPagesOfProject() {
+    cache.put(closed, ImmutableList.of(ENTRY), cache.generation());
+    cache.evictProject("other");
+    assertThat(cache.getIfPresent(closed)).isNotNull();
+    cache.evictProject("project");
+    assertThat(cache.getIfPresent(closed)).isNull();
+  }
+
+  @Test
+  public void doNotCachePageReadBeforeInvalidation() {
+    long generation = cache.generation();
+    cache.invalidateAll();
+    cache.put(closed, ImmutableList.of(ENTRY), generation);
+    assertThat(cache.getIfPresent(closed)).isNull();
+  }
+
+  @Test
+  public void nothingIsCacheableWhenDisabled() {
+    when(cfgMock.getQueryCacheSize()).thenReturn(0);
+    cache = new QueryResultCache(cfgMock, new DisabledMetricMaker());
+    assertThat(cache.isCacheable(closed)).isFalse();
+  }
+
+  private EventQuery window(String end) throws Exception {
+    return queryMaker.formQueryFromRequestParameters(
+        ImmutableMap.of("t1", "2014-10-10 10:00:00", "t2", end));
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.RetentionRule;
+import com.google.common.collect.ImmutableList;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RetentionPolicyTest {
+  private static final long NOW = TimeUnit.DAYS.toMillis(1000);
+
+  @Test
+  public void expireAfterMaxAgeWithoutRules() {
+    RetentionPolicy policy = new RetentionPolicy(30, ImmutableList.of(), NOW);
+    assertThat(policy.condition()).isEqualTo("date_created < ?");
+    assertThat(policy.parameters()).containsExactly(daysAgo(30));
+    assertThat(policy.getOldestCutoff()).isEqualTo(daysAgo(30));
+    assertThat(policy.getNewestCutoff()).isEqualTo(daysAgo(30));
+  }
+
+  @Test
+  public void expireByFirstMatchingRule() {
+    RetentionPolicy policy =
+        new RetentionPolicy(
+            30,
+            ImmutableList.of(
+                RetentionRule.parse("7 project=mirror/* type=ref-updated"),
+                RetentionRule.parse("90 project=releases")),
+            NOW);
+    assertThat(policy.condition())
+        .isEqualTo(
+            "date_created < CASE WHEN project LIKE ? AND event_type = ?"
+                + " THEN CAST(? AS TIMESTAMP) WHEN project = ? THEN CAST(? AS TIMESTAMP)"
+                + " ELSE CAST(? AS TIMESTAMP) END");
+    assertThat(policy.parameters())
+        .containsExactly(
+            "mirror/%", "ref-updated", daysAgo(7), "releases", daysAgo(90), daysAgo(30))
+        .inOrder();
+    assertThat(policy.getOldestCutoff()).isEqualTo(daysAgo(90));
+    assertThat(policy.getNewestCutoff()).isEqualTo(daysAgo(7));
+  }
+
+  @Test
+  public void expireEventsInMemoryByFirstMatchingRule() {
+    RetentionPolicy policy =
+        new RetentionPolicy(
+            30,
+            ImmutableList.of(
+                RetentionRule.parse("7 project=mirror/* type=ref-updated"),
+                RetentionRule.parse("90 project=releases")),
+            NOW);
+    assertThat(policy.isExpired(entry("mirror/foo", "ref-updated", 8))).isTrue();
+    assertThat(policy.isExpired(entry("mirror/foo", "ref-updated", 6))).isFalse();
+    assertThat(policy.isExpired(entry("mirror/foo", "comment-added", 8))).isFalse();
+    assertThat(policy.isExpired(entry("releases", "ref-updated", 60))).isFalse();
+    assertThat(policy.isExpired(entry("releases", "ref-updated", 91))).isTrue();
+    assertThat(policy.isExpired(entry("other", "ref-updated", 31))).isTrue();
+  }
+
+  @Test
+  public void escapeProjectPrefix() {
+    RetentionPolicy policy =
+        new RetentionPolicy(30, ImmutableList.of(RetentionRule.parse("7 project=a_b%*")), NOW);
+    assertThat(policy.parameters().get(0)).isEqualTo("a\\_b\\%%");
+  }
+
+  private static EventEntry entry(String project, String type, int daysAgo) {
+    return new EventEntry(project, daysAgo(daysAgo), "{}", 1, type, null);
+  }
+
+  private static Timestamp daysAgo(int days) {
+    return new Timestamp(NOW - TimeUnit.DAYS.toMillis(days));
+  }
+}
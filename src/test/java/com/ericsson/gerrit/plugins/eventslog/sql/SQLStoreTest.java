@@ -14,25 +14,46 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static com.ericsson.gerrit.plugins.eventslog.EventQueryMaker.CURSOR;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TOMBSTONE_TABLE;
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.ericsson.gerrit.plugins.eventslog.EventCursor;
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventSubscription;
+import com.ericsson.gerrit.plugins.eventslog.EventVisitor;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.LiveFeed;
 import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.ProjectVisibilityCache;
 import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.ericsson.gerrit.plugins.eventslog.TooManyQueriesException;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.ProjectPermission;
+import com.google.gerrit.server.project.ProjectCache;
 import com.google.gson.Gson;
 import com.zaxxer.hikari.HikariConfig;
 import java.net.ConnectException;
@@ -41,8 +62,12 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -66,14 +91,18 @@ public class SQLStoreTest {
   private static final String TEST_OPTIONS = "DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false";
   private static final String TERM_CONN_MSG = "terminating connection";
   private static final String MSG = "message";
-  private static final String GENERIC_QUERY = "SELECT * FROM " + TABLE_NAME;
+  private static final String HIDDEN_PROJECT = "hidden project";
 
   @Mock private EventsLogConfig cfgMock;
   @Mock private PermissionBackend permissionBackendMock;
   @Mock private PermissionBackend.ForProject forProjectMock;
   @Mock private PermissionBackend.WithUser withUserMock;
+  @Mock private ProjectCache projectCacheMock;
   @Mock private EventsLogCleaner logCleanerMock;
 
+  private StoreMetrics metrics = new StoreMetrics(new DisabledMetricMaker());
+  private ProjectTombstones tombstones = new ProjectTombstones();
+  private EventArchive archive;
   private SQLClient eventsDb;
   private SQLClient localEventsDb;
   private SQLStore store;
@@ -97,11 +126,19 @@ public class SQLStoreTest {
     poolMock = new PoolMock();
     when(cfgMock.getMaxAge()).thenReturn(5);
     when(cfgMock.getLocalStorePath()).thenReturn(testFolder.getRoot().toPath());
+    when(cfgMock.getArchivePath()).thenReturn(testFolder.getRoot().toPath().resolve("archive"));
+    when(cfgMock.getQueryConcurrency()).thenReturn(4);
+    lenient()
+        .when(projectCacheMock.all())
+        .thenReturn(
+            ImmutableSortedSet.of(
+                new Project.NameKey(mockEvent.project), new Project.NameKey(HIDDEN_PROJECT)));
   }
 
   @After
   public void tearDown() throws Exception {
     stat.execute("DROP TABLE IF EXISTS " + TABLE_NAME);
+    stat.execute("DROP TABLE IF EXISTS " + TOMBSTONE_TABLE);
     store.stop();
   }
 
@@ -112,11 +149,371 @@ public class SQLStoreTest {
     doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
     setUpClient();
     store.storeEvent(mockEvent);
-    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
+    List<String> events = store.queryChangeEvents(allEvents());
     String json = new Gson().toJson(mockEvent);
     assertThat(events).containsExactly(json).inOrder();
   }
 
+  @Test
+  public void deletedProjectIsHiddenUntilPurged() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    store.storeEvent(mockEvent);
+    tombstones.add(mockEvent.project);
+    assertThat(store.queryChangeEvents(allEvents())).isEmpty();
+
+    tombstones.remove(mockEvent.project);
+    assertThat(store.queryChangeEvents(allEvents())).hasSize(1);
+  }
+
+  @Test
+  public void checkProjectAccessOncePerQuery() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    when(projectCacheMock.all())
+        .thenReturn(ImmutableSortedSet.of(new Project.NameKey(mockEvent.project)));
+    setUpClient();
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    List<String> events = new ArrayList<>();
+    store.queryChangeEvents(allEvents(), events::add);
+    assertThat(events).hasSize(2);
+    verify(forProjectMock, times(1)).check(ProjectPermission.ACCESS);
+  }
+
+  @Test
+  public void queryPassesCursorOfLastEvent() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    List<String> cursors = new ArrayList<>();
+    EventVisitor visitor =
+        new EventVisitor() {
+          @Override
+          public void nextCursor(String cursor) {
+            cursors.add(cursor);
+          }
+
+          @Override
+          public void visit(String event) {}
+        };
+
+    store.queryChangeEvents(query(2, CURSOR, EventCursor.encode(0)), visitor);
+    assertThat(cursors).containsExactly(EventCursor.encode(2));
+
+    cursors.clear();
+    store.queryChangeEvents(query(10, CURSOR, EventCursor.encode(3)), visitor);
+    assertThat(cursors).isEmpty();
+  }
+
+  @Test
+  public void limitOnlyCountsVisibleEvents() throws Exception {
+    PermissionBackend.ForProject forHiddenProjectMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(new Project.NameKey(mockEvent.project))).thenReturn(forProjectMock);
+    when(withUserMock.project(new Project.NameKey(HIDDEN_PROJECT)))
+        .thenReturn(forHiddenProjectMock);
+    doThrow(new AuthException("")).when(forHiddenProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    store.storeEvent(new MockEvent(HIDDEN_PROJECT));
+    store.storeEvent(new MockEvent(HIDDEN_PROJECT));
+    store.storeEvent(mockEvent);
+
+    List<String> cursors = new ArrayList<>();
+    List<String> events = new ArrayList<>();
+    store.queryChangeEvents(
+        query(1, CURSOR, EventCursor.encode(0)),
+        new EventVisitor() {
+          @Override
+          public void nextCursor(String cursor) {
+            cursors.add(cursor);
+          }
+
+          @Override
+          public void visit(String event) {
+            events.add(event);
+          }
+        });
+    assertThat(events).containsExactly(new Gson().toJson(mockEvent));
+    assertThat(cursors).containsExactly(EventCursor.encode(3));
+  }
+
+  @Test
+  public void queryNothingWithoutVisibleProjects() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doThrow(new AuthException("")).when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClientMock();
+    store = newStore(poolMock);
+    store.start();
+
+    assertThat(store.queryChangeEvents(allEvents())).isEmpty();
+    verify(eventsDb, never()).getEvents(any(), any(), any());
+  }
+
+  @Test
+  public void rejectQueriesOverConcurrency() throws Exception {
+    when(cfgMock.getQueryConcurrency()).thenReturn(1);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClientMock();
+    store = newStore(poolMock);
+    store.start();
+    List<Exception> rejections = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              // the only permit is held by the running query
+              try {
+                store.queryChangeEvents(allEvents());
+              } catch (TooManyQueriesException e) {
+                rejections.add(e);
+              }
+              return null;
+            })
+        .when(eventsDb)
+        .getEvents(any(), any(), any());
+
+    assertThat(store.queryChangeEvents(allEvents())).isEmpty();
+    assertThat(rejections).hasSize(1);
+  }
+
+  @Test
+  public void doNotReadPastEventsStillBeingCommitted() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClientMock();
+    store = newStore(poolMock);
+    store.start();
+    List<SQLQuery> queries = new ArrayList<>();
+    doAnswer(invocation -> queries.add(invocation.getArgument(0)))
+        .when(eventsDb)
+        .getEvents(any(), any(), any());
+    EventEntry stored = new EventEntry(mockEvent.project, new Timestamp(0), "event", 1);
+    when(eventsDb.storeEvent(mockEvent))
+        .thenReturn(ImmutableList.of(stored))
+        .thenAnswer(
+            invocation -> {
+              // events after the first one may be committed by other writers meanwhile
+              store.queryChangeEvents(allEvents());
+              return ImmutableList.of(stored.withId(2));
+            });
+
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    store.queryChangeEvents(allEvents());
+    assertThat(queries).hasSize(2);
+    assertThat(queries.get(0).getBeforeId()).isEqualTo(2);
+    assertThat(queries.get(1).hasUpperBound()).isFalse();
+  }
+
+  @Test
+  public void readEventsStoredBeforeRestartWhileWriting() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClientMock();
+    when(eventsDb.getLastId()).thenReturn(5);
+    store = newStore(poolMock);
+    store.start();
+    List<SQLQuery> queries = new ArrayList<>();
+    doAnswer(invocation -> queries.add(invocation.getArgument(0)))
+        .when(eventsDb)
+        .getEvents(any(), any(), any());
+    EventEntry stored = new EventEntry(mockEvent.project, new Timestamp(0), "event", 6);
+    when(eventsDb.storeEvent(mockEvent))
+        .thenAnswer(
+            invocation -> {
+              store.queryChangeEvents(allEvents());
+              return ImmutableList.of(stored);
+            });
+
+    store.storeEvent(mockEvent);
+    assertThat(queries).hasSize(1);
+    assertThat(queries.get(0).getBeforeId()).isEqualTo(6);
+  }
+
+  @Test
+  public void cacheClosedWindowsForAllUsers() throws Exception {
+    when(cfgMock.getQueryCacheSize()).thenReturn(100);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().doThrow(new AuthException("")).when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    mockEvent.eventCreatedOn = Timestamp.valueOf("2014-10-10 10:00:00").getTime() / 1000;
+    store.storeEvent(mockEvent);
+    EventQuery query = query(10, "t1", "2014-10-10 00:00:00", "t2", "2014-10-11 00:00:00");
+    assertThat(store.queryChangeEvents(query)).hasSize(1);
+
+    stat.execute("DELETE FROM " + TABLE_NAME);
+    List<String> cursors = new ArrayList<>();
+    List<String> events = new ArrayList<>();
+    store.queryChangeEvents(
+        query,
+        new EventVisitor() {
+          @Override
+          public void nextCursor(String cursor) {
+            cursors.add(cursor);
+          }
+
+          @Override
+          public void visit(String event) {
+            events.add(event);
+          }
+        });
+    assertThat(cursors).containsExactly(EventCursor.encode(1));
+    // served from the cache, but the second check denies access
+    assertThat(events).isEmpty();
+  }
+
+  @Test
+  public void completeCachedPageWithFollowingVisibleEvents() throws Exception {
+    when(cfgMock.getQueryCacheSize()).thenReturn(100);
+    PermissionBackend.ForProject forHiddenProjectMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(new Project.NameKey(mockEvent.project))).thenReturn(forProjectMock);
+    when(withUserMock.project(new Project.NameKey(HIDDEN_PROJECT)))
+        .thenReturn(forHiddenProjectMock);
+    doThrow(new AuthException("")).when(forHiddenProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    long created = Timestamp.valueOf("2014-10-10 10:00:00").getTime() / 1000;
+    for (String project : new String[] {HIDDEN_PROJECT, HIDDEN_PROJECT, mockEvent.project}) {
+      MockEvent event = new MockEvent(project);
+      event.eventCreatedOn = created;
+      store.storeEvent(event);
+    }
+    mockEvent.eventCreatedOn = created;
+    store.storeEvent(mockEvent);
+    EventQuery query = query(2, "t1", "2014-10-10 00:00:00", "t2", "2014-10-11 00:00:00");
+    assertThat(store.queryChangeEvents(query)).hasSize(2);
+
+    // the first events are served from the cached page, only the following ones are read again
+    stat.execute("DELETE FROM " + TABLE_NAME + " WHERE id <= 2");
+    List<String> cursors = new ArrayList<>();
+    List<String> events = new ArrayList<>();
+    store.queryChangeEvents(
+        query,
+        new EventVisitor() {
+          @Override
+          public void nextCursor(String cursor) {
+            cursors.add(cursor);
+          }
+
+          @Override
+          public void visit(String event) {
+            events.add(event);
+          }
+        });
+    assertThat(events).hasSize(2);
+    assertThat(cursors).containsExactly(EventCursor.encode(4));
+  }
+
+  @Test
+  public void mergeArchivedEventsIntoWindowQuery() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    Timestamp created = Timestamp.valueOf("2014-10-10 10:00:00");
+    mockEvent.eventCreatedOn = created.getTime() / 1000;
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    archive.write(
+        Collections.singletonList(new EventEntry(mockEvent.project, created, "archived", 1)));
+    stat.execute("DELETE FROM " + TABLE_NAME + " WHERE id = 1");
+
+    EventQuery query = query(10, "t1", "2014-10-10 00:00:00", "t2", "2014-10-11 00:00:00");
+    assertThat(store.queryChangeEvents(query))
+        .containsExactly("archived", new Gson().toJson(mockEvent))
+        .inOrder();
+  }
+
+  @Test
+  public void answerRecentEventsFromMemory() throws Exception {
+    when(cfgMock.getTailBufferSize()).thenReturn(2);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    store.storeEvent(mockEvent);
+    stat.execute("DELETE FROM " + TABLE_NAME + " WHERE id > 1");
+
+    String json = new Gson().toJson(mockEvent);
+    assertThat(store.queryChangeEvents(query(2))).containsExactly(json, json);
+    assertThat(store.queryChangeEvents(query(2, CURSOR, EventCursor.encode(2))))
+        .containsExactly(json);
+    // only the older event is read from the database
+    assertThat(store.queryChangeEvents(query(4))).containsExactly(json, json, json);
+    // not covered by the events in memory
+    assertThat(store.queryChangeEvents(query(2, CURSOR, EventCursor.encode(0))))
+        .containsExactly(json);
+  }
+
+  @Test
+  public void pushStoredEventsToSubscribers() throws Exception {
+    when(cfgMock.getPollBufferSize()).thenReturn(10);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    Runnable onReady = mock(Runnable.class);
+    EventSubscription subscription = store.subscribe(null, onReady);
+    assertThat(subscription.isReady()).isFalse();
+    store.storeEvent(mockEvent);
+    verify(onReady).run();
+
+    List<String> events = new ArrayList<>();
+    assertThat(subscription.drain(events::add)).isTrue();
+    assertThat(events).containsExactly(new Gson().toJson(mockEvent));
+    assertThat(subscription.getCursor()).isEqualTo(EventCursor.encode(1));
+    subscription.close();
+    store.storeEvent(mockEvent);
+    assertThat(subscription.isReady()).isFalse();
+  }
+
+  @Test
+  public void storeThenQueryByType() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    store.storeEvent(mockEvent);
+    assertThat(store.queryChangeEvents(query(10, "type", "mock event"))).hasSize(1);
+    assertThat(store.queryChangeEvents(query(10, "type", "other"))).isEmpty();
+  }
+
+  @Test
+  public void fillInTypeOfEventsStoredWithoutIt() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    config.setJdbcUrl(TEST_URL);
+    eventsDb = new SQLClient(config);
+    config.setJdbcUrl(TEST_LOCAL_URL);
+    localEventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    String json = new Gson().toJson(mockEvent);
+    eventsDb.storeEntries(
+        ImmutableList.of(
+            new EventEntry("proj", new Timestamp(System.currentTimeMillis()), json, 0)));
+    assertThat(eventsDb.getEventsWithoutType(0, 10)).hasSize(1);
+
+    store = newStore(poolMock);
+    store.start();
+    assertThat(eventsDb.getEventsWithoutType(0, 10)).isEmpty();
+    assertThat(store.queryChangeEvents(query(10, "type", "mock event"))).containsExactly(json);
+  }
+
   @Test
   public void storeThenQueryNotVisible() throws Exception {
     when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
@@ -126,17 +523,10 @@ public class SQLStoreTest {
         .check(ProjectPermission.ACCESS);
     setUpClient();
     store.storeEvent(mockEvent);
-    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
+    List<String> events = store.queryChangeEvents(allEvents());
     assertThat(events).isEmpty();
   }
 
-  @Test(expected = MalformedQueryException.class)
-  public void throwBadRequestTriggerOnBadQuery() throws Exception {
-    setUpClient();
-    String badQuery = "bad query";
-    store.queryChangeEvents(badQuery);
-  }
-
   @Test
   public void notReturnEventWithNoVisibilityInfo() throws Exception {
     when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
@@ -146,7 +536,7 @@ public class SQLStoreTest {
         .check(ProjectPermission.ACCESS);
     setUpClient();
     store.storeEvent(mockEvent);
-    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
+    List<String> events = store.queryChangeEvents(allEvents());
     assertThat(events).isEmpty();
   }
 
@@ -156,14 +546,15 @@ public class SQLStoreTest {
     Throwable[] exceptions = new Throwable[3];
     Arrays.fill(exceptions, new SQLException(new ConnectException()));
     setUpClientMock();
-    doThrow(exceptions).doNothing().when(eventsDb).storeEvent(mockEvent);
+    doThrow(exceptions).doReturn(ImmutableList.of()).when(eventsDb).storeEvent(mockEvent);
     doThrow(exceptions).doNothing().when(eventsDb).queryOne();
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
-    store.storeEvent(mockEvent);
+    List<ProjectEvent> batch = ImmutableList.of(mockEvent);
+    assertThat(store.tryStoreEvents(batch, 0)).isGreaterThan(0L);
+    assertThat(store.tryStoreEvents(batch, 1)).isGreaterThan(0L);
+    assertThat(store.tryStoreEvents(batch, 2)).isEqualTo(0L);
     verify(eventsDb, times(3)).storeEvent(mockEvent);
     verify(localEventsDb).storeEvent(mockEvent);
   }
@@ -174,28 +565,111 @@ public class SQLStoreTest {
     Throwable[] exceptions = new Throwable[3];
     Arrays.fill(exceptions, new SQLException(TERM_CONN_MSG));
     setUpClientMock();
-    doThrow(exceptions).doNothing().when(eventsDb).storeEvent(mockEvent);
+    doThrow(exceptions).doReturn(ImmutableList.of()).when(eventsDb).storeEvent(mockEvent);
     doThrow(exceptions).doNothing().when(eventsDb).queryOne();
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
-    store.storeEvent(mockEvent);
+    List<ProjectEvent> batch = ImmutableList.of(mockEvent);
+    assertThat(store.tryStoreEvents(batch, 0)).isGreaterThan(0L);
+    assertThat(store.tryStoreEvents(batch, 1)).isGreaterThan(0L);
+    assertThat(store.tryStoreEvents(batch, 2)).isEqualTo(0L);
     verify(eventsDb, times(3)).storeEvent(mockEvent);
     verify(localEventsDb).storeEvent(mockEvent);
   }
 
+  @Test
+  public void retryOnConnectionExceptionState() throws Exception {
+    when(cfgMock.getMaxTries()).thenReturn(3);
+    setUpClientMock();
+    doThrow(new SQLException(null, "08001")).when(eventsDb).storeEvent(mockEvent);
+    store = newStore(poolMock);
+
+    store.start();
+    assertThat(store.tryStoreEvents(ImmutableList.of(mockEvent), 0)).isGreaterThan(0L);
+  }
+
+  @Test
+  public void noRetryOnExceptionWithoutMessage() throws Exception {
+    when(cfgMock.getMaxTries()).thenReturn(3);
+    setUpClientMock();
+    doThrow(new SQLException()).when(eventsDb).storeEvent(mockEvent);
+    store = newStore(poolMock);
+
+    store.start();
+    assertThat(store.tryStoreEvents(ImmutableList.of(mockEvent), 0)).isEqualTo(0L);
+    verify(localEventsDb, never()).storeEvent(mockEvent);
+  }
+
+  @Test
+  public void retryIsLeftToTheCaller() throws Exception {
+    when(cfgMock.getMaxTries()).thenReturn(3);
+    setUpClientMock();
+    doThrow(new SQLException(new ConnectException()))
+        .doReturn(ImmutableList.of())
+        .when(eventsDb)
+        .storeEvent(mockEvent);
+    store = newStore(poolMock);
+
+    store.start();
+    List<ProjectEvent> batch = ImmutableList.of(mockEvent);
+    assertThat(store.tryStoreEvents(batch, 0)).isGreaterThan(0L);
+    verify(eventsDb).storeEvent(mockEvent);
+    assertThat(store.tryStoreEvents(batch, 1)).isEqualTo(0L);
+    verify(eventsDb, times(2)).storeEvent(mockEvent);
+    verify(localEventsDb, never()).storeEvent(mockEvent);
+  }
+
+  @Test
+  public void spillEventsStoredDirectlyOnConnectException() throws Exception {
+    when(cfgMock.getMaxTries()).thenReturn(3);
+    setUpClientMock();
+    doThrow(new SQLException(new ConnectException())).when(eventsDb).storeEvent(mockEvent);
+    store = newStore(new PoolMock(true));
+
+    store.start();
+    store.storeEvent(mockEvent);
+    verify(eventsDb).storeEvent(mockEvent);
+    verify(localEventsDb).storeEvent(mockEvent);
+  }
+
+  @Test
+  public void failuresOfOtherLanesDoNotOpenTheCircuit() throws Exception {
+    when(cfgMock.getMaxTries()).thenReturn(2);
+    setUpClientMock();
+    MockEvent otherEvent = new MockEvent("other");
+    doThrow(new SQLException(new ConnectException()))
+        .doReturn(ImmutableList.of())
+        .when(eventsDb)
+        .storeEvent(otherEvent);
+    doAnswer(
+            invocation -> {
+              // another lane fails meanwhile
+              assertThat(store.tryStoreEvents(ImmutableList.of(otherEvent), 0)).isGreaterThan(0L);
+              throw new SQLException(new ConnectException());
+            })
+        .doReturn(ImmutableList.of())
+        .when(eventsDb)
+        .storeEvent(mockEvent);
+    store = newStore(poolMock);
+
+    store.start();
+    assertThat(store.tryStoreEvents(ImmutableList.of(mockEvent), 0)).isGreaterThan(0L);
+    assertThat(store.tryStoreEvents(ImmutableList.of(mockEvent), 1)).isEqualTo(0L);
+    assertThat(store.tryStoreEvents(ImmutableList.of(otherEvent), 1)).isEqualTo(0L);
+    verify(eventsDb, times(2)).storeEvent(mockEvent);
+    verify(eventsDb, times(2)).storeEvent(otherEvent);
+    verify(localEventsDb, never()).storeEvent(any());
+  }
+
   @Test
   public void noRetryOnMessage() throws Exception {
     when(cfgMock.getMaxTries()).thenReturn(3);
     setUpClientMock();
     doThrow(new SQLException(MSG)).when(eventsDb).storeEvent(mockEvent);
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     store.storeEvent(mockEvent);
@@ -208,31 +682,82 @@ public class SQLStoreTest {
     Throwable[] exceptions = new Throwable[3];
     Arrays.fill(exceptions, new SQLException(new ConnectException()));
     setUpClientMock();
-    doThrow(exceptions).doNothing().when(eventsDb).storeEvent(mockEvent);
+    doThrow(exceptions).doReturn(ImmutableList.of()).when(eventsDb).storeEvent(mockEvent);
     doThrow(exceptions).doNothing().when(eventsDb).queryOne();
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     store.storeEvent(mockEvent);
     verify(eventsDb, times(1)).storeEvent(mockEvent);
   }
 
+  @Test
+  public void storeEventsInOneBatch() throws Exception {
+    setUpClientMock();
+    MockEvent mockEvent2 = new MockEvent("proj");
+    store = newStore(poolMock);
+
+    store.start();
+    store.storeEvents(ImmutableList.of(mockEvent, mockEvent2));
+    verify(eventsDb).storeEvents(ImmutableList.of(mockEvent, mockEvent2));
+  }
+
+  @Test
+  public void returnIdsOfBatchSpanningPartitions() throws Exception {
+    config.setJdbcUrl("jdbc:h2:mem:partitioned");
+    eventsDb = new SQLClient(config, 0, true);
+    localEventsDb = new SQLClient(config);
+    store = newStore(poolMock);
+    store.start();
+    MockEvent today = new MockEvent("today");
+    MockEvent yesterday = new MockEvent("yesterday");
+    yesterday.eventCreatedOn = today.eventCreatedOn - TimeUnit.DAYS.toSeconds(1);
+
+    // each day goes to its own partition, written by its own statement
+    List<EventEntry> stored = eventsDb.storeEvents(ImmutableList.of(yesterday, today));
+    assertThat(stored.stream().map(EventEntry::getId).collect(toList()))
+        .containsExactly(1, 2)
+        .inOrder();
+    assertThat(stored.stream().map(EventEntry::getName).collect(toList()))
+        .containsExactly("yesterday", "today")
+        .inOrder();
+  }
+
+  @Test
+  public void spillEventToLocalAndRestore() throws Exception {
+    setUpClientMock();
+    PoolMock restorePool = new PoolMock(true);
+    EventEntry entry = new EventEntry("proj", new Timestamp(0), "event", 7);
+    when(localEventsDb.getEventsAfter(eq(0), anyInt())).thenReturn(ImmutableList.of(entry));
+    store = newStore(restorePool);
+
+    store.start();
+    assertThat(store.isReady()).isFalse();
+    store.spillEvent(mockEvent);
+    verify(localEventsDb).storeEvent(mockEvent);
+    verify(eventsDb, never()).storeEvent(mockEvent);
+    verify(eventsDb, never()).storeEntries(anyList());
+
+    restorePool.runScheduled();
+    verify(eventsDb).storeEntries(ImmutableList.of(entry));
+    verify(localEventsDb).removeEventsUpTo(7);
+
+    restorePool.runScheduled();
+    assertThat(store.isReady()).isTrue();
+  }
+
   @Test(expected = ServiceUnavailableException.class)
   public void throwSQLExceptionIfNotOnline() throws Exception {
     setUpClientMock();
     doThrow(new SQLException(new ConnectException())).when(eventsDb).createDBIfNotCreated();
     doThrow(new SQLException()).when(eventsDb).queryOne();
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     store.storeEvent(mockEvent);
-    store.queryChangeEvents(GENERIC_QUERY);
+    store.queryChangeEvents(allEvents());
   }
 
   @Test
@@ -248,16 +773,14 @@ public class SQLStoreTest {
     eventsDb = new SQLClient(config);
     config.setJdbcUrl(TEST_LOCAL_URL);
     localEventsDb = new SQLClient(config);
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     localEventsDb.createDBIfNotCreated();
     localEventsDb.storeEvent(mockEvent);
     localEventsDb.storeEvent(mockEvent2);
     store.start();
 
-    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
+    List<String> events = store.queryChangeEvents(allEvents());
     Gson gson = new Gson();
     String json = gson.toJson(mockEvent);
     String json2 = gson.toJson(mockEvent2);
@@ -267,15 +790,68 @@ public class SQLStoreTest {
     assertThat(events).containsExactly(json, json2).inOrder();
   }
 
+  @Test
+  public void restoreEventsFromLocalInChunks() throws Exception {
+    setUpClientMock();
+    EventEntry entry1 = new EventEntry("proj", new Timestamp(0), "event1", 3);
+    EventEntry entry2 = new EventEntry("proj", new Timestamp(0), "event2", 5);
+    when(localEventsDb.getEventsAfter(eq(0), anyInt())).thenReturn(ImmutableList.of(entry1));
+    when(localEventsDb.getEventsAfter(eq(3), anyInt())).thenReturn(ImmutableList.of(entry2));
+    when(localEventsDb.getEventsAfter(eq(5), anyInt())).thenReturn(ImmutableList.of());
+    store = newStore(poolMock);
+
+    store.start();
+    verify(eventsDb).storeEntries(ImmutableList.of(entry1));
+    verify(localEventsDb).removeEventsUpTo(3);
+    verify(eventsDb).storeEntries(ImmutableList.of(entry2));
+    verify(localEventsDb).removeEventsUpTo(5);
+  }
+
+  @Test
+  public void keepLocalEventsIfRestoreFails() throws Exception {
+    setUpClientMock();
+    EventEntry entry = new EventEntry("proj", new Timestamp(0), "event", 3);
+    when(localEventsDb.getEventsAfter(eq(0), anyInt())).thenReturn(ImmutableList.of(entry));
+    doThrow(new SQLException(new ConnectException())).when(eventsDb).storeEntries(anyList());
+    PoolMock restorePool = new PoolMock(true);
+    store = newStore(restorePool);
+
+    store.start();
+    restorePool.runScheduled();
+    verify(localEventsDb, never()).removeEventsUpTo(anyInt());
+    assertThat(store.isReady()).isFalse();
+  }
+
+  @Test
+  public void retryRestoringAfterFailure() throws Exception {
+    setUpClientMock();
+    EventEntry entry = new EventEntry("proj", new Timestamp(0), "event", 3);
+    when(localEventsDb.getEventsAfter(eq(0), anyInt())).thenReturn(ImmutableList.of(entry));
+    doThrow(new SQLException(new ConnectException()))
+        .doReturn(ImmutableList.of(entry))
+        .when(eventsDb)
+        .storeEntries(anyList());
+    PoolMock restorePool = new PoolMock(true);
+    store = newStore(restorePool);
+
+    store.start();
+    restorePool.runScheduled();
+    verify(localEventsDb, never()).removeEventsUpTo(anyInt());
+    assertThat(store.isReady()).isFalse();
+
+    restorePool.runScheduled();
+    verify(localEventsDb).removeEventsUpTo(3);
+    restorePool.runScheduled();
+    assertThat(store.isReady()).isTrue();
+  }
+
   @Test
   public void offlineUponStart() throws Exception {
     setUpClientMock();
     doThrow(new SQLException(new ConnectException())).when(eventsDb).createDBIfNotCreated();
     doThrow(new SQLException()).when(eventsDb).queryOne();
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     verify(localEventsDb).createDBIfNotCreated();
@@ -287,9 +863,7 @@ public class SQLStoreTest {
     doThrow(new SQLException(new ConnectException())).when(eventsDb).createDBIfNotCreated();
     doThrow(new SQLException()).when(eventsDb).queryOne();
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     store.storeEvent(mockEvent);
@@ -303,9 +877,7 @@ public class SQLStoreTest {
     doThrow(new SQLException(new ConnectException())).when(eventsDb).createDBIfNotCreated();
     doThrow(new SQLException()).when(eventsDb).queryOne();
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     store.storeEvent(mockEvent);
@@ -316,13 +888,35 @@ public class SQLStoreTest {
 
     eventsDb = new SQLClient(config);
     localEventsDb = new SQLClient(config);
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
   }
 
+  private SQLStore newStore(ScheduledExecutorService pool) {
+    archive = new EventArchive(cfgMock);
+    ProjectVisibilityCache visibility =
+        new ProjectVisibilityCache(
+            cfgMock,
+            permissionBackendMock,
+            () -> null,
+            projectCacheMock,
+            new DisabledMetricMaker());
+    return new SQLStore(
+        cfgMock,
+        eventsDb,
+        localEventsDb,
+        pool,
+        visibility,
+        new QueryResultCache(cfgMock, new DisabledMetricMaker()),
+        new TailBuffer(cfgMock, new DisabledMetricMaker()),
+        new LiveFeed(cfgMock),
+        tombstones,
+        archive,
+        logCleanerMock,
+        metrics);
+  }
+
   private void setUpClientMock() throws SQLException {
     eventsDb = mock(SQLClient.class);
     localEventsDb = mock(SQLClient.class);
@@ -340,15 +934,17 @@ public class SQLStoreTest {
     eventsDb = new SQLClient(config);
     localEventsDb = mock(SQLClient.class);
     when(localEventsDb.dbExists()).thenReturn(true);
-    when(localEventsDb.getAll()).thenReturn(ImmutableList.of(mock(SQLEntry.class)));
+    when(localEventsDb.getEventsAfter(eq(0), anyInt()))
+        .thenReturn(ImmutableList.of(new EventEntry("proj", new Timestamp(0), "event", 0)))
+        .thenReturn(ImmutableList.of())
+        .thenReturn(ImmutableList.of(new EventEntry("proj", new Timestamp(0), "event", 0)))
+        .thenReturn(ImmutableList.of());
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     poolMock.scheduleWithFixedDelay(store.new CheckConnectionTask(), 0, 0, TimeUnit.MILLISECONDS);
-    verify(localEventsDb, times(2)).removeOldEvents(0);
+    verify(localEventsDb, times(2)).removeEventsUpTo(0);
   }
 
   @Test
@@ -376,14 +972,12 @@ public class SQLStoreTest {
       when(cfgMock.getCopyLocal()).thenReturn(true);
     }
 
-    store =
-        new SQLStore(
-            cfgMock, eventsDb, localEventsDb, poolMock, permissionBackendMock, logCleanerMock);
+    store = newStore(poolMock);
 
     store.start();
     verify(eventsDb).queryOne();
-    verify(eventsDb).storeEvent(any(String.class), any(Timestamp.class), any(String.class));
-    List<SQLEntry> entries = localEventsDb.getAll();
+    verify(eventsDb).storeEntries(anyList());
+    List<EventEntry> entries = localEventsDb.getEventsAfter(0, 10);
     assertThat(entries).isEmpty();
   }
 
@@ -406,8 +1000,32 @@ public class SQLStoreTest {
   }
 
   class PoolMock extends ScheduledThreadPoolExecutor {
+    private final boolean holdScheduled;
+    private final List<Runnable> scheduled = new ArrayList<>();
+
     PoolMock() {
+      this(false);
+    }
+
+    PoolMock(boolean holdScheduled) {
       super(1);
+      this.holdScheduled = holdScheduled;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      if (holdScheduled) {
+        scheduled.add(command);
+      } else {
+        command.run();
+      }
+      return mock(ScheduledFuture.class);
+    }
+
+    void runScheduled() {
+      List<Runnable> toRun = new ArrayList<>(scheduled);
+      scheduled.clear();
+      toRun.forEach(Runnable::run);
     }
 
     @Override
@@ -418,4 +1036,18 @@ public class SQLStoreTest {
       return null;
     }
   }
+
+  private static EventQuery allEvents() throws MalformedQueryException {
+    return query(100, CURSOR, EventCursor.encode(0));
+  }
+
+  private static EventQuery query(int limit, String... params) throws MalformedQueryException {
+    EventsLogConfig cfg = mock(EventsLogConfig.class);
+    when(cfg.getReturnLimit()).thenReturn(limit);
+    Map<String, String> map = new HashMap<>();
+    for (int i = 0; i < params.length; i += 2) {
+      map.put(params[i], params[i + 1]);
+    }
+    return new SQLQueryMaker(cfg).formQueryFromRequestParameters(map.isEmpty() ? null : map);
+  }
 }
@@ -0,0 +1,164 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventCursor;
+import com.ericsson.gerrit.plugins.eventslog.EventEntry;
+import com.ericsson.gerrit.plugins.eventslog.EventQuery;
+import com.ericsson.gerrit.plugins.eventslog.EventQueryMaker;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TailBufferTest {
+  @Mock private EventsLogConfig cfgMock;
+
+  private TailBuffer tail;
+
+  @Before
+  public void setUp() {
+    when(cfgMock.getTailBufferSize()).thenReturn(4);
+    tail = new TailBuffer(cfgMock, new DisabledMetricMaker());
+  }
+
+  @Test
+  public void answerLatestEvents() throws Exception {
+    tail.append(entries(1, 2, 3));
+    assertThat(ids(answer(latest(2)))).containsExactly(2, 3).inOrder();
+    assertThat(answer(latest(4))).isNull();
+  }
+
+  @Test
+  public void answerEventsAfterCursor() throws Exception {
+    tail.append(entries(5, 6, 7));
+    assertThat(ids(answer(after(4)))).containsExactly(5, 6, 7).inOrder();
+    assertThat(ids(answer(after(6)))).containsExactly(7);
+    assertThat(answer(after(3))).isNull();
+  }
+
+  @Test
+  public void overwrittenEventsAreNoLongerCovered() throws Exception {
+    tail.append(entries(1, 2, 3, 4, 5, 6));
+    assertThat(answer(after(1))).isNull();
+    assertThat(ids(answer(after(2)))).containsExactly(3, 4, 5).inOrder();
+  }
+
+  @Test
+  public void hiddenEventsAreNotReturned() throws Exception {
+    tail.append(
+        ImmutableList.of(
+            new EventEntry("hidden", new Timestamp(0), "event", 1),
+            new EventEntry("visible", new Timestamp(0), "event", 2)));
+    assertThat(ids(tail.answer(after(0), "visible"::equals).getEntries())).containsExactly(2);
+  }
+
+  @Test
+  public void leaveOlderEventsOfLatestQueriesToTheDatabase() throws Exception {
+    tail.append(
+        ImmutableList.of(
+            new EventEntry("visible", new Timestamp(0), "event", 3),
+            new EventEntry("hidden", new Timestamp(0), "event", 4),
+            new EventEntry("visible", new Timestamp(0), "event", 5)));
+    TailBuffer.Answer answer = tail.answer(latest(3), "visible"::equals);
+    assertThat(answer.isComplete()).isFalse();
+    assertThat(ids(answer.getEntries())).containsExactly(3, 5).inOrder();
+    assertThat(answer.getOlder().getLimit()).isEqualTo(1);
+    assertThat(answer.getOlder().getBeforeId()).isEqualTo(3);
+    assertThat(answer.getOlder().isLatest()).isTrue();
+  }
+
+  @Test
+  public void eventsCommittedOutOfOrderAreKeptInIdOrder() throws Exception {
+    tail.append(entries(1, 2, 4, 5));
+    tail.append(entries(3));
+    assertThat(ids(answer(after(2)))).containsExactly(3, 4, 5).inOrder();
+    assertThat(answer(after(0))).isNull();
+    tail.append(entries(6));
+    assertThat(ids(answer(latest(3)))).containsExactly(4, 5, 6).inOrder();
+    assertThat(answer(after(1))).isNull();
+  }
+
+  @Test
+  public void answerFilteredQueries() throws Exception {
+    tail.append(
+        ImmutableList.of(
+            new EventEntry("foo", new Timestamp(0), "event", 1, "ref-updated", null),
+            new EventEntry("bar", new Timestamp(0), "event", 2, "comment-added", 7),
+            new EventEntry("foo", new Timestamp(0), "event", 3, "comment-added", 8)));
+    when(cfgMock.getReturnLimit()).thenReturn(1);
+    EventQueryMaker maker = new EventQueryMaker(cfgMock);
+    assertThat(
+            ids(
+                answer(
+                    maker.formQueryFromRequestParameters(
+                        ImmutableMap.of("type", "comment-added", "project", "bar")))))
+        .containsExactly(2);
+    assertThat(
+            ids(
+                answer(
+                    maker.formQueryFromRequestParameters(
+                        ImmutableMap.of("cursor", EventCursor.encode(0), "change", "8")))))
+        .containsExactly(3);
+  }
+
+  @Test
+  public void nothingIsCoveredAfterReset() throws Exception {
+    tail.append(entries(1, 2));
+    tail.reset();
+    assertThat(answer(after(0))).isNull();
+    tail.append(entries(3));
+    assertThat(ids(answer(after(2)))).containsExactly(3);
+  }
+
+  private List<EventEntry> answer(EventQuery query) {
+    TailBuffer.Answer answer = tail.answer(query, p -> true);
+    return answer != null && answer.isComplete() ? answer.getEntries() : null;
+  }
+
+  private EventQuery latest(int limit) {
+    when(cfgMock.getReturnLimit()).thenReturn(limit);
+    return new EventQueryMaker(cfgMock).getDefaultQuery();
+  }
+
+  private EventQuery after(int id) throws Exception {
+    when(cfgMock.getReturnLimit()).thenReturn(3);
+    return new EventQueryMaker(cfgMock)
+        .formQueryFromRequestParameters(ImmutableMap.of("cursor", EventCursor.encode(id)));
+  }
+
+  private static List<EventEntry> entries(int... ids) {
+    return IntStream.of(ids)
+        .mapToObj(id -> new EventEntry("project", new Timestamp(0), "event", id))
+        .collect(toList());
+  }
+
+  private static List<Integer> ids(List<EventEntry> entries) {
+    return entries.stream().map(EventEntry::getId).collect(toList());
+  }
+}